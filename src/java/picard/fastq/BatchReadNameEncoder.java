@@ -0,0 +1,42 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.fastq;
+
+import picard.illumina.parser.ClusterDataBatch;
+
+/**
+ * A ReadNameEncoder that can also name a cluster held in a ClusterDataBatch, without a ClusterData being built for it.
+ * This is separate from ReadNameEncoder so that implementations of that interface need not provide it.
+ */
+public interface BatchReadNameEncoder extends ReadNameEncoder {
+    /**
+     * Generates a read name string for one cluster of the provided batch.
+     *
+     * @param batch The batch holding the cluster whose reads are having its name generated
+     * @param cluster The index of the cluster within the batch
+     * @param pairNumber 1 if this is the first of the pair, 2 if it is the second, or null if this not a paired read.
+     * @return The read name
+     */
+    String generateReadName(ClusterDataBatch batch, int cluster, Integer pairNumber);
+}
@@ -2,6 +2,7 @@ package picard.fastq;
 
 import htsjdk.samtools.util.StringUtil;
 import picard.illumina.parser.ClusterData;
+import picard.illumina.parser.ClusterDataBatch;
 
 /**
  * A read name encoder conforming to the standard described by Illumina Casava 1.8.
@@ -9,7 +10,7 @@ import picard.illumina.parser.ClusterData;
  * @see <a href="http://biowulf.nih.gov/apps/CASAVA1_8_Changes.pdf">Casava 1.8 update</a>
  * @author mccowan
  */
-public class Casava18ReadNameEncoder implements ReadNameEncoder {
+public class Casava18ReadNameEncoder implements BatchReadNameEncoder {
     final static int CONTROL_FIELD_VALUE = 0;
     final String runId, instrumentName, flowcellId;
     
@@ -43,4 +44,22 @@ public class Casava18ReadNameEncoder implements ReadNameEncoder {
                 StringUtil.asEmptyIfNull(cluster.getMatchedBarcode())
         );
     }
+
+    @Override
+    public String generateReadName(final ClusterDataBatch batch, final int cluster, final Integer pairNumber) {
+        return String.format(
+                "%s:%s:%s:%d:%d:%d:%d %s:%s:%d:%s",
+                instrumentName,
+                runId,
+                flowcellId,
+                batch.getLane(),
+                batch.getTile(),
+                batch.getX(cluster),
+                batch.getY(cluster),
+                StringUtil.asEmptyIfNull(pairNumber),
+                IsFilteredLabel.get(batch.isPf(cluster)),
+                CONTROL_FIELD_VALUE,
+                StringUtil.asEmptyIfNull(batch.getMatchedBarcode(cluster))
+        );
+    }
 }
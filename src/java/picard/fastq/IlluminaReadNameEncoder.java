@@ -1,6 +1,7 @@
 package picard.fastq;
 
 import picard.illumina.parser.ClusterData;
+import picard.illumina.parser.ClusterDataBatch;
 
 /**
  * A read name encoder following the encoding initially produced by picard fastq writers.
@@ -8,7 +9,7 @@ import picard.illumina.parser.ClusterData;
  * @see <a href="http://en.wikipedia.org/wiki/FASTQ_format#Illumina_sequence_identifiers">Illumina sequence identifiers</a> almost describes the format used here, except instead of an instrument name, we write the run barcode
  * @author mccowan
  */
-public class IlluminaReadNameEncoder implements ReadNameEncoder {
+public class IlluminaReadNameEncoder implements BatchReadNameEncoder {
     final String runBarcode;
     public IlluminaReadNameEncoder(final String runBarcode) {
         this.runBarcode = runBarcode;
@@ -18,6 +19,11 @@ public class IlluminaReadNameEncoder implements ReadNameEncoder {
     public String generateReadName(final ClusterData cluster, final Integer pairNumber) {
         return runBarcode + ":" + cluster.getLane() + ":" + cluster.getTile() + ":" + cluster.getX() + ":" + cluster.getY() + generatePairNumberSuffix(pairNumber);
     }
+
+    @Override
+    public String generateReadName(final ClusterDataBatch batch, final int cluster, final Integer pairNumber) {
+        return runBarcode + ":" + batch.getLane() + ":" + batch.getTile() + ":" + batch.getX(cluster) + ":" + batch.getY(cluster) + generatePairNumberSuffix(pairNumber);
+    }
     
     private static String generatePairNumberSuffix(final Integer pairNumber) {
         if (pairNumber == null)
@@ -0,0 +1,262 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina;
+
+import htsjdk.samtools.util.SequenceUtil;
+import picard.illumina.ExtractIlluminaBarcodes.BarcodeMetric;
+import picard.util.IlluminaUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches the barcode reads of clusters against a set of expected barcodes and accumulates BarcodeMetrics, applying
+ * the rules of ExtractIlluminaBarcodes.  This is shared by ExtractIlluminaBarcodes, which writes the matches to
+ * barcode files, and by IlluminaBasecallsConverter, which can match barcodes as it reads the basecalls so that a lane
+ * is demultiplexed in a single pass.
+ *
+ * An instance is not thread-safe.  Each thread should match with its own copy() and merge() it into the original
+ * when it is done.
+ */
+public class BarcodeExtractor {
+    private final Map<String, BarcodeMetric> metrics;
+    private final BarcodeMetric[] metricsInOrder;
+    private final BarcodeMetric noMatch;
+    private final IndexedBarcodeMatcher barcodeMatcher;
+    private final IndexedBarcodeMatcher.Match indexedMatch = new IndexedBarcodeMatcher.Match();
+    private final String[] barcodeStrings;
+    private final String[] lowerCaseBarcodeStrings;
+    private final int maxNoCalls, maxMismatches, minMismatchDelta, minimumBaseQuality;
+
+    /** Utility class to hang onto data about the best match for a given barcode */
+    public static class BarcodeMatch {
+        boolean matched;
+        /** The barcode matched, the barcode nearly matched in lower case, or empty if none was close. */
+        String barcode;
+        /** The index of barcode in getBarcodes(), or -1 if barcode is empty. */
+        int barcodeOrdinal = -1;
+        int mismatches;
+        int mismatchesToSecondBest;
+    }
+
+    /**
+     * @param barcodeToMetrics   A "template" metric map whose metrics are cloned, and the clones are stored internally for accumulating data
+     * @param noMatchMetric      A "template" metric that is cloned and the clone is stored internally for accumulating data
+     * @param maxNoCalls         Maximum allowable number of no-calls in a barcode read before it is considered unmatchable.
+     * @param maxMismatches      Maximum mismatches for a barcode to be considered a match.
+     * @param minMismatchDelta   Minimum difference between the mismatches of the best and second best barcodes for a match.
+     * @param minimumBaseQuality Barcode bases below this quality are counted as mismatches.
+     */
+    public BarcodeExtractor(final Map<String, BarcodeMetric> barcodeToMetrics,
+                            final BarcodeMetric noMatchMetric,
+                            final int maxNoCalls,
+                            final int maxMismatches,
+                            final int minMismatchDelta,
+                            final int minimumBaseQuality) {
+        this.maxNoCalls = maxNoCalls;
+        this.maxMismatches = maxMismatches;
+        this.minMismatchDelta = minMismatchDelta;
+        this.minimumBaseQuality = minimumBaseQuality;
+        this.metrics = new LinkedHashMap<String, BarcodeMetric>(barcodeToMetrics.size());
+        for (final String key : barcodeToMetrics.keySet()) {
+            this.metrics.put(key, BarcodeMetric.copy(barcodeToMetrics.get(key)));
+        }
+        this.metricsInOrder = this.metrics.values().toArray(new BarcodeMetric[this.metrics.size()]);
+        this.noMatch = BarcodeMetric.copy(noMatchMetric);
+
+        final List<byte[][]> barcodes = new ArrayList<byte[][]>(metricsInOrder.length);
+        this.barcodeStrings = new String[metricsInOrder.length];
+        this.lowerCaseBarcodeStrings = new String[metricsInOrder.length];
+        for (int i = 0; i < metricsInOrder.length; ++i) {
+            barcodes.add(metricsInOrder[i].barcodeBytes);
+            barcodeStrings[i] = metricsInOrder[i].BARCODE.replaceAll(IlluminaUtil.BARCODE_DELIMITER, "");
+            lowerCaseBarcodeStrings[i] = barcodeStrings[i].toLowerCase();
+        }
+        this.barcodeMatcher = new IndexedBarcodeMatcher(barcodes, maxMismatches);
+    }
+
+    /** Creates an extractor for the same barcodes with fresh metrics, sharing the immutable barcode index. */
+    private BarcodeExtractor(final BarcodeExtractor template) {
+        this.maxNoCalls = template.maxNoCalls;
+        this.maxMismatches = template.maxMismatches;
+        this.minMismatchDelta = template.minMismatchDelta;
+        this.minimumBaseQuality = template.minimumBaseQuality;
+        this.metrics = new LinkedHashMap<String, BarcodeMetric>(template.metrics.size());
+        for (final String key : template.metrics.keySet()) {
+            this.metrics.put(key, BarcodeMetric.copy(template.metrics.get(key)));
+        }
+        this.metricsInOrder = this.metrics.values().toArray(new BarcodeMetric[this.metrics.size()]);
+        this.noMatch = BarcodeMetric.copy(template.noMatch);
+        this.barcodeStrings = template.barcodeStrings;
+        this.lowerCaseBarcodeStrings = template.lowerCaseBarcodeStrings;
+        this.barcodeMatcher = template.barcodeMatcher;
+    }
+
+    /** @return An extractor for the same barcodes and matching rules, whose metrics start from zero. */
+    public BarcodeExtractor copy() {
+        return new BarcodeExtractor(this);
+    }
+
+    /** Adds the metrics accumulated by other, which must be a copy() of this extractor, to this one's. */
+    public synchronized void merge(final BarcodeExtractor other) {
+        for (final String key : metrics.keySet()) {
+            metrics.get(key).merge(other.metrics.get(key));
+        }
+        noMatch.merge(other.noMatch);
+    }
+
+    public synchronized Map<String, BarcodeMetric> getMetrics() {
+        return metrics;
+    }
+
+    public synchronized BarcodeMetric getNoMatchMetric() {
+        return noMatch;
+    }
+
+    /** @return The barcodes without delimiters, in the order to which BarcodeMatch ordinals refer. */
+    public List<String> getBarcodes() {
+        return Arrays.asList(barcodeStrings);
+    }
+
+    /**
+     * Find the best barcode match for the given read sequence, and accumulate metrics
+     *
+     * @param readSubsequences portion of read containing barcode
+     * @param qualityScores    qualities of readSubsequences, or null if base qualities are not being considered
+     * @param passingFilter    PF flag for the current read
+     * @return the best match, which is matched if it was within tolerance.
+     */
+    public BarcodeMatch findBestBarcodeAndUpdateMetrics(final byte[][] readSubsequences,
+                                                        final byte[][] qualityScores,
+                                                        final boolean passingFilter) {
+        BarcodeMetric bestBarcodeMetric = null;
+        int bestBarcodeOrdinal = -1;
+        int totalBarcodeReadBases = 0;
+        int numNoCalls = 0; // NoCalls are calculated for all the barcodes combined
+
+        for (final byte[] bc : readSubsequences) {
+            totalBarcodeReadBases += bc.length;
+            for (final byte b : bc) if (SequenceUtil.isNoCall(b)) ++numNoCalls;
+        }
+
+        // PIC-506 When forcing all reads to match a single barcode, allow a read to match even if every
+        // base is a mismatch.
+        int numMismatchesInBestBarcode = totalBarcodeReadBases + 1;
+        int numMismatchesInSecondBestBarcode = totalBarcodeReadBases + 1;
+
+        // Most reads can be resolved by the index; compare the rest, e.g. those with no-calls, to every barcode.
+        if (numNoCalls == 0 && barcodeMatcher.match(readSubsequences, qualityScores, minimumBaseQuality, indexedMatch)) {
+            bestBarcodeOrdinal = indexedMatch.barcodeIndex;
+            bestBarcodeMetric = metricsInOrder[bestBarcodeOrdinal];
+            numMismatchesInBestBarcode = indexedMatch.mismatches;
+            numMismatchesInSecondBestBarcode = indexedMatch.mismatchesToSecondBest;
+        } else {
+            for (int ordinal = 0; ordinal < metricsInOrder.length; ++ordinal) {
+                final BarcodeMetric barcodeMetric = metricsInOrder[ordinal];
+                final int numMismatches = countMismatches(barcodeMetric.barcodeBytes, readSubsequences, qualityScores);
+                if (numMismatches < numMismatchesInBestBarcode) {
+                    if (bestBarcodeMetric != null) {
+                        numMismatchesInSecondBestBarcode = numMismatchesInBestBarcode;
+                    }
+                    numMismatchesInBestBarcode = numMismatches;
+                    bestBarcodeMetric = barcodeMetric;
+                    bestBarcodeOrdinal = ordinal;
+                } else if (numMismatches < numMismatchesInSecondBestBarcode) {
+                    numMismatchesInSecondBestBarcode = numMismatches;
+                }
+            }
+        }
+
+        final boolean matched = bestBarcodeMetric != null &&
+                numNoCalls <= maxNoCalls &&
+                numMismatchesInBestBarcode <= maxMismatches &&
+                numMismatchesInSecondBestBarcode - numMismatchesInBestBarcode >= minMismatchDelta;
+
+        final BarcodeMatch match = new BarcodeMatch();
+
+        // If we have something that's not a "match" but matches one barcode
+        // slightly, we output that matching barcode in lower case
+        if (numNoCalls + numMismatchesInBestBarcode < totalBarcodeReadBases) {
+            match.mismatches = numMismatchesInBestBarcode;
+            match.mismatchesToSecondBest = numMismatchesInSecondBestBarcode;
+            match.barcodeOrdinal = bestBarcodeOrdinal;
+            match.barcode = lowerCaseBarcodeStrings[bestBarcodeOrdinal];
+        } else {
+            match.mismatches = totalBarcodeReadBases;
+            match.barcode = "";
+        }
+
+        if (matched) {
+            ++bestBarcodeMetric.READS;
+            if (passingFilter) {
+                ++bestBarcodeMetric.PF_READS;
+            }
+            if (numMismatchesInBestBarcode == 0) {
+                ++bestBarcodeMetric.PERFECT_MATCHES;
+                if (passingFilter) {
+                    ++bestBarcodeMetric.PF_PERFECT_MATCHES;
+                }
+            } else if (numMismatchesInBestBarcode == 1) {
+                ++bestBarcodeMetric.ONE_MISMATCH_MATCHES;
+                if (passingFilter) {
+                    ++bestBarcodeMetric.PF_ONE_MISMATCH_MATCHES;
+                }
+            }
+
+            match.matched = true;
+            match.barcodeOrdinal = bestBarcodeOrdinal;
+            match.barcode = barcodeStrings[bestBarcodeOrdinal];
+        } else {
+            ++noMatch.READS;
+            if (passingFilter) {
+                ++noMatch.PF_READS;
+            }
+        }
+
+        return match;
+    }
+
+    /**
+     * Compare barcode sequence to bases from read
+     *
+     * @return how many bases did not match
+     */
+    private int countMismatches(final byte[][] barcodeBytes, final byte[][] readSubsequence, final byte[][] qualities) {
+        int numMismatches = 0;
+        // Read sequence and barcode length may not be equal, so we just use the shorter of the two
+        for (int j = 0; j < barcodeBytes.length; j++) {
+            final int basesToCheck = Math.min(barcodeBytes[j].length, readSubsequence[j].length);
+            for (int i = 0; i < basesToCheck; ++i) {
+                if (!SequenceUtil.isNoCall(readSubsequence[j][i])) {
+                    if (!SequenceUtil.basesEqual(barcodeBytes[j][i], readSubsequence[j][i])) ++numMismatches;
+                    else if (qualities != null && qualities[j][i] < minimumBaseQuality) ++numMismatches;
+                }
+            }
+        }
+        return numMismatches;
+    }
+}
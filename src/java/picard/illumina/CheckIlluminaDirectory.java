@@ -1,5 +1,7 @@
 package picard.illumina;
 
+import htsjdk.samtools.metrics.MetricBase;
+import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.ProcessExecutor;
@@ -10,20 +12,30 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.programgroups.Illumina;
 import picard.cmdline.StandardOptionDefinitions;
+import picard.illumina.parser.FileHeaderCheck;
 import picard.illumina.parser.IlluminaDataProviderFactory;
 import picard.illumina.parser.IlluminaDataType;
 import picard.illumina.parser.IlluminaFileUtil;
 import picard.illumina.parser.OutputMapping;
 import picard.illumina.parser.ParameterizedFileUtil;
 import picard.illumina.parser.ReadStructure;
+import picard.illumina.parser.RunFolderManifest;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Program to check a lane of an Illumina output directory.  This program checks that files exist, are non-zero in length, for every tile/cycle and
@@ -72,6 +84,51 @@ public class CheckIlluminaDirectory extends CommandLineProgram {
             optional = true)
     public Boolean LINK_LOCS = false;
 
+    @Option(doc = "If set, a manifest of each lane's files, sizes and tile indices is written to this directory, so " +
+            "that IlluminaBasecallsToSam, IlluminaBasecallsToFastq and ExtractIlluminaBarcodes given the same directory " +
+            "can find the lane's files without listing the run folder again.  Only use this once the run is complete.",
+            optional = true)
+    public File RUN_MANIFEST_DIR;
+
+    @Option(doc = "If true, also read the header of every bcl, filter and locs file that will be used, checking that it is " +
+            "well formed, that the file is as long as the header implies, and that all the files of a tile (or, for files " +
+            "holding every tile, the tile index) agree on the number of clusters.  Only headers are read.", optional = true)
+    public boolean CHECK_HEADERS = false;
+
+    @Option(doc = "The number of file headers to check in parallel when CHECK_HEADERS is true.  If NUM_PROCESSORS = 0, " +
+            "the number of cores available on the machine is used.  If NUM_PROCESSORS < 0 then the number of cores used " +
+            "will be the number available on the machine less NUM_PROCESSORS.")
+    public int NUM_PROCESSORS = 1;
+
+    @Option(doc = "If set, the time taken to check the header of each file is written to this metrics file, slowest first, " +
+            "so that slow storage can be found before conversion starts.  Requires CHECK_HEADERS.", optional = true)
+    public File LATENCY_METRICS;
+
+    /** The time taken to check the header of one file. */
+    public static class FileLatencyMetric extends MetricBase {
+        public int LANE;
+        /** The tile the file holds, or null if it holds every tile of the lane. */
+        public Integer TILE;
+        public String FILE;
+        /** The time taken to open the file and read its header. */
+        public double MILLISECONDS;
+    }
+
+    /** The outcome of one FileHeaderCheck. */
+    private static class HeaderCheckResult {
+        final FileHeaderCheck check;
+        final long numClusters;
+        final String error;
+        final long nanos;
+
+        HeaderCheckResult(final FileHeaderCheck check, final long numClusters, final String error, final long nanos) {
+            this.check = check;
+            this.numClusters = numClusters;
+            this.error = error;
+            this.nanos = nanos;
+        }
+    }
+
     /**
      * Required main method implementation.
      */
@@ -89,39 +146,81 @@ public class CheckIlluminaDirectory extends CommandLineProgram {
         final List<Integer> failingLanes = new ArrayList<Integer>();
         int totalFailures = 0;
 
+        final ExecutorService pool;
+        if (CHECK_HEADERS) {
+            final int numProcessors;
+            if (NUM_PROCESSORS == 0) {
+                numProcessors = Runtime.getRuntime().availableProcessors();
+            } else if (NUM_PROCESSORS < 0) {
+                numProcessors = Runtime.getRuntime().availableProcessors() + NUM_PROCESSORS;
+            } else {
+                numProcessors = NUM_PROCESSORS;
+            }
+            pool = Executors.newFixedThreadPool(Math.max(1, numProcessors));
+        } else {
+            pool = null;
+        }
+        final List<FileLatencyMetric> latencyMetrics = new ArrayList<FileLatencyMetric>();
+
         final int[] expectedCycles = new OutputMapping(readStructure).getOutputCycles();
         log.info("Checking lanes(" + StringUtil.join(",", LANES) + " in basecalls directory (" + BASECALLS_DIR
                 .getAbsolutePath() + ")\n");
         log.info("Expected cycles: " + StringUtil.intValuesToString(expectedCycles));
 
-        for (final Integer lane : LANES) {
-            IlluminaFileUtil fileUtil = new IlluminaFileUtil(BASECALLS_DIR, lane);
-            final List<Integer> expectedTiles = fileUtil.getExpectedTiles();
-            if (!TILE_NUMBERS.isEmpty()) {
-                expectedTiles.retainAll(TILE_NUMBERS);
-            }
+        try {
+            for (final Integer lane : LANES) {
+                final RunFolderManifest manifest = (RUN_MANIFEST_DIR == null) ? null :
+                        RunFolderManifest.load(RunFolderManifest.getManifestFile(RUN_MANIFEST_DIR, BASECALLS_DIR, lane));
+                IlluminaFileUtil fileUtil = new IlluminaFileUtil(BASECALLS_DIR, null, lane, manifest);
+                final List<Integer> expectedTiles = fileUtil.getExpectedTiles();
+                if (!TILE_NUMBERS.isEmpty()) {
+                    expectedTiles.retainAll(TILE_NUMBERS);
+                }
 
-            if (LINK_LOCS) {
-                createLocFileSymlinks(fileUtil, lane);
-                //we need to create a new file util because it stores a cache to the files it found on
-                //construction and this doesn't inclue the recently created symlinks
-                fileUtil = new IlluminaFileUtil(BASECALLS_DIR, lane);
-            }
+                if (LINK_LOCS) {
+                    createLocFileSymlinks(fileUtil, lane);
+                    //we need to create a new file util because it stores a cache to the files it found on
+                    //construction and this doesn't inclue the recently created symlinks
+                    fileUtil = new IlluminaFileUtil(BASECALLS_DIR, null, lane, manifest);
+                }
 
-            log.info("Checking lane " + lane);
-            log.info("Expected tiles: " + StringUtil.join(", ", expectedTiles));
+                log.info("Checking lane " + lane);
+                log.info("Expected tiles: " + StringUtil.join(", ", expectedTiles));
 
-            final int numFailures = verifyLane(fileUtil, expectedTiles, expectedCycles, DATA_TYPES, FAKE_FILES);
+                int numFailures = verifyLane(fileUtil, expectedTiles, expectedCycles, DATA_TYPES, FAKE_FILES);
+                if (pool != null) {
+                    numFailures += checkHeaders(fileUtil, expectedTiles, expectedCycles, DATA_TYPES, pool, latencyMetrics);
+                }
+                if (manifest != null) {
+                    manifest.save();
+                }
 
-            if (numFailures > 0) {
-                log.info("Lane " + lane + " FAILED " + " Total Errors: " + numFailures);
-                failingLanes.add(lane);
-                totalFailures += numFailures;
-            } else {
-                log.info("Lane " + lane + " SUCCEEDED ");
+                if (numFailures > 0) {
+                    log.info("Lane " + lane + " FAILED " + " Total Errors: " + numFailures);
+                    failingLanes.add(lane);
+                    totalFailures += numFailures;
+                } else {
+                    log.info("Lane " + lane + " SUCCEEDED ");
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
             }
         }
 
+        if (LATENCY_METRICS != null) {
+            Collections.sort(latencyMetrics, new Comparator<FileLatencyMetric>() {
+                @Override
+                public int compare(final FileLatencyMetric m1, final FileLatencyMetric m2) {
+                    return Double.compare(m2.MILLISECONDS, m1.MILLISECONDS);
+                }
+            });
+            final MetricsFile<FileLatencyMetric, Integer> metricsFile = getMetricsFile();
+            metricsFile.addAllMetrics(latencyMetrics);
+            metricsFile.write(LATENCY_METRICS);
+        }
+
         int status = 0;
         if (totalFailures == 0) {
             log.info("SUCCEEDED!  All required files are present and non-empty.");
@@ -226,10 +325,129 @@ public class CheckIlluminaDirectory extends CommandLineProgram {
         return numFailures;
     }
 
+    /**
+     * Check the header of every file, of the formats that would be used for the given data types, that holds the
+     * expected tiles/cycles, in parallel on pool.  Then check that all the files of each tile agree on its number of
+     * clusters.  This method logs every error that is found and returns the number of errors found.
+     *
+     * @param latencyMetrics The time taken to check each file is added to this list
+     * @return The number of errors found/logged for this directory/lane
+     */
+    private static int checkHeaders(final IlluminaFileUtil fileUtil, final List<Integer> expectedTiles,
+                                    final int[] cycles, final Set<IlluminaDataType> dataTypes,
+                                    final ExecutorService pool, final List<FileLatencyMetric> latencyMetrics) {
+        final List<Callable<HeaderCheckResult>> tasks = new ArrayList<Callable<HeaderCheckResult>>();
+        for (final IlluminaFileUtil.SupportedIlluminaFormat format :
+                IlluminaDataProviderFactory.determineFormats(dataTypes, fileUtil).keySet()) {
+            for (final FileHeaderCheck check : fileUtil.getUtil(format).getHeaderChecks(expectedTiles, cycles)) {
+                tasks.add(new Callable<HeaderCheckResult>() {
+                    @Override
+                    public HeaderCheckResult call() {
+                        final long startTime = System.nanoTime();
+                        long numClusters = -1;
+                        String error = null;
+                        try {
+                            numClusters = check.readNumClusters();
+                        } catch (final Exception e) {
+                            error = "Could not read header of " + check + ": " + e.getMessage();
+                        }
+                        return new HeaderCheckResult(check, numClusters, error, System.nanoTime() - startTime);
+                    }
+                });
+            }
+        }
+
+        final List<Future<HeaderCheckResult>> futures;
+        try {
+            futures = pool.invokeAll(tasks);
+        } catch (final InterruptedException e) {
+            throw new PicardException("Interrupted while checking file headers", e);
+        }
+
+        int numFailures = 0;
+        long totalNanos = 0;
+        HeaderCheckResult slowest = null;
+        final Map<Integer, Map<Long, List<File>>> tileToFilesByNumClusters = new TreeMap<Integer, Map<Long, List<File>>>();
+        for (final Future<HeaderCheckResult> future : futures) {
+            final HeaderCheckResult result;
+            try {
+                result = future.get();
+            } catch (final InterruptedException e) {
+                throw new PicardException("Interrupted while checking file headers", e);
+            } catch (final ExecutionException e) {
+                throw new PicardException("Unexpected error checking file headers", e.getCause());
+            }
+            final FileHeaderCheck check = result.check;
+
+            final FileLatencyMetric metric = new FileLatencyMetric();
+            metric.LANE = fileUtil.getLane();
+            metric.TILE = check.getTile();
+            metric.FILE = check.getFile().getAbsolutePath();
+            metric.MILLISECONDS = result.nanos / 1e6;
+            latencyMetrics.add(metric);
+            totalNanos += result.nanos;
+            if (slowest == null || result.nanos > slowest.nanos) slowest = result;
+
+            String failure = result.error;
+            if (failure == null && check.getExpectedNumClusters() != null &&
+                    result.numClusters != check.getExpectedNumClusters()) {
+                failure = check + " has " + result.numClusters + " clusters but the tile index has " +
+                        check.getExpectedNumClusters();
+            }
+            if (failure == null && check.getTile() != null) {
+                Map<Long, List<File>> filesByNumClusters = tileToFilesByNumClusters.get(check.getTile());
+                if (filesByNumClusters == null) {
+                    filesByNumClusters = new TreeMap<Long, List<File>>();
+                    tileToFilesByNumClusters.put(check.getTile(), filesByNumClusters);
+                }
+                List<File> files = filesByNumClusters.get(result.numClusters);
+                if (files == null) {
+                    files = new ArrayList<File>();
+                    filesByNumClusters.put(result.numClusters, files);
+                }
+                files.add(check.getFile());
+            }
+            if (failure != null) {
+                log.info(failure);
+                ++numFailures;
+            }
+        }
+
+        // Report each tile whose files disagree once, rather than blaming every file that differs from the first.
+        for (final Map.Entry<Integer, Map<Long, List<File>>> entry : tileToFilesByNumClusters.entrySet()) {
+            if (entry.getValue().size() > 1) {
+                final List<String> counts = new ArrayList<String>();
+                for (final Map.Entry<Long, List<File>> files : entry.getValue().entrySet()) {
+                    counts.add(files.getValue().size() + " file(s) with " + files.getKey() + " clusters (e.g. " +
+                            files.getValue().get(0).getAbsolutePath() + ")");
+                }
+                log.info("The files of tile " + entry.getKey() + " disagree on its number of clusters: " +
+                        StringUtil.join("; ", counts));
+                ++numFailures;
+            }
+        }
+
+        if (slowest != null) {
+            log.info(String.format("Checked %d file headers in lane %d: mean %.2f ms, slowest %.2f ms (%s)",
+                    futures.size(), fileUtil.getLane(), totalNanos / 1e6 / futures.size(), slowest.nanos / 1e6,
+                    slowest.check.getFile().getAbsolutePath()));
+        }
+        return numFailures;
+    }
+
     @Override
     protected String[] customCommandLineValidation() {
         IOUtil.assertDirectoryIsReadable(BASECALLS_DIR);
+        if (RUN_MANIFEST_DIR != null) {
+            IOUtil.assertDirectoryIsWritable(RUN_MANIFEST_DIR);
+        }
         final List<String> errors = new ArrayList<String>();
+        if (LATENCY_METRICS != null) {
+            if (!CHECK_HEADERS) {
+                errors.add("LATENCY_METRICS requires CHECK_HEADERS=true");
+            }
+            IOUtil.assertFileIsWritable(LATENCY_METRICS);
+        }
 
         for (final Integer lane : LANES) {
             if (lane < 1) {
@@ -28,9 +28,10 @@ import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.filter.SamRecordFilter;
 import htsjdk.samtools.filter.SolexaNoiseFilter;
+import picard.fastq.BatchReadNameEncoder;
 import picard.fastq.IlluminaReadNameEncoder;
-import picard.fastq.ReadNameEncoder;
 import picard.illumina.parser.ClusterData;
+import picard.illumina.parser.ClusterDataBatch;
 import picard.illumina.parser.ReadData;
 import picard.illumina.parser.ReadStructure;
 import picard.util.AdapterMarker;
@@ -59,7 +60,7 @@ public class ClusterDataToSamConverter implements
     private final int [] barcodeIndices;
     private final AdapterMarker adapterMarker;
     private final int outputRecordsPerCluster;
-    private final ReadNameEncoder readNameEncoder;  
+    private final BatchReadNameEncoder readNameEncoder;
     
     /**
      * Constructor
@@ -98,10 +99,14 @@ public class ClusterDataToSamConverter implements
      * Creates a new SAM record from the basecall data
      */
     private SAMRecord createSamRecord(final ReadData readData, final String readName, final boolean isPf, final boolean firstOfPair, final String unmatchedBarcode) {
+        return createSamRecord(readData.getBases(), readData.getQualities(), readName, isPf, firstOfPair, unmatchedBarcode);
+    }
+
+    private SAMRecord createSamRecord(final byte[] bases, final byte[] qualities, final String readName, final boolean isPf, final boolean firstOfPair, final String unmatchedBarcode) {
         final SAMRecord sam = new SAMRecord(null);
         sam.setReadName(readName);
-        sam.setReadBases(readData.getBases());
-        sam.setBaseQualities(readData.getQualities());
+        sam.setReadBases(bases);
+        sam.setBaseQualities(qualities);
 
         // Flag values
         sam.setReadPairedFlag(isPairedEnd);
@@ -160,6 +165,48 @@ public class ClusterDataToSamConverter implements
             ret.records[1] = secondOfPair;
         }
 
+        markAdapters(firstOfPair, secondOfPair);
+        return ret;
+    }
+
+    /**
+     * Creates the SAMRecord for each read of one cluster in a batch.  Bases and qualities are copied out of the batch,
+     * since the batch is reused once the records have been created.
+     */
+    public IlluminaBasecallsToSam.SAMRecordsForCluster convertClusterToOutputRecord(final ClusterDataBatch batch, final int cluster) {
+
+        final IlluminaBasecallsToSam.SAMRecordsForCluster ret = new IlluminaBasecallsToSam.SAMRecordsForCluster(outputRecordsPerCluster);
+        final String readName = readNameEncoder.generateReadName(batch, cluster, null); // Use null here to prevent /1 or /2 suffixes on read name.
+
+        // Get and transform the unmatched barcode, if any, to store with the reads
+        String unmatchedBarcode = null;
+        if (isBarcoded && batch.getMatchedBarcode(cluster) == null) {
+            final byte barcode[][] = new byte[barcodeIndices.length][];
+            for (int i = 0; i < barcodeIndices.length; i++) {
+                barcode[i] = batch.copyBases(barcodeIndices[i], cluster);
+            }
+            unmatchedBarcode = IlluminaUtil.barcodeSeqsToString(barcode).replace('.', 'N');
+        }
+
+        final boolean isPf = batch.isPf(cluster);
+        final SAMRecord firstOfPair = createSamRecord(batch.copyBases(templateIndices[0], cluster),
+                batch.copyQualities(templateIndices[0], cluster), readName, isPf, true, unmatchedBarcode);
+        ret.records[0] = firstOfPair;
+
+        SAMRecord secondOfPair = null;
+
+        if (isPairedEnd) {
+            secondOfPair = createSamRecord(batch.copyBases(templateIndices[1], cluster),
+                    batch.copyQualities(templateIndices[1], cluster), readName, isPf, false, unmatchedBarcode);
+            ret.records[1] = secondOfPair;
+        }
+
+        markAdapters(firstOfPair, secondOfPair);
+        return ret;
+    }
+
+    /** Clips adapters, if any were given, from the reads of a cluster.  secondOfPair is null for unpaired runs. */
+    private void markAdapters(final SAMRecord firstOfPair, final SAMRecord secondOfPair) {
         if (adapterMarker != null) {
             // Clip the read
             if (isPairedEnd) {
@@ -169,6 +216,5 @@ public class ClusterDataToSamConverter implements
                 adapterMarker.adapterTrimIlluminaSingleRead(firstOfPair);
             }
         }
-        return ret;
     }
 }
@@ -100,10 +100,11 @@ public class CollectIlluminaBasecallingMetrics extends CommandLineProgram {
         final ReadStructure readStructure = new ReadStructure(READ_STRUCTURE);
         final BclQualityEvaluationStrategy bclQualityEvaluationStrategy = new BclQualityEvaluationStrategy(BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY);
 
+        // Only the PF flag, tile and barcode of each cluster are counted, so no base call, quality or position files are read.
         if (INPUT == null) {
             // TODO: Legacy support. Remove when INPUT is required, after all old workflows are through
             factory = new IlluminaDataProviderFactory(BASECALLS_DIR, LANE, readStructure, bclQualityEvaluationStrategy,
-                    IlluminaDataType.PF, IlluminaDataType.Position);
+                    IlluminaDataType.PF);
         } else {
             // Grab expected barcode data from barcodeData.<LANE>
             IOUtil.assertFileIsReadable(INPUT);
@@ -129,15 +130,13 @@ public class CollectIlluminaBasecallingMetrics extends CommandLineProgram {
                         LANE,
                         readStructure,
                         bclQualityEvaluationStrategy,
-                        IlluminaDataType.PF,
-                        IlluminaDataType.Position)
+                        IlluminaDataType.PF)
                     : new IlluminaDataProviderFactory(
                         BASECALLS_DIR,
                         LANE,
                         readStructure,
                         bclQualityEvaluationStrategy,
                         IlluminaDataType.PF,
-                        IlluminaDataType.Position,
                         IlluminaDataType.Barcodes);
         }
 
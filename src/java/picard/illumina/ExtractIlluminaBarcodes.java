@@ -27,21 +27,22 @@ import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
-import htsjdk.samtools.util.SequenceUtil;
 import htsjdk.samtools.util.StringUtil;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.programgroups.Illumina;
 import picard.cmdline.StandardOptionDefinitions;
-import picard.illumina.parser.ClusterData;
+import picard.illumina.parser.ClusterDataBatch;
 import picard.illumina.parser.IlluminaDataProvider;
 import picard.illumina.parser.IlluminaDataProviderFactory;
 import picard.illumina.parser.IlluminaDataType;
 import picard.illumina.parser.ReadDescriptor;
 import picard.illumina.parser.ReadStructure;
 import picard.illumina.parser.ReadType;
+import picard.illumina.parser.RunFolderManifest;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.illumina.parser.readers.BinaryBarcodeFileWriter;
 import picard.util.IlluminaUtil;
 import picard.util.TabbedTextFileWithHeaderParser;
 
@@ -70,6 +71,10 @@ import java.util.concurrent.TimeUnit;
  * but we're close to the threshold of calling it a match we output the barcode that would have been
  * matched but in lower case
  *
+ * With BINARY_OUTPUT, s_<lane>_<tile>_barcode.bin files are written instead, in the block-compressed, fixed-width
+ * format described in BinaryBarcodeFileReader.  Each record holds the ordinal of the best barcode, whether it
+ * matched and the mismatch counts, but not the read subsequence.
+ *
  * @author jburke@broadinstitute.org
  */
 @CommandLineProgramProperties(
@@ -80,12 +85,30 @@ import java.util.concurrent.TimeUnit;
                 "    * read subsequence at barcode position\n" +
                 "    * Y or N indicating if there was a barcode match\n" +
                 "    * matched barcode sequence\n" +
+                "With BINARY_OUTPUT=true, s_<lane>_<tile>_barcode.bin files in a compact binary format are written instead; " +
+                "these hold the matched barcode and mismatch counts but not the read subsequence.\n" +
                 "Note that the order of specification of barcodes can cause arbitrary differences in output for poorly matching barcodes.\n\n",
         usageShort = "Tool to determine the barcode for each read in an Illumina lane",
         programGroup = Illumina.class
 )
 public class ExtractIlluminaBarcodes extends CommandLineProgram {
 
+    // Docs for the options of the programs that can match barcodes inline, as this program does, with MATCH_BARCODES_INLINE
+
+    public static final String MATCH_BARCODES_INLINE_DOC = "If true, match the barcode reads of each cluster to the " +
+            "barcodes in the parameters file while reading the basecalls, in the same way as ExtractIlluminaBarcodes, " +
+            "rather than reading the _barcode.txt files it writes.  BARCODES_DIR is not used, and METRICS_FILE is required.";
+    public static final String INLINE_METRICS_FILE_DOC = "Per-barcode and per-lane metrics, as ExtractIlluminaBarcodes " +
+            "writes them.  Only written with MATCH_BARCODES_INLINE.";
+    public static final String INLINE_MAX_MISMATCHES_DOC = "Maximum mismatches for a barcode to be considered a match.  " +
+            "Only used with MATCH_BARCODES_INLINE.";
+    public static final String INLINE_MIN_MISMATCH_DELTA_DOC = "Minimum difference between number of mismatches in the " +
+            "best and second best barcodes for a barcode to be considered a match.  Only used with MATCH_BARCODES_INLINE.";
+    public static final String INLINE_MAX_NO_CALLS_DOC = "Maximum allowable number of no-calls in a barcode read before " +
+            "it is considered unmatchable.  Only used with MATCH_BARCODES_INLINE.";
+    public static final String INLINE_MINIMUM_BASE_QUALITY_DOC = "Minimum base quality. Any barcode bases falling below " +
+            "this quality will be considered a mismatch even in the bases match.  Only used with MATCH_BARCODES_INLINE.";
+
     // The following attributes define the command-line arguments
 
     @Option(doc = "The Illumina basecalls directory. ", shortName = "B")
@@ -131,13 +154,26 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
     @Option(shortName = "GZIP", doc = "Compress output s_l_t_barcode.txt files using gzip and append a .gz extension to the file names.")
     public boolean COMPRESS_OUTPUTS = false;
 
+    @Option(doc = "Write s_l_t_barcode.bin files in a block-compressed binary format instead of s_l_t_barcode.txt files.  " +
+            "These are smaller and faster to read, and are understood by IlluminaBasecallsToSam and IlluminaBasecallsToFastq, " +
+            "but they do not contain the read subsequence at the barcode position.  Cannot be used with COMPRESS_OUTPUTS.")
+    public boolean BINARY_OUTPUT = false;
+
     @Option(doc = "Run this many PerTileBarcodeExtractors in parallel.  If NUM_PROCESSORS = 0, number of cores is automatically set to " +
             "the number of cores available on the machine. If NUM_PROCESSORS < 0 then the number of cores used will be " +
             "the number available on the machine less NUM_PROCESSORS.")
     public int NUM_PROCESSORS = 1;
 
+    @Option(doc = "If set, the lane's files are found through a manifest kept in this directory, as written by " +
+            "CheckIlluminaDirectory, rather than by listing the run folder.  The manifest is created or brought up to " +
+            "date if necessary.  Only use this once the run is complete.", optional = true)
+    public File RUN_MANIFEST_DIR;
+
     private static final Log LOG = Log.getInstance(ExtractIlluminaBarcodes.class);
 
+    /** The maximum number of clusters read from an IlluminaDataProvider in one batch. */
+    private static final int CLUSTERS_PER_BATCH = 4096;
+
     /** The read structure of the actual Illumina Run, i.e. the readStructure of the input data */
     private ReadStructure readStructure;
 
@@ -163,15 +199,7 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
         IOUtil.assertDirectoryIsWritable(OUTPUT_DIR);
 
         // Create BarcodeMetric for counting reads that don't match any barcode
-        final String[] noMatchBarcode = new String[readStructure.barcodes.length()];
-        int index = 0;
-        for (final ReadDescriptor d : readStructure.descriptors) {
-            if (d.type == ReadType.Barcode) {
-                noMatchBarcode[index++] = StringUtil.repeatCharNTimes('N', d.length);
-            }
-        }
-
-        final BarcodeMetric noMatchMetric = new BarcodeMetric(null, null, IlluminaUtil.barcodeSeqsToString(noMatchBarcode), noMatchBarcode);
+        final BarcodeMetric noMatchMetric = createNoMatchMetric(readStructure);
 
         final int numProcessors;
         if (NUM_PROCESSORS == 0) {
@@ -185,19 +213,19 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
         LOG.info("Processing with " + numProcessors + " PerTileBarcodeExtractor(s).");
         final ExecutorService pool = Executors.newFixedThreadPool(numProcessors);
 
+        final BarcodeExtractor barcodeExtractor = new BarcodeExtractor(barcodeToMetrics, noMatchMetric,
+                MAX_NO_CALLS, MAX_MISMATCHES, MIN_MISMATCH_DELTA, MINIMUM_BASE_QUALITY);
+
         // TODO: This is terribly inefficient; we're opening a huge number of files via the extractor constructor and we never close them.
         final List<PerTileBarcodeExtractor> extractors = new ArrayList<PerTileBarcodeExtractor>(factory.getAvailableTiles().size());
         for (final int tile : factory.getAvailableTiles()) {
             final PerTileBarcodeExtractor extractor = new PerTileBarcodeExtractor(
                     tile,
                     getBarcodeFile(tile),
-                    barcodeToMetrics,
-                    noMatchMetric,
+                    barcodeExtractor.copy(),
+                    BINARY_OUTPUT,
                     factory,
-                    MINIMUM_BASE_QUALITY,
-                    MAX_NO_CALLS,
-                    MAX_MISMATCHES,
-                    MIN_MISMATCH_DELTA
+                    MINIMUM_BASE_QUALITY
             );
             extractors.add(extractor);
         }
@@ -233,7 +261,48 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
             }
         }
 
-        // Finish metrics tallying.
+        // Warn about minimum qualities and assert that we've achieved the minimum.
+        for (Map.Entry<Byte, Integer> entry : bclQualityEvaluationStrategy.getPoorQualityFrequencies().entrySet()) {
+            LOG.warn(String.format("Observed low quality of %s %s times.", entry.getKey(), entry.getValue()));
+        }
+        bclQualityEvaluationStrategy.assertMinimumQualities();
+
+        final MetricsFile<BarcodeMetric, Integer> metrics = getMetricsFile();
+        finalizeAndWriteMetrics(barcodeToMetrics, noMatchMetric, metrics, METRICS_FILE);
+        return 0;
+    }
+
+    /** Create a barcode filename corresponding to the given tile qseq file. */
+    private File getBarcodeFile(final int tile) {
+        return new File(OUTPUT_DIR,
+                "s_" + LANE + "_" + tileNumberFormatter.format(tile) +
+                        (BINARY_OUTPUT ? "_barcode.bin" : "_barcode.txt" + (COMPRESS_OUTPUTS ? ".gz" : "")));
+    }
+
+    /**
+     * Create the BarcodeMetric for counting reads that don't match any barcode, whose barcode is all Ns.
+     *
+     * @param readStructure The read structure whose barcode reads determine the lengths of the barcode.
+     */
+    public static BarcodeMetric createNoMatchMetric(final ReadStructure readStructure) {
+        final String[] noMatchBarcode = new String[readStructure.barcodes.length()];
+        int index = 0;
+        for (final ReadDescriptor d : readStructure.descriptors) {
+            if (d.type == ReadType.Barcode) {
+                noMatchBarcode[index++] = StringUtil.repeatCharNTimes('N', d.length);
+            }
+        }
+        return new BarcodeMetric(null, null, IlluminaUtil.barcodeSeqsToString(noMatchBarcode), noMatchBarcode);
+    }
+
+    /**
+     * Finish metrics tallying: calculate the percentages, ratios and normalized matches from the accumulated counts.
+     *
+     * @param barcodeToMetrics The metrics of all barcodes in the lane.
+     * @param noMatchMetric    The metric counting reads that did not match any barcode.
+     */
+    public static void finalizeMetrics(final Map<String, BarcodeMetric> barcodeToMetrics,
+                                       final BarcodeMetric noMatchMetric) {
         int totalReads = noMatchMetric.READS;
         int totalPfReads = noMatchMetric.PF_READS;
         int totalPfReadsAssigned = 0;
@@ -281,12 +350,6 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
             }
         }
 
-        // Warn about minimum qualities and assert that we've achieved the minimum.
-        for (Map.Entry<Byte, Integer> entry : bclQualityEvaluationStrategy.getPoorQualityFrequencies().entrySet()) {
-            LOG.warn(String.format("Observed low quality of %s %s times.", entry.getKey(), entry.getValue()));
-        }
-        bclQualityEvaluationStrategy.assertMinimumQualities();
-
         // Calculate the normalized matches
         if (totalPfReadsAssigned > 0) {
             final double mean = (double) totalPfReadsAssigned / (double) barcodeToMetrics.values().size();
@@ -294,20 +357,30 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                 m.PF_NORMALIZED_MATCHES = m.PF_READS / mean;
             }
         }
+    }
 
-        final MetricsFile<BarcodeMetric, Integer> metrics = getMetricsFile();
-        for (final BarcodeMetric barcodeMetric : barcodeToMetrics.values()) {
-            metrics.addMetric(barcodeMetric);
-        }
-        metrics.addMetric(noMatchMetric);
-        metrics.write(METRICS_FILE);
-        return 0;
+    /**
+     * Finishes the metrics accumulated by a BarcodeExtractor and writes them, with the no-match metric last.
+     *
+     * @param metricsFile The metrics file to write, with its headers already added.
+     * @param output      The file to write it to.
+     */
+    public static void finalizeAndWriteMetrics(final BarcodeExtractor extractor,
+                                               final MetricsFile<BarcodeMetric, Integer> metricsFile,
+                                               final File output) {
+        finalizeAndWriteMetrics(extractor.getMetrics(), extractor.getNoMatchMetric(), metricsFile, output);
     }
 
-    /** Create a barcode filename corresponding to the given tile qseq file. */
-    private File getBarcodeFile(final int tile) {
-        return new File(OUTPUT_DIR,
-                "s_" + LANE + "_" + tileNumberFormatter.format(tile) + "_barcode.txt" + (COMPRESS_OUTPUTS ? ".gz" : ""));
+    private static void finalizeAndWriteMetrics(final Map<String, BarcodeMetric> barcodeToMetrics,
+                                                final BarcodeMetric noMatchMetric,
+                                                final MetricsFile<BarcodeMetric, Integer> metricsFile,
+                                                final File output) {
+        finalizeMetrics(barcodeToMetrics, noMatchMetric);
+        for (final BarcodeMetric barcodeMetric : barcodeToMetrics.values()) {
+            metricsFile.addMetric(barcodeMetric);
+        }
+        metricsFile.addMetric(noMatchMetric);
+        metricsFile.write(output);
     }
 
     /**
@@ -331,7 +404,10 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
         final IlluminaDataType[] datatypes = (MINIMUM_BASE_QUALITY > 0) ?
                 new IlluminaDataType[]{IlluminaDataType.BaseCalls, IlluminaDataType.PF, IlluminaDataType.QualityScores} :
                 new IlluminaDataType[]{IlluminaDataType.BaseCalls, IlluminaDataType.PF};
-        factory = new IlluminaDataProviderFactory(BASECALLS_DIR, LANE, readStructure, bclQualityEvaluationStrategy, datatypes);
+        final RunFolderManifest manifest = (RUN_MANIFEST_DIR == null) ? null :
+                RunFolderManifest.load(RunFolderManifest.getManifestFile(RUN_MANIFEST_DIR, BASECALLS_DIR, LANE));
+        factory = new IlluminaDataProviderFactory(BASECALLS_DIR, null, LANE, readStructure, bclQualityEvaluationStrategy,
+                manifest, datatypes);
 
         if (BARCODE_FILE != null) {
             parseBarcodeFile(messages);
@@ -349,6 +425,9 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
         if (barcodeToMetrics.keySet().size() == 0) {
             messages.add("No barcodes have been specified.");
         }
+        if (BINARY_OUTPUT && COMPRESS_OUTPUTS) {
+            messages.add("BINARY_OUTPUT and COMPRESS_OUTPUTS cannot both be specified.");
+        }
         if (messages.size() == 0) {
             return null;
         }
@@ -503,53 +582,34 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
     private static class PerTileBarcodeExtractor implements Runnable {
         private final int tile;
         private final File barcodeFile;
-        private final Map<String, BarcodeMetric> metrics;
-        private final BarcodeMetric noMatch;
+        private final BarcodeExtractor barcodeExtractor;
+        private final boolean binaryOutput;
         private Exception exception = null;
         private final boolean usingQualityScores;
         private final IlluminaDataProvider provider;
         private final ReadStructure outputReadStructure;
-        private final int maxNoCalls, maxMismatches, minMismatchDelta, minimumBaseQuality;
-
-        /** Utility class to hang onto data about the best match for a given barcode */
-        class BarcodeMatch {
-            boolean matched;
-            String barcode;
-            int mismatches;
-            int mismatchesToSecondBest;
-        }
 
         /**
          * Constructor
          *
          * @param tile             The number of the tile being processed; used for logging only.
          * @param barcodeFile      The file to write the barcodes to
-         * @param noMatchMetric    A "template" metric that is cloned and the clone is stored internally for accumulating data
-         * @param barcodeToMetrics A "template" metric map whose metrics are cloned, and the clones are stored internally for accumulating data
+         * @param barcodeExtractor Matches the barcodes and accumulates the metrics of this tile; not shared with other tiles
+         * @param binaryOutput     Whether to write barcodeFile in the binary format rather than as text
          */
         public PerTileBarcodeExtractor(
                 final int tile,
                 final File barcodeFile,
-                final Map<String, BarcodeMetric> barcodeToMetrics,
-                final BarcodeMetric noMatchMetric,
+                final BarcodeExtractor barcodeExtractor,
+                final boolean binaryOutput,
                 final IlluminaDataProviderFactory factory,
-                final int minimumBaseQuality,
-                final int maxNoCalls,
-                final int maxMismatches,
-                final int minMismatchDelta
+                final int minimumBaseQuality
         ) {
             this.tile = tile;
             this.barcodeFile = barcodeFile;
             this.usingQualityScores = minimumBaseQuality > 0;
-            this.maxNoCalls = maxNoCalls;
-            this.maxMismatches = maxMismatches;
-            this.minMismatchDelta = minMismatchDelta;
-            this.minimumBaseQuality = minimumBaseQuality;
-            this.metrics = new LinkedHashMap<String, BarcodeMetric>(barcodeToMetrics.size());
-            for (final String key : barcodeToMetrics.keySet()) {
-                this.metrics.put(key, BarcodeMetric.copy(barcodeToMetrics.get(key)));
-            }
-            this.noMatch = BarcodeMetric.copy(noMatchMetric);
+            this.barcodeExtractor = barcodeExtractor;
+            this.binaryOutput = binaryOutput;
             this.provider = factory.makeDataProvider(Arrays.asList(tile));
             this.outputReadStructure = factory.getOutputReadStructure();
 
@@ -557,10 +617,10 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
 
         // These methods return the results of the extraction
         public synchronized Map<String, BarcodeMetric> getMetrics() {
-            return this.metrics;
+            return barcodeExtractor.getMetrics();
         }
 
-        public synchronized BarcodeMetric getNoMatchMetric() { return this.noMatch; }
+        public synchronized BarcodeMetric getNoMatchMetric() { return barcodeExtractor.getNoMatchMetric(); }
 
         public synchronized Exception getException() { return this.exception; }
 
@@ -576,29 +636,48 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                 //Most likely we have SKIPS in our read structure since we replace all template reads with skips in the input data structure
                 //(see customCommnandLineValidation), therefore we must use the outputReadStructure to index into the output cluster data
                 final int[] barcodeIndices = outputReadStructure.barcodes.getIndices();
-                final BufferedWriter writer = IOUtil.openFileForBufferedWriting(barcodeFile);
+                final BufferedWriter writer = binaryOutput ? null : IOUtil.openFileForBufferedWriting(barcodeFile);
+                final BinaryBarcodeFileWriter binaryWriter = binaryOutput ?
+                        new BinaryBarcodeFileWriter(barcodeFile, barcodeExtractor.getBarcodes()) : null;
+                final ClusterDataBatch batch = provider.newBatch(CLUSTERS_PER_BATCH);
                 final byte barcodeSubsequences[][] = new byte[barcodeIndices.length][];
                 final byte qualityScores[][] = usingQualityScores ? new byte[barcodeIndices.length][] : null;
-                while (provider.hasNext()) {
-                    // Extract the barcode from the cluster and write it to the file for the tile
-                    final ClusterData cluster = provider.next();
-                    for (int i = 0; i < barcodeIndices.length; i++) {
-                        barcodeSubsequences[i] = cluster.getRead(barcodeIndices[i]).getBases();
-                        if (usingQualityScores) qualityScores[i] = cluster.getRead(barcodeIndices[i]).getQualities();
-                    }
-                    final boolean passingFilter = cluster.isPf();
-                    final BarcodeMatch match = findBestBarcodeAndUpdateMetrics(barcodeSubsequences, qualityScores, passingFilter, metrics, noMatch);
-
-                    final String yOrN = (match.matched ? "Y" : "N");
-
-                    for (final byte[] bc : barcodeSubsequences) {
-                        writer.write(StringUtil.bytesToString(bc));
+                for (int i = 0; i < barcodeIndices.length; i++) {
+                    barcodeSubsequences[i] = new byte[batch.getReadLength(barcodeIndices[i])];
+                    if (usingQualityScores) qualityScores[i] = new byte[batch.getReadLength(barcodeIndices[i])];
+                }
+                while (provider.nextBatch(batch) > 0) {
+                    for (int cluster = 0; cluster < batch.size(); ++cluster) {
+                        // Extract the barcode from the cluster and write it to the file for the tile
+                        for (int i = 0; i < barcodeIndices.length; i++) {
+                            final int read = barcodeIndices[i];
+                            final int offset = batch.getReadOffset(read, cluster);
+                            System.arraycopy(batch.getBases(read), offset, barcodeSubsequences[i], 0, barcodeSubsequences[i].length);
+                            if (usingQualityScores) {
+                                System.arraycopy(batch.getQualities(read), offset, qualityScores[i], 0, qualityScores[i].length);
+                            }
+                        }
+                        final boolean passingFilter = batch.isPf(cluster);
+                        final BarcodeExtractor.BarcodeMatch match =
+                                barcodeExtractor.findBestBarcodeAndUpdateMetrics(barcodeSubsequences, qualityScores, passingFilter);
+
+                        if (binaryOutput) {
+                            binaryWriter.write(match.barcodeOrdinal, match.matched, match.mismatches, match.mismatchesToSecondBest);
+                            continue;
+                        }
+
+                        final String yOrN = (match.matched ? "Y" : "N");
+
+                        for (final byte[] bc : barcodeSubsequences) {
+                            writer.write(StringUtil.bytesToString(bc));
+                        }
+                        writer.write("\t" + yOrN + "\t" + match.barcode + "\t" + String.valueOf(match.mismatches) +
+                                "\t" + String.valueOf(match.mismatchesToSecondBest));
+                        writer.newLine();
                     }
-                    writer.write("\t" + yOrN + "\t" + match.barcode + "\t" + String.valueOf(match.mismatches) +
-                            "\t" + String.valueOf(match.mismatchesToSecondBest));
-                    writer.newLine();
                 }
-                writer.close();
+                if (binaryOutput) binaryWriter.close();
+                else writer.close();
             } catch (final Exception e) {
                 LOG.error(e, "Error processing tile ", this.tile);
                 this.exception = e;
@@ -607,111 +686,5 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                 provider.close();
             }
         }
-
-        /**
-         * Find the best barcode match for the given read sequence, and accumulate metrics
-         *
-         * @param readSubsequences portion of read containing barcode
-         * @param passingFilter    PF flag for the current read
-         * @return perfect barcode string, if there was a match within tolerance, or null if not.
-         */
-        private BarcodeMatch findBestBarcodeAndUpdateMetrics(final byte[][] readSubsequences,
-                                                             final byte[][] qualityScores,
-                                                             final boolean passingFilter,
-                                                             final Map<String, BarcodeMetric> metrics,
-                                                             final BarcodeMetric noMatchBarcodeMetric) {
-            BarcodeMetric bestBarcodeMetric = null;
-            int totalBarcodeReadBases = 0;
-            int numNoCalls = 0; // NoCalls are calculated for all the barcodes combined
-
-            for (final byte[] bc : readSubsequences) {
-                totalBarcodeReadBases += bc.length;
-                for (final byte b : bc) if (SequenceUtil.isNoCall(b)) ++numNoCalls;
-            }
-
-            // PIC-506 When forcing all reads to match a single barcode, allow a read to match even if every
-            // base is a mismatch.
-            int numMismatchesInBestBarcode = totalBarcodeReadBases + 1;
-            int numMismatchesInSecondBestBarcode = totalBarcodeReadBases + 1;
-
-            for (final BarcodeMetric barcodeMetric : metrics.values()) {
-                final int numMismatches = countMismatches(barcodeMetric.barcodeBytes, readSubsequences, qualityScores);
-                if (numMismatches < numMismatchesInBestBarcode) {
-                    if (bestBarcodeMetric != null) {
-                        numMismatchesInSecondBestBarcode = numMismatchesInBestBarcode;
-                    }
-                    numMismatchesInBestBarcode = numMismatches;
-                    bestBarcodeMetric = barcodeMetric;
-                } else if (numMismatches < numMismatchesInSecondBestBarcode) {
-                    numMismatchesInSecondBestBarcode = numMismatches;
-                }
-            }
-
-            final boolean matched = bestBarcodeMetric != null &&
-                    numNoCalls <= maxNoCalls &&
-                    numMismatchesInBestBarcode <= maxMismatches &&
-                    numMismatchesInSecondBestBarcode - numMismatchesInBestBarcode >= minMismatchDelta;
-
-            final BarcodeMatch match = new BarcodeMatch();
-
-            // If we have something that's not a "match" but matches one barcode
-            // slightly, we output that matching barcode in lower case
-            if (numNoCalls + numMismatchesInBestBarcode < totalBarcodeReadBases) {
-                match.mismatches = numMismatchesInBestBarcode;
-                match.mismatchesToSecondBest = numMismatchesInSecondBestBarcode;
-                match.barcode = bestBarcodeMetric.BARCODE.toLowerCase().replaceAll(IlluminaUtil.BARCODE_DELIMITER, "");
-            } else {
-                match.mismatches = totalBarcodeReadBases;
-                match.barcode = "";
-            }
-
-            if (matched) {
-                ++bestBarcodeMetric.READS;
-                if (passingFilter) {
-                    ++bestBarcodeMetric.PF_READS;
-                }
-                if (numMismatchesInBestBarcode == 0) {
-                    ++bestBarcodeMetric.PERFECT_MATCHES;
-                    if (passingFilter) {
-                        ++bestBarcodeMetric.PF_PERFECT_MATCHES;
-                    }
-                } else if (numMismatchesInBestBarcode == 1) {
-                    ++bestBarcodeMetric.ONE_MISMATCH_MATCHES;
-                    if (passingFilter) {
-                        ++bestBarcodeMetric.PF_ONE_MISMATCH_MATCHES;
-                    }
-                }
-
-                match.matched = true;
-                match.barcode = bestBarcodeMetric.BARCODE.replaceAll(IlluminaUtil.BARCODE_DELIMITER, "");
-            } else {
-                ++noMatchBarcodeMetric.READS;
-                if (passingFilter) {
-                    ++noMatchBarcodeMetric.PF_READS;
-                }
-            }
-
-            return match;
-        }
-
-        /**
-         * Compare barcode sequence to bases from read
-         *
-         * @return how many bases did not match
-         */
-        private int countMismatches(final byte[][] barcodeBytes, final byte[][] readSubsequence, final byte[][] qualities) {
-            int numMismatches = 0;
-            // Read sequence and barcode length may not be equal, so we just use the shorter of the two
-            for (int j = 0; j < barcodeBytes.length; j++) {
-                final int basesToCheck = Math.min(barcodeBytes[j].length, readSubsequence[j].length);
-                for (int i = 0; i < basesToCheck; ++i) {
-                    if (!SequenceUtil.isNoCall(readSubsequence[j][i])) {
-                        if (!SequenceUtil.basesEqual(barcodeBytes[j][i], readSubsequence[j][i])) ++numMismatches;
-                        else if (qualities != null && qualities[j][i] < minimumBaseQuality) ++numMismatches;
-                    }
-                }
-            }
-            return numMismatches;
-        }
     }
 }
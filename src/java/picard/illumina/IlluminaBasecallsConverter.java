@@ -23,68 +23,66 @@
  */
 package picard.illumina;
 
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.DelegatingIterator;
 import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.MergingIterator;
 import htsjdk.samtools.util.PeekIterator;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.util.SortingCollection;
 import picard.PicardException;
 import picard.illumina.parser.ClusterData;
+import picard.illumina.parser.ClusterDataBatch;
 import picard.illumina.parser.IlluminaDataProvider;
 import picard.illumina.parser.IlluminaDataProviderFactory;
 import picard.illumina.parser.IlluminaDataType;
 import picard.illumina.parser.ReadStructure;
+import picard.illumina.parser.RunFolderManifest;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.illumina.parser.readers.TilePrefetcher;
 import picard.util.FileChannelJDKBugWorkAround;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.Queue;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.PriorityBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * Manages the conversion of Illumina basecalls into some output format.  Creates multiple threads to manage reading,
  * sorting and writing efficiently.  Output is written in queryname output.  Optionally demultiplexes indexed reads
  * into separate outputs by barcode.
  *
+ * Clusters within a tile frequently arrive already in queryname order, so records are only sorted when they turn out
+ * not to be: see {@link TileBarcodeRecordCollection}.
+ *
  * @param <CLUSTER_OUTPUT_RECORD> The class to which a ClusterData is converted in preparation for writing.
  */
 public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
-    /**
-     * Describes the state of a barcode's data's processing in the context of a tile.  It is either not available in
-     * that tile, has been read, has been queued to be written to file, or has been written to file.  A barcode only
-     * takes on a state once the tile (which is serving as the context of this state) has been read.
-     */
-    private enum TileBarcodeProcessingState {
-        NA, READ, QUEUED_FOR_WRITE, WRITTEN
-    }
-
-    /**
-     * Describes the state of a tile being processed.  It is either not yet completely read, or read.
-     */
-    private enum TileProcessingState {
-        NOT_DONE_READING, DONE_READING
-    }
-
     private static final Log log = Log.getInstance(IlluminaBasecallsConverter.class);
 
+    /** The maximum number of clusters read from an IlluminaDataProvider in one batch. */
+    private static final int CLUSTERS_PER_BATCH = 4096;
+
     public static final IlluminaDataType[] DATA_TYPES_NO_BARCODE =
             {IlluminaDataType.BaseCalls, IlluminaDataType.QualityScores, IlluminaDataType.Position, IlluminaDataType.PF};
     private static final IlluminaDataType[] DATA_TYPES_WITH_BARCODE = Arrays.copyOf(DATA_TYPES_NO_BARCODE, DATA_TYPES_NO_BARCODE.length + 1);
@@ -136,6 +134,16 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
     private final SortingCollection.Codec<CLUSTER_OUTPUT_RECORD> codecPrototype;
     // Annoying that we need this.
     private final Class<CLUSTER_OUTPUT_RECORD> outputRecordClass;
+    // If non-null, barcodes are matched as clusters are read rather than read from barcode files, and the metrics
+    // of all tiles are merged into this.
+    private final BarcodeExtractor barcodeExtractor;
+    // Stands in for the records of a barcode that does not occur in a tile.
+    private final TileBarcodeRecordCollection emptyRecordCollection = new TileBarcodeRecordCollection(1);
+    // If non-null, multi-tile files are read ahead of the tile readers.
+    private TilePrefetcher tilePrefetcher = null;
+    // If non-null, told about each tile once it has been written to every output.
+    private TileCheckpointListener checkpointListener = null;
+    private CheckpointTracker checkpointTracker = null;
 
     /**
 	 * @param basecallsDir           Where to read basecalls from.
@@ -211,6 +219,81 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
                                       final Class<CLUSTER_OUTPUT_RECORD> outputRecordClass,
                                       final BclQualityEvaluationStrategy bclQualityEvaluationStrategy,
                                       final boolean applyEamssFiltering, final boolean includeNonPfReads
+    ) {
+        this(basecallsDir, barcodesDir, lane, readStructure,
+                barcodeRecordWriterMap, demultiplex, maxReadsInRamPerTile,
+                tmpDirs, numProcessors, forceGc, firstTile, tileLimit,
+                outputRecordComparator, codecPrototype, outputRecordClass,
+                bclQualityEvaluationStrategy, applyEamssFiltering,
+                includeNonPfReads, null);
+    }
+
+    /**
+     * @param basecallsDir           Where to read basecalls from.
+     * @param barcodesDir            Where to read barcodes from (optional; use basecallsDir if not specified).
+     *                               Ignored if barcodeExtractor is non-null.
+     * @param lane                   What lane to process.
+     * @param readStructure          How to interpret each cluster.
+     * @param barcodeRecordWriterMap Map from barcode to CLUSTER_OUTPUT_RECORD writer.  If demultiplex is false, must contain
+     *                               one writer stored with key=null.
+     * @param demultiplex            If true, output is split by barcode, otherwise all are written to the same output stream.
+     * @param maxReadsInRamPerTile   Configures number of reads each tile will store in RAM before spilling to disk.
+     * @param tmpDirs                For SortingCollection spilling.
+     * @param numProcessors          Controls number of threads.  If <= 0, the number of threads allocated is
+     *                               available cores - numProcessors.
+     * @param forceGc                Force explicit GC periodically.  This is good for causing memory maps to be released.
+     * @param firstTile              (For debugging) If non-null, start processing at this tile.
+     * @param tileLimit              (For debugging) If non-null, process no more than this many tiles.
+     * @param outputRecordComparator For sorting output records within a single tile.
+     * @param codecPrototype         For spilling output records to disk.
+     * @param outputRecordClass      Inconveniently needed to create SortingCollections.
+     * @param includeNonPfReads      If true, will include ALL reads (including those which do not have PF set)
+     * @param barcodeExtractor       If non-null, match the barcode reads of each cluster with this instead of reading
+     *                               barcode files, and accumulate the barcode metrics of all clusters in it.
+     */
+    public IlluminaBasecallsConverter(final File basecallsDir, File barcodesDir, final int lane,
+                                      final ReadStructure readStructure,
+                                      final Map<String, ? extends ConvertedClusterDataWriter<CLUSTER_OUTPUT_RECORD>> barcodeRecordWriterMap,
+                                      final boolean demultiplex,
+                                      final int maxReadsInRamPerTile,
+                                      final List<File> tmpDirs, final int numProcessors,
+                                      final boolean forceGc, final Integer firstTile,
+                                      final Integer tileLimit,
+                                      final Comparator<CLUSTER_OUTPUT_RECORD> outputRecordComparator,
+                                      final SortingCollection.Codec<CLUSTER_OUTPUT_RECORD> codecPrototype,
+                                      final Class<CLUSTER_OUTPUT_RECORD> outputRecordClass,
+                                      final BclQualityEvaluationStrategy bclQualityEvaluationStrategy,
+                                      final boolean applyEamssFiltering, final boolean includeNonPfReads,
+                                      final BarcodeExtractor barcodeExtractor
+    ) {
+        this(basecallsDir, barcodesDir, lane, readStructure,
+                barcodeRecordWriterMap, demultiplex, maxReadsInRamPerTile,
+                tmpDirs, numProcessors, forceGc, firstTile, tileLimit,
+                outputRecordComparator, codecPrototype, outputRecordClass,
+                bclQualityEvaluationStrategy, applyEamssFiltering,
+                includeNonPfReads, barcodeExtractor, null);
+    }
+
+    /**
+     * As above, but finding the lane's files through a run folder manifest.
+     *
+     * @param manifest If non-null, the lane's file listings are taken from this manifest where they are still current,
+     *                 and the manifest is saved with any that were not.
+     */
+    public IlluminaBasecallsConverter(final File basecallsDir, File barcodesDir, final int lane,
+                                      final ReadStructure readStructure,
+                                      final Map<String, ? extends ConvertedClusterDataWriter<CLUSTER_OUTPUT_RECORD>> barcodeRecordWriterMap,
+                                      final boolean demultiplex,
+                                      final int maxReadsInRamPerTile,
+                                      final List<File> tmpDirs, final int numProcessors,
+                                      final boolean forceGc, final Integer firstTile,
+                                      final Integer tileLimit,
+                                      final Comparator<CLUSTER_OUTPUT_RECORD> outputRecordComparator,
+                                      final SortingCollection.Codec<CLUSTER_OUTPUT_RECORD> codecPrototype,
+                                      final Class<CLUSTER_OUTPUT_RECORD> outputRecordClass,
+                                      final BclQualityEvaluationStrategy bclQualityEvaluationStrategy,
+                                      final boolean applyEamssFiltering, final boolean includeNonPfReads,
+                                      final BarcodeExtractor barcodeExtractor, final RunFolderManifest manifest
     ) {
         this.barcodeRecordWriterMap = barcodeRecordWriterMap;
         this.demultiplex = demultiplex;
@@ -221,6 +304,7 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
         this.outputRecordClass = outputRecordClass;
         this.bclQualityEvaluationStrategy = bclQualityEvaluationStrategy;
         this.includeNonPfReads = includeNonPfReads;
+        this.barcodeExtractor = barcodeExtractor;
 
         // If we're forcing garbage collection, collect every 5 minutes in a daemon thread.
         if (forceGc) {
@@ -240,7 +324,7 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
             gcTimerTask = null;
         }
 
-        this.factory = new IlluminaDataProviderFactory(basecallsDir, barcodesDir, lane, readStructure, bclQualityEvaluationStrategy, getDataTypesFromReadStructure(readStructure, demultiplex));
+        this.factory = new IlluminaDataProviderFactory(basecallsDir, barcodesDir, lane, readStructure, bclQualityEvaluationStrategy, manifest, getDataTypesFromReadStructure(readStructure, demultiplex && barcodeExtractor == null));
         this.factory.setApplyEamssFiltering(applyEamssFiltering);
 
         if (numProcessors == 0) {
@@ -283,6 +367,46 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
         this.converter = converter;
     }
 
+    /**
+     * Must be called before doTileProcessing if at all.  After each tile has been written to every output, in tile
+     * order, every writer is checkpointed and the listener is told the resulting output lengths.
+     *
+     * @throws PicardException if any of the writers is not a CheckpointableWriter.
+     */
+    public void setCheckpointListener(final TileCheckpointListener checkpointListener) {
+        for (final Map.Entry<String, ? extends ConvertedClusterDataWriter<CLUSTER_OUTPUT_RECORD>> entry : barcodeRecordWriterMap.entrySet()) {
+            if (!(entry.getValue() instanceof CheckpointableWriter)) {
+                throw new PicardException("The writer for barcode " + entry.getKey() + " does not support checkpoints.");
+            }
+        }
+        this.checkpointListener = checkpointListener;
+    }
+
+    /**
+     * Skips the tiles up to and including the given one, which were written by an earlier run that checkpointed
+     * them.  Must be called before doTileProcessing.
+     *
+     * @throws PicardException if the tile is not among those to be processed.
+     */
+    public void resumeAfterTile(final int tileNumber) {
+        final int tileIndex = tiles.indexOf(tileNumber);
+        if (tileIndex == -1) {
+            throw new PicardException("Cannot resume after tile " + tileNumber + " because it is not among the tiles to be processed.");
+        }
+        tiles = tiles.subList(tileIndex + 1, tiles.size());
+        log.info(String.format("Resuming after tile %s; %s tiles remain.", tileNumber, tiles.size()));
+    }
+
+    /**
+     * Has the tiles of multi-tile files read ahead of the threads reading them, up to depth tiles beyond each tile
+     * being read, by as many background threads as there are tile-reading threads.  Must be called before
+     * doTileProcessing if at all.
+     */
+    public void setTilePrefetchDepth(final int depth) {
+        tilePrefetcher = new TilePrefetcher(numThreads, depth);
+        factory.setTilePrefetcher(tilePrefetcher);
+    }
+
     /**
      * In case caller needs to get some info from factory.
      */
@@ -305,15 +429,18 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
                 tiles.add(new Tile(tileNumber));
             }
 
-            final TileReadAggregator tileReadAggregator = new TileReadAggregator(tiles);
-            tileReadAggregator.submit();
+            if (checkpointListener != null) {
+                checkpointTracker = new CheckpointTracker(tiles);
+            }
+            final TileScheduler tileScheduler = new TileScheduler(tiles);
+            tileScheduler.submit();
             try {
-                tileReadAggregator.awaitWorkComplete();
+                tileScheduler.awaitWorkComplete();
             } catch (final InterruptedException e) {
-                log.error(e, "Failure encountered in worker thread; attempting to shut down remaining worker threads and terminate ...");
-                throw new PicardException("Failure encountered in worker thread; see log for details.");
+                log.error(e, "Interrupted while waiting for worker threads; attempting to shut down remaining worker threads and terminate ...");
+                throw new PicardException("Interrupted while waiting for worker threads; see log for details.");
             } finally {
-                tileReadAggregator.shutdown();
+                tileScheduler.shutdown();
             }
 
             for (final Map.Entry<Byte, Integer> entry : bclQualityEvaluationStrategy.getPoorQualityFrequencies().entrySet()) {
@@ -327,6 +454,10 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
             } catch (final Throwable ex) {
                 log.warn(ex, "Ignoring exception stopping background GC thread.");
             }
+            if (tilePrefetcher != null) {
+                tilePrefetcher.shutdown();
+                tilePrefetcher.logStatistics();
+            }
             // Close the writers
             for (final Map.Entry<String, ? extends ConvertedClusterDataWriter<CLUSTER_OUTPUT_RECORD>> entry : barcodeRecordWriterMap.entrySet()) {
                 final ConvertedClusterDataWriter<CLUSTER_OUTPUT_RECORD> writer = entry.getValue();
@@ -361,172 +492,152 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
         }
     }
 
-
     /**
-     * A Runnable that carries a priority which is used to compare and order other PriorityRunnables in a task queue.
-     */
-    private abstract class PriorityRunnable implements Runnable {
-        private final int priority;
-
-        /**
-         * Create a new priority runnable with a default priority of 1.
-         */
-        public PriorityRunnable() {
-            this(1);
-        }
-
-        public PriorityRunnable(final int priority) {
-            this.priority = priority;
-        }
-
-        /**
-         * Returns the priority level.  Higher priorities are run earlier.
-         *
-         * @return
-         */
-        int getPriority() {
-            return this.priority;
-        }
-    }
-
-
-    /**
-     * Represents the state of a tile's processing and encapsulates the data collected from that tile.
+     * Encapsulates the data collected from a tile.
      * <p/>
-     * TileProcessingRecords are accessed from each worker thread to assess the progress of the run, so its methods
-     * are synchronized.
+     * A TileProcessingRecord is only touched by the thread reading its tile until the tile has been completely read;
+     * its collections are then handed over to the BarcodeWriteQueues, so no synchronization is needed.
      */
     private class TileProcessingRecord {
-        final private Map<String, SortingCollection<CLUSTER_OUTPUT_RECORD>> barcodeToRecordCollection =
-                new HashMap<String, SortingCollection<CLUSTER_OUTPUT_RECORD>>();
-        final private Map<String, TileBarcodeProcessingState> barcodeToProcessingState = new HashMap<String, TileBarcodeProcessingState>();
-        private TileProcessingState state = TileProcessingState.NOT_DONE_READING;
+        final private Map<String, TileBarcodeRecordCollection> barcodeToRecordCollection =
+                new HashMap<String, TileBarcodeRecordCollection>();
         private long recordCount = 0;
 
-        /**
-         * Returns the state of this tile's processing.
-         */
-        public synchronized TileProcessingState getState() {
-            return this.state;
-        }
-
-        /**
-         * Sets the state of this tile's processing.
-         */
-        public synchronized void setState(final TileProcessingState state) {
-            this.state = state;
-        }
-
         /**
          * Adds the provided record to this tile.
          */
-        public synchronized void addRecord(final String barcode, final CLUSTER_OUTPUT_RECORD record) {
+        public void addRecord(final String barcode, final CLUSTER_OUTPUT_RECORD record) {
             this.recordCount += 1;
 
             // Grab the existing collection, or initialize it if it doesn't yet exist
-            SortingCollection<CLUSTER_OUTPUT_RECORD> recordCollection = this.barcodeToRecordCollection.get(barcode);
+            TileBarcodeRecordCollection recordCollection = this.barcodeToRecordCollection.get(barcode);
             if (recordCollection == null) {
                 if (!barcodeRecordWriterMap.containsKey(barcode))
                     throw new PicardException(String.format("Read records with barcode %s, but this barcode was not expected.  (Is it referenced in the parameters file?)", barcode));
-                recordCollection = this.newSortingCollection();
+                recordCollection = new TileBarcodeRecordCollection(maxReadsInRamPerTile / barcodeRecordWriterMap.size());
                 this.barcodeToRecordCollection.put(barcode, recordCollection);
-                this.barcodeToProcessingState.put(barcode, null);
             }
             recordCollection.add(record);
         }
 
-        private synchronized SortingCollection<CLUSTER_OUTPUT_RECORD> newSortingCollection() {
-            final int maxRecordsInRam =
-                    maxReadsInRamPerTile /
-                            barcodeRecordWriterMap.size();
-            return SortingCollection.newInstance(
-                    outputRecordClass,
-                    codecPrototype.clone(),
-                    outputRecordComparator,
-                    maxRecordsInRam,
-                    tmpDirs);
-        }
-
         /**
          * Returns the number of unique barcodes read.
          */
-        public synchronized long getBarcodeCount() {
+        public long getBarcodeCount() {
             return this.barcodeToRecordCollection.size();
         }
 
         /**
          * Returns the number of records read.
          */
-        public synchronized long getRecordCount() {
+        public long getRecordCount() {
             return recordCount;
         }
 
         /**
-         * Returns the mapping of barcodes to records associated with them.
+         * Returns the records read for the given barcode, or null if there were none.
          */
-        public synchronized Map<String, SortingCollection<CLUSTER_OUTPUT_RECORD>> getBarcodeRecords() {
-            return barcodeToRecordCollection;
+        public TileBarcodeRecordCollection getBarcodeRecords(final String barcode) {
+            return barcodeToRecordCollection.get(barcode);
         }
+    }
 
-        /**
-         * Gets the state of the provided barcode's data's processing progress.  Only invoke this query if this tile
-         * is in a DONE_READING state.
-         *
-         * @throws IllegalStateException When a barcode is queried before the tile is in the DONE_READING state
-         */
-        public synchronized TileBarcodeProcessingState getBarcodeState(final String barcode) {
-            if (this.getState() == TileProcessingState.NOT_DONE_READING) {
-                throw new IllegalStateException(
-                        "A tile's barcode data's state cannot be queried until the tile has been completely read.");
-            }
+    /**
+     * Collects the records of one barcode in one tile and hands them back in outputRecordComparator order.
+     * <p/>
+     * Records that arrive in order are kept in a plain list, and only those that arrive out of order are put into a
+     * SortingCollection; the two are merged when iterated.  When the tile is already in order this avoids sorting
+     * altogether, and nothing is spilled to disk unless the records exceed maxRecordsInRam.  If they do, the in-order
+     * list is moved into the SortingCollection and the rest of the tile is handled by it as before.
+     * <p/>
+     * Not thread-safe; access is serialized by the owning TileProcessingRecord.
+     */
+    private class TileBarcodeRecordCollection {
+        private final int maxRecordsInRam;
+        private final List<CLUSTER_OUTPUT_RECORD> inOrderRecords = new ArrayList<CLUSTER_OUTPUT_RECORD>();
+        private SortingCollection<CLUSTER_OUTPUT_RECORD> outOfOrderRecords = null;
+        private int outOfOrderCount = 0;
+        // Once set, every record goes into outOfOrderRecords and inOrderRecords stays empty.
+        private boolean sortingAll = false;
+
+        public TileBarcodeRecordCollection(final int maxRecordsInRam) {
+            this.maxRecordsInRam = maxRecordsInRam;
+        }
+
+        public void add(final CLUSTER_OUTPUT_RECORD record) {
+            if (!sortingAll) {
+                if (inOrderRecords.isEmpty() ||
+                        outputRecordComparator.compare(inOrderRecords.get(inOrderRecords.size() - 1), record) <= 0) {
+                    inOrderRecords.add(record);
+                } else {
+                    getOutOfOrderRecords().add(record);
+                    ++outOfOrderCount;
+                }
 
-            if (this.barcodeToProcessingState.containsKey(barcode)) {
-                return this.barcodeToProcessingState.get(barcode);
+                // Do not hold more records in RAM than a single SortingCollection would.
+                if (inOrderRecords.size() + outOfOrderCount >= maxRecordsInRam) {
+                    for (final CLUSTER_OUTPUT_RECORD rec : inOrderRecords) {
+                        getOutOfOrderRecords().add(rec);
+                    }
+                    inOrderRecords.clear();
+                    sortingAll = true;
+                }
             } else {
-                return TileBarcodeProcessingState.NA;
+                outOfOrderRecords.add(record);
             }
         }
 
-        public synchronized Map<String, TileBarcodeProcessingState> getBarcodeProcessingStates() {
-            return this.barcodeToProcessingState;
+        public void doneAdding() {
+            if (outOfOrderRecords != null) {
+                outOfOrderRecords.doneAdding();
+            }
         }
 
-        /**
-         * Sets the processing state of the provided barcode in this record.
-         *
-         * @throws java.util.NoSuchElementException When the provided barcode is not one associated with this record.
-         */
-        public synchronized void setBarcodeState(final String barcode, final TileBarcodeProcessingState state) {
-            if (this.barcodeToProcessingState.containsKey(barcode)) {
-                this.barcodeToProcessingState.put(barcode, state);
+        public CloseableIterator<CLUSTER_OUTPUT_RECORD> iterator() {
+            if (outOfOrderRecords == null) {
+                return new DelegatingIterator<CLUSTER_OUTPUT_RECORD>(inOrderRecords.iterator());
+            } else if (inOrderRecords.isEmpty()) {
+                return outOfOrderRecords.iterator();
             } else {
-                throw new NoSuchElementException(String.format("No record of the provided barcode, %s.", barcode));
+                final List<CloseableIterator<CLUSTER_OUTPUT_RECORD>> iterators = new ArrayList<CloseableIterator<CLUSTER_OUTPUT_RECORD>>(2);
+                iterators.add(new DelegatingIterator<CLUSTER_OUTPUT_RECORD>(inOrderRecords.iterator()));
+                iterators.add(outOfOrderRecords.iterator());
+                return new MergingIterator<CLUSTER_OUTPUT_RECORD>(outputRecordComparator, iterators);
             }
         }
 
-        /**
-         * Returns the distinct set of barcodes for which data has been collected in this record.
-         *
-         * @return
-         */
-        public synchronized Set<String> getBarcodes() {
-            return this.getBarcodeRecords().keySet();
+        /** Returns true if the records did not all arrive in order, and so had to be at least partly sorted. */
+        public boolean neededSorting() {
+            return outOfOrderRecords != null;
+        }
+
+        private SortingCollection<CLUSTER_OUTPUT_RECORD> getOutOfOrderRecords() {
+            if (outOfOrderRecords == null) {
+                outOfOrderRecords = SortingCollection.newInstance(
+                        outputRecordClass,
+                        codecPrototype.clone(),
+                        outputRecordComparator,
+                        maxRecordsInRam,
+                        tmpDirs);
+            }
+            return outOfOrderRecords;
         }
     }
 
     /**
-     * Reads the information from a tile via an IlluminaDataProvider and feeds red information into a processingRecord
-     * managed by the TileReadAggregator.
+     * Reads the information from a tile via an IlluminaDataProvider and feeds red information into a processingRecord,
+     * which is handed to the TileScheduler once the tile has been completely read.
      */
     private class TileReader {
+        private final int tileIndex;
         private final Tile tile;
-        private final TileReadAggregator handler;
-        private final TileProcessingRecord processingRecord;
+        private final TileScheduler scheduler;
+        private final TileProcessingRecord processingRecord = new TileProcessingRecord();
 
-        public TileReader(final Tile tile, final TileReadAggregator handler, final TileProcessingRecord processingRecord) {
+        public TileReader(final int tileIndex, final Tile tile, final TileScheduler scheduler) {
+            this.tileIndex = tileIndex;
             this.tile = tile;
-            this.handler = handler;
-            this.processingRecord = processingRecord;
+            this.scheduler = scheduler;
         }
 
         /**
@@ -537,339 +648,393 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
             final IlluminaDataProvider dataProvider = factory.makeDataProvider(Arrays.asList(this.tile.getNumber()));
             log.debug(String.format("Reading data from tile %s ...", tile.getNumber()));
 
-            while (dataProvider.hasNext()) {
-                final ClusterData cluster = dataProvider.next();
-                readProgressLogger.record(null, 0);
-                // If this cluster is passing, or we do NOT want to ONLY emit passing reads, then add it to the next
-                if (cluster.isPf() || includeNonPfReads) {
-                    final String barcode = (demultiplex ? cluster.getMatchedBarcode() : null);
-                    this.processingRecord.addRecord(barcode, converter.convertClusterToOutputRecord(cluster));
+            final ClusterDataBatch batch = dataProvider.newBatch(CLUSTERS_PER_BATCH);
+            final InlineBarcodeMatcher barcodeMatcher = barcodeExtractor == null ? null : new InlineBarcodeMatcher(batch);
+            while (dataProvider.nextBatch(batch) > 0) {
+                for (int cluster = 0; cluster < batch.size(); ++cluster) {
+                    readProgressLogger.record(null, 0);
+                    if (barcodeMatcher != null) barcodeMatcher.match(cluster);
+                    // If this cluster is passing, or we do NOT want to ONLY emit passing reads, then add it to the next
+                    if (batch.isPf(cluster) || includeNonPfReads) {
+                        final String barcode = (demultiplex ? batch.getMatchedBarcode(cluster) : null);
+                        this.processingRecord.addRecord(barcode, converter.convertClusterToOutputRecord(batch, cluster));
+                    }
                 }
             }
-
-            this.handler.completeTile(this.tile);
             dataProvider.close();
+            if (barcodeMatcher != null) {
+                barcodeExtractor.merge(barcodeMatcher.tileBarcodeExtractor);
+                if (checkpointTracker != null) {
+                    checkpointTracker.tileRead(this.tileIndex, barcodeMatcher.tileBarcodeExtractor);
+                }
+            }
+
+            this.scheduler.completeTile(this.tileIndex, this.tile, this.processingRecord);
         }
     }
 
+    /**
+     * Matches the barcode reads of the clusters of a batch as they are read, and records the matched barcode in the
+     * batch so that the clusters are demultiplexed as though the barcodes had been read from barcode files.  Every
+     * cluster is counted in the metrics, whether or not non-PF reads are being written.
+     */
+    private class InlineBarcodeMatcher {
+        private final ClusterDataBatch batch;
+        private final BarcodeExtractor tileBarcodeExtractor = barcodeExtractor.copy();
+        private final int[] barcodeIndices = factory.getOutputReadStructure().barcodes.getIndices();
+        private final byte[][] barcodeSubsequences = new byte[barcodeIndices.length][];
+        private final byte[][] qualityScores = new byte[barcodeIndices.length][];
+
+        public InlineBarcodeMatcher(final ClusterDataBatch batch) {
+            this.batch = batch;
+            for (int i = 0; i < barcodeIndices.length; i++) {
+                barcodeSubsequences[i] = new byte[batch.getReadLength(barcodeIndices[i])];
+                qualityScores[i] = new byte[batch.getReadLength(barcodeIndices[i])];
+            }
+        }
+
+        public void match(final int cluster) {
+            for (int i = 0; i < barcodeIndices.length; i++) {
+                final int read = barcodeIndices[i];
+                final int offset = batch.getReadOffset(read, cluster);
+                System.arraycopy(batch.getBases(read), offset, barcodeSubsequences[i], 0, barcodeSubsequences[i].length);
+                System.arraycopy(batch.getQualities(read), offset, qualityScores[i], 0, qualityScores[i].length);
+            }
+            final BarcodeExtractor.BarcodeMatch match =
+                    tileBarcodeExtractor.findBestBarcodeAndUpdateMetrics(barcodeSubsequences, qualityScores, batch.isPf(cluster));
+            batch.setMatchedBarcode(cluster, match.matched ? match.barcode : null);
+        }
+    }
 
     /**
-     * Aggregates data collected from tiles and writes them to file. Accepts records from TileReaders and maps
-     * them to the appropriate BAM writers.
+     * The tiles' records for one barcode, in tile order, waiting to be written.
+     * <p/>
+     * Each tile fills its slot exactly once when it has been read (with an empty collection if the tile had no records
+     * for this barcode).  Slots are written strictly in order by whichever thread holds the drain flag, so only one
+     * thread at a time uses the barcode's writer, and a tile that is slow to read holds up only those barcodes that
+     * are waiting on it.
      */
-    private class TileReadAggregator {
-        /**
-         * The collection of records associated with a particular tile.
-         * <p/>
-         * Implemented as a TreeMap to guarantee tiles are iterated over in natural order.
-         */
-        private final Map<Tile, TileProcessingRecord> tileRecords = new TreeMap<Tile, TileProcessingRecord>();
+    private class BarcodeWriteQueue {
+        private final String barcode;
+        private final ConvertedClusterDataWriter<CLUSTER_OUTPUT_RECORD> writer;
+        private final AtomicReferenceArray<TileBarcodeRecordCollection> slots;
+        private final Tile[] tiles;
+        /** Set while a drain of this queue is either queued or running. */
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        /** The number of tiles that have been read but not yet written. */
+        private final AtomicInteger depth = new AtomicInteger(0);
+        /** Only advanced by the thread that set draining. */
+        private volatile int nextSlot = 0;
+
+        public BarcodeWriteQueue(final String barcode, final Tile[] tiles) {
+            this.barcode = barcode;
+            this.writer = barcodeRecordWriterMap.get(barcode);
+            this.tiles = tiles;
+            this.slots = new AtomicReferenceArray<TileBarcodeRecordCollection>(tiles.length);
+        }
 
         /**
-         * The executor responsible for doing work.
-         * <p/>
-         * Implemented as a ThreadPoolExecutor with a PriorityBlockingQueue which orders submitted Runnables by their
-         * priority.
+         * Fills the slot of the given tile.
+         *
+         * @return The number of tiles now waiting to be written for this barcode.
          */
-        private final ExecutorService prioritizingThreadPool = new ThreadPoolExecutor(
-                numThreads,
-                numThreads,
-                0L,
-                MILLISECONDS,
-                new PriorityBlockingQueue<Runnable>(5, new Comparator<Runnable>() {
-                    @Override
-                    /**
-                     * Compare the two Runnables, and assume they are PriorityRunnable; if not something strange is
-                     * going on, so allow a ClassCastException be thrown.
-                     */
-                    public int compare(final Runnable o1, final Runnable o2) {
-                        // Higher priority items go earlier in the queue, so reverse the "natural" comparison.
-                        return ((PriorityRunnable) o2).getPriority() - ((PriorityRunnable) o1).getPriority();
-                    }
-                })
-        );
+        public int publish(final int tileIndex, final TileBarcodeRecordCollection records) {
+            slots.set(tileIndex, records);
+            return depth.incrementAndGet();
+        }
 
         /**
-         * The object acting as a latch to notify when the aggregator completes its work.
+         * Claims this queue for draining if the next tile to be written is available and no other thread has
+         * claimed it already.
          */
-        private final Object completionLatch = new Object();
+        public boolean tryClaim() {
+            while (isNextSlotReady()) {
+                if (!draining.compareAndSet(false, true)) {
+                    // The holder looks at the next slot again after letting go, so it will not be missed.
+                    return false;
+                }
+                if (isNextSlotReady()) {
+                    return true;
+                }
+                draining.set(false);
+            }
+            return false;
+        }
 
         /**
-         * Stores the thread that is executing this work so that it can be interrupted upon failure.
+         * Writes tiles in order until reaching one that has not yet been read.  Must only be called after a successful
+         * tryClaim().
+         *
+         * @return The number of tiles written.
          */
-        private Thread parentThread;
-        private final Object workEnqueueMonitor = new Object();
-        private final AtomicBoolean submitted = new AtomicBoolean(false);
+        public int drain() {
+            int written = 0;
+            while (true) {
+                while (isNextSlotReady()) {
+                    final TileBarcodeRecordCollection records = slots.getAndSet(nextSlot, null);
+                    writeRecords(tiles[nextSlot], records);
+                    if (checkpointTracker != null) {
+                        checkpointTracker.tileWritten(nextSlot, barcode, ((CheckpointableWriter<CLUSTER_OUTPUT_RECORD>) writer).checkpoint());
+                    }
+                    depth.decrementAndGet();
+                    ++nextSlot;
+                    ++written;
+                }
+                draining.set(false);
+                // Another thread may have filled the next slot after we looked at it but before we let go, and
+                // failed to claim the queue; if so, and nobody else has claimed it since, keep going.
+                if (!isNextSlotReady() || !draining.compareAndSet(false, true)) {
+                    return written;
+                }
+            }
+        }
 
+        private boolean isNextSlotReady() {
+            return nextSlot < slots.length() && slots.get(nextSlot) != null;
+        }
 
-        /**
-         * Creates a TileReadAggregator that reads from the provided tiles.
-         *
-         * @param tiles
-         */
-        public TileReadAggregator(final Collection<Tile> tiles) {
-            for (final Tile t : tiles) {
-                tileRecords.put(t, new TileProcessingRecord());
+        private void writeRecords(final Tile tile, final TileBarcodeRecordCollection records) {
+            if (records == emptyRecordCollection) return;
+            log.debug(String.format("Writing records from tile %s with barcode %s ...", tile.getNumber(), barcode));
+
+            final PeekIterator<CLUSTER_OUTPUT_RECORD> it = new PeekIterator<CLUSTER_OUTPUT_RECORD>(records.iterator());
+            while (it.hasNext()) {
+                final CLUSTER_OUTPUT_RECORD rec = it.next();
+
+                /**
+                 * PIC-330 Sometimes there are two reads with the same cluster coordinates, and thus
+                 * the same read name.  Discard both of them.  This code assumes that the two first of pairs
+                 * will come before the two second of pairs, so it isn't necessary to look ahead a different
+                 * distance for paired end.  It also assumes that for paired ends there will be duplicates
+                 * for both ends, so there is no need to be PE-aware.
+                 */
+                if (it.hasNext()) {
+                    final CLUSTER_OUTPUT_RECORD lookAhead = it.peek();
+
+/* TODO: Put this in SAMFileWriter wrapper
+                    if (!rec.getReadUnmappedFlag() || !lookAhead.getReadUnmappedFlag()) {
+                        throw new IllegalStateException("Should not have mapped reads.");
+                    }
+*/
+
+                    if (outputRecordComparator.compare(rec, lookAhead) == 0) {
+                        it.next();
+                        log.info("Skipping reads with identical read names: " + rec.toString());
+                        continue;
+                    }
+                }
+
+                writer.write(rec);
+                writeProgressLogger.record(null, 0);
+            }
+        }
+    }
+
+    /**
+     * Reads tiles and writes their records with a fixed set of worker threads, without any shared lock.
+     * <p/>
+     * Each worker repeatedly takes a pending write (a BarcodeWriteQueue whose next tile is ready) from a lock-free
+     * queue, and if there is none, claims the next unread tile.  Writes are preferred so that records do not pile up
+     * in memory.  When a tile has been read its records are published to every barcode's BarcodeWriteQueue, and the
+     * barcodes that can now make progress are queued for writing, so reading, sorting and writing of different tiles
+     * and barcodes overlap freely.
+     * <p/>
+     * The scheduler keeps two counters, logged when the work is complete: the largest number of tiles that were
+     * waiting to be written for any one barcode, and the total time workers spent idle because the only remaining
+     * work was blocked on tiles still being read by other workers.
+     */
+    private class TileScheduler {
+        private final Tile[] tiles;
+        private final Map<String, BarcodeWriteQueue> writeQueues = new HashMap<String, BarcodeWriteQueue>();
+        private final Queue<BarcodeWriteQueue> pendingWrites = new ConcurrentLinkedQueue<BarcodeWriteQueue>();
+        /** Released whenever a write is queued, and when the work finishes, to wake idle workers. */
+        private final Semaphore workAvailable = new Semaphore(0);
+        private final AtomicInteger nextTileIndex = new AtomicInteger(0);
+        /** The number of (tile, barcode) slots not yet written. */
+        private final AtomicLong remainingWrites;
+        private final CountDownLatch completionLatch = new CountDownLatch(1);
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        private final ExecutorService workerPool;
+
+        private final AtomicInteger maxWriteQueueDepth = new AtomicInteger(0);
+        private final AtomicLong stallNanos = new AtomicLong(0);
+
+        public TileScheduler(final List<Tile> tiles) {
+            this.tiles = tiles.toArray(new Tile[tiles.size()]);
+            for (final String barcode : barcodeRecordWriterMap.keySet()) {
+                writeQueues.put(barcode, new BarcodeWriteQueue(barcode, this.tiles));
             }
+            this.remainingWrites = new AtomicLong((long) this.tiles.length * writeQueues.size());
+            this.workerPool = Executors.newFixedThreadPool(numThreads);
         }
 
         /**
-         * Execute the tile aggregator's work.  Creates a thread pool to read data from tiles and write them to file.
-         * Invoke this method only once.
-         *
-         * @throws IllegalStateException If submit was called more than once.
+         * Starts the worker threads.  Invoke this method only once.
          */
         public void submit() {
-            // Ensure the aggregator as not yet been submitted
-            if (!this.submitted.compareAndSet(false, true)) {
-                throw new IllegalStateException("The submit() method may not be called more than once.");
+            if (remainingWrites.get() == 0) {
+                signalWorkComplete();
             }
-
-            // Set the thread that is executing this work
-            this.parentThread = Thread.currentThread();
-
-            /**
-             * For each tile, create and submit a tile processor.  Give it a negative execution priority (so that
-             * prioritized tasks with a positive execution priority execute first), and give later tiles a lesser
-             * (more negative) priority.
-             */
-            int priority = 0;
-            for (final Tile tile : this.tileRecords.keySet()) {
-                final TileReader reader = new TileReader(tile, this, this.tileRecords.get(tile));
-                this.prioritizingThreadPool.execute(new PriorityRunnable(--priority) {
+            for (int i = 0; i < numThreads; ++i) {
+                this.workerPool.execute(new Runnable() {
                     @Override
                     public void run() {
                         try {
-                            reader.process();
-                        } catch (final RuntimeException e) {
+                            doWork();
+                        } catch (final Throwable t) {
                             /**
-                             * In the event of an internal failure, signal to the parent thread that something has gone
-                             * wrong.  This is necessary because if an item of work fails to complete, the aggregator will
-                             * will never reach its completed state, and it will never terminate.
+                             * In the event of an internal failure, record it and signal the parent thread, which
+                             * would otherwise wait forever for work that will never complete.
                              */
-                            parentThread.interrupt();
-                            throw e;
-                        } catch (final Error e) {
-                            parentThread.interrupt();
-                            throw e;
+                            failure.compareAndSet(null, t);
+                            signalWorkComplete();
                         }
                     }
                 });
             }
         }
 
-        /**
-         * Signals that a tile's processing is complete.  This must be invoked exactly once per tile, and only after
-         * all of that tile has been processed.
-         *
-         * @throws IllegalStateException When the tile is already in the completed state.
-         */
-        private void completeTile(final Tile tile) {
-            final TileProcessingRecord tileRecord = this.tileRecords.get(tile);
+        private void doWork() throws InterruptedException {
+            while (!isDone()) {
+                final BarcodeWriteQueue writeQueue = pendingWrites.poll();
+                if (writeQueue != null) {
+                    final int written = writeQueue.drain();
+                    if (remainingWrites.addAndGet(-written) == 0) {
+                        signalWorkComplete();
+                    }
+                    continue;
+                }
 
-            if (tileRecord.getState() == TileProcessingState.DONE_READING) {
-                throw new IllegalStateException("This tile is already in the completed state.");
-            }
+                if (nextTileIndex.get() < tiles.length) {
+                    final int tileIndex = nextTileIndex.getAndIncrement();
+                    if (tileIndex < tiles.length) {
+                        new TileReader(tileIndex, tiles[tileIndex], this).process();
+                        continue;
+                    }
+                }
 
-            // Update all of the barcodes and the tile to be marked as read
-            for (final String barcode : tileRecord.getBarcodes()) {
-                tileRecord.setBarcodeState(barcode, TileBarcodeProcessingState.READ);
-                tileRecord.barcodeToRecordCollection.get(barcode).doneAdding();
+                // Nothing to do until another worker finishes reading a tile.
+                final long startTime = System.nanoTime();
+                workAvailable.tryAcquire(1, SECONDS);
+                stallNanos.addAndGet(System.nanoTime() - startTime);
             }
-            tileRecord.setState(TileProcessingState.DONE_READING);
+        }
 
-            log.debug(String.format("Completed reading tile %s; collected %s reads spanning %s barcodes.",
-                    tile.getNumber(), tileRecord.getRecordCount(), tileRecord.getBarcodeCount()));
+        /**
+         * Hands the records of a completely read tile to the write queues of all barcodes, and queues writes for
+         * those barcodes for which this was the next tile to be written.
+         */
+        private void completeTile(final int tileIndex, final Tile tile, final TileProcessingRecord tileRecord) {
+            int sortedBarcodeCount = 0;
+            for (final BarcodeWriteQueue writeQueue : writeQueues.values()) {
+                TileBarcodeRecordCollection records = tileRecord.getBarcodeRecords(writeQueue.barcode);
+                if (records == null) {
+                    records = emptyRecordCollection;
+                } else {
+                    records.doneAdding();
+                    if (records.neededSorting()) ++sortedBarcodeCount;
+                }
+                updateMaximum(maxWriteQueueDepth, writeQueue.publish(tileIndex, records));
+                if (writeQueue.tryClaim()) {
+                    pendingWrites.add(writeQueue);
+                    workAvailable.release();
+                }
+            }
 
-            //noinspection SynchronizationOnLocalVariableOrMethodParameter
-            this.findAndEnqueueWorkOrSignalCompletion();
+            log.debug(String.format("Completed reading tile %s; collected %s reads spanning %s barcodes, %s of which were not already in order.",
+                    tile.getNumber(), tileRecord.getRecordCount(), tileRecord.getBarcodeCount(), sortedBarcodeCount));
         }
 
         /**
-         * Blocks until this aggregator completes its work.
+         * Blocks until this scheduler completes its work.
          *
-         * @throws InterruptedException
+         * @throws PicardException If a worker thread failed.
          */
         public void awaitWorkComplete() throws InterruptedException {
-            synchronized (this.completionLatch) {
-                this.completionLatch.wait();
+            this.completionLatch.await();
+            final Throwable t = failure.get();
+            if (t != null) {
+                log.error(t, "Failure encountered in worker thread; attempting to shut down remaining worker threads and terminate ...");
+                throw new PicardException("Failure encountered in worker thread; see log for details.");
             }
+            log.info("All work is complete.");
+            log.info(String.format("At most %s tiles were waiting to be written for any one barcode; worker threads waited %s ms for tiles to be read.",
+                    getMaxWriteQueueDepth(), getStallMillis()));
         }
 
-        /**
-         * Signals to any thread awaiting via awaitWorkComplete() that no work remains. Called
-         * when this aggregator has reached its completed state.
-         */
         private void signalWorkComplete() {
-            synchronized (this.completionLatch) {
-                this.completionLatch.notifyAll();
-            }
+            this.completionLatch.countDown();
+            this.workAvailable.release(numThreads);
         }
 
-        /**
-         * Poll the aggregator to find more tasks for it to enqueue.  Specifically, searches for un-written data
-         * read from tiles for each barcode and enqueues it for writing.
-         */
-        private void findAndEnqueueWorkOrSignalCompletion() {
-            synchronized (this.workEnqueueMonitor) {
-                /**
-                 * If there is work remaining to be done in this aggregator, walk through all of the barcodes and find
-                 * tiles which have not yet written their barcode data but are in a state where they are able to.
-                 */
-                if (this.isWorkCompleted()) {
-                    this.signalWorkComplete();
-                } else {
-                    final Queue<Runnable> tasks = new LinkedList<Runnable>();
-                    for (final String barcode : barcodeRecordWriterMap.keySet()) {
-                        NEXT_BARCODE:
-                        for (final Map.Entry<Tile, TileProcessingRecord> entry : this.tileRecords.entrySet()) {
-                            final Tile tile = entry.getKey();
-                            final TileProcessingRecord tileRecord = entry.getValue();
+        private boolean isDone() {
+            return this.completionLatch.getCount() == 0;
+        }
 
-                            /**
-                             * If this tile has not been read, we cannot write this or later tiles' barcode data;
-                             * move to the next barcode.
-                             */
-                            if (tileRecord.getState() != TileProcessingState.DONE_READING) {
-                                break;
-                            }
-                            switch (tileRecord.getBarcodeState(barcode)) {
-                                case NA:
-                                case WRITTEN:
-                                    /**
-                                     * There is no data for this barcode for this tile, or it is already written; in
-                                     * either scenario, this barcode will not be processed further for this tile, so
-                                     * move onto the next tile as a possible candidate.
-                                     */
-                                    continue;
-                                case QUEUED_FOR_WRITE:
-                                    /**
-                                     * The write for this barcode is in progress for this tile, so skip to the next
-                                     * barcode.
-                                     */
-                                    break NEXT_BARCODE;
-                                case READ:
-                                    /**
-                                     * This barcode has been read, and all of the earlier tiles have been written
-                                     * for this barcode, so queue its writing.
-                                     */
-                                    tileRecord.setBarcodeState(barcode, TileBarcodeProcessingState.QUEUED_FOR_WRITE);
-                                    log.debug(String.format("Enqueuing work for tile %s and barcode %s.", tile.getNumber(), barcode));
-                                    tasks.add(this.newBarcodeWorkInstance(tile, tileRecord, barcode));
-                                    break NEXT_BARCODE;
-                            }
-                        }
-                    }
+        /** Returns the largest number of tiles that were read but not yet written for any one barcode. */
+        public int getMaxWriteQueueDepth() {
+            return maxWriteQueueDepth.get();
+        }
 
-                    for (final Runnable task : tasks) {
-                        this.prioritizingThreadPool.execute(task);
-                    }
-                }
-            }
+        /** Returns the total time worker threads spent waiting for other workers to finish reading a tile. */
+        public long getStallMillis() {
+            return NANOSECONDS.toMillis(stallNanos.get());
         }
 
         /**
-         * Returns a PriorityRunnable that encapsulates the work involved with writing the provided tileRecord's data
-         * for the given barcode to disk.
-         *
-         * @param tile       The tile from which the record was read
-         * @param tileRecord The processing record associated with the tile
-         * @param barcode    The barcode whose data within the tileRecord is to be written
-         * @return The runnable that upon invocation writes the barcode's data from the tileRecord to disk
+         * Terminates the worker threads abruptly via ExecutorService.shutdownNow().
          */
-        private PriorityRunnable newBarcodeWorkInstance(final Tile tile, final TileProcessingRecord tileRecord, final String barcode) {
-            return new PriorityRunnable() {
-                @Override
-                public void run() {
-                    try {
-                        final SortingCollection<CLUSTER_OUTPUT_RECORD> records = tileRecord.getBarcodeRecords().get(barcode);
-                        final ConvertedClusterDataWriter<CLUSTER_OUTPUT_RECORD> writer = barcodeRecordWriterMap.get(barcode);
-
-                        log.debug(String.format("Writing records from tile %s with barcode %s ...", tile.getNumber(), barcode));
-
-                        final PeekIterator<CLUSTER_OUTPUT_RECORD> it = new PeekIterator<CLUSTER_OUTPUT_RECORD>(records.iterator());
-                        while (it.hasNext()) {
-                            final CLUSTER_OUTPUT_RECORD rec = it.next();
-
-                            /**
-                             * PIC-330 Sometimes there are two reads with the same cluster coordinates, and thus
-                             * the same read name.  Discard both of them.  This code assumes that the two first of pairs
-                             * will come before the two second of pairs, so it isn't necessary to look ahead a different
-                             * distance for paired end.  It also assumes that for paired ends there will be duplicates
-                             * for both ends, so there is no need to be PE-aware.
-                             */
-                            if (it.hasNext()) {
-                                final CLUSTER_OUTPUT_RECORD lookAhead = it.peek();
-
-/* TODO: Put this in SAMFileWriter wrapper
-                                if (!rec.getReadUnmappedFlag() || !lookAhead.getReadUnmappedFlag()) {
-                                    throw new IllegalStateException("Should not have mapped reads.");
-                                }
-*/
-
-                                if (outputRecordComparator.compare(rec, lookAhead) == 0) {
-                                    it.next();
-                                    log.info("Skipping reads with identical read names: " + rec.toString());
-                                    continue;
-                                }
-                            }
-
-                            writer.write(rec);
-                            writeProgressLogger.record(null, 0);
-                        }
+        public void shutdown() {
+            this.workerPool.shutdownNow();
+        }
+    }
 
-                        tileRecord.setBarcodeState(barcode, TileBarcodeProcessingState.WRITTEN);
-                        findAndEnqueueWorkOrSignalCompletion();
-
-                    } catch (final RuntimeException e) {
-                        /**
-                         * In the event of an internal failure, signal to the parent thread that something has gone
-                         * wrong.  This is necessary because if an item of work fails to complete, the aggregator will
-                         * will never reach its completed state, and it will never terminate.
-                         */
-                        parentThread.interrupt();
-                        throw e;
-                    } catch (final Error e) {
-                        parentThread.interrupt();
-                        throw e;
-                    }
-                }
+    /**
+     * Collects, for each tile, the output lengths reported by the writers as each barcode finishes writing it, and
+     * the tile's barcode metrics if barcodes are matched inline.  Once a tile has been written for every barcode, it
+     * and every tile before it are passed to the TileCheckpointListener in tile order.  Since each barcode writes its
+     * tiles in order, a tile that is complete for every barcode implies that all the tiles before it are too.
+     */
+    private class CheckpointTracker {
+        private final Tile[] tiles;
+        private final List<Map<String, Long>> outputLengths;
+        private final BarcodeExtractor[] tileBarcodeMetrics;
+        private final int[] barcodesRemaining;
+        private int nextTileToCheckpoint = 0;
+
+        public CheckpointTracker(final List<Tile> tiles) {
+            this.tiles = tiles.toArray(new Tile[tiles.size()]);
+            this.outputLengths = new ArrayList<Map<String, Long>>(tiles.size());
+            this.tileBarcodeMetrics = new BarcodeExtractor[tiles.size()];
+            this.barcodesRemaining = new int[tiles.size()];
+            for (int i = 0; i < tiles.size(); ++i) {
+                outputLengths.add(new HashMap<String, Long>());
+                barcodesRemaining[i] = barcodeRecordWriterMap.size();
+            }
+        }
 
-            };
+        public synchronized void tileRead(final int tileIndex, final BarcodeExtractor barcodeMetrics) {
+            tileBarcodeMetrics[tileIndex] = barcodeMetrics;
         }
 
-        /**
-         * Returns true if this aggregator has not completed its work.  Specifically, returns false iff
-         * any tile's barcode data yas not yet been written.
-         *
-         * @return True if more work remains to be done, false otherwise
-         */
-        public boolean isWorkCompleted() {
-            for (final Map.Entry<Tile, TileProcessingRecord> entry : this.tileRecords.entrySet()) {
-                final TileProcessingRecord tileProcessingRecord = entry.getValue();
+        public synchronized void tileWritten(final int tileIndex, final String barcode, final long outputLength) {
+            outputLengths.get(tileIndex).put(barcode, outputLength);
+            if (--barcodesRemaining[tileIndex] > 0) return;
 
-                if (tileProcessingRecord.getState() != TileProcessingState.DONE_READING) {
-                    log.debug(String.format("Work is not completed because a tile isn't done being read: %s.", entry.getKey().getNumber()));
-                    return false;
-                } else {
-                    for (final Map.Entry<String, TileBarcodeProcessingState> barcodeStateEntry : tileProcessingRecord.getBarcodeProcessingStates().entrySet()) {
-                        final TileBarcodeProcessingState barcodeProcessingState = barcodeStateEntry.getValue();
-                        if (barcodeProcessingState != TileBarcodeProcessingState.WRITTEN) {
-                            log.debug(String.format("Work is not completed because a tile isn't done being read: Tile %s, Barcode %s, Processing State %s.", entry.getKey().getNumber(), barcodeStateEntry.getKey(), barcodeProcessingState));
-                            return false;
-                        }
-                    }
-                }
+            while (nextTileToCheckpoint <= tileIndex) {
+                checkpointListener.tileWritten(tiles[nextTileToCheckpoint].getNumber(),
+                        outputLengths.get(nextTileToCheckpoint), tileBarcodeMetrics[nextTileToCheckpoint]);
+                outputLengths.set(nextTileToCheckpoint, null);
+                tileBarcodeMetrics[nextTileToCheckpoint] = null;
+                ++nextTileToCheckpoint;
             }
-            log.info("All work is complete.");
-            return true;
         }
+    }
 
-        /**
-         * Terminates the threads currently exiting in the thread pool abruptly via ThreadPoolExecutor.shutdownNow().
-         */
-        public void shutdown() {
-            this.prioritizingThreadPool.shutdownNow();
+    private static void updateMaximum(final AtomicInteger maximum, final int value) {
+        int current = maximum.get();
+        while (value > current && !maximum.compareAndSet(current, value)) {
+            current = maximum.get();
         }
     }
 
@@ -891,6 +1056,12 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
          * Creates the OUTPUT_RECORDs from the cluster
          */
         public OUTPUT_RECORD convertClusterToOutputRecord(final ClusterData cluster);
+
+        /**
+         * Creates the OUTPUT_RECORDs from one cluster of a batch.  The batch is reused after this call, so the records
+         * must not retain references to its arrays.
+         */
+        public OUTPUT_RECORD convertClusterToOutputRecord(final ClusterDataBatch batch, final int cluster);
     }
 
     public static interface ConvertedClusterDataWriter<OUTPUT_RECORD> {
@@ -898,4 +1069,26 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
 
         void close();
     }
+
+    /** A writer whose output can be made durable at a tile boundary and later truncated back to it. */
+    public static interface CheckpointableWriter<OUTPUT_RECORD> extends ConvertedClusterDataWriter<OUTPUT_RECORD> {
+        /**
+         * Flushes everything written so far to disk.
+         *
+         * @return The length of the output file, to which a resumed run may truncate it.
+         */
+        long checkpoint();
+    }
+
+    public static interface TileCheckpointListener {
+        /**
+         * Called for each tile, in tile order, once its records have been written to every output and every writer has
+         * been checkpointed.
+         *
+         * @param tileNumber     The tile that has been written.
+         * @param outputLengths  The checkpointed length of each output, by barcode, after the tile was written.
+         * @param barcodeMetrics The barcode metrics of this tile alone, or null if barcodes are not matched inline.
+         */
+        void tileWritten(final int tileNumber, final Map<String, Long> outputLengths, final BarcodeExtractor barcodeMetrics);
+    }
 }
@@ -23,6 +23,7 @@
  */
 package picard.illumina;
 
+import htsjdk.samtools.Defaults;
 import htsjdk.samtools.SAMRecordQueryNameComparator;
 import htsjdk.samtools.SAMUtils;
 import htsjdk.samtools.fastq.BasicFastqWriter;
@@ -30,9 +31,11 @@ import htsjdk.samtools.fastq.FastqReader;
 import htsjdk.samtools.fastq.FastqRecord;
 import htsjdk.samtools.fastq.FastqWriter;
 import htsjdk.samtools.fastq.FastqWriterFactory;
+import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.Md5CalculatingOutputStream;
 import htsjdk.samtools.util.SortingCollection;
 import htsjdk.samtools.util.StringUtil;
 import picard.PicardException;
@@ -41,18 +44,24 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.programgroups.Illumina;
 import picard.cmdline.StandardOptionDefinitions;
+import picard.fastq.BatchReadNameEncoder;
 import picard.fastq.Casava18ReadNameEncoder;
 import picard.fastq.IlluminaReadNameEncoder;
-import picard.fastq.ReadNameEncoder;
 import picard.illumina.parser.ClusterData;
+import picard.illumina.parser.ClusterDataBatch;
 import picard.illumina.parser.ReadData;
 import picard.illumina.parser.ReadStructure;
+import picard.illumina.parser.RunFolderManifest;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.util.BlockCompressionPool;
 import picard.util.IlluminaUtil;
 import picard.util.TabbedTextFileWithHeaderParser;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
@@ -62,6 +71,7 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -72,7 +82,11 @@ import java.util.Set;
                 "Separate fastq file(s) are created for each template read, and for each barcode read, in the basecalls.\n" +
                 "Template fastqs have extensions like .<number>.fastq, where <number> is the number of the template read,\n" +
                 "starting with 1.  Barcode fastqs have extensions like .barcode_<number>.fastq, where <number> is the number\n" +
-                "of the barcode read, starting with 1.",
+                "of the barcode read, starting with 1.\n" +
+                "With MATCH_BARCODES_INLINE, barcodes are matched while the basecalls are read, as ExtractIlluminaBarcodes\n" +
+                "would match them, and its barcode metrics are written to METRICS_FILE.\n" +
+                "With COMPRESS_OUTPUTS and COMPRESSION_THREADS > 0, fastqs are written as BGZF, compressed by a pool of\n" +
+                "threads shared by all outputs.",
         usageShort = "Generate fastq file(s) from data in an Illumina basecalls output directory",
         programGroup = Illumina.class
 )
@@ -134,6 +148,17 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
     @Option(doc = "If set, process no more than this many tiles (used for debugging).", optional = true)
     public Integer TILE_LIMIT;
 
+    @Option(doc = "If greater than 0, the tiles of multi-tile (.bcl.bgzf, .filter and .locs) files are read ahead by " +
+            "background threads, up to this many tiles beyond each tile being converted, so that converting a tile does " +
+            "not stall waiting for its files.  Useful when BASECALLS_DIR is on a network file system.  Other formats are " +
+            "unaffected.")
+    public int PREFETCH_DEPTH = 0;
+
+    @Option(doc = "If set, the lane's files are found through a manifest kept in this directory, as written by " +
+            "CheckIlluminaDirectory, rather than by listing BASECALLS_DIR.  The manifest is created or brought up to " +
+            "date if necessary.  Only use this once the run is complete.", optional = true)
+    public File RUN_MANIFEST_DIR;
+
     @Option(doc="Apply EAMSS filtering to identify inappropriately quality scored bases towards the ends of reads" +
             " and convert their quality scores to Q2.")
     public boolean APPLY_EAMSS_FILTER = true;
@@ -160,17 +185,49 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
     @Option(shortName = "GZIP", doc = "Compress output FASTQ files using gzip and append a .gz extension to the file names.")
     public boolean COMPRESS_OUTPUTS = false;
 
+    @Option(doc = "If greater than 0 and COMPRESS_OUTPUTS is true, output FASTQs are compressed by a pool of this many " +
+            "threads shared by all outputs, rather than by the thread writing each output.  The outputs are then BGZF: " +
+            "a series of independently compressed gzip blocks, which any gzip reader decompresses as a single stream " +
+            "and which other tools can split at block boundaries.")
+    public int COMPRESSION_THREADS = 0;
+
+    @Option(doc = "When COMPRESSION_THREADS > 0, the memory in megabytes that may be held by blocks waiting to be " +
+            "compressed or written, across all outputs.  Writing stalls when it is used up.")
+    public int COMPRESSION_BUFFER_MB = 64;
+
+    @Option(doc = ExtractIlluminaBarcodes.MATCH_BARCODES_INLINE_DOC)
+    public boolean MATCH_BARCODES_INLINE = false;
+
+    @Option(doc = ExtractIlluminaBarcodes.INLINE_METRICS_FILE_DOC, shortName = StandardOptionDefinitions.METRICS_FILE_SHORT_NAME,
+            optional = true)
+    public File METRICS_FILE;
+
+    @Option(doc = ExtractIlluminaBarcodes.INLINE_MAX_MISMATCHES_DOC)
+    public int MAX_MISMATCHES = 1;
+
+    @Option(doc = ExtractIlluminaBarcodes.INLINE_MIN_MISMATCH_DELTA_DOC)
+    public int MIN_MISMATCH_DELTA = 1;
+
+    @Option(doc = ExtractIlluminaBarcodes.INLINE_MAX_NO_CALLS_DOC)
+    public int MAX_NO_CALLS = 2;
+
+    @Option(shortName = "Q", doc = ExtractIlluminaBarcodes.INLINE_MINIMUM_BASE_QUALITY_DOC)
+    public int MINIMUM_BASE_QUALITY = 0;
+
     /** Simple switch to control the read name format to emit. */
     public enum ReadNameFormat {
         CASAVA_1_8, ILLUMINA
     }
     
     private final Map<String, FastqRecordsWriter> barcodeFastqWriterMap = new HashMap<String, FastqRecordsWriter>();
+    private final Map<String, ExtractIlluminaBarcodes.BarcodeMetric> barcodeToMetrics = new LinkedHashMap<String, ExtractIlluminaBarcodes.BarcodeMetric>();
+    private BarcodeExtractor barcodeExtractor;
     private ReadStructure readStructure;
     IlluminaBasecallsConverter<FastqRecordsForCluster> basecallsConverter;
     private static final Log log = Log.getInstance(IlluminaBasecallsToFastq.class);
     private final FastqWriterFactory fastqWriterFactory = new FastqWriterFactory();
-    private ReadNameEncoder readNameEncoder;
+    private BlockCompressionPool compressionPool;
+    private BatchReadNameEncoder readNameEncoder;
     private static final Comparator<FastqRecordsForCluster> queryNameComparator = new Comparator<FastqRecordsForCluster>() {
         @Override
         public int compare(final FastqRecordsForCluster r1, final FastqRecordsForCluster r2) {
@@ -181,9 +238,16 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
 
     @Override
     protected int doWork() {
-        initialize();
-
-        basecallsConverter.doTileProcessing();
+        try {
+            initialize();
+            basecallsConverter.doTileProcessing();
+        } finally {
+            if (compressionPool != null) compressionPool.shutdown();
+        }
+        if (barcodeExtractor != null) {
+            final MetricsFile<ExtractIlluminaBarcodes.BarcodeMetric, Integer> metrics = getMetricsFile();
+            ExtractIlluminaBarcodes.finalizeAndWriteMetrics(barcodeExtractor, metrics, METRICS_FILE);
+        }
 
         return 0;
     }
@@ -198,6 +262,21 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
         if (READ_NAME_FORMAT == ReadNameFormat.CASAVA_1_8 && FLOWCELL_BARCODE == null) {
             errors.add("FLOWCELL_BARCODE is required when using Casava1.8-style read name headers.");
         }
+
+        if (MATCH_BARCODES_INLINE) {
+            if (new ReadStructure(READ_STRUCTURE).barcodes.isEmpty()) {
+                errors.add("MATCH_BARCODES_INLINE requires a READ_STRUCTURE with at least one B (barcode) read.");
+            }
+            if (MULTIPLEX_PARAMS == null) {
+                errors.add("MULTIPLEX_PARAMS is required with MATCH_BARCODES_INLINE.");
+            }
+            if (METRICS_FILE == null) {
+                errors.add("METRICS_FILE is required with MATCH_BARCODES_INLINE.");
+            }
+            if (BARCODES_DIR != null) {
+                errors.add("BARCODES_DIR cannot be used with MATCH_BARCODES_INLINE.");
+            }
+        }
         
         if (errors.isEmpty()) {
             return null;
@@ -211,6 +290,11 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
      */
     private void initialize() {
         fastqWriterFactory.setCreateMd5(CREATE_MD5_FILE);
+        if (COMPRESS_OUTPUTS && COMPRESSION_THREADS > 0) {
+            final int maxBlocksInFlight = Math.max(COMPRESSION_THREADS,
+                    (int) (COMPRESSION_BUFFER_MB * 1024L * 1024L / BlockCompressionPool.BYTES_PER_BLOCK));
+            compressionPool = new BlockCompressionPool(COMPRESSION_THREADS, maxBlocksInFlight, COMPRESSION_LEVEL);
+        }
         switch (READ_NAME_FORMAT) {
             case CASAVA_1_8:
                 readNameEncoder = new Casava18ReadNameEncoder(MACHINE_NAME, RUN_BARCODE, FLOWCELL_BARCODE);        
@@ -233,13 +317,21 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
             populateWritersFromMultiplexParams();
             demultiplex = true;
         }
+        if (MATCH_BARCODES_INLINE) {
+            IOUtil.assertFileIsWritable(METRICS_FILE);
+            barcodeExtractor = new BarcodeExtractor(barcodeToMetrics, ExtractIlluminaBarcodes.createNoMatchMetric(readStructure),
+                    MAX_NO_CALLS, MAX_MISMATCHES, MIN_MISMATCH_DELTA, MINIMUM_BASE_QUALITY);
+        }
         final int readsPerCluster = readStructure.templates.length() + readStructure.barcodes.length();
         basecallsConverter = new IlluminaBasecallsConverter<FastqRecordsForCluster>(BASECALLS_DIR, BARCODES_DIR, LANE, readStructure,
                 barcodeFastqWriterMap, demultiplex, MAX_READS_IN_RAM_PER_TILE/readsPerCluster, TMP_DIR, NUM_PROCESSORS,
                 FORCE_GC, FIRST_TILE, TILE_LIMIT, queryNameComparator,
                 new FastqRecordsForClusterCodec(readStructure.templates.length(),
                 readStructure.barcodes.length()), FastqRecordsForCluster.class, bclQualityEvaluationStrategy,
-                this.APPLY_EAMSS_FILTER, INCLUDE_NON_PF_READS);
+                this.APPLY_EAMSS_FILTER, INCLUDE_NON_PF_READS, barcodeExtractor,
+                (RUN_MANIFEST_DIR == null) ? null :
+                        RunFolderManifest.load(RunFolderManifest.getManifestFile(RUN_MANIFEST_DIR, BASECALLS_DIR, LANE)));
+        if (PREFETCH_DEPTH > 0) basecallsConverter.setTilePrefetchDepth(PREFETCH_DEPTH);
 
         log.info("READ STRUCTURE IS " + readStructure.toString());
 
@@ -301,6 +393,10 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
 
             final FastqRecordsWriter writer = buildWriter(new File(row.getField("OUTPUT_PREFIX")));
             barcodeFastqWriterMap.put(key, writer);
+            if (key != null) {
+                barcodeToMetrics.put(key, new ExtractIlluminaBarcodes.BarcodeMetric(null, null,
+                        IlluminaUtil.barcodeSeqsToString(barcodeValues), barcodeValues.toArray(new String[barcodeValues.size()])));
+            }
         }
         if (barcodeFastqWriterMap.isEmpty()) {
             throw new PicardException("MULTIPLEX_PARAMS file " + MULTIPLEX_PARAMS + " does have any data rows.");
@@ -321,15 +417,32 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
         final FastqWriter[] barcodeWriters = new FastqWriter[readStructure.barcodes.length()];
         for (int i = 0; i < templateWriters.length; ++i) {
             final String filename = String.format("%s.%d.%s", prefixString, i+1, suffixString);
-            templateWriters[i] = fastqWriterFactory.newWriter(new File(outputDir, filename));
+            templateWriters[i] = newFastqWriter(new File(outputDir, filename));
         }
         for (int i = 0; i < barcodeWriters.length; ++i) {
             final String filename = String.format("%s.barcode_%d.%s", prefixString, i+1, suffixString);
-            barcodeWriters[i] = fastqWriterFactory.newWriter(new File(outputDir, filename));
+            barcodeWriters[i] = newFastqWriter(new File(outputDir, filename));
         }
         return new FastqRecordsWriter(templateWriters, barcodeWriters);
     }
 
+    /** @return A writer for the given file, which compresses with compressionPool if there is one. */
+    private FastqWriter newFastqWriter(final File file) {
+        if (compressionPool == null) {
+            return fastqWriterFactory.newWriter(file);
+        }
+        OutputStream stream;
+        try {
+            stream = new BufferedOutputStream(new FileOutputStream(file), Defaults.BUFFER_SIZE);
+        } catch (final FileNotFoundException e) {
+            throw new PicardException("Error opening " + file.getAbsolutePath(), e);
+        }
+        if (CREATE_MD5_FILE) {
+            stream = new Md5CalculatingOutputStream(stream, new File(file.getAbsolutePath() + ".md5"));
+        }
+        return new BasicFastqWriter(new PrintStream(compressionPool.newOutputStream(stream)));
+    }
+
     public static void main(final String[] args) {
         new IlluminaBasecallsToFastq().instanceMainWithExit(args);
     }
@@ -410,6 +523,15 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
             return ret;
         }
 
+        @Override
+        public FastqRecordsForCluster convertClusterToOutputRecord(final ClusterDataBatch batch, final int cluster) {
+            final FastqRecordsForCluster ret = new FastqRecordsForCluster(readStructure.templates.length(), readStructure.barcodes.length());
+            final boolean appendReadNumberSuffix = ret.templateRecords.length > 1;
+            makeFastqRecords(ret.templateRecords, templateIndices, batch, cluster, appendReadNumberSuffix);
+            makeFastqRecords(ret.barcodeRecords, barcodeIndices, batch, cluster, false);
+            return ret;
+        }
+
         private void makeFastqRecords(final FastqRecord[] recs, final int[] indices,
                                       final ClusterData cluster, final boolean appendReadNumberSuffix) {
             for (short i = 0; i < indices.length; ++i) {
@@ -424,6 +546,23 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
                 );
             }
         }
+
+        private void makeFastqRecords(final FastqRecord[] recs, final int[] indices, final ClusterDataBatch batch,
+                                      final int cluster, final boolean appendReadNumberSuffix) {
+            for (short i = 0; i < indices.length; ++i) {
+                final int read = indices[i];
+                final int offset = batch.getReadOffset(read, cluster);
+                final int length = batch.getReadLength(read);
+                final String readBases = StringUtil.bytesToString(batch.getBases(read), offset, length).replace('.', 'N');
+                final String readName = readNameEncoder.generateReadName(batch, cluster, appendReadNumberSuffix ? i + 1 : null);
+                recs[i] = new FastqRecord(
+                        readName,
+                        readBases,
+                        null,
+                        SAMUtils.phredToFastq(batch.getQualities(read), offset, length)
+                );
+            }
+        }
     }
 
     /**
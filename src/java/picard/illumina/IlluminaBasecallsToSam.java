@@ -25,16 +25,25 @@
 package picard.illumina;
 
 import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.BamFileIoUtils;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileWriter;
 import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordQueryNameComparator;
+import htsjdk.samtools.SAMSortOrderChecker;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.SAMTextWriter;
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.AsciiWriter;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
 import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Iso8601Date;
 import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.Md5CalculatingOutputStream;
 import htsjdk.samtools.util.SortingCollection;
 import htsjdk.samtools.util.StringUtil;
 import picard.PicardException;
@@ -44,20 +53,30 @@ import picard.cmdline.Option;
 import picard.cmdline.programgroups.Illumina;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.illumina.parser.ReadStructure;
+import picard.illumina.parser.RunFolderManifest;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.util.BamHeaderWriter;
+import picard.util.BlockCompressionPool;
 import picard.util.IlluminaUtil;
 import picard.util.IlluminaUtil.IlluminaAdapterPair;
 import picard.util.TabbedTextFileWithHeaderParser;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -73,20 +92,30 @@ import java.util.Set;
  * barcode's data does span multiple tiles, data collected from each tile must be written in the order of the tiles
  * themselves.
  * <p/>
- * This class employs a number of private subclasses to achieve this goal.  The TileReadAggregator controls the flow
- * of operation.  It is fed a number of Tiles which it uses to spawn TileReaders.  TileReaders are responsible for
- * reading Illumina data for their respective tiles from disk, and as they collect that data, it is fed back into the
- * TileReadAggregator.  When a TileReader completes a tile, it notifies the TileReadAggregator, which reviews what was
- * read and conditionally queues its writing to disk, baring in mind the requirements of write-order described in the
- * previous paragraph.  As writes complete, the TileReadAggregator re-evalutes the state of reads/writes and may queue
- * more writes.  When all barcodes for all tiles have been written, the TileReadAggregator shuts down.
+ * This class employs a number of private subclasses to achieve this goal.  The TileScheduler controls the flow
+ * of operation.  It is fed a number of Tiles, and runs a fixed set of worker threads which read them with TileReaders.
+ * TileReaders are responsible for reading Illumina data for their respective tiles from disk.  When a TileReader
+ * completes a tile, it hands the tile's data for each barcode to that barcode's BarcodeWriteQueue, which holds the
+ * tiles waiting to be written in tile order.  A barcode whose next tile in order is now available is queued for
+ * writing, and the worker that picks it up writes as many consecutive tiles for it as are available, baring in mind
+ * the requirements of write-order described in the previous paragraph.  When all barcodes for all tiles have been
+ * written, the TileScheduler shuts down.
  * <p/>
- * The TileReadAggregator controls task execution using a specialized ThreadPoolExecutor.  It accepts special Runnables
- * of type PriorityRunnable which allow a priority to be assigned to the runnable.  When the ThreadPoolExecutor is
- * assigning threads, it gives priority to those PriorityRunnables with higher priority values.  In this application,
- * TileReaders are assigned lowest priority, and write tasks are assigned high priority.  It is designed in this fashion
- * to minimize the amount of time data must remain in memory (write the data as soon as possible, then discard it from
- * memory) while maximizing CPU usage.
+ * Workers always take queued writes before reading another tile.  It is designed in this fashion to minimize the
+ * amount of time data must remain in memory (write the data as soon as possible, then discard it from memory) while
+ * maximizing CPU usage.  No lock is shared between workers, so a tile that is slow to read holds up only the barcodes
+ * waiting on it.
+ * <p/>
+ * With MATCH_BARCODES_INLINE, the barcode reads of each cluster are matched while the tile is read, using the rules
+ * and options of ExtractIlluminaBarcodes, so a lane is demultiplexed in a single pass without barcode files.  The
+ * barcode metrics that ExtractIlluminaBarcodes would have written are written to METRICS_FILE.
+ * <p/>
+ * With COMPRESSION_THREADS > 0, BAM outputs hand their BGZF blocks to a BlockCompressionPool shared by all outputs
+ * instead of compressing on the worker that writes them, and the memory held by blocks in flight is bounded by
+ * COMPRESSION_BUFFER_MB however many outputs are open.
+ * <p/>
+ * With CHECKPOINT_FILE, each time a tile has been written to every output the outputs are flushed to disk and a
+ * TileCheckpoint is recorded, so that a run that dies can be restarted from the tile after the last one recorded.
  *
  * @author jburke@broadinstitute.org
  * @author mccowan@broadinstitute.org
@@ -182,6 +211,17 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
     @Option(doc = "If set, process no more than this many tiles (used for debugging).", optional = true)
     public Integer TILE_LIMIT;
 
+    @Option(doc = "If greater than 0, the tiles of multi-tile (.bcl.bgzf, .filter and .locs) files are read ahead by " +
+            "background threads, up to this many tiles beyond each tile being converted, so that converting a tile does " +
+            "not stall waiting for its files.  Useful when BASECALLS_DIR is on a network file system.  Other formats are " +
+            "unaffected.")
+    public int PREFETCH_DEPTH = 0;
+
+    @Option(doc = "If set, the lane's files are found through a manifest kept in this directory, as written by " +
+            "CheckIlluminaDirectory, rather than by listing BASECALLS_DIR.  The manifest is created or brought up to " +
+            "date if necessary.  Only use this once the run is complete.", optional = true)
+    public File RUN_MANIFEST_DIR;
+
     @Option(doc = "If true, call System.gc() periodically.  This is useful in cases in which the -Xmx value passed " +
             "is larger than the available memory.")
     public Boolean FORCE_GC = true;
@@ -201,16 +241,68 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
     @Option(doc="Whether to include non-PF reads", shortName="NONPF", optional=true)
     public boolean INCLUDE_NON_PF_READS = true;
 
-    private final Map<String, SAMFileWriterWrapper> barcodeSamWriterMap = new HashMap<String, SAMFileWriterWrapper>();
+    @Option(doc = ExtractIlluminaBarcodes.MATCH_BARCODES_INLINE_DOC)
+    public boolean MATCH_BARCODES_INLINE = false;
+
+    @Option(doc = ExtractIlluminaBarcodes.INLINE_METRICS_FILE_DOC, shortName = StandardOptionDefinitions.METRICS_FILE_SHORT_NAME,
+            optional = true)
+    public File METRICS_FILE;
+
+    @Option(doc = ExtractIlluminaBarcodes.INLINE_MAX_MISMATCHES_DOC)
+    public int MAX_MISMATCHES = 1;
+
+    @Option(doc = ExtractIlluminaBarcodes.INLINE_MIN_MISMATCH_DELTA_DOC)
+    public int MIN_MISMATCH_DELTA = 1;
+
+    @Option(doc = ExtractIlluminaBarcodes.INLINE_MAX_NO_CALLS_DOC)
+    public int MAX_NO_CALLS = 2;
+
+    @Option(shortName = "Q", doc = ExtractIlluminaBarcodes.INLINE_MINIMUM_BASE_QUALITY_DOC)
+    public int MINIMUM_BASE_QUALITY = 0;
+
+    @Option(doc = "If greater than 0, BAM outputs are compressed by a pool of this many threads shared by all outputs, " +
+            "rather than by the thread writing each output.  The BAMs are identical either way.  SAM outputs are unaffected.")
+    public int COMPRESSION_THREADS = 0;
+
+    @Option(doc = "When COMPRESSION_THREADS > 0, the memory in megabytes that may be held by blocks waiting to be " +
+            "compressed or written, across all outputs.  Writing stalls when it is used up.")
+    public int COMPRESSION_BUFFER_MB = 64;
+
+    @Option(doc = "If set, each time a tile has been written to every output, the outputs are flushed to disk and their " +
+            "lengths, along with the barcode metrics so far if MATCH_BARCODES_INLINE, are recorded in this file.  If the " +
+            "file exists when the program starts, the outputs are truncated to the recorded lengths and processing " +
+            "resumes with the following tile, so all other arguments must be the same as for the run that wrote it.  " +
+            "The file is deleted when the program completes.  Cannot be used with CREATE_MD5_FILE.", optional = true)
+    public File CHECKPOINT_FILE;
+
+    private final Map<String, IlluminaBasecallsConverter.ConvertedClusterDataWriter<SAMRecordsForCluster>> barcodeSamWriterMap =
+            new HashMap<String, IlluminaBasecallsConverter.ConvertedClusterDataWriter<SAMRecordsForCluster>>();
+    private final Map<String, ExtractIlluminaBarcodes.BarcodeMetric> barcodeToMetrics = new LinkedHashMap<String, ExtractIlluminaBarcodes.BarcodeMetric>();
+    private BarcodeExtractor barcodeExtractor;
     private ReadStructure readStructure;
     IlluminaBasecallsConverter<SAMRecordsForCluster> basecallsConverter;
     private static final Log log = Log.getInstance(IlluminaBasecallsToSam.class);
     private BclQualityEvaluationStrategy bclQualityEvaluationStrategy;
+    private BlockCompressionPool compressionPool;
+    /** The checkpoint this run is resuming from, if any. */
+    private TileCheckpoint checkpoint;
+    private final Map<String, File> barcodeOutputMap = new HashMap<String, File>();
 
     @Override
     protected int doWork() {
-        initialize();
-        basecallsConverter.doTileProcessing();
+        try {
+            initialize();
+            basecallsConverter.doTileProcessing();
+        } finally {
+            if (compressionPool != null) compressionPool.shutdown();
+        }
+        if (barcodeExtractor != null) {
+            final MetricsFile<ExtractIlluminaBarcodes.BarcodeMetric, Integer> metrics = getMetricsFile();
+            ExtractIlluminaBarcodes.finalizeAndWriteMetrics(barcodeExtractor, metrics, METRICS_FILE);
+        }
+        if (CHECKPOINT_FILE != null && CHECKPOINT_FILE.exists() && !CHECKPOINT_FILE.delete()) {
+            log.warn("Could not delete checkpoint file " + CHECKPOINT_FILE.getAbsolutePath());
+        }
         return 0;
     }
 
@@ -228,8 +320,22 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
             IOUtil.assertFileIsReadable(LIBRARY_PARAMS);
         }
 
+        if (COMPRESSION_THREADS > 0) {
+            final int maxBlocksInFlight = Math.max(COMPRESSION_THREADS,
+                    (int) (COMPRESSION_BUFFER_MB * 1024L * 1024L / BlockCompressionPool.BYTES_PER_BLOCK));
+            compressionPool = new BlockCompressionPool(COMPRESSION_THREADS, maxBlocksInFlight, COMPRESSION_LEVEL);
+        }
+
+        if (CHECKPOINT_FILE != null) {
+            checkpoint = TileCheckpoint.read(CHECKPOINT_FILE);
+            if (checkpoint != null) {
+                log.info("Resuming from checkpoint " + CHECKPOINT_FILE.getAbsolutePath() + " after tile " + checkpoint.getLastTile());
+            }
+        }
+
         if (OUTPUT != null) {
             barcodeSamWriterMap.put(null, buildSamFileWriter(OUTPUT, SAMPLE_ALIAS, LIBRARY_NAME, buildSamHeaderParameters(null)));
+            barcodeOutputMap.put(null, OUTPUT);
         } else {
             populateWritersFromLibraryParams();
         }
@@ -238,10 +344,27 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
 
         final int numOutputRecords = readStructure.templates.length();
 
+        if (MATCH_BARCODES_INLINE) {
+            IOUtil.assertFileIsWritable(METRICS_FILE);
+            barcodeExtractor = new BarcodeExtractor(barcodeToMetrics, ExtractIlluminaBarcodes.createNoMatchMetric(readStructure),
+                    MAX_NO_CALLS, MAX_MISMATCHES, MIN_MISMATCH_DELTA, MINIMUM_BASE_QUALITY);
+        }
+
         basecallsConverter = new IlluminaBasecallsConverter<SAMRecordsForCluster>(BASECALLS_DIR, BARCODES_DIR, LANE, readStructure,
                 barcodeSamWriterMap, true, MAX_READS_IN_RAM_PER_TILE/numOutputRecords, TMP_DIR, NUM_PROCESSORS, FORCE_GC,
                 FIRST_TILE, TILE_LIMIT, new QueryNameComparator(), new Codec(numOutputRecords), SAMRecordsForCluster.class,
-                bclQualityEvaluationStrategy, this.APPLY_EAMSS_FILTER, INCLUDE_NON_PF_READS);
+                bclQualityEvaluationStrategy, this.APPLY_EAMSS_FILTER, INCLUDE_NON_PF_READS, barcodeExtractor,
+                (RUN_MANIFEST_DIR == null) ? null :
+                        RunFolderManifest.load(RunFolderManifest.getManifestFile(RUN_MANIFEST_DIR, BASECALLS_DIR, LANE)));
+        if (PREFETCH_DEPTH > 0) basecallsConverter.setTilePrefetchDepth(PREFETCH_DEPTH);
+
+        if (CHECKPOINT_FILE != null) {
+            if (checkpoint != null) {
+                basecallsConverter.resumeAfterTile(checkpoint.getLastTile());
+                if (barcodeExtractor != null) restoreBarcodeMetrics();
+            }
+            basecallsConverter.setCheckpointListener(new CheckpointWriter());
+        }
 
         log.info("DONE_READING STRUCTURE IS " + readStructure.toString());
 
@@ -255,6 +378,25 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
 
     }
 
+    /**
+     * Adds the barcode metrics of the tiles written before the checkpoint to barcodeExtractor.
+     */
+    private void restoreBarcodeMetrics() {
+        if (checkpoint.getNoMatchMetric() == null) {
+            throw new PicardException("Checkpoint file " + CHECKPOINT_FILE.getAbsolutePath() + " has no barcode metrics; " +
+                    "it was not written with MATCH_BARCODES_INLINE.");
+        }
+        for (final Map.Entry<String, ExtractIlluminaBarcodes.BarcodeMetric> entry : checkpoint.getBarcodeMetrics().entrySet()) {
+            final ExtractIlluminaBarcodes.BarcodeMetric metric = barcodeExtractor.getMetrics().get(entry.getKey());
+            if (metric == null) {
+                throw new PicardException("Barcode " + entry.getKey() + " in checkpoint file " + CHECKPOINT_FILE.getAbsolutePath() +
+                        " is not in LIBRARY_PARAMS.");
+            }
+            metric.merge(entry.getValue());
+        }
+        barcodeExtractor.getNoMatchMetric().merge(checkpoint.getNoMatchMetric());
+    }
+
     /**
      * Assert that expectedCols are present and return actualCols - expectedCols
      *
@@ -350,9 +492,15 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
                 samHeaderParams.put(tagName, row.getField(tagName));
             }
 
-            final SAMFileWriterWrapper writer = buildSamFileWriter(new File(row.getField("OUTPUT")),
+            final File output = new File(row.getField("OUTPUT"));
+            final IlluminaBasecallsConverter.ConvertedClusterDataWriter<SAMRecordsForCluster> writer = buildSamFileWriter(output,
                     row.getField("SAMPLE_ALIAS"), row.getField("LIBRARY_NAME"), samHeaderParams);
             barcodeSamWriterMap.put(key, writer);
+            barcodeOutputMap.put(key, output);
+            if (key != null) {
+                barcodeToMetrics.put(key, new ExtractIlluminaBarcodes.BarcodeMetric(null, row.getField("LIBRARY_NAME"),
+                        IlluminaUtil.barcodeSeqsToString(barcodeValues), barcodeValues.toArray(new String[barcodeValues.size()])));
+            }
         }
         if (barcodeSamWriterMap.isEmpty()) {
             throw new PicardException("LIBRARY_PARAMS(BARCODE_PARAMS) file " + LIBRARY_PARAMS + " does have any data rows.");
@@ -394,10 +542,11 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
      * @param sampleAlias      The sample alias set in the read group header
      * @param libraryName      The name of the library to which this read group belongs
      * @param headerParameters Header parameters that will be added to the RG header for this SamFile
-     * @return A SAMFileWriter
+     * @return A writer for the output, which compresses with the shared compression pool if the output is a BAM and
+     * COMPRESSION_THREADS > 0, and which can be checkpointed if CHECKPOINT_FILE is set
      */
-    private SAMFileWriterWrapper buildSamFileWriter(final File output, final String sampleAlias,
-                                                    final String libraryName, final Map<String, String> headerParameters) {
+    private IlluminaBasecallsConverter.ConvertedClusterDataWriter<SAMRecordsForCluster> buildSamFileWriter(
+            final File output, final String sampleAlias, final String libraryName, final Map<String, String> headerParameters) {
         IOUtil.assertFileIsWritable(output);
         final SAMReadGroupRecord rg = new SAMReadGroupRecord(READ_GROUP_ID);
         rg.setSample(sampleAlias);
@@ -412,6 +561,18 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
         final SAMFileHeader header = new SAMFileHeader();
         header.setSortOrder(SAMFileHeader.SortOrder.queryname);
         header.addReadGroup(rg);
+        final boolean bam = output.getName().endsWith(BamFileIoUtils.BAM_FILE_EXTENSION);
+        if (CHECKPOINT_FILE != null || (bam && compressionPool != null)) {
+            Long resumeLength = null;
+            if (checkpoint != null) {
+                resumeLength = checkpoint.getOutputLength(output);
+                if (resumeLength == null) {
+                    throw new PicardException("Output " + output.getAbsolutePath() + " is not in checkpoint file " +
+                            CHECKPOINT_FILE.getAbsolutePath());
+                }
+            }
+            return new DirectSamWriter(output, header, bam, compressionPool, CREATE_MD5_FILE, resumeLength);
+        }
         return new SAMFileWriterWrapper(new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, output));
     }
 
@@ -443,6 +604,22 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
             }
         }
 
+        if (MATCH_BARCODES_INLINE) {
+            if (readStructure.barcodes.isEmpty()) {
+                messages.add("MATCH_BARCODES_INLINE requires a READ_STRUCTURE with at least one B (barcode) read.");
+            }
+            if (METRICS_FILE == null) {
+                messages.add("METRICS_FILE is required with MATCH_BARCODES_INLINE.");
+            }
+            if (BARCODES_DIR != null) {
+                messages.add("BARCODES_DIR cannot be used with MATCH_BARCODES_INLINE.");
+            }
+        }
+
+        if (CHECKPOINT_FILE != null && CREATE_MD5_FILE) {
+            messages.add("CHECKPOINT_FILE cannot be used with CREATE_MD5_FILE.");
+        }
+
         if (READ_GROUP_ID == null) {
             READ_GROUP_ID = RUN_BARCODE.substring(0, 5) + "." + LANE;
         }
@@ -473,6 +650,170 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
         }
     }
 
+    /**
+     * Records the output lengths and barcode metrics in CHECKPOINT_FILE as each tile is written to every output.
+     */
+    private class CheckpointWriter implements IlluminaBasecallsConverter.TileCheckpointListener {
+        /** The metrics of the tiles written so far, including those restored from the checkpoint resumed from. */
+        private final BarcodeExtractor checkpointedBarcodeMetrics;
+
+        private CheckpointWriter() {
+            if (barcodeExtractor != null) {
+                checkpointedBarcodeMetrics = barcodeExtractor.copy();
+                checkpointedBarcodeMetrics.merge(barcodeExtractor);
+            } else {
+                checkpointedBarcodeMetrics = null;
+            }
+        }
+
+        @Override
+        public void tileWritten(final int tileNumber, final Map<String, Long> outputLengths, final BarcodeExtractor barcodeMetrics) {
+            final Map<String, Long> outputPathLengths = new LinkedHashMap<String, Long>();
+            for (final Map.Entry<String, Long> entry : outputLengths.entrySet()) {
+                outputPathLengths.put(barcodeOutputMap.get(entry.getKey()).getAbsolutePath(), entry.getValue());
+            }
+            if (checkpointedBarcodeMetrics != null) {
+                checkpointedBarcodeMetrics.merge(barcodeMetrics);
+                new TileCheckpoint(tileNumber, outputPathLengths, checkpointedBarcodeMetrics.getMetrics(),
+                        checkpointedBarcodeMetrics.getNoMatchMetric()).write(CHECKPOINT_FILE);
+            } else {
+                new TileCheckpoint(tileNumber, outputPathLengths, new HashMap<String, ExtractIlluminaBarcodes.BarcodeMetric>(),
+                        null).write(CHECKPOINT_FILE);
+            }
+            log.debug("Checkpointed tile " + tileNumber);
+        }
+    }
+
+    /**
+     * Writes a presorted SAM or BAM in the same way as htsjdk's SAMTextWriter or BAMFileWriter, but without a
+     * SAMFileWriter, so that BGZF compression can be done by the shared BlockCompressionPool and the output can be
+     * flushed to disk at a checkpoint.  A resumed output is truncated to its checkpointed length and appended to.
+     */
+    private static class DirectSamWriter
+            implements IlluminaBasecallsConverter.CheckpointableWriter<SAMRecordsForCluster> {
+        private final File output;
+        private final SAMFileHeader header;
+        private final FileOutputStream fileStream;
+        /** The stream to flush and close; BGZF-compressed for a BAM. */
+        private final OutputStream outputStream;
+        /** Non-null for a BAM. */
+        private final BAMRecordCodec recordCodec;
+        /** Non-null for a SAM. */
+        private final Writer textWriter;
+        private final SAMTextWriter samTextWriter;
+        private final SAMSortOrderChecker sortOrderChecker;
+        private boolean writtenSinceCheckpoint = true;
+        private long checkpointedLength = 0;
+
+        /**
+         * @param compressionPool If non-null and the output is a BAM, compresses with this pool.
+         * @param resumeLength    If non-null, the output is truncated to this length and appended to, without a header.
+         */
+        private DirectSamWriter(final File output, final SAMFileHeader header, final boolean bam,
+                                final BlockCompressionPool compressionPool, final boolean createMd5File,
+                                final Long resumeLength) {
+            this.output = output;
+            this.header = header;
+            try {
+                if (resumeLength != null) {
+                    truncate(output, resumeLength);
+                }
+                this.fileStream = new FileOutputStream(output, resumeLength != null);
+            } catch (final IOException e) {
+                throw new PicardException("Error opening " + output.getAbsolutePath(), e);
+            }
+            OutputStream stream = new BufferedOutputStream(fileStream, Defaults.BUFFER_SIZE);
+            if (createMd5File) {
+                stream = new Md5CalculatingOutputStream(stream, new File(output.getAbsolutePath() + ".md5"));
+            }
+
+            if (bam) {
+                this.outputStream = compressionPool != null ? compressionPool.newOutputStream(stream) :
+                        new BlockCompressedOutputStream(stream, null);
+                this.textWriter = null;
+                this.samTextWriter = null;
+                if (resumeLength == null) {
+                    BamHeaderWriter.write(outputStream, header);
+                }
+                this.recordCodec = new BAMRecordCodec(header);
+                this.recordCodec.setOutputStream(outputStream, output.getAbsolutePath());
+            } else {
+                this.outputStream = stream;
+                this.textWriter = new AsciiWriter(stream);
+                this.samTextWriter = new SAMTextWriter(textWriter);
+                this.recordCodec = null;
+                if (resumeLength == null) {
+                    final StringWriter headerText = new StringWriter();
+                    new SAMTextHeaderCodec().encode(headerText, header);
+                    samTextWriter.writeHeader(headerText.toString());
+                }
+            }
+            this.sortOrderChecker = new SAMSortOrderChecker(header.getSortOrder());
+        }
+
+        private static void truncate(final File output, final long length) throws IOException {
+            if (output.length() < length) {
+                throw new PicardException("Output " + output.getAbsolutePath() + " is shorter than its checkpointed length " + length);
+            }
+            final RandomAccessFile file = new RandomAccessFile(output, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                file.close();
+            }
+        }
+
+        @Override
+        public void write(final SAMRecordsForCluster records) {
+            for (final SAMRecord rec : records.records) {
+                if (!sortOrderChecker.isSorted(rec)) {
+                    final SAMRecord previous = sortOrderChecker.getPreviousRecord();
+                    throw new IllegalArgumentException("Alignments added out of order in " + output.getAbsolutePath() +
+                            ". Sort order is " + header.getSortOrder() + ". Offending records are at [" +
+                            sortOrderChecker.getSortKey(previous) + "] and [" + sortOrderChecker.getSortKey(rec) + "]");
+                }
+                if (recordCodec != null) {
+                    recordCodec.encode(rec);
+                } else {
+                    samTextWriter.writeAlignment(rec);
+                }
+            }
+            writtenSinceCheckpoint = true;
+        }
+
+        @Override
+        public long checkpoint() {
+            if (writtenSinceCheckpoint) {
+                try {
+                    if (textWriter != null) {
+                        textWriter.flush();
+                    } else {
+                        outputStream.flush();
+                    }
+                    fileStream.getFD().sync();
+                    checkpointedLength = fileStream.getChannel().position();
+                } catch (final IOException e) {
+                    throw new PicardException("Error flushing " + output.getAbsolutePath(), e);
+                }
+                writtenSinceCheckpoint = false;
+            }
+            return checkpointedLength;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (textWriter != null) {
+                    textWriter.close();
+                } else {
+                    outputStream.close();
+                }
+            } catch (final IOException e) {
+                throw new PicardException("Error writing " + output.getAbsolutePath(), e);
+            }
+        }
+    }
+
     static class SAMRecordsForCluster {
         final SAMRecord[] records;
 
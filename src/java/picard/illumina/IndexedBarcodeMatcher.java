@@ -0,0 +1,303 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the best and second best of a fixed list of barcodes for a read's barcode bases, without comparing the read
+ * to every barcode.
+ * <p/>
+ * The barcodes are packed 2 bits per base into a long, and every sequence within a small number of substitutions of
+ * a barcode is put into a hash table together with the barcode it is closest to.  A read whose barcode bases are all
+ * called with sufficient quality is packed in the same way and looked up, which gives its best barcode and that
+ * barcode's mismatch count directly.  The second best mismatch count is then found by comparing the read only to the
+ * barcodes nearest its best barcode, which are precomputed, stopping as soon as the triangle inequality rules out the
+ * rest.
+ * <p/>
+ * The results are the same as comparing the read to each barcode in turn, in list order, and keeping the first
+ * barcode with the fewest mismatches.  Reads that this class cannot resolve that way, i.e. reads with no-calls or
+ * low quality bases, reads not close enough to any barcode, and reads equally close to two barcodes, are left to the
+ * caller: match() returns false for them.
+ *
+ * Instances are immutable after construction and may be shared between threads.
+ */
+public class IndexedBarcodeMatcher {
+    /** The largest number of mismatches for which the neighbourhood of each barcode is indexed. */
+    public static final int MAX_INDEXED_MISMATCHES = 2;
+
+    /** Upper bound on the number of entries in the neighbourhood index; the radius is reduced to stay below it. */
+    private static final long MAX_INDEX_SIZE = 1 << 20;
+
+    private static final long LOW_BITS = 0x5555555555555555L;
+
+    private static final byte[] BASE_CODES = new byte[256];
+
+    static {
+        Arrays.fill(BASE_CODES, (byte) -1);
+        BASE_CODES['A'] = BASE_CODES['a'] = 0;
+        BASE_CODES['C'] = BASE_CODES['c'] = 1;
+        BASE_CODES['G'] = BASE_CODES['g'] = 2;
+        BASE_CODES['T'] = BASE_CODES['t'] = 3;
+    }
+
+    /** The outcome of a successful call to match(). */
+    public static class Match {
+        /** Index of the best barcode in the list given to the constructor. */
+        public int barcodeIndex;
+        public int mismatches;
+        public int mismatchesToSecondBest;
+    }
+
+    private final int[] segmentLengths;
+    private final int totalLength;
+    private final long[] packedBarcodes;
+    private final int radius;
+
+    // Open addressing hash table from packed sequence to (barcode index << 2 | mismatches).
+    private final long[] indexKeys;
+    private final int[] indexValues;
+    private final int indexMask;
+
+    // For each barcode, the other barcodes closest to it in ascending order of distance, and those distances.
+    private final int[][] nearestBarcodes;
+    private final int[][] nearestDistances;
+
+    private static final int EMPTY = Integer.MIN_VALUE;
+    /** The barcode index stored for sequences equally close to more than one barcode. */
+    private static final int AMBIGUOUS = -1;
+    /** Packed sequences use at most 62 bits, so this cannot be one. */
+    private static final long UNPACKABLE = -1;
+
+    /**
+     * @param barcodes      The barcodes, each as one array of bases per barcode read, in the order in which ties
+     *                      are to be broken.  All barcodes must have the same number and lengths of barcode reads.
+     * @param maxMismatches The largest number of mismatches a read may have to its best barcode and still be
+     *                      resolved by the index, further limited to MAX_INDEXED_MISMATCHES.
+     */
+    public IndexedBarcodeMatcher(final List<byte[][]> barcodes, final int maxMismatches) {
+        final byte[][] first = barcodes.isEmpty() ? new byte[0][] : barcodes.get(0);
+        segmentLengths = new int[first.length];
+        int length = 0;
+        for (int i = 0; i < first.length; ++i) {
+            segmentLengths[i] = first[i].length;
+            length += first[i].length;
+        }
+        totalLength = length;
+
+        packedBarcodes = new long[barcodes.size()];
+        boolean packable = !barcodes.isEmpty() && totalLength > 0 && totalLength < 32;
+        for (int i = 0; packable && i < barcodes.size(); ++i) {
+            final byte[][] barcode = barcodes.get(i);
+            packable = hasSegmentLengths(barcode) && (packedBarcodes[i] = pack(barcode)) != UNPACKABLE;
+        }
+
+        if (!packable) {
+            radius = -1;
+            indexKeys = new long[0];
+            indexValues = new int[0];
+            indexMask = 0;
+            nearestBarcodes = null;
+            nearestDistances = null;
+            return;
+        }
+
+        int r = Math.max(0, Math.min(maxMismatches, MAX_INDEXED_MISMATCHES));
+        while (r > 0 && neighbourhoodSize(r) * barcodes.size() > MAX_INDEX_SIZE) --r;
+        radius = r;
+
+        final int capacity = Integer.highestOneBit((int) Math.max(16, neighbourhoodSize(radius) * barcodes.size() * 2 - 1)) << 1;
+        indexKeys = new long[capacity];
+        indexValues = new int[capacity];
+        Arrays.fill(indexValues, EMPTY);
+        indexMask = capacity - 1;
+        for (int i = 0; i < packedBarcodes.length; ++i) {
+            addNeighbourhood(i, packedBarcodes[i], 0, 0);
+        }
+
+        // Only barcodes that can be at most 2 * radius further from the best barcode than the nearest one are needed
+        // to find the second best; see match().
+        nearestBarcodes = new int[packedBarcodes.length][];
+        nearestDistances = new int[packedBarcodes.length][];
+        final int[] distances = new int[packedBarcodes.length];
+        for (int i = 0; i < packedBarcodes.length; ++i) {
+            int nearest = Integer.MAX_VALUE;
+            for (int j = 0; j < packedBarcodes.length; ++j) {
+                distances[j] = distance(packedBarcodes[i], packedBarcodes[j]);
+                if (j != i) nearest = Math.min(nearest, distances[j]);
+            }
+            int count = 0;
+            for (int j = 0; j < packedBarcodes.length; ++j) {
+                if (j != i && distances[j] <= nearest + 2 * radius) ++count;
+            }
+            final long[] sortable = new long[count];
+            count = 0;
+            for (int j = 0; j < packedBarcodes.length; ++j) {
+                if (j != i && distances[j] <= nearest + 2 * radius) sortable[count++] = ((long) distances[j] << 32) | j;
+            }
+            Arrays.sort(sortable);
+            nearestBarcodes[i] = new int[count];
+            nearestDistances[i] = new int[count];
+            for (int k = 0; k < count; ++k) {
+                nearestBarcodes[i][k] = (int) sortable[k];
+                nearestDistances[i][k] = (int) (sortable[k] >>> 32);
+            }
+        }
+    }
+
+    /** @return The largest number of mismatches to the best barcode for which a read can be resolved, or -1 if none. */
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * Finds the best barcode for a read, if the read's barcode bases are all called with at least minimumBaseQuality
+     * and are within the indexed number of mismatches of exactly one closest barcode.
+     *
+     * @param readSubsequences   The read's bases for each barcode read.
+     * @param qualityScores      The read's qualities for each barcode read, or null if qualities are not considered.
+     * @param minimumBaseQuality Bases with lower quality than this count as mismatches to every barcode.
+     * @param result             Receives the best barcode and the mismatch counts if the read can be resolved.
+     * @return true if the read was resolved; if false the caller must compare it to the barcodes itself.
+     */
+    public boolean match(final byte[][] readSubsequences, final byte[][] qualityScores, final int minimumBaseQuality,
+                         final Match result) {
+        if (radius < 0 || !hasSegmentLengths(readSubsequences)) return false;
+        if (qualityScores != null) {
+            for (final byte[] segment : qualityScores) {
+                for (final byte quality : segment) {
+                    if (quality < minimumBaseQuality) return false;
+                }
+            }
+        }
+        final long read = pack(readSubsequences);
+        if (read == UNPACKABLE) return false;
+
+        final int value = lookup(read);
+        if (value == EMPTY || value < 0) return false;
+        final int best = value >>> 2;
+        final int mismatches = value & 3;
+
+        // Every other barcode c has distance(read, c) >= distance(best, c) - mismatches, so once the nearest barcodes
+        // are that far away from best none of the rest can do better than what has been seen.
+        int secondBest = totalLength + 1;
+        final int[] nearest = nearestBarcodes[best];
+        final int[] nearestDistance = nearestDistances[best];
+        for (int k = 0; k < nearest.length && nearestDistance[k] - mismatches < secondBest; ++k) {
+            secondBest = Math.min(secondBest, distance(read, packedBarcodes[nearest[k]]));
+        }
+
+        result.barcodeIndex = best;
+        result.mismatches = mismatches;
+        result.mismatchesToSecondBest = secondBest;
+        return true;
+    }
+
+    private boolean hasSegmentLengths(final byte[][] segments) {
+        if (segments.length != segmentLengths.length) return false;
+        for (int i = 0; i < segments.length; ++i) {
+            if (segments[i].length != segmentLengths[i]) return false;
+        }
+        return true;
+    }
+
+    /** @return The packed bases, or UNPACKABLE if any of them is not A, C, G or T. */
+    private static long pack(final byte[][] segments) {
+        long packed = 0;
+        int shift = 0;
+        for (final byte[] segment : segments) {
+            for (final byte base : segment) {
+                final long code = BASE_CODES[base & 0xFF];
+                if (code < 0) return UNPACKABLE;
+                packed |= code << shift;
+                shift += 2;
+            }
+        }
+        return packed;
+    }
+
+    /** @return The number of bases that differ between two packed sequences. */
+    private static int distance(final long a, final long b) {
+        final long diff = a ^ b;
+        return Long.bitCount((diff | (diff >>> 1)) & LOW_BITS);
+    }
+
+    /** @return The number of sequences that differ from a given one in between 0 and r bases. */
+    private long neighbourhoodSize(final int r) {
+        long size = 0;
+        long choose = 1;
+        long substitutions = 1;
+        for (int k = 0; k <= r; ++k) {
+            size += choose * substitutions;
+            choose = choose * (totalLength - k) / (k + 1);
+            substitutions *= 3;
+        }
+        return size;
+    }
+
+    /** Adds every sequence within radius - mismatches further substitutions at positions >= start to the index. */
+    private void addNeighbourhood(final int barcode, final long sequence, final int mismatches, final int start) {
+        put(sequence, barcode, mismatches);
+        if (mismatches == radius) return;
+        for (int position = start; position < totalLength; ++position) {
+            final int shift = 2 * position;
+            for (long code = 1; code < 4; ++code) {
+                addNeighbourhood(barcode, sequence ^ (code << shift), mismatches + 1, position + 1);
+            }
+        }
+    }
+
+    private void put(final long key, final int barcode, final int mismatches) {
+        int slot = hash(key);
+        while (indexValues[slot] != EMPTY && indexKeys[slot] != key) slot = (slot + 1) & indexMask;
+        final int existing = indexValues[slot];
+        if (existing == EMPTY || mismatches < mismatchesOf(existing)) {
+            indexKeys[slot] = key;
+            indexValues[slot] = (barcode << 2) | mismatches;
+        } else if (mismatches == mismatchesOf(existing)) {
+            // Equally close to two barcodes; which one is the best depends on mismatches at other positions, so
+            // leave it to the caller.
+            indexValues[slot] = (AMBIGUOUS << 2) | mismatches;
+        }
+    }
+
+    private int lookup(final long key) {
+        int slot = hash(key);
+        while (indexValues[slot] != EMPTY) {
+            if (indexKeys[slot] == key) return indexValues[slot];
+            slot = (slot + 1) & indexMask;
+        }
+        return EMPTY;
+    }
+
+    private static int mismatchesOf(final int value) {
+        return value & 3;
+    }
+
+    private int hash(final long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & indexMask;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina;
+
+import htsjdk.samtools.util.CloserUtil;
+import picard.PicardException;
+import picard.illumina.ExtractIlluminaBarcodes.BarcodeMetric;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A durable record of how far a run of IlluminaBasecallsToSam has got: the last tile that has been written to every
+ * output, the length of each output once it had been, and, if barcodes are matched inline, the barcode metrics of all
+ * the tiles up to that one.  A restarted run truncates its outputs to these lengths and continues with the next tile.
+ *
+ * The file is a java.util.Properties file.  It is replaced by renaming a completely written and synced temporary file,
+ * so it always describes a single consistent point.
+ */
+public class TileCheckpoint {
+    private static final String VERSION = "1";
+    private static final String VERSION_KEY = "version";
+    private static final String LAST_TILE_KEY = "lastTile";
+    private static final String OUTPUT_PREFIX = "output.";
+    private static final String METRIC_PREFIX = "metric.";
+    private static final String NO_MATCH_METRIC_KEY = "noMatchMetric";
+
+    private final int lastTile;
+    private final Map<String, Long> outputLengths;
+    private final Map<String, BarcodeMetric> barcodeMetrics;
+    private final BarcodeMetric noMatchMetric;
+
+    /**
+     * @param lastTile       The last tile that has been written to every output.
+     * @param outputLengths  The length of each output, by absolute path, after lastTile was written.
+     * @param barcodeMetrics The accumulated counts of each barcode's metric, by barcode, or empty if barcodes are not
+     *                       matched inline.
+     * @param noMatchMetric  The accumulated counts of the metric for unmatched reads, or null.
+     */
+    public TileCheckpoint(final int lastTile, final Map<String, Long> outputLengths,
+                          final Map<String, BarcodeMetric> barcodeMetrics, final BarcodeMetric noMatchMetric) {
+        this.lastTile = lastTile;
+        this.outputLengths = outputLengths;
+        this.barcodeMetrics = barcodeMetrics;
+        this.noMatchMetric = noMatchMetric;
+    }
+
+    /**
+     * @return The checkpoint recorded in file, or null if there is no such file.
+     */
+    public static TileCheckpoint read(final File file) {
+        if (!file.exists()) return null;
+        final Properties properties = new Properties();
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            properties.load(inputStream);
+        } catch (final IOException e) {
+            throw new PicardException("Error reading checkpoint file " + file.getAbsolutePath(), e);
+        } finally {
+            CloserUtil.close(inputStream);
+        }
+
+        if (!VERSION.equals(properties.getProperty(VERSION_KEY))) {
+            throw new PicardException("Checkpoint file " + file.getAbsolutePath() + " has unexpected version " +
+                    properties.getProperty(VERSION_KEY));
+        }
+        try {
+            final int lastTile = Integer.parseInt(properties.getProperty(LAST_TILE_KEY));
+            final Map<String, Long> outputLengths = new LinkedHashMap<String, Long>();
+            final Map<String, BarcodeMetric> barcodeMetrics = new LinkedHashMap<String, BarcodeMetric>();
+            BarcodeMetric noMatchMetric = null;
+            for (final String key : properties.stringPropertyNames()) {
+                if (key.startsWith(OUTPUT_PREFIX)) {
+                    outputLengths.put(key.substring(OUTPUT_PREFIX.length()), Long.parseLong(properties.getProperty(key)));
+                } else if (key.startsWith(METRIC_PREFIX)) {
+                    barcodeMetrics.put(key.substring(METRIC_PREFIX.length()), parseMetricCounts(properties.getProperty(key)));
+                } else if (key.equals(NO_MATCH_METRIC_KEY)) {
+                    noMatchMetric = parseMetricCounts(properties.getProperty(key));
+                }
+            }
+            return new TileCheckpoint(lastTile, outputLengths, barcodeMetrics, noMatchMetric);
+        } catch (final NumberFormatException e) {
+            throw new PicardException("Checkpoint file " + file.getAbsolutePath() + " is corrupt.", e);
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            throw new PicardException("Checkpoint file " + file.getAbsolutePath() + " is corrupt.", e);
+        }
+    }
+
+    /**
+     * Replaces file with this checkpoint.  When this method returns, the checkpoint is on disk.
+     */
+    public void write(final File file) {
+        final Properties properties = new Properties();
+        properties.setProperty(VERSION_KEY, VERSION);
+        properties.setProperty(LAST_TILE_KEY, Integer.toString(lastTile));
+        for (final Map.Entry<String, Long> entry : outputLengths.entrySet()) {
+            properties.setProperty(OUTPUT_PREFIX + entry.getKey(), entry.getValue().toString());
+        }
+        for (final Map.Entry<String, BarcodeMetric> entry : barcodeMetrics.entrySet()) {
+            properties.setProperty(METRIC_PREFIX + entry.getKey(), formatMetricCounts(entry.getValue()));
+        }
+        if (noMatchMetric != null) {
+            properties.setProperty(NO_MATCH_METRIC_KEY, formatMetricCounts(noMatchMetric));
+        }
+
+        final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(tmpFile);
+            properties.store(outputStream, "IlluminaBasecallsToSam checkpoint");
+            outputStream.getFD().sync();
+        } catch (final IOException e) {
+            throw new PicardException("Error writing checkpoint file " + tmpFile.getAbsolutePath(), e);
+        } finally {
+            CloserUtil.close(outputStream);
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new PicardException("Could not rename " + tmpFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+        }
+    }
+
+    public int getLastTile() {
+        return lastTile;
+    }
+
+    /** @return The checkpointed length of the output, or null if it is not in this checkpoint. */
+    public Long getOutputLength(final File output) {
+        return outputLengths.get(output.getAbsolutePath());
+    }
+
+    /** @return The accumulated counts of each barcode's metric; only the fields that BarcodeMetric.merge() adds are set. */
+    public Map<String, BarcodeMetric> getBarcodeMetrics() {
+        return Collections.unmodifiableMap(barcodeMetrics);
+    }
+
+    /** @return The accumulated counts of the metric for unmatched reads, or null if barcodes were not matched inline. */
+    public BarcodeMetric getNoMatchMetric() {
+        return noMatchMetric;
+    }
+
+    private static String formatMetricCounts(final BarcodeMetric metric) {
+        return metric.READS + "," + metric.PF_READS + "," + metric.PERFECT_MATCHES + "," + metric.PF_PERFECT_MATCHES +
+                "," + metric.ONE_MISMATCH_MATCHES + "," + metric.PF_ONE_MISMATCH_MATCHES;
+    }
+
+    private static BarcodeMetric parseMetricCounts(final String value) {
+        final String[] fields = value.split(",");
+        final BarcodeMetric metric = new BarcodeMetric();
+        metric.READS = Integer.parseInt(fields[0]);
+        metric.PF_READS = Integer.parseInt(fields[1]);
+        metric.PERFECT_MATCHES = Integer.parseInt(fields[2]);
+        metric.PF_PERFECT_MATCHES = Integer.parseInt(fields[3]);
+        metric.ONE_MISMATCH_MATCHES = Integer.parseInt(fields[4]);
+        metric.PF_ONE_MISMATCH_MATCHES = Integer.parseInt(fields[5]);
+        return metric;
+    }
+}
@@ -26,6 +26,7 @@ package picard.illumina.parser;
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CollectionUtil;
 import picard.illumina.parser.readers.BarcodeFileReader;
+import picard.illumina.parser.readers.BinaryBarcodeFileReader;
 
 import java.io.File;
 import java.util.Collections;
@@ -34,7 +35,7 @@ import java.util.Set;
 /**
  * @author jburke@broadinstitute.org
  */
-class BarcodeParser extends PerTileParser<BarcodeData> {
+class BarcodeParser extends PerTileParser<BarcodeData> implements BatchFillingParser {
 
     private static final Set<IlluminaDataType> SUPPORTED_TYPES = Collections.unmodifiableSet(CollectionUtil.makeSet(IlluminaDataType.Barcodes));
 
@@ -51,14 +52,23 @@ class BarcodeParser extends PerTileParser<BarcodeData> {
         return new BarcodeDataIterator(nextTileFile);
     }
 
+    @Override
+    public int fillBatch(final ClusterDataBatch batch, final int start, final int maxClusters) {
+        return ((BarcodeDataIterator) getIteratorForNextCluster()).next(batch, start, maxClusters);
+    }
+
     public Set<IlluminaDataType> supportedTypes() {
         return SUPPORTED_TYPES;
     }
 
     private static class BarcodeDataIterator implements CloseableIterator<BarcodeData>{
-        private BarcodeFileReader bfr;
+        private CloseableIterator<String> bfr;
         public BarcodeDataIterator(final File file) {
-            bfr = new BarcodeFileReader(file);
+            if (file.getName().endsWith(".bin")) {
+                bfr = new BinaryBarcodeFileReader(file);
+            } else {
+                bfr = new BarcodeFileReader(file);
+            }
         }
 
         public void close() {
@@ -77,6 +87,15 @@ class BarcodeParser extends PerTileParser<BarcodeData> {
             };
         }
 
+        /** Sets the matched barcodes of up to maxClusters clusters of the batch, from cluster index start onwards. */
+        public int next(final ClusterDataBatch batch, final int start, final int maxClusters) {
+            int numClusters = 0;
+            while (numClusters < maxClusters && bfr.hasNext()) {
+                batch.setMatchedBarcode(start + numClusters++, bfr.next());
+            }
+            return numClusters;
+        }
+
         public void remove() {
             throw new UnsupportedOperationException();
         }
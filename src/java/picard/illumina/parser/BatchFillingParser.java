@@ -0,0 +1,40 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser;
+
+/**
+ * Implemented by IlluminaParsers that can write the data for a run of clusters straight into a ClusterDataBatch,
+ * rather than returning an IlluminaData object for each cluster from next().
+ */
+interface BatchFillingParser {
+    /**
+     * Writes the data this parser provides for up to maxClusters of the following clusters into the batch, from cluster
+     * index start onwards.  All of the clusters written come from the tile of the next cluster, but fewer than
+     * maxClusters may be written even if that tile holds more.
+     *
+     * @return The number of clusters written, which is at least 1 unless the underlying files are truncated.
+     * @throws java.util.NoSuchElementException if there are no more clusters.
+     */
+    int fillBatch(ClusterDataBatch batch, int start, int maxClusters);
+}
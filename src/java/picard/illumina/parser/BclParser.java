@@ -24,7 +24,6 @@
 package picard.illumina.parser;
 
 
-import htsjdk.samtools.util.CloseableIterator;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
 import picard.illumina.parser.readers.BclReader;
 
@@ -41,7 +40,7 @@ import static htsjdk.samtools.util.CollectionUtil.makeSet;
  * segmented based on these lengths.  The only client of this class should be IlluminaDataProvider and an test classes.  See BclReader for
  * more information on BclFiles.  BclParser provides support for reading BaseCalls and QualityScores.
  */
-class BclParser extends PerTileCycleParser<BclData> {
+class BclParser extends PerTileCycleParser<BclData> implements BatchFillingParser {
     private static final int EAMSS_M2_GE_THRESHOLD = 30;
     private static final int EAMSS_S1_LT_THRESHOLD = 15; //was 15
     public static final byte MASKING_QUALITY = (byte) 0x02;
@@ -102,6 +101,22 @@ class BclParser extends PerTileCycleParser<BclData> {
         return bclData;
     }
 
+    @Override
+    public int fillBatch(final ClusterDataBatch batch, final int start, final int maxClusters) {
+        final int numClusters = ((BclCycleFilesParser) getCycleFilesParserForNextCluster()).fillBatch(batch, start, maxClusters);
+
+        if (this.applyEamssFilter) {
+            for (int read = 0; read < batch.getNumReads(); read++) {
+                final int readLength = batch.getReadLength(read);
+                for (int cluster = start; cluster < start + numClusters; cluster++) {
+                    runEamssForReadInPlace(batch.getBases(read), batch.getQualities(read), batch.getReadOffset(read, cluster), readLength);
+                }
+            }
+        }
+
+        return numClusters;
+    }
+
     /**
      * EAMSS is an Illumina Developed Algorithm for detecting reads whose quality has deteriorated towards
      * their end and revising the quality to the masking quality (2) if this is the case.  This algorithm
@@ -186,12 +201,20 @@ class BclParser extends PerTileCycleParser<BclData> {
      * @param qualities Qualities for a single read in the cluster ( not the entire cluster )
      */
     protected static void runEamssForReadInPlace(final byte[] bases, final byte[] qualities) {
+        runEamssForReadInPlace(bases, qualities, 0, bases.length);
+    }
+
+    /**
+     * Runs EAMSS on the read held at bases[offset, offset + length) and qualities[offset, offset + length).
+     * See {@link #runEamssForReadInPlace(byte[], byte[])}.
+     */
+    protected static void runEamssForReadInPlace(final byte[] bases, final byte[] qualities, final int offset, final int length) {
         int eamssTally = 0;
         int maxTally = Integer.MIN_VALUE;
         int indexOfMax = -1;
 
-        for (int i = bases.length - 1; i >= 0; i--) {
-            final int quality = (0xff & qualities[i]);
+        for (int i = length - 1; i >= 0; i--) {
+            final int quality = (0xff & qualities[offset + i]);
 
             if (quality >= EAMSS_M2_GE_THRESHOLD) {
                 eamssTally -= 2;
@@ -210,10 +233,10 @@ class BclParser extends PerTileCycleParser<BclData> {
             int exceptions = 0;
 
             for (int i = indexOfMax; i >= 0; i--) {
-                if (bases[i] == 'G') {
+                if (bases[offset + i] == 'G') {
                     ++numGs;
                 } else {
-                    final Integer skip = skipBy(i, numGs, exceptions, bases);
+                    final Integer skip = skipBy(i, numGs, exceptions, bases, offset);
                     if (skip != null) {
                         exceptions += skip;
                         numGs += skip;
@@ -228,8 +251,8 @@ class BclParser extends PerTileCycleParser<BclData> {
                 indexOfMax = (indexOfMax + 1) - numGs;
             }
 
-            for (int i = indexOfMax; i < qualities.length; i++) {
-                qualities[i] = MASKING_QUALITY;
+            for (int i = indexOfMax; i < length; i++) {
+                qualities[offset + i] = MASKING_QUALITY;
             }
         }
     }
@@ -241,19 +264,20 @@ class BclParser extends PerTileCycleParser<BclData> {
      * @param index          Current index, which should be the index of a non-'G' base
      * @param numGs          The number of bases in the current string of G's for this read
      * @param prevExceptions The number of exceptions previously detected in this string by this method
-     * @param bases          The bases of this read
+     * @param bases          The bases of this read, starting at offset
+     * @param offset         The index in bases of the first base of this read
      * @return If we have not reached our exception limit (1/every 10bases) and a G is within exceptionLimit(numGs/10)
      * indices before the current index then return index - (index of next g), else return null  Null indicates this is
      * NOT a skippable region, if we run into index 0 without finding a g then NULL is also returned
      */
-    private static Integer skipBy(final int index, final int numGs, final int prevExceptions, final byte[] bases) {
+    private static Integer skipBy(final int index, final int numGs, final int prevExceptions, final byte[] bases, final int offset) {
         Integer skip = null;
         for (int backup = 1; backup <= index; backup++) {
             final int exceptionLimit = Math.max((numGs + backup) / 10, 1);
             if (prevExceptions + backup > exceptionLimit) {
                 break;
             }
-            if (bases[index - backup] == 'G') {
+            if (bases[offset + index - backup] == 'G') {
                 skip = backup;
                 break;
             }
@@ -262,8 +286,14 @@ class BclParser extends PerTileCycleParser<BclData> {
         return skip;
     }
 
-    private class BclDataCycleFileParser implements CycleFilesParser<BclData> {
-        final CloseableIterator<BclData> reader;
+    /** A CycleFilesParser that can also decode clusters straight into a ClusterDataBatch. */
+    protected interface BclCycleFilesParser extends CycleFilesParser<BclData> {
+        /** See {@link BclReader#nextClusters(ClusterDataBatch, int, int)}. */
+        public int fillBatch(ClusterDataBatch batch, int start, int maxClusters);
+    }
+
+    private class BclDataCycleFileParser implements BclCycleFilesParser {
+        final BclReader reader;
 
         public BclDataCycleFileParser(final List<File> files) {
             reader = new BclReader(files, outputMapping.getOutputReadLengths(),
@@ -283,6 +313,14 @@ class BclParser extends PerTileCycleParser<BclData> {
             return reader.next();
         }
 
+        @Override
+        public int fillBatch(final ClusterDataBatch batch, final int start, final int maxClusters) {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return reader.nextClusters(batch, start, maxClusters);
+        }
+
         @Override
         public boolean hasNext() {
             try {
@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser;
+
+import java.util.Arrays;
+
+/**
+ * Stores the information from Illumina files for a run of consecutive clusters from a single tile, column by column
+ * rather than cluster by cluster.  Bases and qualities for each output read are held in one flat array per read, in
+ * which the data for cluster i starts at i * getReadLength(read).  A batch is filled by
+ * {@link IlluminaDataProvider#nextBatch(ClusterDataBatch)} and may be reused for any number of calls; only the data
+ * types requested from the IlluminaDataProviderFactory are populated, the other columns are left unspecified.
+ *
+ * @see ClusterData for the one-object-per-cluster equivalent.
+ */
+public class ClusterDataBatch {
+    private final ReadType[] readTypes;
+    private final int[] readLengths;
+    private final int capacity;
+
+    private int lane = -1;
+    private int tile = -1;
+    private int size = 0;
+
+    private final int[] xs;
+    private final int[] ys;
+    private final boolean[] pfs;
+    private final String[] matchedBarcodes;
+    private final byte[][] bases;
+    private final byte[][] qualities;
+
+    /**
+     * @param readTypes   The type of each output read.
+     * @param readLengths The length of each output read.
+     * @param capacity    The maximum number of clusters this batch can hold.
+     */
+    public ClusterDataBatch(final ReadType[] readTypes, final int[] readLengths, final int capacity) {
+        if (readTypes.length != readLengths.length) {
+            throw new IllegalArgumentException("Number of read types (" + readTypes.length + ") and read lengths (" +
+                    readLengths.length + ") differ.");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive but was " + capacity);
+        }
+        this.readTypes = readTypes;
+        this.readLengths = readLengths;
+        this.capacity = capacity;
+
+        this.xs = new int[capacity];
+        this.ys = new int[capacity];
+        this.pfs = new boolean[capacity];
+        this.matchedBarcodes = new String[capacity];
+        this.bases = new byte[readLengths.length][];
+        this.qualities = new byte[readLengths.length][];
+        for (int i = 0; i < readLengths.length; i++) {
+            bases[i] = new byte[capacity * readLengths[i]];
+            qualities[i] = new byte[capacity * readLengths[i]];
+        }
+    }
+
+    public String toString() {
+        return "ClusterDataBatch(lane: " + lane + "; tile: " + tile + "; size: " + size + ")";
+    }
+
+    /** Empties the batch so that it can be refilled with clusters from the given lane and tile. */
+    void reset(final int lane, final int tile) {
+        this.lane = lane;
+        this.tile = tile;
+        this.size = 0;
+        Arrays.fill(matchedBarcodes, null);
+    }
+
+    /**
+     * Makes room for the given number of clusters, whose data has already been written just past the end of the batch,
+     * and returns the index of the first of them.
+     */
+    int add(final int numClusters) {
+        if (size + numClusters > capacity) {
+            throw new IllegalStateException("ClusterDataBatch cannot hold " + numClusters + " more clusters: " + this);
+        }
+        final int first = size;
+        size += numClusters;
+        return first;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /** @return The number of clusters in this batch. */
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getLane() {
+        return lane;
+    }
+
+    /** @return The tile from which every cluster in this batch was read. */
+    public int getTile() {
+        return tile;
+    }
+
+    public int getNumReads() {
+        return readTypes.length;
+    }
+
+    public ReadType getReadType(final int read) {
+        return readTypes[read];
+    }
+
+    public int getReadLength(final int read) {
+        return readLengths[read];
+    }
+
+    /** @return The offset of the given cluster's data within the arrays returned by getBases(read) and getQualities(read). */
+    public int getReadOffset(final int read, final int cluster) {
+        return cluster * readLengths[read];
+    }
+
+    /** @return The bases of the given read for all clusters of the batch, as ASCII bytes. */
+    public byte[] getBases(final int read) {
+        return bases[read];
+    }
+
+    /** @return The Phred-binary scaled qualities of the given read for all clusters of the batch. */
+    public byte[] getQualities(final int read) {
+        return qualities[read];
+    }
+
+    /** @return A new array holding the bases of one read of one cluster. */
+    public byte[] copyBases(final int read, final int cluster) {
+        final int offset = getReadOffset(read, cluster);
+        return Arrays.copyOfRange(bases[read], offset, offset + readLengths[read]);
+    }
+
+    /** @return A new array holding the qualities of one read of one cluster. */
+    public byte[] copyQualities(final int read, final int cluster) {
+        final int offset = getReadOffset(read, cluster);
+        return Arrays.copyOfRange(qualities[read], offset, offset + readLengths[read]);
+    }
+
+    public int[] getXs() {
+        return xs;
+    }
+
+    public int[] getYs() {
+        return ys;
+    }
+
+    boolean[] getPfs() {
+        return pfs;
+    }
+
+    public int getX(final int cluster) {
+        return xs[cluster];
+    }
+
+    public int getY(final int cluster) {
+        return ys[cluster];
+    }
+
+    public boolean isPf(final int cluster) {
+        return pfs[cluster];
+    }
+
+    /**
+     * @return The barcode matched by the given cluster (not the actual sequence from the read, which may not perfectly
+     * match the barcode), or null if none was.
+     */
+    public String getMatchedBarcode(final int cluster) {
+        return matchedBarcodes[cluster];
+    }
+
+    void setPosition(final int cluster, final int x, final int y) {
+        xs[cluster] = x;
+        ys[cluster] = y;
+    }
+
+    void setPf(final int cluster, final boolean pf) {
+        pfs[cluster] = pf;
+    }
+
+    /**
+     * Sets the barcode matched by the given cluster, for callers that match barcodes themselves rather than reading
+     * them from barcode files.
+     */
+    public void setMatchedBarcode(final int cluster, final String matchedBarcode) {
+        matchedBarcodes[cluster] = matchedBarcode;
+    }
+
+    void setBases(final int cluster, final byte[][] clusterBases) {
+        for (int read = 0; read < clusterBases.length; read++) {
+            System.arraycopy(clusterBases[read], 0, bases[read], getReadOffset(read, cluster), readLengths[read]);
+        }
+    }
+
+    void setQualities(final int cluster, final byte[][] clusterQualities) {
+        for (int read = 0; read < clusterQualities.length; read++) {
+            System.arraycopy(clusterQualities[read], 0, qualities[read], getReadOffset(read, cluster), readLengths[read]);
+        }
+    }
+}
@@ -35,6 +35,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
@@ -153,11 +154,58 @@ class ClusterIntensityFileReader {
         }
         final int relativeCycle = cycle - header.firstCycle;
         final int position = HEADER_SIZE + relativeCycle * cycleSize + channel.ordinal() * channelSize + cluster * header.elementSize;
-        buf.position(position);
         if (header.elementSize == 1) {
-            return buf.get();
+            return buf.get(position);
         } else {
-            return buf.getShort();
+            return buf.getShort(position);
+        }
+    }
+
+    /**
+     * Get the values of every cluster for one channel of one cycle, in cluster order.  Values stored as shorts are a
+     * read-only view of the mapped file rather than a copy; values stored as bytes are widened into a new buffer.
+     * @param channel Which channel is desired.
+     * @param cycle Absolute cycle number, as for {@link #getValue}.
+     * @return numClusters values, positioned at the first cluster.
+     */
+    public ShortBuffer getChannelValues(final IntensityChannel channel, final int cycle) {
+        if (cycle < header.firstCycle || cycle >= header.firstCycle + header.numCycles) {
+            throw new IllegalArgumentException("Requested cycle (" + cycle + ") number out of range.  First cycle=" +
+                    header.firstCycle + "; numCycles=" + header.numCycles);
+        }
+        final int position = HEADER_SIZE + (cycle - header.firstCycle) * cycleSize + channel.ordinal() * channelSize;
+        final ByteBuffer channelBuf = buf.duplicate();
+        channelBuf.position(position);
+        channelBuf.limit(position + channelSize);
+        if (header.elementSize == 2) {
+            return channelBuf.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().asReadOnlyBuffer();
+        }
+        final short[] values = new short[header.numClusters];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = channelBuf.get();
+        }
+        return ShortBuffer.wrap(values);
+    }
+
+    /**
+     * Copy every value in this file into the intensities of every cluster of the tile.  The file is read sequentially,
+     * one channel of one cycle at a time, rather than with a random lookup per value as {@link #getValue} would need.
+     * @param intensities One per cluster, in cluster order.
+     * @param outputIndex The index, within each cluster's channel arrays, at which to store the first cycle in this file.
+     */
+    public void readAllClusters(final FourChannelIntensityData[] intensities, final int outputIndex) {
+        if (intensities.length != header.numClusters) {
+            throw new PicardException("Expected intensities for " + header.numClusters + " clusters but got " +
+                    intensities.length + " for cluster intensity file " + file);
+        }
+        for (int cycle = header.firstCycle; cycle < header.firstCycle + header.numCycles; ++cycle) {
+            final int cycleIndex = outputIndex + cycle - header.firstCycle;
+            for (final IntensityChannel channel : IntensityChannel.values()) {
+                final ShortBuffer values = getChannelValues(channel, cycle);
+                for (int cluster = 0; cluster < intensities.length; ++cluster) {
+                    intensities[cluster].getChannel(channel)[cycleIndex] = values.get(cluster);
+                }
+            }
         }
     }
 
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser;
+
+import picard.PicardException;
+import picard.illumina.parser.readers.BclReader;
+import picard.illumina.parser.readers.FilterFileReader;
+import picard.illumina.parser.readers.LocsFileReader;
+
+import java.io.File;
+
+/**
+ * A check of a single bcl, filter or locs file that reads only its header: that the header is well formed, that the
+ * file is as long as the header implies where the format fixes the length, and how many clusters the file holds.  The
+ * caller compares that number with the other files of the same tile, or, for a file holding every tile of a lane, with
+ * the lane's tile index.  The checks of different files are independent, so they may be run concurrently.
+ */
+public class FileHeaderCheck {
+    public enum Type {
+        /** Uncompressed, gzipped or block-gzipped bcl; only the length of an uncompressed bcl can be checked. */
+        Bcl,
+        Filter,
+        Locs
+    }
+
+    private final Type type;
+    private final File file;
+    private final Integer tile;
+    private final Long expectedNumClusters;
+
+    /**
+     * @param tile                The tile the file holds, or null if it holds every tile of the lane.
+     * @param expectedNumClusters The number of clusters the file should hold, if known without reading other files.
+     */
+    public FileHeaderCheck(final Type type, final File file, final Integer tile, final Long expectedNumClusters) {
+        this.type = type;
+        this.file = file;
+        this.tile = tile;
+        this.expectedNumClusters = expectedNumClusters;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** @return The tile the file holds, or null if it holds every tile of the lane. */
+    public Integer getTile() {
+        return tile;
+    }
+
+    /** @return The number of clusters the file should hold, or null if that is only known by reading other files. */
+    public Long getExpectedNumClusters() {
+        return expectedNumClusters;
+    }
+
+    /**
+     * @return The number of clusters in the file, according to its header.
+     * @throws PicardException if the header cannot be read or is inconsistent with the file's length.
+     */
+    public long readNumClusters() {
+        switch (type) {
+            case Bcl:
+                final long numClusters = BclReader.getNumberOfClusters(file);
+                if (!BclReader.isGzipped(file) && !BclReader.isBlockGzipped(file) &&
+                        file.length() != BclReader.HEADER_SIZE + numClusters) {
+                    throw new PicardException("Malformed file, expected " + (BclReader.HEADER_SIZE + numClusters) +
+                            " bytes in file but found " + file.length() + " bytes for file(" + file.getAbsolutePath() + ")");
+                }
+                return numClusters;
+            case Filter:
+                return new FilterFileReader(file).getNumClusters();
+            case Locs:
+                final LocsFileReader reader = new LocsFileReader(file);
+                try {
+                    return reader.getNumClusters();
+                } finally {
+                    reader.close();
+                }
+            default:
+                throw new PicardException("Unknown file type " + type);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return type + " file " + file.getAbsolutePath();
+    }
+}
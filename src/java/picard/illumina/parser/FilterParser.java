@@ -37,7 +37,7 @@ import static htsjdk.samtools.util.CollectionUtil.makeSet;
  * be the ONLY client class for this class except for test classes.  For more information on the filterFile format
  * and reading it, see FilterFileReader.
  */
-class FilterParser extends PerTileParser<PfData> {
+class FilterParser extends PerTileParser<PfData> implements BatchFillingParser {
     private static Set<IlluminaDataType> supportedTypes = Collections.unmodifiableSet(makeSet(IlluminaDataType.PF));
 
     public FilterParser(final IlluminaFileMap tilesToFiles){
@@ -51,30 +51,46 @@ class FilterParser extends PerTileParser<PfData> {
     /** Wrap a filterFile reader in a closeable iterator and return it*/
     @Override
     protected CloseableIterator<PfData> makeTileIterator(final File iterator) {
-        return new CloseableIterator<PfData>() {
-            private FilterFileReader reader = new FilterFileReader(iterator);
-
-            public void close() {
-                reader = null;
-            }
-
-            public boolean hasNext() {
-                return reader.hasNext();
-            }
-
-            public PfData next() {
-                final boolean nextValue = reader.next();
-                return new PfData() {
-                    public boolean isPf() {
-                        return nextValue;
-                    }
-                };
-            }
-
-            public void remove() {
-                throw new UnsupportedOperationException();
-            }
-        };
+        return new PfDataIterator(iterator);
+    }
+
+    @Override
+    public int fillBatch(final ClusterDataBatch batch, final int start, final int maxClusters) {
+        return ((PfDataIterator) getIteratorForNextCluster()).next(batch.getPfs(), start, maxClusters);
+    }
+
+    private static class PfDataIterator implements CloseableIterator<PfData> {
+        private FilterFileReader reader;
+
+        public PfDataIterator(final File file) {
+            reader = new FilterFileReader(file);
+        }
+
+        public void close() {
+            reader = null;
+        }
+
+        public boolean hasNext() {
+            return reader.hasNext();
+        }
+
+        public PfData next() {
+            final boolean nextValue = reader.next();
+            return new PfData() {
+                public boolean isPf() {
+                    return nextValue;
+                }
+            };
+        }
+
+        /** See {@link FilterFileReader#next(boolean[], int, int)}. */
+        public int next(final boolean[] pfs, final int offset, final int maxClusters) {
+            return reader.next(pfs, offset, maxClusters);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
     public Set<IlluminaDataType> supportedTypes() {
@@ -61,6 +61,9 @@ public class IlluminaDataProvider implements Iterator<ClusterData>, Iterable<Clu
     /** Number of reads in each ClusterData */
     private final int numReads;
 
+    /** Length of each read in ClusterData and ClusterDataBatch objects */
+    private final int[] outputReadLengths;
+
     /**
      * Create an IlluminaDataProvider given a map of parsersToDataTypes for particular file formats.  Compute once the miscellaneous data for the
      * run that will be passed to each ClusterData.
@@ -90,6 +93,7 @@ public class IlluminaDataProvider implements Iterator<ClusterData>, Iterable<Clu
             dts.toArray(dataTypes[i++]);
         }
 
+        this.outputReadLengths = outputMapping.getOutputReadLengths();
         this.outputReadTypes = new ReadType[numReads];
         i = 0;
         for (final ReadDescriptor rd : outputMapping.getOutputDescriptors()) {
@@ -162,6 +166,107 @@ public class IlluminaDataProvider implements Iterator<ClusterData>, Iterable<Clu
         return cluster;
     }
 
+    /**
+     * Reads up to maxClusters clusters into a newly allocated batch.  See {@link #nextBatch(ClusterDataBatch)}.
+     */
+    public ClusterDataBatch nextBatch(final int maxClusters) {
+        final ClusterDataBatch batch = newBatch(maxClusters);
+        nextBatch(batch);
+        return batch;
+    }
+
+    /** Creates an empty batch shaped to hold the output reads of this provider. */
+    public ClusterDataBatch newBatch(final int capacity) {
+        return new ClusterDataBatch(outputReadTypes, outputReadLengths, capacity);
+    }
+
+    /**
+     * Refills the given batch with as many of the following clusters as fit, stopping early at the end of the current
+     * tile so that every cluster in a batch comes from the same tile.  The data types in dataTypes are populated, in bulk
+     * by parsers that support it; what the other columns of the batch hold is unspecified.
+     *
+     * @return The number of clusters read into the batch, which is 0 only if there are no more clusters.
+     */
+    public int nextBatch(final ClusterDataBatch batch) {
+        if (!hasNext()) {
+            batch.reset(lane, -1);
+            return 0;
+        }
+
+        // As in next(), the tile must be determined before the parsers are advanced.
+        final int tile = parsers[0].getTileOfNextCluster();
+        batch.reset(lane, tile);
+
+        do {
+            // Parsers that fill the batch in bulk may stop short of maxClusters, e.g. at the end of a block they have
+            // decoded, so the first parser decides how many clusters are added and the others are read up to it.
+            final int start = batch.size();
+            final int numClusters = fillBatch(0, batch, start, batch.getCapacity() - start);
+            for (int i = 1; i < parsers.length; i++) {
+                int numFilled = 0;
+                while (numFilled < numClusters) {
+                    if (!parsers[i].hasNext()) {
+                        throw new PicardException("Unequal length Illumina files in " + basecallDirectory + ", lane " + lane + ". Failing parser: " + parsers[i].getClass().getName());
+                    }
+                    numFilled += fillBatch(i, batch, start + numFilled, numClusters - numFilled);
+                }
+            }
+            batch.add(numClusters);
+        } while (!batch.isFull() && hasNext() && parsers[0].getTileOfNextCluster() == tile);
+
+        return batch.size();
+    }
+
+    /**
+     * Writes the data of the given parser for up to maxClusters clusters into the batch from cluster index start onwards,
+     * in bulk if the parser is a BatchFillingParser and otherwise one cluster at a time.
+     *
+     * @return The number of clusters written, at least 1.
+     */
+    private int fillBatch(final int parserIndex, final ClusterDataBatch batch, final int start, final int maxClusters) {
+        final IlluminaParser parser = parsers[parserIndex];
+        if (!(parser instanceof BatchFillingParser)) {
+            addData(batch, start, dataTypes[parserIndex], parser.next());
+            return 1;
+        }
+
+        final int numClusters = ((BatchFillingParser) parser).fillBatch(batch, start, maxClusters);
+        if (numClusters < 1) {
+            throw new PicardException("Truncated Illumina files in " + basecallDirectory + ", lane " + lane + ". Failing parser: " + parser.getClass().getName());
+        }
+        return numClusters;
+    }
+
+    private void addData(final ClusterDataBatch batch, final int cluster, final IlluminaDataType[] ilDataTypes, final IlluminaData ilData) {
+        for (final IlluminaDataType ilDataType : ilDataTypes) {
+            switch (ilDataType) {
+                case Position:
+                    final PositionalData posData = (PositionalData) ilData;
+                    batch.setPosition(cluster, posData.getXCoordinate(), posData.getYCoordinate());
+                    break;
+
+                case PF:
+                    batch.setPf(cluster, ((PfData) ilData).isPf());
+                    break;
+
+                case Barcodes:
+                    batch.setMatchedBarcode(cluster, ((BarcodeData) ilData).getBarcode());
+                    break;
+
+                case BaseCalls:
+                    batch.setBases(cluster, ((BaseData) ilData).getBases());
+                    break;
+
+                case QualityScores:
+                    batch.setQualities(cluster, ((QualityData) ilData).getQualities());
+                    break;
+
+                default:
+                    throw new PicardException("Unknown data type " + ilDataType + " requested by IlluminaDataProviderFactory");
+            }
+        }
+    }
+
     /*
      * Methods for that transfer data from the IlluminaData objects to the current cluster
      */
@@ -29,6 +29,7 @@ import htsjdk.samtools.util.StringUtil;
 import picard.PicardException;
 import picard.illumina.parser.IlluminaFileUtil.SupportedIlluminaFormat;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.illumina.parser.readers.TilePrefetcher;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -97,6 +98,9 @@ public class IlluminaDataProviderFactory {
      */
     private boolean applyEamssFiltering = true;
 
+    /** If not null, multi-tile parsers use this to read ahead of the tiles they are parsing. */
+    private TilePrefetcher tilePrefetcher = null;
+
     /**
      * A Map of file formats to the dataTypes they will provide for this run.
      */
@@ -144,6 +148,20 @@ public class IlluminaDataProviderFactory {
     public IlluminaDataProviderFactory(final File basecallDirectory, File barcodesDirectory, final int lane,
                                        final ReadStructure readStructure,
                                        final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final IlluminaDataType... dataTypesArg) {
+        this(basecallDirectory, barcodesDirectory, lane, readStructure, bclQualityEvaluationStrategy, null, dataTypesArg);
+    }
+
+    /**
+     * Create factory with the specified options, finding the lane's files through a run folder manifest
+     *
+     * @param manifest If non-null, the lane's files are looked up in this manifest where it is still current, and the
+     *                 manifest is saved with whatever had to be found in the run folder instead.
+     * @see #IlluminaDataProviderFactory(File, File, int, ReadStructure, BclQualityEvaluationStrategy, IlluminaDataType...)
+     */
+    public IlluminaDataProviderFactory(final File basecallDirectory, final File barcodesDirectory, final int lane,
+                                       final ReadStructure readStructure,
+                                       final BclQualityEvaluationStrategy bclQualityEvaluationStrategy,
+                                       final RunFolderManifest manifest, final IlluminaDataType... dataTypesArg) {
         this.basecallDirectory = basecallDirectory;
         this.barcodesDirectory = barcodesDirectory;
         this.bclQualityEvaluationStrategy = bclQualityEvaluationStrategy;
@@ -161,7 +179,12 @@ public class IlluminaDataProviderFactory {
                     ", lane " + lane);
         }
 
-        this.fileUtil = new IlluminaFileUtil(basecallDirectory, barcodesDirectory, lane);
+        // Only the cycles that are output are looked for, so the directories and files of skipped cycles (e.g. the
+        // template cycles skipped by a tool that only wants barcodes, or every cycle after the first few) are never
+        // listed or opened.
+        outputMapping = new OutputMapping(readStructure);
+        this.fileUtil = new IlluminaFileUtil(basecallDirectory, barcodesDirectory, lane, manifest,
+                outputMapping.getOutputCycles());
 
         //find what request IlluminaDataTypes we have files for and select the most preferred file format available for that type
         formatToDataTypes = determineFormats(dataTypes, fileUtil);
@@ -178,8 +201,9 @@ public class IlluminaDataProviderFactory {
         if (availableTiles.isEmpty()) {
             throw new PicardException("No available tiles were found, make sure that " + basecallDirectory.getAbsolutePath() + " has a lane " + lane);
         }
-
-        outputMapping = new OutputMapping(readStructure);
+        if (manifest != null) {
+            manifest.save();
+        }
     }
 
     /**
@@ -206,6 +230,14 @@ public class IlluminaDataProviderFactory {
         this.applyEamssFiltering = applyEamssFiltering;
     }
 
+    /**
+     * Sets a prefetcher that the parsers of multi-tile files (.bcl.bgzf, .filter, .locs) will use to read ahead of the
+     * tiles they are parsing.  It may be shared by data providers used on different threads.
+     */
+    public void setTilePrefetcher(final TilePrefetcher tilePrefetcher) {
+        this.tilePrefetcher = tilePrefetcher;
+    }
+
     /**
      * Call this method to create a ClusterData iterator over all clusters for all tiles in ascending numeric order.
      *
@@ -364,11 +396,11 @@ public class IlluminaDataProviderFactory {
                 break;
 
             case MultiTileFilter:
-                parser = ((MultiTileFilterFileUtil)fileUtil.getUtil(SupportedIlluminaFormat.MultiTileFilter)).makeParser(requestedTiles);
+                parser = ((MultiTileFilterFileUtil)fileUtil.getUtil(SupportedIlluminaFormat.MultiTileFilter)).makeParser(requestedTiles, tilePrefetcher);
                 break;
 
             case MultiTileLocs:
-                parser = ((MultiTileLocsFileUtil)fileUtil.getUtil(SupportedIlluminaFormat.MultiTileLocs)).makeParser(requestedTiles);
+                parser = ((MultiTileLocsFileUtil)fileUtil.getUtil(SupportedIlluminaFormat.MultiTileLocs)).makeParser(requestedTiles, tilePrefetcher);
                 break;
 
             case MultiTileBcl: {
@@ -376,7 +408,7 @@ public class IlluminaDataProviderFactory {
                 final CycleIlluminaFileMap bclFileMap = util.getFiles(requestedTiles, outputMapping.getOutputCycles());
                 bclFileMap.assertValid(requestedTiles, outputMapping.getOutputCycles());
                 parser = new MultiTileBclParser(basecallDirectory, lane, bclFileMap, outputMapping,
-                        this.applyEamssFiltering, bclQualityEvaluationStrategy, util.tileIndex);
+                        this.applyEamssFiltering, bclQualityEvaluationStrategy, util.tileIndex, tilePrefetcher);
                 break;
             }
 
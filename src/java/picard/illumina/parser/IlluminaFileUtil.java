@@ -28,6 +28,7 @@ import htsjdk.samtools.util.IOUtil;
 import picard.PicardException;
 import picard.illumina.parser.fakers.BarcodeFileFaker;
 import picard.illumina.parser.fakers.BclFileFaker;
+import picard.illumina.parser.fakers.BinaryBarcodeFileFaker;
 import picard.illumina.parser.fakers.ClocsFileFaker;
 import picard.illumina.parser.fakers.FilterFileFaker;
 import picard.illumina.parser.fakers.LocsFileFaker;
@@ -74,6 +75,8 @@ public class IlluminaFileUtil {
     private final File barcodeDir;
     private final File intensityDir;
     private final int lane;
+    private final RunFolderManifest manifest;
+    private final int[] cycles;
 
     private final File tileMetricsOut;
     private final Map<SupportedIlluminaFormat, ParameterizedFileUtil> utils = new HashMap<SupportedIlluminaFormat, ParameterizedFileUtil>();
@@ -84,7 +87,28 @@ public class IlluminaFileUtil {
 
 
 	public IlluminaFileUtil(final File basecallDir, File barcodeDir, final int lane) {
+        this(basecallDir, barcodeDir, lane, null);
+    }
+
+    /**
+     * @param manifest If non-null, the file listings and tile indices of the lane are taken from this manifest where
+     *                 they are still current, and are added to it where they are not.
+     */
+    public IlluminaFileUtil(final File basecallDir, final File barcodeDir, final int lane,
+                            final RunFolderManifest manifest) {
+        this(basecallDir, barcodeDir, lane, manifest, null);
+    }
+
+    /**
+     * @param cycles If non-null, only the files of these cycles are looked for, and the files of other cycles are
+     *               treated as though they did not exist.  Formats that hold every cycle in one file are unaffected.
+     * @see #IlluminaFileUtil(File, File, int, RunFolderManifest)
+     */
+    public IlluminaFileUtil(final File basecallDir, final File barcodeDir, final int lane,
+                            final RunFolderManifest manifest, final int[] cycles) {
         this.lane = lane;
+        this.manifest = manifest;
+        this.cycles = cycles;
         this.basecallDir = basecallDir;
         this.barcodeDir = barcodeDir;
         this.intensityDir = basecallDir.getParentFile();
@@ -111,8 +135,8 @@ public class IlluminaFileUtil {
         if (parameterizedFileUtil == null) {
             switch (format) {
                 case Bcl:
-                    final ParameterizedFileUtil bclFileUtil = new PerTilePerCycleFileUtil(".bcl", basecallLaneDir, new BclFileFaker(), lane);
-                    final ParameterizedFileUtil gzBclFileUtil = new PerTilePerCycleFileUtil(".bcl.gz", basecallLaneDir, new BclFileFaker(), lane);
+                    final ParameterizedFileUtil bclFileUtil = new PerTilePerCycleFileUtil(".bcl", basecallLaneDir, new BclFileFaker(), lane, manifest, cycles);
+                    final ParameterizedFileUtil gzBclFileUtil = new PerTilePerCycleFileUtil(".bcl.gz", basecallLaneDir, new BclFileFaker(), lane, manifest, cycles);
                     if (bclFileUtil.filesAvailable() && !gzBclFileUtil.filesAvailable()) {
                         parameterizedFileUtil = bclFileUtil;
                     } else if (!bclFileUtil.filesAvailable() && gzBclFileUtil.filesAvailable()) {
@@ -126,35 +150,45 @@ public class IlluminaFileUtil {
                     utils.put(SupportedIlluminaFormat.Bcl, parameterizedFileUtil);
                     break;
                 case Locs:
-                    parameterizedFileUtil = new PerTileFileUtil(".locs", intensityLaneDir, new LocsFileFaker(), lane);
+                    parameterizedFileUtil = new PerTileFileUtil(".locs", intensityLaneDir, new LocsFileFaker(), lane, manifest);
                     utils.put(SupportedIlluminaFormat.Locs, parameterizedFileUtil);
                     break;
                 case Clocs:
-                    parameterizedFileUtil = new PerTileFileUtil(".clocs", intensityLaneDir, new ClocsFileFaker(), lane);
+                    parameterizedFileUtil = new PerTileFileUtil(".clocs", intensityLaneDir, new ClocsFileFaker(), lane, manifest);
                     utils.put(SupportedIlluminaFormat.Clocs, parameterizedFileUtil);
                     break;
                 case Pos:
-                    parameterizedFileUtil = new PerTileFileUtil("_pos.txt", intensityDir, new PosFileFaker(), lane);
+                    parameterizedFileUtil = new PerTileFileUtil("_pos.txt", intensityDir, new PosFileFaker(), lane, manifest);
                     utils.put(SupportedIlluminaFormat.Pos, parameterizedFileUtil);
                     break;
                 case Filter:
-                    parameterizedFileUtil = new PerTileFileUtil(".filter", basecallLaneDir, new FilterFileFaker(), lane);
+                    parameterizedFileUtil = new PerTileFileUtil(".filter", basecallLaneDir, new FilterFileFaker(), lane, manifest);
                     utils.put(SupportedIlluminaFormat.Filter, parameterizedFileUtil);
                     break;
                 case Barcode:
-                    parameterizedFileUtil = new PerTileFileUtil("_barcode.txt", barcodeDir != null ? barcodeDir : basecallDir, new BarcodeFileFaker(), lane, false);
+                    final File barcodeFileDir = barcodeDir != null ? barcodeDir : basecallDir;
+                    final ParameterizedFileUtil textBarcodeFileUtil = new PerTileFileUtil("_barcode.txt", barcodeFileDir, new BarcodeFileFaker(), lane, false, manifest);
+                    final ParameterizedFileUtil binaryBarcodeFileUtil = new PerTileFileUtil("_barcode.bin", barcodeFileDir, new BinaryBarcodeFileFaker(), lane, false, manifest);
+                    if (textBarcodeFileUtil.filesAvailable() && binaryBarcodeFileUtil.filesAvailable()) {
+                        throw new PicardException(
+                                "Both text and binary barcode files are present in " + barcodeFileDir.getAbsolutePath());
+                    } else if (binaryBarcodeFileUtil.filesAvailable()) {
+                        parameterizedFileUtil = binaryBarcodeFileUtil;
+                    } else {
+                        parameterizedFileUtil = textBarcodeFileUtil;
+                    }
                     utils.put(SupportedIlluminaFormat.Barcode, parameterizedFileUtil);
                     break;
                 case MultiTileFilter:
-                    parameterizedFileUtil = new MultiTileFilterFileUtil(basecallLaneDir, lane);
+                    parameterizedFileUtil = new MultiTileFilterFileUtil(basecallLaneDir, lane, manifest);
                     utils.put(SupportedIlluminaFormat.MultiTileFilter, parameterizedFileUtil);
                     break;
                 case MultiTileLocs:
-                    parameterizedFileUtil = new MultiTileLocsFileUtil(new File(intensityDir, basecallLaneDir.getName()), basecallLaneDir, lane);
+                    parameterizedFileUtil = new MultiTileLocsFileUtil(new File(intensityDir, basecallLaneDir.getName()), basecallLaneDir, lane, manifest);
                     utils.put(SupportedIlluminaFormat.MultiTileLocs, parameterizedFileUtil);
                     break;
                 case MultiTileBcl:
-                    parameterizedFileUtil = new MultiTileBclFileUtil(basecallLaneDir, lane);
+                    parameterizedFileUtil = new MultiTileBclFileUtil(basecallLaneDir, lane, manifest);
                     utils.put(SupportedIlluminaFormat.MultiTileBcl, parameterizedFileUtil);
                     break;
             }
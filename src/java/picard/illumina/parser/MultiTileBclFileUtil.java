@@ -1,6 +1,5 @@
 package picard.illumina.parser;
 
-import htsjdk.samtools.util.IOUtil;
 import picard.illumina.parser.fakers.MultiTileBclFileFaker;
 
 import java.io.File;
@@ -17,16 +16,16 @@ public class MultiTileBclFileUtil extends ParameterizedFileUtil {
     final TileIndex tileIndex;
     final CycleIlluminaFileMap cycleFileMap = new CycleIlluminaFileMap();
 
-    MultiTileBclFileUtil(final File basecallLaneDir, final int lane) {
+    MultiTileBclFileUtil(final File basecallLaneDir, final int lane, final RunFolderManifest manifest) {
         // Since these file names do not contain lane number, first two args to ctor are the same.
         super("^(\\d{4}).bcl.bgzf$", ".bcl.bgzf", basecallLaneDir,
-                new MultiTileBclFileFaker(), lane);
+                new MultiTileBclFileFaker(), lane, manifest);
         this.basecallLaneDir = basecallLaneDir;
         bci = new File(basecallLaneDir, "s_" + lane + ".bci");
         // Do this once rather than when deciding if these files exist and again later.
-        final File[] cycleFiles = IOUtil.getFilesMatchingRegexp(base, matchPattern);
+        final File[] cycleFiles = listFiles(base, matchPattern);
         if (bci.exists()) {
-            tileIndex = new TileIndex(bci);
+            tileIndex = readTileIndex(bci);
             if (cycleFiles != null) {
                 for (final File file : cycleFiles) {
                     final String fileName = file.getName();
@@ -97,6 +96,26 @@ public class MultiTileBclFileUtil extends ParameterizedFileUtil {
         return ret;
     }
 
+    /**
+     * Each cycle's file holds every tile of the lane, so it should hold as many clusters as the tile index says the lane
+     * has.
+     */
+    @Override
+    public List<FileHeaderCheck> getHeaderChecks(final List<Integer> expectedTiles, final int[] expectedCycles) {
+        final List<FileHeaderCheck> checks = new ArrayList<FileHeaderCheck>();
+        if (tileIndex == null) {
+            return checks;
+        }
+        for (final int cycle : expectedCycles) {
+            final IlluminaFileMap fileMap = cycleFileMap.get(cycle);
+            if (fileMap != null && !fileMap.isEmpty()) {
+                checks.add(new FileHeaderCheck(FileHeaderCheck.Type.Bcl, fileMap.values().iterator().next(), null,
+                        tileIndex.getNumClusters()));
+            }
+        }
+        return checks;
+    }
+
     @Override
     public List<String> fakeFiles(final List<Integer> expectedTiles, final int[] expectedCycles,
                                   final IlluminaFileUtil.SupportedIlluminaFormat format) {
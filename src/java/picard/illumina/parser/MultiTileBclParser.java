@@ -23,12 +23,18 @@
  */
 package picard.illumina.parser;
 
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
 import htsjdk.samtools.util.CloseableIterator;
+import picard.illumina.parser.readers.BclIndexReader;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
 import picard.illumina.parser.readers.BclReader;
+import picard.illumina.parser.readers.TilePrefetcher;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -37,13 +43,27 @@ import java.util.NoSuchElementException;
  */
 public class MultiTileBclParser extends BclParser {
     private final TileIndex tileIndex;
+    private final TilePrefetcher prefetcher;
+    /** The compressed file offset of the start of each tile, by cycle file; only used when prefetching. */
+    private final Map<File, long[]> tileBlockAddresses = new HashMap<File, long[]>();
     private MultiTileBclDataCycleFileParser cycleFileParser = null;
     public MultiTileBclParser(final File directory, final int lane, final CycleIlluminaFileMap tilesToCycleFiles,
                               final OutputMapping outputMapping, final boolean applyEamssFilter,
                               final BclQualityEvaluationStrategy bclQualityEvaluationStrategy,
                               final TileIndex tileIndex) {
+        this(directory, lane, tilesToCycleFiles, outputMapping, applyEamssFilter, bclQualityEvaluationStrategy, tileIndex, null);
+    }
+
+    /**
+     * @param prefetcher If not null, used to read ahead the tile being sought and the tiles following it in the files.
+     */
+    public MultiTileBclParser(final File directory, final int lane, final CycleIlluminaFileMap tilesToCycleFiles,
+                              final OutputMapping outputMapping, final boolean applyEamssFilter,
+                              final BclQualityEvaluationStrategy bclQualityEvaluationStrategy,
+                              final TileIndex tileIndex, final TilePrefetcher prefetcher) {
         super(directory, lane, tilesToCycleFiles, outputMapping, applyEamssFilter, bclQualityEvaluationStrategy);
         this.tileIndex = tileIndex;
+        this.prefetcher = prefetcher;
         this.initialize();
     }
 
@@ -67,6 +87,7 @@ public class MultiTileBclParser extends BclParser {
 
     @Override
     protected CycleFilesParser<BclData> makeCycleFileParser(final List<File> files) {
+        if (prefetcher != null && tileIndex != null) prefetch(files);
         if (cycleFileParser == null) {
             cycleFileParser = new MultiTileBclDataCycleFileParser(files, currentTile);
         } else {
@@ -77,6 +98,52 @@ public class MultiTileBclParser extends BclParser {
         return cycleFileParser;
     }
 
+    /**
+     * Asks for the current tile and the prefetcher's depth of tiles after it to be read ahead from every cycle file,
+     * then waits for the current one.
+     */
+    private void prefetch(final List<File> files) {
+        final TileIndex.TileIndexRecord current = tileIndex.findTile(currentTile);
+        final List<TilePrefetcher.ByteRange> currentRanges = getTileByteRanges(files, current);
+        final List<TilePrefetcher.ByteRange> ranges = new ArrayList<TilePrefetcher.ByteRange>(currentRanges);
+        for (final TileIndex.TileIndexRecord record : tileIndex) {
+            final int tilesAhead = record.getZeroBasedTileNumber() - current.getZeroBasedTileNumber();
+            if (tilesAhead > 0 && tilesAhead <= prefetcher.getDepth()) ranges.addAll(getTileByteRanges(files, record));
+        }
+        prefetcher.prefetch(ranges);
+        prefetcher.await(currentRanges);
+    }
+
+    /**
+     * @return For each cycle file, the compressed blocks that hold the given tile.  The end of a tile is only known to
+     * be somewhere in the block in which the next tile starts, so that whole block is included.
+     */
+    private List<TilePrefetcher.ByteRange> getTileByteRanges(final List<File> files, final TileIndex.TileIndexRecord tile) {
+        final List<TilePrefetcher.ByteRange> ranges = new ArrayList<TilePrefetcher.ByteRange>(files.size());
+        final int tileNumber = tile.getZeroBasedTileNumber();
+        for (final File file : files) {
+            long[] blockAddresses = tileBlockAddresses.get(file);
+            if (blockAddresses == null) {
+                final BclIndexReader bclIndexReader = new BclIndexReader(file);
+                blockAddresses = new long[bclIndexReader.getNumTiles()];
+                for (int i = 0; i < blockAddresses.length; ++i) {
+                    blockAddresses[i] = bclIndexReader.get(i) >>> 16;
+                }
+                tileBlockAddresses.put(file, blockAddresses);
+            }
+            // A mismatched index is reported when seeking.
+            if (tileNumber >= blockAddresses.length) continue;
+            final long end;
+            if (tileNumber + 1 < blockAddresses.length) {
+                end = blockAddresses[tileNumber + 1] + BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE;
+            } else {
+                end = file.length();
+            }
+            ranges.add(new TilePrefetcher.ByteRange(file, blockAddresses[tileNumber], end - blockAddresses[tileNumber]));
+        }
+        return ranges;
+    }
+
     /**
      * An iterator wrapper that stops when it has return a pre-determined number of records even if the underlying
      * iterator still had more records.
@@ -112,6 +179,14 @@ public class MultiTileBclParser extends BclParser {
             return underlyingIterator.next();
         }
 
+        /** See {@link BclReader#nextClusters(ClusterDataBatch, int, int)}; stops at the record limit like next(). */
+        public int nextClusters(final ClusterDataBatch batch, final int start, final int maxClusters) {
+            if (!hasNext()) throw new NoSuchElementException();
+            final int numClusters = underlyingIterator.nextClusters(batch, start, Math.min(maxClusters, recordLimit - numRecordsRead));
+            numRecordsRead += numClusters;
+            return numClusters;
+        }
+
         @Override
         public void remove() {
             throw new UnsupportedOperationException();
@@ -119,7 +194,7 @@ public class MultiTileBclParser extends BclParser {
     }
 
 
-    private class MultiTileBclDataCycleFileParser implements CycleFilesParser<BclData> {
+    private class MultiTileBclDataCycleFileParser implements BclCycleFilesParser {
         final CountLimitedIterator reader;
         int currentTile;
 
@@ -141,6 +216,14 @@ public class MultiTileBclParser extends BclParser {
             return reader.next();
         }
 
+        @Override
+        public int fillBatch(final ClusterDataBatch batch, final int start, final int maxClusters) {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return reader.nextClusters(batch, start, maxClusters);
+        }
+
         @Override
         public boolean hasNext() {
             try {
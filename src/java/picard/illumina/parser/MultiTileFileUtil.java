@@ -6,6 +6,7 @@ import picard.illumina.parser.fakers.BciFileFaker;
 import picard.illumina.parser.fakers.FileFaker;
 import picard.illumina.parser.fakers.FilterFileFaker;
 import picard.illumina.parser.fakers.MultiTileLocsFileFaker;
+import picard.illumina.parser.readers.TilePrefetcher;
 
 import java.io.File;
 import java.io.IOException;
@@ -22,15 +23,15 @@ public abstract class MultiTileFileUtil<OUTPUT_RECORD extends IlluminaData> exte
     protected File dataFile;
 
     MultiTileFileUtil(final String extension, final File base, final File bciDir, final FileFaker fileFaker,
-                      final int lane) {
-        super(false, extension, base, fileFaker, lane);
+                      final int lane, final RunFolderManifest manifest) {
+        super(false, extension, base, fileFaker, lane, DefaultSkipEmptyFiles, manifest);
         bci = new File(bciDir, "s_" + lane + ".bci");
         if (bci.exists()) {
-            tileIndex = new TileIndex(bci);
+            tileIndex = readTileIndex(bci);
         } else {
             tileIndex = null;
         }
-        final File[] filesMatchingRegexp = IOUtil.getFilesMatchingRegexp(base, matchPattern);
+        final File[] filesMatchingRegexp = listFiles(base, matchPattern);
         if (filesMatchingRegexp == null || filesMatchingRegexp.length == 0) {
             dataFile = null;
         } else if (filesMatchingRegexp.length == 1) {
@@ -64,6 +65,20 @@ public abstract class MultiTileFileUtil<OUTPUT_RECORD extends IlluminaData> exte
         return tileIndex.verify(expectedTiles);
     }
 
+    /**
+     * The data file holds every tile of the lane, so it should hold as many clusters as the tile index says the lane
+     * has.
+     */
+    @Override
+    public List<FileHeaderCheck> getHeaderChecks(final List<Integer> expectedTiles, final int[] expectedCycles) {
+        if (tileIndex == null || dataFile == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(new FileHeaderCheck(getHeaderType(), dataFile, null, tileIndex.getNumClusters()));
+    }
+
+    abstract FileHeaderCheck.Type getHeaderType();
+
     @Override
     public List<String> fakeFiles(final List<Integer> expectedTiles, final int[] expectedCycles,
                                   final IlluminaFileUtil.SupportedIlluminaFormat format) {
@@ -87,7 +102,7 @@ public abstract class MultiTileFileUtil<OUTPUT_RECORD extends IlluminaData> exte
         return tileIndex.verify(expectedTiles);
     }
 
-    abstract IlluminaParser<OUTPUT_RECORD> makeParser(List<Integer> requestedTiles);
+    abstract IlluminaParser<OUTPUT_RECORD> makeParser(List<Integer> requestedTiles, TilePrefetcher prefetcher);
 
 }
 
@@ -96,25 +111,36 @@ class MultiTileFilterFileUtil extends MultiTileFileUtil<PfData> {
     /**
      * @param basecallLaneDir location of .filter file and also .bci file
      */
-    MultiTileFilterFileUtil(final File basecallLaneDir, final int lane) {
-        super(".filter", basecallLaneDir, basecallLaneDir, new FilterFileFaker(), lane);
+    MultiTileFilterFileUtil(final File basecallLaneDir, final int lane, final RunFolderManifest manifest) {
+        super(".filter", basecallLaneDir, basecallLaneDir, new FilterFileFaker(), lane, manifest);
+    }
+
+    @Override
+    FileHeaderCheck.Type getHeaderType() {
+        return FileHeaderCheck.Type.Filter;
     }
 
     @Override
-    IlluminaParser<PfData> makeParser(final List<Integer> requestedTiles) {
-        return new MultiTileFilterParser(tileIndex, requestedTiles, dataFile);
+    IlluminaParser<PfData> makeParser(final List<Integer> requestedTiles, final TilePrefetcher prefetcher) {
+        return new MultiTileFilterParser(tileIndex, requestedTiles, dataFile, prefetcher);
     }
 }
 
 class MultiTileLocsFileUtil extends MultiTileFileUtil<PositionalData> {
 
-    MultiTileLocsFileUtil(final File basecallLaneDir, final File bciDir, final int lane) {
-        super(".locs", basecallLaneDir, bciDir, new MultiTileLocsFileFaker(), lane);
+    MultiTileLocsFileUtil(final File basecallLaneDir, final File bciDir, final int lane,
+                          final RunFolderManifest manifest) {
+        super(".locs", basecallLaneDir, bciDir, new MultiTileLocsFileFaker(), lane, manifest);
+    }
+
+    @Override
+    FileHeaderCheck.Type getHeaderType() {
+        return FileHeaderCheck.Type.Locs;
     }
 
     @Override
-    IlluminaParser<PositionalData> makeParser(final List<Integer> requestedTiles) {
-        return new MultiTileLocsParser(tileIndex, requestedTiles, dataFile, lane);
+    IlluminaParser<PositionalData> makeParser(final List<Integer> requestedTiles, final TilePrefetcher prefetcher) {
+        return new MultiTileLocsParser(tileIndex, requestedTiles, dataFile, lane, prefetcher);
     }
 }
 
@@ -24,6 +24,7 @@
 package picard.illumina.parser;
 
 import picard.illumina.parser.readers.FilterFileReader;
+import picard.illumina.parser.readers.TilePrefetcher;
 
 import java.io.File;
 import java.util.Collections;
@@ -35,10 +36,17 @@ import java.util.List;
  */
 public class MultiTileFilterParser extends MultiTileParser<PfData> {
     private final FilterFileReader reader;
+    private final File filterFile;
 
     public MultiTileFilterParser(final TileIndex tileIndex, final List<Integer> requestedTiles, final File filterFile) {
-        super(tileIndex, requestedTiles, Collections.singleton(IlluminaDataType.PF));
+        this(tileIndex, requestedTiles, filterFile, null);
+    }
+
+    public MultiTileFilterParser(final TileIndex tileIndex, final List<Integer> requestedTiles, final File filterFile,
+                                 final TilePrefetcher prefetcher) {
+        super(tileIndex, requestedTiles, Collections.singleton(IlluminaDataType.PF), prefetcher);
         reader = new FilterFileReader(filterFile);
+        this.filterFile = filterFile;
     }
 
     @Override
@@ -52,11 +60,21 @@ public class MultiTileFilterParser extends MultiTileParser<PfData> {
         };
     }
 
+    @Override
+    int readNext(final ClusterDataBatch batch, final int start, final int maxClusters) {
+        return reader.next(batch.getPfs(), start, maxClusters);
+    }
+
     @Override
     void skipRecords(final int numToSkip) {
         reader.skipRecords(numToSkip);
     }
 
+    @Override
+    TilePrefetcher.ByteRange getTileByteRange(final TileIndex.TileIndexRecord tile) {
+        return FilterFileReader.getRecordsByteRange(filterFile, tile.indexOfFirstClusterInTile, tile.getNumClustersInTile());
+    }
+
     @Override
     public void close() {
         //no-op
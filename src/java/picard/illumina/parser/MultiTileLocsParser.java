@@ -23,8 +23,8 @@
  */
 package picard.illumina.parser;
 
-import picard.illumina.parser.readers.AbstractIlluminaPositionFileReader;
 import picard.illumina.parser.readers.LocsFileReader;
+import picard.illumina.parser.readers.TilePrefetcher;
 
 import java.io.File;
 import java.util.Collections;
@@ -36,43 +36,48 @@ import java.util.List;
  */
 public class MultiTileLocsParser extends MultiTileParser<PositionalData> {
     private final LocsFileReader reader;
-    private final int lane;
+    /** The PositionalData returned by readNext() is only valid until it is called again. */
+    private final PositionalDataBuffer buffer;
+    private final File locsFile;
 
     public MultiTileLocsParser(final TileIndex tileIndex, final List<Integer> requestedTiles, final File locsFile, final int lane) {
-        super(tileIndex, requestedTiles, Collections.singleton(IlluminaDataType.Position));
+        this(tileIndex, requestedTiles, locsFile, lane, null);
+    }
+
+    public MultiTileLocsParser(final TileIndex tileIndex, final List<Integer> requestedTiles, final File locsFile, final int lane,
+                               final TilePrefetcher prefetcher) {
+        super(tileIndex, requestedTiles, Collections.singleton(IlluminaDataType.Position), prefetcher);
         final int tileNumber;
         if (requestedTiles.size() == 1) tileNumber = requestedTiles.get(0);
         else tileNumber = -1;
         this.reader = new LocsFileReader(locsFile, lane, tileNumber);
-        this.lane = lane;
+        this.buffer = new PositionalDataBuffer(reader) {
+            @Override
+            protected void skipInReader(final int numToSkip) {
+                reader.skipRecords(numToSkip);
+            }
+        };
+        this.locsFile = locsFile;
     }
 
     @Override
     PositionalData readNext() {
-        final int tile = getTileOfNextCluster();
-        final AbstractIlluminaPositionFileReader.PositionInfo nextVal = reader.next();
-        return new PositionalData() {
-            public int getXCoordinate() {
-                return nextVal.xQseqCoord;
-            }
-
-            public int getYCoordinate() {
-                return nextVal.yQseqCoord;
-            }
-
-            public int getLane() {
-                return lane;
-            }
+        return buffer.next();
+    }
 
-            public int getTile() {
-                return tile;
-            }
-        };
+    @Override
+    int readNext(final ClusterDataBatch batch, final int start, final int maxClusters) {
+        return buffer.next(batch.getXs(), batch.getYs(), start, maxClusters);
     }
 
     @Override
     void skipRecords(final int numToSkip) {
-        reader.skipRecords(numToSkip);
+        buffer.skip(numToSkip);
+    }
+
+    @Override
+    TilePrefetcher.ByteRange getTileByteRange(final TileIndex.TileIndexRecord tile) {
+        return LocsFileReader.getRecordsByteRange(locsFile, tile.indexOfFirstClusterInTile, tile.getNumClustersInTile());
     }
 
     @Override
@@ -25,7 +25,10 @@ package picard.illumina.parser;
 
 import htsjdk.samtools.util.PeekIterator;
 import picard.PicardException;
+import picard.illumina.parser.readers.TilePrefetcher;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -35,11 +38,12 @@ import java.util.Set;
  * Abstract class for files with fixed-length records for multiple tiles, e.g. .locs and .filter files.
  * @param <OUTPUT_RECORD> The kind of record to be returned (as opposed to the type of the record stored in the file).
  */
-public abstract class MultiTileParser<OUTPUT_RECORD extends IlluminaData> implements IlluminaParser<OUTPUT_RECORD> {
+public abstract class MultiTileParser<OUTPUT_RECORD extends IlluminaData> implements IlluminaParser<OUTPUT_RECORD>, BatchFillingParser {
     private final TileIndex tileIndex;
     private final Iterator<TileIndex.TileIndexRecord> tileIndexIterator;
     private final PeekIterator<Integer> requestedTilesIterator;
     private final Set<IlluminaDataType> supportedTypes;
+    private final TilePrefetcher prefetcher;
     private int nextRecordIndex = 0;
     private int nextClusterInTile;
     private TileIndex.TileIndexRecord currentTile = null;
@@ -52,10 +56,21 @@ public abstract class MultiTileParser<OUTPUT_RECORD extends IlluminaData> implem
     public MultiTileParser(final TileIndex tileIndex,
                            final List<Integer> requestedTiles,
                            final Set<IlluminaDataType> supportedTypes) {
+        this(tileIndex, requestedTiles, supportedTypes, null);
+    }
+
+    /**
+     * @param prefetcher If not null, used to read ahead the tile being sought and the tiles following it in the file.
+     */
+    public MultiTileParser(final TileIndex tileIndex,
+                           final List<Integer> requestedTiles,
+                           final Set<IlluminaDataType> supportedTypes,
+                           final TilePrefetcher prefetcher) {
         this.tileIndex = tileIndex;
         this.tileIndexIterator = tileIndex.iterator();
         this.requestedTilesIterator = new PeekIterator<Integer>(requestedTiles.iterator());
         this.supportedTypes = supportedTypes;
+        this.prefetcher = prefetcher;
     }
 
     @Override
@@ -70,6 +85,7 @@ public abstract class MultiTileParser<OUTPUT_RECORD extends IlluminaData> implem
                 break;
             }
         }
+        if (prefetcher != null) prefetch(currentTile);
         if (nextRecordIndex > currentTile.indexOfFirstClusterInTile) {
             throw new PicardException(
                     String.format("Seem to be in wrong position %d > %d", nextRecordIndex, currentTile.indexOfFirstClusterInTile));
@@ -79,6 +95,17 @@ public abstract class MultiTileParser<OUTPUT_RECORD extends IlluminaData> implem
         nextClusterInTile = 0;
     }
 
+    /** Asks for the given tile and the prefetcher's depth of tiles after it to be read ahead, then waits for the given one. */
+    private void prefetch(final TileIndex.TileIndexRecord tile) {
+        final List<TilePrefetcher.ByteRange> ranges = new ArrayList<TilePrefetcher.ByteRange>();
+        for (final TileIndex.TileIndexRecord record : tileIndex) {
+            final int tilesAhead = record.getZeroBasedTileNumber() - tile.getZeroBasedTileNumber();
+            if (tilesAhead >= 0 && tilesAhead <= prefetcher.getDepth()) ranges.add(getTileByteRange(record));
+        }
+        prefetcher.prefetch(ranges);
+        prefetcher.await(Collections.singletonList(getTileByteRange(tile)));
+    }
+
     @Override
     public OUTPUT_RECORD next() {
         if (!hasNext()) throw new NoSuchElementException();
@@ -88,6 +115,15 @@ public abstract class MultiTileParser<OUTPUT_RECORD extends IlluminaData> implem
         return ret;
     }
 
+    @Override
+    public int fillBatch(final ClusterDataBatch batch, final int start, final int maxClusters) {
+        if (!hasNext()) throw new NoSuchElementException();
+        final int numClusters = readNext(batch, start, Math.min(maxClusters, currentTile.numClustersInTile - nextClusterInTile));
+        nextClusterInTile += numClusters;
+        nextRecordIndex += numClusters;
+        return numClusters;
+    }
+
     @Override
     public boolean hasNext() {
         // Skip over any empty tiles
@@ -124,5 +160,11 @@ public abstract class MultiTileParser<OUTPUT_RECORD extends IlluminaData> implem
     }
 
     abstract OUTPUT_RECORD readNext();
+
+    /** Writes the records of up to maxClusters clusters into the batch from cluster index start onwards, and returns how many. */
+    abstract int readNext(ClusterDataBatch batch, int start, int maxClusters);
     abstract void skipRecords(int numToSkip);
+
+    /** @return The part of the file that holds the given tile's records. */
+    abstract TilePrefetcher.ByteRange getTileByteRange(TileIndex.TileIndexRecord tile);
 }
@@ -5,6 +5,7 @@ import picard.PicardException;
 import picard.illumina.parser.fakers.FileFaker;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -46,10 +47,21 @@ public abstract class ParameterizedFileUtil {
 
     protected static final boolean DefaultSkipEmptyFiles = true;
     protected final boolean skipEmptyFiles;
+    protected final RunFolderManifest manifest;
 
     public ParameterizedFileUtil(final boolean laneTileRegex, final String extension, final File base,
                                  final FileFaker faker, final int lane, final boolean skipEmptyFiles) {
-        this(extension, base, faker, lane, skipEmptyFiles);
+        this(laneTileRegex, extension, base, faker, lane, skipEmptyFiles, null);
+    }
+
+    /**
+     * @param manifest If non-null, directory listings, file lengths and tile indices are looked up in this manifest
+     *                 rather than the file system where they are still current.
+     */
+    public ParameterizedFileUtil(final boolean laneTileRegex, final String extension, final File base,
+                                 final FileFaker faker, final int lane, final boolean skipEmptyFiles,
+                                 final RunFolderManifest manifest) {
+        this(extension, base, faker, lane, skipEmptyFiles, manifest);
         if (laneTileRegex) {
             matchPattern = Pattern.compile(escapePeriods(makeLaneTileRegex(processTxtExtension(extension), lane)));
         } else {
@@ -64,22 +76,23 @@ public abstract class ParameterizedFileUtil {
 
     public ParameterizedFileUtil(final String pattern, final String extension, final File base, final FileFaker faker,
                                  final int lane) {
-        this(extension, base, faker, lane);
-        this.matchPattern = Pattern.compile(pattern);
+        this(pattern, extension, base, faker, lane, null);
     }
 
-    private ParameterizedFileUtil(final String extension, final File base, final FileFaker faker,
-                                  final int lane) {
-        this(extension, base, faker, lane, DefaultSkipEmptyFiles);
+    public ParameterizedFileUtil(final String pattern, final String extension, final File base, final FileFaker faker,
+                                 final int lane, final RunFolderManifest manifest) {
+        this(extension, base, faker, lane, DefaultSkipEmptyFiles, manifest);
+        this.matchPattern = Pattern.compile(pattern);
     }
 
     private ParameterizedFileUtil(final String extension, final File base, final FileFaker faker,
-                                  final int lane, final boolean skipEmptyFiles) {
+                                  final int lane, final boolean skipEmptyFiles, final RunFolderManifest manifest) {
         this.faker = faker;
         this.extension = extension;
         this.base = base;
         this.lane = lane;
         this.skipEmptyFiles = skipEmptyFiles;
+        this.manifest = manifest;
     }
 
     /**
@@ -120,6 +133,18 @@ public abstract class ParameterizedFileUtil {
     public abstract List<String> fakeFiles(List<Integer> expectedTiles, int[] cycles,
                                            IlluminaFileUtil.SupportedIlluminaFormat format);
 
+    /**
+     * Given the expected tiles/expected cycles for this file type, return a check of the header of each of the files
+     * that are present.  Files whose headers do not give the number of clusters are not checked.
+     *
+     * @param expectedTiles  An ordered list of tile numbers
+     * @param expectedCycles An ordered list of cycle numbers that may contain gaps
+     * @return A list of checks, which may be run in any order
+     */
+    public List<FileHeaderCheck> getHeaderChecks(final List<Integer> expectedTiles, final int[] expectedCycles) {
+        return Collections.emptyList();
+    }
+
     /**
      * Returns only lane and tile information as PerTileFt's do not have End information.
      *
@@ -174,9 +199,9 @@ public abstract class ParameterizedFileUtil {
         final IlluminaFileMap fileMap = new IlluminaFileMap();
         if (baseDirectory.exists()) {
             IOUtil.assertDirectoryIsReadable(baseDirectory);
-            final File[] files = IOUtil.getFilesMatchingRegexp(baseDirectory, pattern);
+            final File[] files = listFiles(baseDirectory, pattern);
             for (final File file : files) {
-                if (!skipEmptyFiles || file.length() > 0) {
+                if (!skipEmptyFiles || fileLength(file) > 0) {
                     fileMap.put(fileToTile(file.getName()), file);
                 }
             }
@@ -185,4 +210,18 @@ public abstract class ParameterizedFileUtil {
         return fileMap;
     }
 
+    /**
+     * Return all files in directory whose names match pattern, or null if directory is not a directory
+     */
+    protected File[] listFiles(final File directory, final Pattern pattern) {
+        return manifest != null ? manifest.listFiles(directory, pattern) : IOUtil.getFilesMatchingRegexp(directory, pattern);
+    }
+
+    protected long fileLength(final File file) {
+        return manifest != null ? manifest.length(file) : file.length();
+    }
+
+    protected TileIndex readTileIndex(final File tileIndexFile) {
+        return manifest != null ? manifest.getTileIndex(tileIndexFile) : new TileIndex(tileIndexFile);
+    }
 }
@@ -144,6 +144,15 @@ abstract class PerTileCycleParser<ILLUMINA_DATA extends IlluminaData> implements
      */
     @Override
     public ILLUMINA_DATA next() { //iterate over clusters
+        return getCycleFilesParserForNextCluster().next();
+    }
+
+    /**
+     * Advances to the next tile if we reached the end of the current tile.
+     *
+     * @return The CycleFilesParser for the tile of the next cluster
+     */
+    protected CycleFilesParser<ILLUMINA_DATA> getCycleFilesParserForNextCluster() {
         if (!hasNext()) {
             throw new NoSuchElementException("IlluminaData is missing in lane " + lane + " at directory location " + laneDirectory.getAbsolutePath());
         }
@@ -152,7 +161,7 @@ abstract class PerTileCycleParser<ILLUMINA_DATA extends IlluminaData> implements
             seekToTile(tileOrder.higher(currentTile));
         }
 
-        return cycleFilesParser.next();
+        return cycleFilesParser;
     }
 
     @Override
@@ -17,9 +17,19 @@ public class PerTileFileUtil extends ParameterizedFileUtil {
         this(extension, base, faker, lane, DefaultSkipEmptyFiles);
     }
 
+    public PerTileFileUtil(final String extension, final File base, final FileFaker faker, final int lane,
+                           final RunFolderManifest manifest) {
+        this(extension, base, faker, lane, DefaultSkipEmptyFiles, manifest);
+    }
+
     public PerTileFileUtil(final String extension, final File base,
         final FileFaker faker, final int lane, final boolean skipEmptyFiles) {
-        super(true, extension, base, faker, lane, skipEmptyFiles);
+        this(extension, base, faker, lane, skipEmptyFiles, null);
+    }
+
+    public PerTileFileUtil(final String extension, final File base, final FileFaker faker, final int lane,
+                           final boolean skipEmptyFiles, final RunFolderManifest manifest) {
+        super(true, extension, base, faker, lane, skipEmptyFiles, manifest);
         this.fileMap = getTiledFiles(base, matchPattern);
         if (fileMap.size() > 0) {
             this.tiles = Collections.unmodifiableList(new ArrayList<Integer>(this.fileMap.keySet()));
@@ -57,6 +67,29 @@ public class PerTileFileUtil extends ParameterizedFileUtil {
         return failures;
     }
 
+    /**
+     * Only .filter and .locs files are checked; the headers of the other per-tile formats do not give a cluster count.
+     */
+    @Override
+    public List<FileHeaderCheck> getHeaderChecks(final List<Integer> expectedTiles, final int[] expectedCycles) {
+        final FileHeaderCheck.Type type;
+        if (extension.equals(".filter")) {
+            type = FileHeaderCheck.Type.Filter;
+        } else if (extension.equals(".locs")) {
+            type = FileHeaderCheck.Type.Locs;
+        } else {
+            return Collections.emptyList();
+        }
+        final List<FileHeaderCheck> checks = new ArrayList<FileHeaderCheck>();
+        for (final int tile : expectedTiles) {
+            final File file = fileMap.get(tile);
+            if (file != null) {
+                checks.add(new FileHeaderCheck(type, file, tile, null));
+            }
+        }
+        return checks;
+    }
+
     @Override
     public List<String> fakeFiles(final List<Integer> expectedTiles, final int[] cycles,
                                   final IlluminaFileUtil.SupportedIlluminaFormat format) {
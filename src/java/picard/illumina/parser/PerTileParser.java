@@ -106,9 +106,17 @@ public abstract class PerTileParser<ILLUMINA_DATA extends IlluminaData> implemen
     }
 
     public ILLUMINA_DATA next() {
+        return getIteratorForNextCluster().next();
+    }
+
+    /**
+     * @return The iterator over the tile of the NEXT ILLUMINA_DATA object to be returned, advancing to the next file if the
+     * current one is exhausted.
+     */
+    protected CloseableIterator<ILLUMINA_DATA> getIteratorForNextCluster() {
         maybeAdvance();
 
-        return currentIterator.next();
+        return currentIterator;
     }
 
     public void remove() {
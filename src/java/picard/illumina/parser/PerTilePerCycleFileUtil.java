@@ -1,6 +1,5 @@
 package picard.illumina.parser;
 
-import htsjdk.samtools.util.IOUtil;
 import picard.PicardException;
 import picard.illumina.parser.fakers.FileFaker;
 import picard.illumina.parser.readers.BclReader;
@@ -22,10 +21,35 @@ public class PerTilePerCycleFileUtil extends ParameterizedFileUtil {
 
     private final CycleIlluminaFileMap cycleFileMap;
     private final Set<Integer> detectedCycles = new TreeSet<Integer>();
+    /** The cycles whose directories are listed, or null to list every cycle directory. */
+    private final Set<Integer> cyclesToList;
 
     public PerTilePerCycleFileUtil(final String extension,
                                    final File base, final FileFaker faker, final int lane) {
-        super(true, extension, base, faker, lane);
+        this(extension, base, faker, lane, null);
+    }
+
+    public PerTilePerCycleFileUtil(final String extension, final File base, final FileFaker faker, final int lane,
+                                   final RunFolderManifest manifest) {
+        this(extension, base, faker, lane, manifest, null);
+    }
+
+    /**
+     * @param cycles If non-null, only the directories of these cycles are listed, and the util behaves as though the
+     *               other cycles did not exist.  Tools that read only a few cycles of a run use this to avoid listing
+     *               the hundreds of other cycle directories.
+     */
+    public PerTilePerCycleFileUtil(final String extension, final File base, final FileFaker faker, final int lane,
+                                   final RunFolderManifest manifest, final int[] cycles) {
+        super(true, extension, base, faker, lane, DefaultSkipEmptyFiles, manifest);
+        if (cycles == null) {
+            this.cyclesToList = null;
+        } else {
+            this.cyclesToList = new HashSet<Integer>();
+            for (final int cycle : cycles) {
+                cyclesToList.add(cycle);
+            }
+        }
         //sideEffect, assigned to numCycles
         this.cycleFileMap = getPerTilePerCycleFiles();
     }
@@ -42,8 +66,7 @@ public class PerTilePerCycleFileUtil extends ParameterizedFileUtil {
         final CycleIlluminaFileMap cycledMap = new CycleIlluminaFileMap();
 
         final File laneDir = base;
-        final File[] tempCycleDirs;
-        tempCycleDirs = IOUtil.getFilesMatchingRegexp(laneDir, IlluminaFileUtil.CYCLE_SUBDIRECTORY_PATTERN);
+        final File[] tempCycleDirs = listCycleDirs(laneDir);
         if (tempCycleDirs == null || tempCycleDirs.length == 0) {
             return cycledMap;
         }
@@ -64,6 +87,21 @@ public class PerTilePerCycleFileUtil extends ParameterizedFileUtil {
         return cycledMap;
     }
 
+    /** @return The cycle directories of laneDir, less those not in cyclesToList, or null if laneDir does not exist. */
+    private File[] listCycleDirs(final File laneDir) {
+        final File[] cycleDirs = listFiles(laneDir, IlluminaFileUtil.CYCLE_SUBDIRECTORY_PATTERN);
+        if (cycleDirs == null || cyclesToList == null) {
+            return cycleDirs;
+        }
+        final List<File> keptCycleDirs = new ArrayList<File>(cyclesToList.size());
+        for (final File cycleDir : cycleDirs) {
+            if (cyclesToList.contains(getCycleFromDir(cycleDir))) {
+                keptCycleDirs.add(cycleDir);
+            }
+        }
+        return keptCycleDirs.toArray(new File[keptCycleDirs.size()]);
+    }
+
     public CycleIlluminaFileMap getFiles() {
         return cycleFileMap;
     }
@@ -150,9 +188,10 @@ public class PerTilePerCycleFileUtil extends ParameterizedFileUtil {
                     for (final int tile : expectedTiles) {
                         final File cycleFile = fileMap.get(tile);
                         if (cycleFile != null) {
+                            final long cycleFileLength = fileLength(cycleFile);
                             if (tileToFileLengthMap.get(tile) == null) {
-                                tileToFileLengthMap.put(tile, cycleFile.length());
-                            } else if (!extension.equals(".bcl.gz") && tileToFileLengthMap.get(tile) != cycleFile.length()) {
+                                tileToFileLengthMap.put(tile, cycleFileLength);
+                            } else if (!extension.equals(".bcl.gz") && tileToFileLengthMap.get(tile) != cycleFileLength) {
 
                                 // TODO: The gzip bcl files might not be the same length despite having the same content,
                                 // for now we're punting on this but this should be looked into at some point
@@ -160,7 +199,7 @@ public class PerTilePerCycleFileUtil extends ParameterizedFileUtil {
                                         + " has cycles files of different length.  Current cycle ("
                                         + currentCycle + ") " +
                                         "Length of first non-empty file (" + tileToFileLengthMap.get(tile)
-                                        + ") length of current cycle (" + cycleFile.length() + ")"
+                                        + ") length of current cycle (" + cycleFileLength + ")"
                                         + " File(" + cycleFile.getAbsolutePath() + ")");
                             }
                         } else {
@@ -179,6 +218,23 @@ public class PerTilePerCycleFileUtil extends ParameterizedFileUtil {
         return failures;
     }
 
+    @Override
+    public List<FileHeaderCheck> getHeaderChecks(final List<Integer> expectedTiles, final int[] expectedCycles) {
+        final List<FileHeaderCheck> checks = new ArrayList<FileHeaderCheck>();
+        final CycleIlluminaFileMap cfm = getFiles(expectedTiles, expectedCycles);
+        for (final int cycle : expectedCycles) {
+            final IlluminaFileMap fileMap = cfm.get(cycle);
+            if (fileMap == null) continue;
+            for (final int tile : expectedTiles) {
+                final File cycleFile = fileMap.get(tile);
+                if (cycleFile != null) {
+                    checks.add(new FileHeaderCheck(FileHeaderCheck.Type.Bcl, cycleFile, tile, null));
+                }
+            }
+        }
+        return checks;
+    }
+
     @Override
     public List<String> fakeFiles(final List<Integer> expectedTiles, final int[] expectedCycles,
                                   final IlluminaFileUtil.SupportedIlluminaFormat format) {
@@ -43,7 +43,7 @@ import static htsjdk.samtools.util.CollectionUtil.makeSet;
  * and test classes.  Check out AbstractIlluminaFileReader, PosFileReader, LocsFileReader, and ClocsFileReader for
  * more information on Position related illumina files.
  */
-public class PosParser extends PerTileParser<PositionalData> {
+public class PosParser extends PerTileParser<PositionalData> implements BatchFillingParser {
     private static Set<IlluminaDataType> supportedTypes = Collections.unmodifiableSet(makeSet(IlluminaDataType.Position));
 
     /** The FileType of the files we are parsing */
@@ -62,7 +62,8 @@ public class PosParser extends PerTileParser<PositionalData> {
     /**
      * Make an CloseableIterator<PositionalData> based on the given file and fileType specified at construction.
      * This method wraps a reader in an iterator that converts it's output to the output format expected by
-     * IlluminaDataProvider (PositionalData).
+     * IlluminaDataProvider (PositionalData).  The positions are decoded in chunks, and the PositionalData returned
+     * by the iterator is only valid until its next call to next().
      * @param file A file for the current tile being parsed
      * @return An iterator over the PositionalData in that file.
      */
@@ -87,42 +88,36 @@ public class PosParser extends PerTileParser<PositionalData> {
                 throw new PicardException("Unrecognized pos file type " + fileType.name());
         }
 
-        return new CloseableIterator<PositionalData>() {
-            private AbstractIlluminaPositionFileReader reader = fileReader;
-
-            public void close() {
-                reader.close();
-            }
-
-            public boolean hasNext() {
-                return reader.hasNext();
-            }
-
-            public PositionalData next() {
-                final AbstractIlluminaPositionFileReader.PositionInfo nextValue = reader.next();
-                return new PositionalData() {
-                    public int getXCoordinate() {
-                        return nextValue.xQseqCoord;
-                    }
-
-                    public int getYCoordinate() {
-                        return nextValue.yQseqCoord;
-                    }
-
-                    public int getLane() {
-                        return nextValue.lane;
-                    }
-
-                    public int getTile() {
-                        return nextValue.tile;
-                    }
-                };
-            }
-
-            public void remove() {
-                throw new UnsupportedOperationException();
-            }
-        };
+        return new PositionalDataIterator(new PositionalDataBuffer(fileReader));
+    }
+
+    @Override
+    public int fillBatch(final ClusterDataBatch batch, final int start, final int maxClusters) {
+        return ((PositionalDataIterator) getIteratorForNextCluster()).buffer.next(batch.getXs(), batch.getYs(), start, maxClusters);
+    }
+
+    private static class PositionalDataIterator implements CloseableIterator<PositionalData> {
+        private final PositionalDataBuffer buffer;
+
+        public PositionalDataIterator(final PositionalDataBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public void close() {
+            buffer.close();
+        }
+
+        public boolean hasNext() {
+            return buffer.hasNext();
+        }
+
+        public PositionalData next() {
+            return buffer.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
     @Override
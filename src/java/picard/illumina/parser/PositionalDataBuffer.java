@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser;
+
+import picard.illumina.parser.readers.AbstractIlluminaPositionFileReader;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Decodes the QSeq-style coordinates of a position file in chunks, via
+ * AbstractIlluminaPositionFileReader.nextQseqCoords(), rather than as a PositionInfo per cluster, and hands them out
+ * one cluster at a time.  To avoid an allocation per cluster, next() always returns this object, repositioned on the
+ * next cluster, so the PositionalData it returns is only valid until next() is called again.  IlluminaDataProvider
+ * copies the coordinates out immediately, so that is all it needs.
+ */
+class PositionalDataBuffer implements PositionalData {
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private final AbstractIlluminaPositionFileReader reader;
+    private final int[] xs;
+    private final int[] ys;
+    private int size = 0;
+    private int index = 0;
+
+    PositionalDataBuffer(final AbstractIlluminaPositionFileReader reader) {
+        this(reader, DEFAULT_CAPACITY);
+    }
+
+    PositionalDataBuffer(final AbstractIlluminaPositionFileReader reader, final int capacity) {
+        this.reader = reader;
+        this.xs = new int[capacity];
+        this.ys = new int[capacity];
+    }
+
+    public boolean hasNext() {
+        return index < size || reader.hasNext();
+    }
+
+    /** @return This object, positioned on the next cluster. */
+    public PositionalData next() {
+        if (index == size) {
+            size = reader.nextQseqCoords(xs, ys, 0, xs.length);
+            index = 0;
+            if (size == 0) throw new NoSuchElementException();
+        }
+        ++index;
+        return this;
+    }
+
+    /**
+     * Writes the coordinates of up to maxClusters of the following clusters into destXs and destYs from offset onwards:
+     * those already decoded if there are any, otherwise straight from the reader.
+     *
+     * @return The number of clusters written.
+     */
+    public int next(final int[] destXs, final int[] destYs, final int offset, final int maxClusters) {
+        if (index < size) {
+            final int numClusters = Math.min(maxClusters, size - index);
+            System.arraycopy(xs, index, destXs, offset, numClusters);
+            System.arraycopy(ys, index, destYs, offset, numClusters);
+            index += numClusters;
+            return numClusters;
+        }
+        return reader.nextQseqCoords(destXs, destYs, offset, maxClusters);
+    }
+
+    /** Skips the given number of clusters, first from those already decoded and then in the reader. */
+    public void skip(final int numToSkip) {
+        final int numBuffered = size - index;
+        if (numToSkip <= numBuffered) {
+            index += numToSkip;
+        } else {
+            index = size;
+            skipInReader(numToSkip - numBuffered);
+        }
+    }
+
+    /** Skips the given number of clusters in the reader, none of which have been decoded. */
+    protected void skipInReader(final int numToSkip) {
+        for (int i = 0; i < numToSkip; ++i) {
+            reader.next();
+        }
+    }
+
+    public void close() {
+        reader.close();
+    }
+
+    public int getXCoordinate() {
+        return xs[index - 1];
+    }
+
+    public int getYCoordinate() {
+        return ys[index - 1];
+    }
+}
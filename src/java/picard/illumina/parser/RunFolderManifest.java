@@ -0,0 +1,331 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser;
+
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Log;
+import picard.PicardException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A persistent cache of the directory listings, file sizes and tile indices that IlluminaFileUtil reads while working
+ * out which files a lane has.  A run folder holds a directory per cycle and a file per tile per cycle, so on a network
+ * file system discovering them can take longer than a small job spends converting them.  With a manifest, the first
+ * tool to look at a lane (typically CheckIlluminaDirectory) records what it found, and later tools stat each directory
+ * once instead of listing it and stat-ing every file in it.
+ *
+ * A directory's cached listing is used only while the directory's modification time is unchanged, which catches files
+ * being added, removed or renamed.  A listing is not cached if the directory was modified so recently that a further
+ * change might not move its modification time.  Files that change size without the directory changing are not
+ * noticed, so a manifest should only be kept for a run folder that the sequencer has finished writing.
+ *
+ * The manifest is a tab-separated text file.  It is replaced by renaming a completely written temporary file, so a
+ * manifest that cannot be read is simply discarded and rebuilt.  Instances are thread-safe.
+ */
+public class RunFolderManifest {
+    private static final Log log = Log.getInstance(RunFolderManifest.class);
+
+    private static final String HEADER = "#RunFolderManifest\t1";
+    private static final String DIRECTORY = "D";
+    private static final String FILE = "F";
+    private static final String TILE_INDEX = "T";
+
+    /** Modifications closer together than this may leave a directory's modification time unchanged. */
+    static final long MODIFICATION_TIME_GRANULARITY_MILLIS = 2000;
+
+    private static class Entry {
+        final String name;
+        final long length;
+        final long lastModified;
+
+        Entry(final String name, final long length, final long lastModified) {
+            this.name = name;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static class DirectoryListing {
+        final long lastModified;
+        final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        /** Whether lastModified has been checked against the directory since the manifest was loaded. */
+        boolean validated = false;
+
+        DirectoryListing(final long lastModified) {
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static class TileIndexEntry {
+        final long length;
+        final long lastModified;
+        final int[] tiles;
+        final int[] numClusters;
+
+        TileIndexEntry(final long length, final long lastModified, final int[] tiles, final int[] numClusters) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.tiles = tiles;
+            this.numClusters = numClusters;
+        }
+    }
+
+    private final File manifestFile;
+    private final Map<String, DirectoryListing> directories = new LinkedHashMap<String, DirectoryListing>();
+    private final Map<String, TileIndexEntry> tileIndices = new LinkedHashMap<String, TileIndexEntry>();
+    private boolean dirty = false;
+    private int directoriesReused = 0;
+    private int directoriesListed = 0;
+
+    private RunFolderManifest(final File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * @return The manifest file for the given lane of the run whose basecalls are in basecallDir, in manifestDir.  The
+     * name includes a hash of basecallDir's path so that the manifests of many runs can share a directory.
+     */
+    public static File getManifestFile(final File manifestDir, final File basecallDir, final int lane) {
+        final String runHash = Integer.toHexString(basecallDir.getAbsoluteFile().getPath().hashCode());
+        return new File(manifestDir, "s_" + lane + "." + runHash + ".manifest");
+    }
+
+    /**
+     * @return The manifest recorded in manifestFile, or an empty manifest that will be saved there if there is no such
+     * file or it cannot be read.
+     */
+    public static RunFolderManifest load(final File manifestFile) {
+        final RunFolderManifest manifest = new RunFolderManifest(manifestFile);
+        if (!manifestFile.exists()) return manifest;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(manifestFile));
+            if (!HEADER.equals(reader.readLine())) {
+                throw new PicardException("Unexpected header");
+            }
+            DirectoryListing currentDirectory = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                if (fields[0].equals(DIRECTORY)) {
+                    currentDirectory = new DirectoryListing(Long.parseLong(fields[2]));
+                    manifest.directories.put(fields[1], currentDirectory);
+                } else if (fields[0].equals(FILE)) {
+                    currentDirectory.entries.put(fields[1],
+                            new Entry(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                } else if (fields[0].equals(TILE_INDEX)) {
+                    final String[] records = fields.length > 4 ? fields[4].split(",") : new String[0];
+                    final int[] tiles = new int[records.length];
+                    final int[] numClusters = new int[records.length];
+                    for (int i = 0; i < records.length; ++i) {
+                        final int colon = records[i].indexOf(':');
+                        tiles[i] = Integer.parseInt(records[i].substring(0, colon));
+                        numClusters[i] = Integer.parseInt(records[i].substring(colon + 1));
+                    }
+                    manifest.tileIndices.put(fields[1],
+                            new TileIndexEntry(Long.parseLong(fields[2]), Long.parseLong(fields[3]), tiles, numClusters));
+                } else {
+                    throw new PicardException("Unexpected line: " + line);
+                }
+            }
+        } catch (final Exception e) {
+            log.warn("Ignoring unreadable run folder manifest " + manifestFile.getAbsolutePath() + ": " + e.getMessage());
+            manifest.directories.clear();
+            manifest.tileIndices.clear();
+            manifest.dirty = true;
+        } finally {
+            CloserUtil.close(reader);
+        }
+        return manifest;
+    }
+
+    public File getManifestFile() {
+        return manifestFile;
+    }
+
+    /**
+     * The equivalent of IOUtil.getFilesMatchingRegexp(), answered from the cached listing of directory if it is still
+     * current.
+     *
+     * @return The files in directory whose names match pattern, or null if directory is not a directory.
+     */
+    public synchronized File[] listFiles(final File directory, final Pattern pattern) {
+        final DirectoryListing listing = getListing(directory);
+        if (listing == null) return null;
+
+        final List<File> files = new ArrayList<File>();
+        for (final String name : listing.entries.keySet()) {
+            if (pattern.matcher(name).matches()) {
+                files.add(new File(directory, name));
+            }
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    /**
+     * @return The length of file, from the listing of its directory if that has already been found to be current.
+     */
+    public synchronized long length(final File file) {
+        final DirectoryListing listing = directories.get(file.getAbsoluteFile().getParent());
+        if (listing != null && listing.validated) {
+            final Entry entry = listing.entries.get(file.getName());
+            if (entry != null) return entry.length;
+        }
+        return file.length();
+    }
+
+    /**
+     * @return The TileIndex read from tileIndexFile, or from the manifest if the file's size and modification time are
+     * unchanged.
+     */
+    synchronized TileIndex getTileIndex(final File tileIndexFile) {
+        final String path = tileIndexFile.getAbsolutePath();
+        final long length = tileIndexFile.length();
+        final long lastModified = tileIndexFile.lastModified();
+        final TileIndexEntry cached = tileIndices.get(path);
+        if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+            return new TileIndex(tileIndexFile, cached.tiles, cached.numClusters);
+        }
+
+        final TileIndex tileIndex = new TileIndex(tileIndexFile);
+        if (isSettled(lastModified)) {
+            final int[] tiles = new int[tileIndex.getNumTiles()];
+            final int[] numClusters = new int[tiles.length];
+            int i = 0;
+            for (final TileIndex.TileIndexRecord record : tileIndex) {
+                tiles[i] = record.tile;
+                numClusters[i++] = record.numClustersInTile;
+            }
+            tileIndices.put(path, new TileIndexEntry(length, lastModified, tiles, numClusters));
+            dirty = true;
+        } else {
+            tileIndices.remove(path);
+        }
+        return tileIndex;
+    }
+
+    /**
+     * Writes the manifest to its file if anything has been added to or dropped from it since it was loaded.
+     */
+    public synchronized void save() {
+        if (!dirty) return;
+        final File tmpFile = new File(manifestFile.getAbsolutePath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile)));
+            writer.write(HEADER);
+            writer.newLine();
+            for (final Map.Entry<String, DirectoryListing> directory : directories.entrySet()) {
+                writer.write(DIRECTORY + "\t" + directory.getKey() + "\t" + directory.getValue().lastModified);
+                writer.newLine();
+                for (final Entry entry : directory.getValue().entries.values()) {
+                    writer.write(FILE + "\t" + entry.name + "\t" + entry.length + "\t" + entry.lastModified);
+                    writer.newLine();
+                }
+            }
+            for (final Map.Entry<String, TileIndexEntry> tileIndex : tileIndices.entrySet()) {
+                final TileIndexEntry entry = tileIndex.getValue();
+                final StringBuilder records = new StringBuilder();
+                for (int i = 0; i < entry.tiles.length; ++i) {
+                    if (i > 0) records.append(',');
+                    records.append(entry.tiles[i]).append(':').append(entry.numClusters[i]);
+                }
+                writer.write(TILE_INDEX + "\t" + tileIndex.getKey() + "\t" + entry.length + "\t" + entry.lastModified +
+                        "\t" + records);
+                writer.newLine();
+            }
+        } catch (final IOException e) {
+            throw new PicardException("Error writing run folder manifest " + tmpFile.getAbsolutePath(), e);
+        } finally {
+            CloserUtil.close(writer);
+        }
+        if (!tmpFile.renameTo(manifestFile)) {
+            throw new PicardException("Could not rename " + tmpFile.getAbsolutePath() + " to " + manifestFile.getAbsolutePath());
+        }
+        dirty = false;
+        log.info("Wrote run folder manifest " + manifestFile.getAbsolutePath() + " (" + directoriesReused +
+                " directory listings reused, " + directoriesListed + " listed)");
+    }
+
+    /** @return The number of directories whose cached listing was current. */
+    public synchronized int getDirectoriesReused() {
+        return directoriesReused;
+    }
+
+    /** @return The number of directories that had to be listed. */
+    public synchronized int getDirectoriesListed() {
+        return directoriesListed;
+    }
+
+    /** @return The current listing of directory, from the cache if possible, or null if directory is not a directory. */
+    private DirectoryListing getListing(final File directory) {
+        final String path = directory.getAbsolutePath();
+        final long lastModified = directory.lastModified();
+        final DirectoryListing cached = directories.get(path);
+        if (cached != null && cached.lastModified == lastModified && lastModified != 0) {
+            if (!cached.validated) {
+                cached.validated = true;
+                ++directoriesReused;
+            }
+            return cached;
+        }
+
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            if (directories.remove(path) != null) dirty = true;
+            return null;
+        }
+        ++directoriesListed;
+        final DirectoryListing listing = new DirectoryListing(lastModified);
+        for (final File file : files) {
+            listing.entries.put(file.getName(), new Entry(file.getName(), file.length(), file.lastModified()));
+        }
+        listing.validated = true;
+        if (isSettled(lastModified)) {
+            directories.put(path, listing);
+            dirty = true;
+        } else if (directories.remove(path) != null) {
+            dirty = true;
+        }
+        return listing;
+    }
+
+    /** @return Whether a file last modified at lastModified could be modified again without its time changing. */
+    private static boolean isSettled(final long lastModified) {
+        return System.currentTimeMillis() - lastModified >= MODIFICATION_TIME_GRANULARITY_MILLIS;
+    }
+}
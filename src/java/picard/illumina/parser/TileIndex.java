@@ -57,8 +57,6 @@ public class TileIndex implements Iterable<TileIndex.TileIndexRecord> {
             final InputStream is = IOUtil.maybeBufferInputStream(new FileInputStream(tileIndexFile));
             final ByteBuffer buf = ByteBuffer.allocate(8);
             buf.order(ByteOrder.LITTLE_ENDIAN);
-            int absoluteRecordIndex = 0;
-            int numTiles = 0;
             while (readTileIndexRecord(buf.array(), buf.capacity(), is)) {
                 buf.rewind();
                 buf.limit(buf.capacity());
@@ -67,8 +65,7 @@ public class TileIndex implements Iterable<TileIndex.TileIndexRecord> {
                 if (tile < 0) throw new PicardException("Tile number too large in " + tileIndexFile.getAbsolutePath());
                 final int numClusters = buf.getInt();
                 if (numClusters < 0) throw new PicardException("Cluster size too large in " + tileIndexFile.getAbsolutePath());
-                tiles.add(new TileIndexRecord(tile, numClusters, absoluteRecordIndex, numTiles++));
-                absoluteRecordIndex += numClusters;
+                addTile(tile, numClusters);
             }
             CloserUtil.close(is);
         } catch (final IOException e) {
@@ -76,6 +73,28 @@ public class TileIndex implements Iterable<TileIndex.TileIndexRecord> {
         }
     }
 
+    /**
+     * Creates a TileIndex from tile numbers and cluster counts that have already been read from tileIndexFile, e.g. by
+     * RunFolderManifest.
+     */
+    TileIndex(final File tileIndexFile, final int[] tileNumbers, final int[] numClusters) {
+        this.tileIndexFile = tileIndexFile;
+        for (int i = 0; i < tileNumbers.length; ++i) {
+            addTile(tileNumbers[i], numClusters[i]);
+        }
+    }
+
+    private void addTile(final int tile, final int numClusters) {
+        final int absoluteRecordIndex;
+        if (tiles.isEmpty()) {
+            absoluteRecordIndex = 0;
+        } else {
+            final TileIndexRecord last = tiles.get(tiles.size() - 1);
+            absoluteRecordIndex = last.indexOfFirstClusterInTile + last.numClustersInTile;
+        }
+        tiles.add(new TileIndexRecord(tile, numClusters, absoluteRecordIndex, tiles.size()));
+    }
+
     public File getFile() {
         return tileIndexFile;
     }
@@ -84,6 +103,13 @@ public class TileIndex implements Iterable<TileIndex.TileIndexRecord> {
         return tiles.size();
     }
 
+    /** @return The total number of clusters in all the tiles. */
+    public long getNumClusters() {
+        long numClusters = 0;
+        for (final TileIndexRecord rec : tiles) numClusters += rec.numClustersInTile;
+        return numClusters;
+    }
+
     private boolean readTileIndexRecord(final byte[] buf, final int numBytes, final InputStream is) throws IOException {
         int totalBytesRead = 0;
         while (totalBytesRead < numBytes) {
@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser.fakers;
+
+import picard.illumina.parser.readers.BinaryBarcodeFileReader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Deflater;
+
+/**
+ * Fakes a binary barcode file with no barcodes in its header and a single unmatched record.
+ */
+public class BinaryBarcodeFileFaker extends FileFaker {
+    private final byte[] compressedRecord;
+
+    public BinaryBarcodeFileFaker() {
+        final ByteBuffer record = ByteBuffer.allocate(BinaryBarcodeFileReader.RECORD_SIZE);
+        record.order(ByteOrder.LITTLE_ENDIAN);
+        record.putShort((short) BinaryBarcodeFileReader.NO_BARCODE);
+
+        final Deflater deflater = new Deflater();
+        deflater.setInput(record.array());
+        deflater.finish();
+        final byte[] compressed = new byte[64];
+        final int compressedLength = deflater.deflate(compressed);
+        deflater.end();
+        compressedRecord = new byte[compressedLength];
+        System.arraycopy(compressed, 0, compressedRecord, 0, compressedLength);
+    }
+
+    @Override
+    protected void fakeFile(final ByteBuffer buffer) {
+        buffer.put(BinaryBarcodeFileReader.MAGIC);
+        buffer.putInt(BinaryBarcodeFileReader.VERSION);
+        buffer.putInt(0);
+        buffer.putInt(1);
+        buffer.putInt(compressedRecord.length);
+        buffer.put(compressedRecord);
+    }
+
+    @Override
+    protected boolean addLeadingZeros() {
+        return false;
+    }
+
+    @Override
+    protected int bufferSize() {
+        return BinaryBarcodeFileReader.MAGIC.length + 16 + compressedRecord.length;
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser.fakers;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.StringUtil;
+import picard.PicardException;
+import picard.illumina.parser.ReadDescriptor;
+import picard.illumina.parser.ReadStructure;
+import picard.illumina.parser.ReadType;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a run folder of bcl, filter and locs files, of any size, holding data that looks enough like a real
+ * run to exercise the parsers and the tools built on them.  Unlike the FileFakers, which write placeholder files so that
+ * a run folder with missing files passes validation, every cluster has its own random bases, qualities that decline over
+ * the course of each read, the occasional no-call, a PF flag and a position.  Clusters are assigned one of the given
+ * barcodes, with occasional errors, or (at a lower rate) an unmatched one, so that barcode extraction has work to do.
+ *
+ * The contents depend only on the settings and the seed, so generating the same run folder twice gives the same files.
+ *
+ * The run folder is laid out as by a HiSeq, with a file per tile:
+ * <pre>
+ *     runDir/Data/Intensities/L00n/s_n_tile.locs
+ *     runDir/Data/Intensities/BaseCalls/L00n/s_n_tile.filter
+ *     runDir/Data/Intensities/BaseCalls/L00n/Ccycle.1/s_n_tile.bcl[.gz]
+ * </pre>
+ * or, with setMultiTile(true), as by a NextSeq, with every tile of a lane in one file, in the order of the tile index:
+ * <pre>
+ *     runDir/Data/Intensities/L00n/s_n.locs
+ *     runDir/Data/Intensities/BaseCalls/L00n/s_n.bci                 (the tile index: tile numbers and cluster counts)
+ *     runDir/Data/Intensities/BaseCalls/L00n/s_n.filter
+ *     runDir/Data/Intensities/BaseCalls/L00n/cccc.bcl.bgzf          (block-compressed, each tile starting a new block)
+ *     runDir/Data/Intensities/BaseCalls/L00n/cccc.bcl.bgzf.bci      (the virtual file pointer of each tile)
+ * </pre>
+ * Each tile holds the same clusters in either layout.
+ */
+public class RunFolderGenerator {
+    private static final byte[] BASES = StringUtil.stringToBytes("ACGT");
+    private static final int MAX_QUALITY = 41;
+    private static final int MIN_QUALITY = 2;
+
+    private final ReadStructure readStructure;
+    private int numLanes = 1;
+    private int tilesPerLane = 4;
+    private int clustersPerTile = 10000;
+    private List<String> barcodes = Collections.emptyList();
+    private double pfFraction = 0.85;
+    private double noCallRate = 0.005;
+    private double barcodeErrorRate = 0.02;
+    private double unmatchedBarcodeRate = 0.05;
+    private boolean compressBcls = false;
+    private boolean multiTile = false;
+    private long seed = 1;
+
+    /**
+     * @param readStructure The cycles to write.  Barcode cycles hold barcodes; all the other cycles hold random bases.
+     */
+    public RunFolderGenerator(final ReadStructure readStructure) {
+        this.readStructure = readStructure;
+    }
+
+    public RunFolderGenerator setNumLanes(final int numLanes) {
+        this.numLanes = numLanes;
+        return this;
+    }
+
+    public RunFolderGenerator setTilesPerLane(final int tilesPerLane) {
+        this.tilesPerLane = tilesPerLane;
+        return this;
+    }
+
+    public RunFolderGenerator setClustersPerTile(final int clustersPerTile) {
+        this.clustersPerTile = clustersPerTile;
+        return this;
+    }
+
+    /**
+     * @param barcodes The barcodes of the run, each the concatenation of the bases of all the barcode reads.
+     */
+    public RunFolderGenerator setBarcodes(final List<String> barcodes) {
+        for (final String barcode : barcodes) {
+            if (barcode.length() != readStructure.barcodes.getTotalCycles()) {
+                throw new PicardException("Barcode " + barcode + " does not have the " +
+                        readStructure.barcodes.getTotalCycles() + " bases of the barcode reads of " + readStructure);
+            }
+        }
+        this.barcodes = barcodes;
+        return this;
+    }
+
+    /** @param pfFraction The fraction of clusters that pass filter. */
+    public RunFolderGenerator setPfFraction(final double pfFraction) {
+        this.pfFraction = pfFraction;
+        return this;
+    }
+
+    /** @param noCallRate The fraction of bases that are no-calls. */
+    public RunFolderGenerator setNoCallRate(final double noCallRate) {
+        this.noCallRate = noCallRate;
+        return this;
+    }
+
+    /** @param barcodeErrorRate The fraction of barcode bases that are replaced by a random base. */
+    public RunFolderGenerator setBarcodeErrorRate(final double barcodeErrorRate) {
+        this.barcodeErrorRate = barcodeErrorRate;
+        return this;
+    }
+
+    /** @param unmatchedBarcodeRate The fraction of clusters whose barcode reads are random rather than a barcode. */
+    public RunFolderGenerator setUnmatchedBarcodeRate(final double unmatchedBarcodeRate) {
+        this.unmatchedBarcodeRate = unmatchedBarcodeRate;
+        return this;
+    }
+
+    /**
+     * @param compressBcls Whether to write .bcl.gz rather than .bcl files.  Ignored with setMultiTile(true), whose bcls
+     *                     are always block-compressed.
+     */
+    public RunFolderGenerator setCompressBcls(final boolean compressBcls) {
+        this.compressBcls = compressBcls;
+        return this;
+    }
+
+    /** @param multiTile Whether to write every tile of a lane into one file of each kind, as a NextSeq does. */
+    public RunFolderGenerator setMultiTile(final boolean multiTile) {
+        this.multiTile = multiTile;
+        return this;
+    }
+
+    public RunFolderGenerator setSeed(final long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public int getNumLanes() {
+        return numLanes;
+    }
+
+    public int getClustersPerTile() {
+        return clustersPerTile;
+    }
+
+    public boolean isMultiTile() {
+        return multiTile;
+    }
+
+    /**
+     * @return The tiles of each lane, numbered as on a HiSeq flowcell: surface, then swath, then the two-digit number of
+     * the tile in the swath.
+     */
+    public List<Integer> getTiles() {
+        final List<Integer> tiles = new ArrayList<Integer>(tilesPerLane);
+        for (int i = 0; i < tilesPerLane; ++i) {
+            tiles.add(1000 * (1 + i / 48) + 100 * (1 + (i / 16) % 3) + 1 + i % 16);
+        }
+        return tiles;
+    }
+
+    /** @return The number of clusters in every lane of the run folder. */
+    public long getTotalClusters() {
+        return (long) numLanes * tilesPerLane * clustersPerTile;
+    }
+
+    /** @return The BaseCalls directory of a run folder. */
+    public static File getBasecallsDir(final File runDir) {
+        return new File(runDir, "Data/Intensities/BaseCalls");
+    }
+
+    /**
+     * Writes the run folder.
+     *
+     * @return The BaseCalls directory of the run folder.
+     */
+    public File generate(final File runDir) throws IOException {
+        final File basecallsDir = getBasecallsDir(runDir);
+        final File intensitiesDir = basecallsDir.getParentFile();
+        for (int lane = 1; lane <= numLanes; ++lane) {
+            final String laneDirName = String.format("L%03d", lane);
+            final File basecallsLaneDir = new File(basecallsDir, laneDirName);
+            final File intensitiesLaneDir = new File(intensitiesDir, laneDirName);
+            mkdirs(basecallsLaneDir);
+            mkdirs(intensitiesLaneDir);
+
+            final LaneWriter laneWriter = multiTile ?
+                    new MultiTileLaneWriter(basecallsLaneDir, intensitiesLaneDir, lane) :
+                    new PerTileLaneWriter(basecallsLaneDir, intensitiesLaneDir, lane);
+            try {
+                for (final int tile : getTiles()) {
+                    writeTile(laneWriter, lane, tile);
+                }
+            } finally {
+                laneWriter.close();
+            }
+        }
+        return basecallsDir;
+    }
+
+    private void writeTile(final LaneWriter laneWriter, final int lane, final int tile) throws IOException {
+        final Random random = new Random(seed * 31 + lane * 100003L + tile);
+        laneWriter.startTile(tile);
+
+        // The barcode of each cluster, as an index into barcodes, or -1 if it is not one of them.
+        final int[] clusterBarcodes = new int[clustersPerTile];
+        for (int cluster = 0; cluster < clustersPerTile; ++cluster) {
+            clusterBarcodes[cluster] = barcodes.isEmpty() || random.nextDouble() < unmatchedBarcodeRate
+                    ? -1 : random.nextInt(barcodes.size());
+        }
+
+        final byte[] pf = new byte[clustersPerTile];
+        for (int cluster = 0; cluster < clustersPerTile; ++cluster) {
+            pf[cluster] = (byte) (random.nextDouble() < pfFraction ? 1 : 0);
+        }
+        laneWriter.writeFilter(pf);
+
+        final ByteBuffer locs = ByteBuffer.allocate(8 * clustersPerTile).order(ByteOrder.LITTLE_ENDIAN);
+        for (int cluster = 0; cluster < clustersPerTile; ++cluster) {
+            locs.putFloat(random.nextFloat() * 2048).putFloat(random.nextFloat() * 20000);
+        }
+        laneWriter.writeLocs(locs.array());
+
+        final byte[] bcl = new byte[clustersPerTile];
+        int cycle = 1;
+        int barcodeOffset = 0;
+        for (final ReadDescriptor descriptor : readStructure.descriptors) {
+            for (int cycleInRead = 0; cycleInRead < descriptor.length; ++cycleInRead, ++cycle) {
+                // Qualities decline from the start to the end of each read.
+                final int meanQuality = 38 - (10 * cycleInRead) / descriptor.length;
+                for (int cluster = 0; cluster < clustersPerTile; ++cluster) {
+                    if (random.nextDouble() < noCallRate) {
+                        bcl[cluster] = 0;
+                        continue;
+                    }
+                    final int base;
+                    if (descriptor.type == ReadType.B && clusterBarcodes[cluster] >= 0 &&
+                            random.nextDouble() >= barcodeErrorRate) {
+                        base = baseIndex(barcodes.get(clusterBarcodes[cluster]).charAt(barcodeOffset + cycleInRead));
+                    } else {
+                        base = random.nextInt(BASES.length);
+                    }
+                    final int quality = Math.max(MIN_QUALITY,
+                            Math.min(MAX_QUALITY, meanQuality + (int) Math.round(random.nextGaussian() * 3)));
+                    bcl[cluster] = (byte) ((quality << 2) | base);
+                }
+                laneWriter.writeBcl(cycle, bcl);
+            }
+            if (descriptor.type == ReadType.B) {
+                barcodeOffset += descriptor.length;
+            }
+        }
+    }
+
+    /** Writes the files of a lane, tile by tile. */
+    private interface LaneWriter {
+        void startTile(int tile) throws IOException;
+
+        void writeFilter(byte[] pf) throws IOException;
+
+        /** @param locs The x and y position of each cluster, as little-endian floats. */
+        void writeLocs(byte[] locs) throws IOException;
+
+        void writeBcl(int cycle, byte[] bcl) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private class PerTileLaneWriter implements LaneWriter {
+        private final File basecallsLaneDir;
+        private final File intensitiesLaneDir;
+        private final int lane;
+        private String tileName;
+
+        private PerTileLaneWriter(final File basecallsLaneDir, final File intensitiesLaneDir, final int lane) {
+            this.basecallsLaneDir = basecallsLaneDir;
+            this.intensitiesLaneDir = intensitiesLaneDir;
+            this.lane = lane;
+            for (int cycle = 1; cycle <= readStructure.totalCycles; ++cycle) {
+                mkdirs(new File(basecallsLaneDir, "C" + cycle + ".1"));
+            }
+        }
+
+        public void startTile(final int tile) {
+            tileName = "s_" + lane + "_" + tile;
+        }
+
+        public void writeFilter(final byte[] pf) throws IOException {
+            writeFile(new File(basecallsLaneDir, tileName + ".filter"), false, filterHeader(clustersPerTile), pf);
+        }
+
+        public void writeLocs(final byte[] locs) throws IOException {
+            writeFile(new File(intensitiesLaneDir, tileName + ".locs"), false, locsHeader(clustersPerTile), locs);
+        }
+
+        public void writeBcl(final int cycle, final byte[] bcl) throws IOException {
+            final File cycleDir = new File(basecallsLaneDir, "C" + cycle + ".1");
+            writeFile(new File(cycleDir, tileName + (compressBcls ? ".bcl.gz" : ".bcl")), compressBcls,
+                    header(clustersPerTile), bcl);
+        }
+
+        public void close() {
+        }
+    }
+
+    /** Keeps every file of the lane open, and appends each tile to them. */
+    private class MultiTileLaneWriter implements LaneWriter {
+        private final File basecallsLaneDir;
+        private final int lane;
+        private final List<Integer> tiles = new ArrayList<Integer>();
+        private final OutputStream filter;
+        private final OutputStream locs;
+        private final File[] bclFiles = new File[readStructure.totalCycles];
+        private final BlockCompressedOutputStream[] bcls = new BlockCompressedOutputStream[readStructure.totalCycles];
+        /** The virtual file pointer of the start of each tile, by cycle and then tile. */
+        private final List<List<Long>> tilePointers = new ArrayList<List<Long>>(readStructure.totalCycles);
+
+        private MultiTileLaneWriter(final File basecallsLaneDir, final File intensitiesLaneDir, final int lane)
+                throws IOException {
+            this.basecallsLaneDir = basecallsLaneDir;
+            this.lane = lane;
+            final int clustersPerLane = tilesPerLane * clustersPerTile;
+            this.filter = new BufferedOutputStream(new FileOutputStream(new File(basecallsLaneDir, "s_" + lane + ".filter")));
+            this.filter.write(filterHeader(clustersPerLane));
+            this.locs = new BufferedOutputStream(new FileOutputStream(new File(intensitiesLaneDir, "s_" + lane + ".locs")));
+            this.locs.write(locsHeader(clustersPerLane));
+            for (int i = 0; i < bcls.length; ++i) {
+                bclFiles[i] = new File(basecallsLaneDir, String.format("%04d.bcl.bgzf", i + 1));
+                bcls[i] = new BlockCompressedOutputStream(bclFiles[i]);
+                bcls[i].write(header(clustersPerLane));
+                tilePointers.add(new ArrayList<Long>(tilesPerLane));
+            }
+        }
+
+        public void startTile(final int tile) throws IOException {
+            tiles.add(tile);
+            for (int i = 0; i < bcls.length; ++i) {
+                bcls[i].flush();
+                tilePointers.get(i).add(bcls[i].getFilePointer());
+            }
+        }
+
+        public void writeFilter(final byte[] pf) throws IOException {
+            filter.write(pf);
+        }
+
+        public void writeLocs(final byte[] locs) throws IOException {
+            this.locs.write(locs);
+        }
+
+        public void writeBcl(final int cycle, final byte[] bcl) throws IOException {
+            bcls[cycle - 1].write(bcl);
+        }
+
+        public void close() throws IOException {
+            CloserUtil.close(filter);
+            CloserUtil.close(locs);
+            for (final BlockCompressedOutputStream bcl : bcls) {
+                CloserUtil.close(bcl);
+            }
+
+            final ByteBuffer tileIndex = ByteBuffer.allocate(8 * tiles.size()).order(ByteOrder.LITTLE_ENDIAN);
+            for (final int tile : tiles) {
+                tileIndex.putInt(tile).putInt(clustersPerTile);
+            }
+            writeFile(new File(basecallsLaneDir, "s_" + lane + ".bci"), false, new byte[0], tileIndex.array());
+
+            for (int i = 0; i < bclFiles.length; ++i) {
+                final ByteBuffer bclIndex = ByteBuffer.allocate(8 * tiles.size()).order(ByteOrder.LITTLE_ENDIAN);
+                for (final long pointer : tilePointers.get(i)) {
+                    bclIndex.putLong(pointer);
+                }
+                writeFile(new File(bclFiles[i].getPath() + ".bci"), false, header(0, tiles.size()), bclIndex.array());
+            }
+        }
+    }
+
+    private static byte[] filterHeader(final int numClusters) {
+        return header(0, 3, numClusters);
+    }
+
+    private static byte[] locsHeader(final int numClusters) {
+        final ByteBuffer locsHeader = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        locsHeader.putInt(1).putFloat(1.0f).putInt(numClusters);
+        return locsHeader.array();
+    }
+
+    private static int baseIndex(final char base) {
+        for (int i = 0; i < BASES.length; ++i) {
+            if (BASES[i] == Character.toUpperCase(base)) return i;
+        }
+        throw new PicardException("Barcodes may only hold A, C, G and T, not " + base);
+    }
+
+    private static byte[] header(final int... values) {
+        final ByteBuffer header = ByteBuffer.allocate(4 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (final int value : values) {
+            header.putInt(value);
+        }
+        return header.array();
+    }
+
+    private static void writeFile(final File file, final boolean gzip, final byte[] header, final byte[] body)
+            throws IOException {
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            if (gzip) outputStream = new GZIPOutputStream(outputStream);
+            outputStream.write(header);
+            outputStream.write(body);
+        } finally {
+            CloserUtil.close(outputStream);
+        }
+    }
+
+    private static void mkdirs(final File dir) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new PicardException("Could not create directory " + dir.getAbsolutePath());
+        }
+    }
+}
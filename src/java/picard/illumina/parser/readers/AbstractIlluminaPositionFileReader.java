@@ -71,12 +71,7 @@ public abstract class AbstractIlluminaPositionFileReader implements CloseableIte
         public final int yQseqCoord;
 
         public PositionInfo(final float x, final float y, final int lane, final int tile) {
-            if(x < MIN_POS || y < MIN_POS || x > MAX_POS || y > MAX_POS) {
-
-                throw new IllegalArgumentException(
-                        String.format("Cluster location not in the range %f..%f. x: %f; y: %f; lane: %d; tile: %d",
-                                MIN_POS, MAX_POS, x, y, lane, tile));
-            }
+            checkPosition(x, y, lane, tile);
 
             this.xPos = x;
             this.yPos = y;
@@ -86,11 +81,6 @@ public abstract class AbstractIlluminaPositionFileReader implements CloseableIte
             this.tile = tile;
         }
 
-        /** Convert a value in float form as it occurs in pos,locs,and clocs files into integer as it is found in QSeqs */
-        private int posToQSeqCoord(final float pos) {
-            return Math.round(pos * 10 + 1000);
-        }
-
         public boolean equals(final Object other) {
             if(other == null || other.getClass() != AbstractIlluminaPositionFileReader.PositionInfo.class) {
                 return false;
@@ -103,6 +93,20 @@ public abstract class AbstractIlluminaPositionFileReader implements CloseableIte
         }
     }
 
+    /** Convert a value in float form as it occurs in pos,locs,and clocs files into integer as it is found in QSeqs */
+    public static int posToQSeqCoord(final float pos) {
+        return Math.round(pos * 10 + 1000);
+    }
+
+    private static void checkPosition(final float x, final float y, final int lane, final int tile) {
+        if(x < MIN_POS || y < MIN_POS || x > MAX_POS || y > MAX_POS) {
+
+            throw new IllegalArgumentException(
+                    String.format("Cluster location not in the range %f..%f. x: %f; y: %f; lane: %d; tile: %d",
+                            MIN_POS, MAX_POS, x, y, lane, tile));
+        }
+    }
+
     //Note: Perhaps use the IlluminaFileUtil to do this part
     private static final Pattern FileNamePattern = Pattern.compile("^s_(\\d+)_(\\d+)(_pos\\.txt|\\.locs|\\.clocs|_pos\\.txt.gz|_pos\\.txt.bz2)$");
 
@@ -110,6 +114,10 @@ public abstract class AbstractIlluminaPositionFileReader implements CloseableIte
     private final int lane;
     private final int tile;
 
+    /** Scratch space for nextQseqCoords() */
+    private float[] xScratch = new float[0];
+    private float[] yScratch = new float[0];
+
     public AbstractIlluminaPositionFileReader(final File file) {
         this.file = file;
 
@@ -161,10 +169,59 @@ public abstract class AbstractIlluminaPositionFileReader implements CloseableIte
         return unsafeNextInfo();
     }
 
+    /**
+     * Decodes up to length of the following positions into xs and ys, starting at offset, without creating a
+     * PositionInfo for each.  The positions are checked just as PositionInfo checks them.
+     *
+     * @return The number of positions decoded, which is less than length only if there are no more.
+     */
+    public int nextPositions(final float[] xs, final float[] ys, final int offset, final int length) {
+        int numDecoded = 0;
+        while (numDecoded < length && hasNext()) {
+            final int n = unsafeNextPositions(xs, ys, offset + numDecoded, length - numDecoded);
+            if (n == 0) break;
+            numDecoded += n;
+        }
+        for (int i = offset; i < offset + numDecoded; ++i) {
+            checkPosition(xs[i], ys[i], lane, tile);
+        }
+        return numDecoded;
+    }
+
+    /**
+     * As nextPositions(), but decodes the QSeq-style integer coordinates of PositionInfo.xQseqCoord and yQseqCoord.
+     */
+    public int nextQseqCoords(final int[] xs, final int[] ys, final int offset, final int length) {
+        if (xScratch.length < length) {
+            xScratch = new float[length];
+            yScratch = new float[length];
+        }
+        final int numDecoded = nextPositions(xScratch, yScratch, 0, length);
+        for (int i = 0; i < numDecoded; ++i) {
+            xs[offset + i] = posToQSeqCoord(xScratch[i]);
+            ys[offset + i] = posToQSeqCoord(yScratch[i]);
+        }
+        return numDecoded;
+    }
+
     /** Returns the next position info.  Implementations of this method do not need to call hasNext since
      * it is called in next() */
     protected abstract PositionInfo unsafeNextInfo();
 
+    /**
+     * Decodes at least one and up to length of the following positions into xs and ys, starting at offset.
+     * Implementations of this method do not need to call hasNext or check the positions since nextPositions() does.
+     * This implementation decodes one position via unsafeNextInfo(); subclasses should decode in bulk.
+     *
+     * @return The number of positions decoded.
+     */
+    protected int unsafeNextPositions(final float[] xs, final float[] ys, final int offset, final int length) {
+        final PositionInfo positionInfo = unsafeNextInfo();
+        xs[offset] = positionInfo.xPos;
+        ys[offset] = positionInfo.yPos;
+        return 1;
+    }
+
     /** Create a string that will be included in any NoSuchElementException thrown by the next() method */
     protected abstract String makeExceptionMsg();
 
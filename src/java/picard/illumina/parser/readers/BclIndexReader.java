@@ -37,14 +37,14 @@ public class BclIndexReader {
     private static final int BCI_HEADER_SIZE = 8;
     private static final int BCI_VERSION = 0;
 
-    private final BinaryFileIterator<Long> bciIterator;
+    private final MMapBackedCursor.LongCursor bciIterator;
     private final int numTiles;
     private final File bciFile;
     private int nextRecordNumber = 0;
 
     public BclIndexReader(final File bclFile) {
         bciFile = new File(bclFile.getAbsolutePath() + ".bci");
-        bciIterator = MMapBackedIteratorFactory.getLongIterator(BCI_HEADER_SIZE, bciFile);
+        bciIterator = MMapBackedIteratorFactory.getLongCursor(BCI_HEADER_SIZE, bciFile);
         final ByteBuffer headerBytes = bciIterator.getHeaderBytes();
         final int actualVersion = headerBytes.getInt();
         if (actualVersion != BCI_VERSION) {
@@ -66,7 +66,7 @@ public class BclIndexReader {
             nextRecordNumber = recordNumber;
         }
         ++nextRecordNumber;
-        return bciIterator.getElement();
+        return bciIterator.nextLong();
     }
 
     public File getBciFile() {
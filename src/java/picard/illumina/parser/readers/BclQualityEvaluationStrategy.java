@@ -3,12 +3,14 @@ package picard.illumina.parser.readers;
 import htsjdk.samtools.util.CollectionUtil;
 import picard.PicardException;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Describes a mechanism for revising and evaluating qualities read from a BCL file.  This class accumulates observations about low quality
@@ -27,15 +29,34 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class BclQualityEvaluationStrategy {
     public static final int ILLUMINA_ALLEGED_MINIMUM_QUALITY = 2;
+
+    /** The revised value of every quality, indexed by the quality as an unsigned byte. */
+    private static final byte[] REVISED_QUALITIES = new byte[256];
+    static {
+        for (int i = 0; i < REVISED_QUALITIES.length; ++i) {
+            REVISED_QUALITIES[i] = generateRevisedQuality((byte) i);
+        }
+    }
+
     private final int minimumRevisedQuality;
-    /** A thread-safe defaulting map that injects an AtomicInteger starting at 0 when a uninitialized key is get-ted. */
-    private Map<Byte, AtomicInteger> qualityCountMap = Collections.synchronizedMap(new CollectionUtil.DefaultingMap<Byte, AtomicInteger>(
-            new CollectionUtil.DefaultingMap.Factory<AtomicInteger, Byte>() {
-                @Override
-                public AtomicInteger make(final Byte _) {
-                    return new AtomicInteger(0);
-                }
-            }, true));
+
+    /**
+     * Each thread counts the low qualities it observes in its own array, indexed by the quality as an unsigned byte, so that
+     * threads decoding BCLs concurrently never contend for a lock or a cache line.  The arrays are summed when the counts are
+     * read, which must be after the threads that observed the qualities have finished with this instance (e.g. after the
+     * executor running them has terminated), since the per-thread counts are not otherwise published.
+     */
+    private final List<long[]> threadQualityCounts = new ArrayList<long[]>();
+    private final ThreadLocal<long[]> qualityCounts = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            final long[] counts = new long[256];
+            synchronized (threadQualityCounts) {
+                threadQualityCounts.add(counts);
+            }
+            return counts;
+        }
+    };
 
     /**
      * @param minimumRevisedQuality The minimum quality that should be seen from revised qualities; controls whether or not an exception
@@ -56,11 +77,27 @@ public class BclQualityEvaluationStrategy {
      * @return The revised new quality score
      */
     public byte reviseAndConditionallyLogQuality(final byte quality) {
-        final byte revisedQuality = generateRevisedQuality(quality);
         if (quality < ILLUMINA_ALLEGED_MINIMUM_QUALITY) {
-            qualityCountMap.get(quality).incrementAndGet();
+            ++qualityCounts.get()[quality & 0xFF];
+        }
+        return REVISED_QUALITIES[quality & 0xFF];
+    }
+
+    /** @return The number of times each low quality has been observed, summed over all threads, for those observed at all. */
+    private Map<Byte, Long> sumQualityCounts() {
+        final long[] totals = new long[256];
+        synchronized (threadQualityCounts) {
+            for (final long[] counts : threadQualityCounts) {
+                for (int i = 0; i < totals.length; ++i) {
+                    totals[i] += counts[i];
+                }
+            }
+        }
+        final Map<Byte, Long> qualityCountMap = new LinkedHashMap<Byte, Long>();
+        for (int i = 0; i < totals.length; ++i) {
+            if (totals[i] > 0) qualityCountMap.put((byte) i, totals[i]);
         }
-        return revisedQuality;
+        return qualityCountMap;
     }
 
     /**
@@ -68,7 +105,7 @@ public class BclQualityEvaluationStrategy {
      */
     public void assertMinimumQualities() {
         final Collection<String> errorTokens = new LinkedList<String>();
-        for (final Map.Entry<Byte, AtomicInteger> entry : this.qualityCountMap.entrySet()) {
+        for (final Map.Entry<Byte, Long> entry : sumQualityCounts().entrySet()) {
             /**
              * We're comparing revised qualities here, not observed, but the qualities that are logged in qualityCountMap are observed
              * qualities.  So as we iterate through it, convert observed qualities into their revised value. 
@@ -91,7 +128,7 @@ public class BclQualityEvaluationStrategy {
      */
     public Map<Byte, Integer> getPoorQualityFrequencies() {
         final Map<Byte, Integer> qualityCountMapCopy = new HashMap<Byte, Integer>();
-        for (final Map.Entry<Byte, AtomicInteger> entry : qualityCountMap.entrySet()) {
+        for (final Map.Entry<Byte, Long> entry : sumQualityCounts().entrySet()) {
             qualityCountMapCopy.put(entry.getKey(), entry.getValue().intValue());
         }
         return Collections.unmodifiableMap(qualityCountMapCopy);
@@ -31,6 +31,7 @@ import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.RuntimeIOException;
 import picard.PicardException;
 import picard.illumina.parser.BclData;
+import picard.illumina.parser.ClusterDataBatch;
 import picard.illumina.parser.TileIndex;
 import picard.util.UnsignedTypeUtil;
 
@@ -71,21 +72,68 @@ import java.util.zip.GZIPInputStream;
  * 34          T
  * <p/>
  * So the output base/quality will be a (T/34)
+ * <p/>
+ * Clusters are decoded in blocks: up to clustersPerBlock bytes are read from every cycle file at once and translated through
+ * 256-entry base and quality lookup tables into reusable, cycle-major byte arrays.  The {@link CloseableIterator} methods are
+ * a view on top of the current block; callers that can consume whole blocks may use {@link #nextBlock()} instead and avoid
+ * the per-cluster {@link BclData} altogether, and {@link #nextClusters(ClusterDataBatch, int, int)} decodes clusters
+ * straight into a {@link ClusterDataBatch}.
  */
 public class BclReader implements CloseableIterator<BclData> {
     private static final byte BASE_MASK = 0x0003;
-    private static final int HEADER_SIZE = 4;
+    public static final int HEADER_SIZE = 4;
     private static final byte[] BASE_LOOKUP = new byte[]{'A', 'C', 'G', 'T'};
+    private static final byte NO_CALL_BASE = (byte) '.';
+    private static final byte NO_CALL_QUALITY = (byte) 2;
+
+    /** The default number of clusters decoded from each cycle file per block. */
+    public static final int DEFAULT_CLUSTERS_PER_BLOCK = 4096;
+
+    /**
+     * Any non-zero BCL byte below this value carries a raw quality below {@link BclQualityEvaluationStrategy#ILLUMINA_ALLEGED_MINIMUM_QUALITY}
+     * and must be passed through the quality evaluation strategy so that it is revised and counted.
+     */
+    private static final int LOW_QUALITY_BYTE_LIMIT = BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY << 2;
+
+    /** Maps an unsigned BCL byte to its base, with 0 mapping to a no-call. */
+    private static final byte[] BASE_TABLE = new byte[256];
+    /** Maps an unsigned BCL byte to its quality, with 0 mapping to the no-call quality. */
+    private static final byte[] QUALITY_TABLE = new byte[256];
+
+    static {
+        BASE_TABLE[0] = NO_CALL_BASE;
+        QUALITY_TABLE[0] = NO_CALL_QUALITY;
+        for (int i = 1; i < 256; ++i) {
+            BASE_TABLE[i] = BASE_LOOKUP[i & BASE_MASK];
+            QUALITY_TABLE[i] = (byte) (i >>> 2);
+        }
+    }
 
     private final InputStream[] streams;
     private final int[] outputLengths;
     int[] numClustersPerCycle;
 
     private final BclQualityEvaluationStrategy bclQualityEvaluationStrategy;
-    private BclData queue = null;
+
+    /** Raw bytes of one cycle's portion of the current block, reused for every cycle. */
+    private byte[] rawBlock;
+    /** Decoded bases and qualities of the current block, indexed by [cycle][cluster]. */
+    private byte[][] blockBases;
+    private byte[][] blockQualities;
+    /** The number of clusters held in the current block, and the index of the next one to be returned by {@link #next()}. */
+    private int blockSize = 0;
+    private int blockOffset = 0;
+    /** The index of the first cluster made available by the latest call to {@link #nextBlock()}. */
+    private int blockStart = 0;
 
     public BclReader(final List<File> bclsForOneTile, final int[] outputLengths,
                      final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final boolean seekable) {
+        this(bclsForOneTile, outputLengths, bclQualityEvaluationStrategy, seekable, DEFAULT_CLUSTERS_PER_BLOCK);
+    }
+
+    public BclReader(final List<File> bclsForOneTile, final int[] outputLengths,
+                     final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final boolean seekable,
+                     final int clustersPerBlock) {
         try {
             this.bclQualityEvaluationStrategy = bclQualityEvaluationStrategy;
             this.outputLengths = outputLengths;
@@ -96,6 +144,7 @@ public class BclReader implements CloseableIterator<BclData> {
             }
             this.streams = new InputStream[cycles];
             this.numClustersPerCycle = new int[cycles];
+            allocateBlock(cycles, clustersPerBlock);
 
             final ByteBuffer byteBuffer = ByteBuffer.allocate(HEADER_SIZE);
             byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
@@ -176,6 +225,7 @@ public class BclReader implements CloseableIterator<BclData> {
             this.streams = new InputStream[1];
             this.numClustersPerCycle = new int[]{1};
             this.bclQualityEvaluationStrategy = bclQualityEvaluationStrategy;
+            allocateBlock(1, DEFAULT_CLUSTERS_PER_BLOCK);
 
             final ByteBuffer byteBuffer = ByteBuffer.allocate(HEADER_SIZE);
             final String filePath = bclFile.getName();
@@ -199,6 +249,15 @@ public class BclReader implements CloseableIterator<BclData> {
         }
     }
 
+    private void allocateBlock(final int cycles, final int clustersPerBlock) {
+        if (clustersPerBlock < 1) {
+            throw new IllegalArgumentException("clustersPerBlock must be positive but was " + clustersPerBlock);
+        }
+        this.rawBlock = new byte[clustersPerBlock];
+        this.blockBases = new byte[cycles][clustersPerBlock];
+        this.blockQualities = new byte[cycles][clustersPerBlock];
+    }
+
     void assertProperFileStructure(final File file, final int numClusters, final InputStream stream) {
         final long elementsInFile = file.length() - HEADER_SIZE;
         if (numClusters != elementsInFile) {
@@ -247,10 +306,7 @@ public class BclReader implements CloseableIterator<BclData> {
 
     @Override
     public boolean hasNext() {
-        if (queue == null) {
-            advance();
-        }
-        return queue != null;
+        return blockOffset < blockSize || readBlock() > 0;
     }
 
     private long getNumClusters() {
@@ -266,12 +322,22 @@ public class BclReader implements CloseableIterator<BclData> {
     }
 
     public BclData next() {
-        if (queue == null) {
-            advance();
+        if (!hasNext()) {
+            return null;
         }
 
-        final BclData data = queue;
-        queue = null;
+        final BclData data = new BclData(outputLengths);
+        int totalCycleCount = 0;
+        for (int read = 0; read < outputLengths.length; read++) {
+            final byte[] bases = data.bases[read];
+            final byte[] qualities = data.qualities[read];
+            for (int cycle = 0; cycle < outputLengths[read]; ++cycle) {
+                bases[cycle] = blockBases[totalCycleCount][blockOffset];
+                qualities[cycle] = blockQualities[totalCycleCount][blockOffset];
+                totalCycleCount++;
+            }
+        }
+        ++blockOffset;
         return data;
     }
 
@@ -280,34 +346,146 @@ public class BclReader implements CloseableIterator<BclData> {
         throw new UnsupportedOperationException();
     }
 
-    void advance() {
-        int totalCycleCount = 0;
-        final BclData data = new BclData(outputLengths);
-        for (int read = 0; read < outputLengths.length; read++) {
-            for (int cycle = 0; cycle < outputLengths[read]; ++cycle) {
-                try {
-                    final int readByte = this.streams[totalCycleCount].read();
-                    if (readByte == -1) {
-                        queue = null;
-                        return;
-                    }
+    /**
+     * Makes the next block of decoded clusters available through {@link #getBlockBases()} and {@link #getBlockQualities()}.
+     * If clusters of the current block have not yet been returned by {@link #next()}, those are the ones made available and
+     * they start at {@link #getBlockOffset()}; otherwise a new block is decoded starting at offset 0.  Either way, every cluster
+     * made available is considered consumed and will not be returned by {@link #next()}.
+     *
+     * @return The index one past the last valid cluster in the block arrays, or 0 if there are no more clusters.
+     */
+    public int nextBlock() {
+        if (blockOffset >= blockSize) {
+            readBlock();
+        }
+        blockStart = blockOffset;
+        blockOffset = blockSize;
+        return blockSize;
+    }
 
-                    if (readByte == 0) {
-                        //NO CALL, don't confuse with an A call
-                        data.bases[read][cycle] = (byte) '.';
-                        data.qualities[read][cycle] = (byte) 2;
-                    } else {
-                        data.bases[read][cycle] = BASE_LOOKUP[readByte & BASE_MASK];
-                        data.qualities[read][cycle] = bclQualityEvaluationStrategy.reviseAndConditionallyLogQuality((byte) (readByte >>> 2));
-                    }
-                    totalCycleCount++;
-                } catch (final IOException ioe) {
-                    throw new RuntimeIOException(ioe);
+    /** The index of the first cluster made available by the latest call to {@link #nextBlock()}. */
+    public int getBlockOffset() {
+        return blockStart;
+    }
+
+    /**
+     * Decoded bases of the current block, indexed by [cycle][cluster] where cycles are numbered across all output reads.  The
+     * arrays are reused and overwritten by the next block.
+     */
+    public byte[][] getBlockBases() {
+        return blockBases;
+    }
+
+    /** Decoded and revised qualities of the current block, laid out like {@link #getBlockBases()}. */
+    public byte[][] getBlockQualities() {
+        return blockQualities;
+    }
+
+    /**
+     * Decodes up to maxClusters of the following clusters straight into the base and quality arrays of the batch, from
+     * cluster index start onwards, without going through BclData or the block arrays.  Clusters of the current block
+     * that have not yet been returned are copied from there first.
+     *
+     * @return The number of clusters written, 0 if there are no more clusters.
+     */
+    public int nextClusters(final ClusterDataBatch batch, final int start, final int maxClusters) {
+        if (blockOffset < blockSize) {
+            return copyBlock(batch, start, maxClusters);
+        }
+
+        int clusters = Math.min(maxClusters, rawBlock.length);
+        int cycle = 0;
+        for (int read = 0; read < outputLengths.length && clusters > 0; ++read) {
+            final int readLength = outputLengths[read];
+            final int offset = batch.getReadOffset(read, start);
+            for (int cycleInRead = 0; cycleInRead < readLength && clusters > 0; ++cycleInRead, ++cycle) {
+                final int numRead = readFully(streams[cycle], rawBlock, clusters);
+                clusters = Math.min(clusters, numRead);
+                decode(rawBlock, batch.getBases(read), batch.getQualities(read), offset + cycleInRead, readLength, numRead);
+            }
+        }
+        return clusters;
+    }
+
+    /** Copies up to maxClusters of the clusters remaining in the current block into the batch. */
+    private int copyBlock(final ClusterDataBatch batch, final int start, final int maxClusters) {
+        final int clusters = Math.min(maxClusters, blockSize - blockOffset);
+        int cycle = 0;
+        for (int read = 0; read < outputLengths.length; ++read) {
+            final int readLength = outputLengths[read];
+            final byte[] bases = batch.getBases(read);
+            final byte[] qualities = batch.getQualities(read);
+            for (int cycleInRead = 0; cycleInRead < readLength; ++cycleInRead, ++cycle) {
+                final byte[] cycleBases = blockBases[cycle];
+                final byte[] cycleQualities = blockQualities[cycle];
+                int index = batch.getReadOffset(read, start) + cycleInRead;
+                for (int cluster = blockOffset; cluster < blockOffset + clusters; ++cluster, index += readLength) {
+                    bases[index] = cycleBases[cluster];
+                    qualities[index] = cycleQualities[cluster];
                 }
+            }
+        }
+        blockOffset += clusters;
+        return clusters;
+    }
 
+    /** Discards any buffered clusters, e.g. because the underlying streams have been repositioned. */
+    private void discardBlock() {
+        blockSize = 0;
+        blockOffset = 0;
+        blockStart = 0;
+    }
+
+    /**
+     * Reads up to clustersPerBlock bytes from every cycle file and decodes them into the block arrays.  If the cycle files
+     * end at different points, only the clusters present in every cycle are kept.
+     *
+     * @return The number of clusters in the new block, 0 if any of the cycle files is exhausted.
+     */
+    private int readBlock() {
+        int clusters = rawBlock.length;
+        for (int cycle = 0; cycle < streams.length && clusters > 0; ++cycle) {
+            final int read = readFully(streams[cycle], rawBlock, clusters);
+            clusters = Math.min(clusters, read);
+            decode(rawBlock, blockBases[cycle], blockQualities[cycle], 0, 1, read);
+        }
+        blockSize = clusters;
+        blockOffset = 0;
+        blockStart = 0;
+        return clusters;
+    }
+
+    /**
+     * Translates raw BCL bytes into bases and qualities using the lookup tables, writing the i-th of them at
+     * offset + i * stride.
+     */
+    private void decode(final byte[] raw, final byte[] bases, final byte[] qualities, final int offset, final int stride,
+                        final int length) {
+        for (int i = 0, index = offset; i < length; ++i, index += stride) {
+            final int value = raw[i] & 0xFF;
+            bases[index] = BASE_TABLE[value];
+            if (value == 0 || value >= LOW_QUALITY_BYTE_LIMIT) {
+                qualities[index] = QUALITY_TABLE[value];
+            } else {
+                qualities[index] = bclQualityEvaluationStrategy.reviseAndConditionallyLogQuality(QUALITY_TABLE[value]);
             }
         }
-        this.queue = data;
+    }
+
+    private static int readFully(final InputStream stream, final byte[] buffer, final int length) {
+        int total = 0;
+        try {
+            while (total < length) {
+                final int read = stream.read(buffer, total, length - total);
+                if (read == -1) {
+                    break;
+                }
+                total += read;
+            }
+        } catch (final IOException ioe) {
+            throw new RuntimeIOException(ioe);
+        }
+        return total;
     }
 
     public static BclReader makeSeekable(final List<File> files, final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final int[] outputLengths) {
@@ -330,6 +508,7 @@ public class BclReader implements CloseableIterator<BclData> {
                                 tileIndex.getFile().getAbsolutePath(), tileIndex.getNumTiles(), bclIndexReader.getBciFile().getAbsolutePath(), bclIndexReader.getNumTiles()));
                     }
                     ((BlockCompressedInputStream) inputStream).seek(virtualFilePointer);
+                    discardBlock();
                     numClustersInTile = tileIndexRecord.getNumClustersInTile();
                 } catch (final IOException e) {
                     throw new PicardException("Problem seeking to " + virtualFilePointer, e);
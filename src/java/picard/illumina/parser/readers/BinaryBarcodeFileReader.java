@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser.readers;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.StringUtil;
+import picard.PicardException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a single binary barcode file, as written by BinaryBarcodeFileWriter, and returns the barcode if there was a
+ * match or NULL otherwise, like BarcodeFileReader does for the text format.
+ *
+ * Binary barcode file format (little-endian):
+ * Header
+ * Bytes 0-3   : Magic number "PBCB"
+ * Bytes 4-7   : unsigned int version (1)
+ * Bytes 8-11  : unsigned int number of barcodes, n
+ * Then for each of the n barcodes:
+ *     unsigned int length, followed by that many bytes of the barcode sequence(s) concatenated
+ *
+ * Then any number of blocks, until end of file, each consisting of:
+ *     unsigned int number of records in the block
+ *     unsigned int number of compressed bytes that follow
+ *     the block's records, compressed with java.util.zip.Deflater
+ *
+ * Each record is RECORD_SIZE bytes and describes one cluster:
+ *     unsigned short barcode ordinal - index of the best barcode in the header, or NO_BARCODE if none was close
+ *     byte matched                   - 1 if the cluster matched the barcode, 0 otherwise
+ *     unsigned byte mismatches       - mismatches to the best barcode, capped at 255
+ *     unsigned byte mismatches to second best barcode, capped at 255
+ *
+ * The file is memory mapped and each block is inflated as it is reached.
+ */
+public class BinaryBarcodeFileReader implements CloseableIterator<String> {
+    public static final byte[] MAGIC = {'P', 'B', 'C', 'B'};
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 5;
+    public static final int NO_BARCODE = 0xFFFF;
+    public static final int MAX_MISMATCHES = 0xFF;
+
+    private final File file;
+    private final FileInputStream inputStream;
+    private final MappedByteBuffer buffer;
+    private final String[] barcodes;
+    private final Inflater inflater = new Inflater();
+    private byte[] compressedBlock = new byte[0];
+    private ByteBuffer block = ByteBuffer.allocate(0);
+
+    // Fields of the record most recently returned by next()
+    private int barcodeOrdinal;
+    private boolean matched;
+    private int mismatches;
+    private int mismatchesToSecondBest;
+
+    public BinaryBarcodeFileReader(final File file) {
+        this.file = file;
+        try {
+            inputStream = new FileInputStream(file);
+            final FileChannel channel = inputStream.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            final byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            for (int i = 0; i < MAGIC.length; ++i) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new PicardException("Binary barcode file " + file.getAbsolutePath() + " does not start with the expected magic number.");
+                }
+            }
+            final int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new PicardException("Unexpected version " + version + " in binary barcode file " + file.getAbsolutePath());
+            }
+            barcodes = new String[buffer.getInt()];
+            for (int i = 0; i < barcodes.length; ++i) {
+                final byte[] bases = new byte[buffer.getInt()];
+                buffer.get(bases);
+                barcodes[i] = StringUtil.bytesToString(bases);
+            }
+        } catch (final IOException e) {
+            throw new PicardException("IOException opening binary barcode file " + file.getAbsolutePath(), e);
+        } catch (final BufferUnderflowException e) {
+            throw new PicardException("Binary barcode file " + file.getAbsolutePath() + " has a truncated header.", e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return block.hasRemaining() || readBlock();
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        barcodeOrdinal = block.getShort() & 0xFFFF;
+        matched = block.get() != 0;
+        mismatches = block.get() & 0xFF;
+        mismatchesToSecondBest = block.get() & 0xFF;
+        return matched ? barcodes[barcodeOrdinal] : null;
+    }
+
+    /** @return The barcodes listed in the header, in ordinal order. */
+    public String[] getBarcodes() {
+        return barcodes;
+    }
+
+    /** @return The ordinal of the best barcode for the record last returned by next(), or NO_BARCODE. */
+    public int getBarcodeOrdinal() {
+        return barcodeOrdinal;
+    }
+
+    public boolean isMatched() {
+        return matched;
+    }
+
+    public int getMismatches() {
+        return mismatches;
+    }
+
+    public int getMismatchesToSecondBest() {
+        return mismatchesToSecondBest;
+    }
+
+    private boolean readBlock() {
+        if (!buffer.hasRemaining()) return false;
+        try {
+            final int numRecords = buffer.getInt();
+            final int compressedLength = buffer.getInt();
+            if (compressedBlock.length < compressedLength) compressedBlock = new byte[compressedLength];
+            buffer.get(compressedBlock, 0, compressedLength);
+
+            if (block.capacity() < numRecords * RECORD_SIZE) {
+                block = ByteBuffer.allocate(numRecords * RECORD_SIZE);
+                block.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            block.clear();
+            block.limit(numRecords * RECORD_SIZE);
+
+            inflater.reset();
+            inflater.setInput(compressedBlock, 0, compressedLength);
+            int inflated = 0;
+            while (inflated < block.limit()) {
+                final int n = inflater.inflate(block.array(), inflated, block.limit() - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new PicardException("Binary barcode file " + file.getAbsolutePath() + " has a corrupt block.");
+                }
+                inflated += n;
+            }
+        } catch (final BufferUnderflowException e) {
+            throw new PicardException("Binary barcode file " + file.getAbsolutePath() + " is truncated.", e);
+        } catch (final DataFormatException e) {
+            throw new PicardException("Binary barcode file " + file.getAbsolutePath() + " has a corrupt block.", e);
+        }
+        return block.hasRemaining() || readBlock();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Remove is not supported by " + BinaryBarcodeFileReader.class.getName());
+    }
+
+    public void close() {
+        inflater.end();
+        CloserUtil.close(inputStream);
+    }
+}
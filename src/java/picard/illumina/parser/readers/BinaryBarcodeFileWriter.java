@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser.readers;
+
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.StringUtil;
+import picard.PicardException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the binary barcode file format described in BinaryBarcodeFileReader.  Records are buffered and compressed
+ * RECORDS_PER_BLOCK at a time.
+ */
+public class BinaryBarcodeFileWriter {
+    public static final int RECORDS_PER_BLOCK = 64 * 1024;
+
+    private final File file;
+    private final OutputStream outputStream;
+    private final int numBarcodes;
+    private final ByteBuffer block = ByteBuffer.allocate(RECORDS_PER_BLOCK * BinaryBarcodeFileReader.RECORD_SIZE);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] compressedBlock = new byte[block.capacity() + block.capacity() / 2 + 64];
+    private final ByteBuffer blockHeader = ByteBuffer.allocate(8);
+
+    /**
+     * @param file     The file to create.
+     * @param barcodes The barcodes that record ordinals refer to, with the sequences of multiple barcode reads concatenated.
+     */
+    public BinaryBarcodeFileWriter(final File file, final List<String> barcodes) {
+        if (barcodes.size() >= BinaryBarcodeFileReader.NO_BARCODE) {
+            throw new PicardException("Too many barcodes for the binary barcode file format: " + barcodes.size());
+        }
+        this.file = file;
+        this.outputStream = IOUtil.openFileForWriting(file);
+        this.numBarcodes = barcodes.size();
+        block.order(ByteOrder.LITTLE_ENDIAN);
+        blockHeader.order(ByteOrder.LITTLE_ENDIAN);
+
+        int headerSize = BinaryBarcodeFileReader.MAGIC.length + 8;
+        for (final String barcode : barcodes) headerSize += 4 + barcode.length();
+        final ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.put(BinaryBarcodeFileReader.MAGIC);
+        header.putInt(BinaryBarcodeFileReader.VERSION);
+        header.putInt(barcodes.size());
+        for (final String barcode : barcodes) {
+            header.putInt(barcode.length());
+            header.put(StringUtil.stringToBytes(barcode));
+        }
+        write(header.array(), header.position());
+    }
+
+    /**
+     * Appends the record for the next cluster.
+     * @param barcodeOrdinal         Index of the best barcode, or -1 if there is none.
+     * @param matched                Whether the cluster was assigned to the barcode.
+     * @param mismatches             Mismatches to the best barcode; capped at BinaryBarcodeFileReader.MAX_MISMATCHES.
+     * @param mismatchesToSecondBest Mismatches to the second best barcode; capped in the same way.
+     */
+    public void write(final int barcodeOrdinal, final boolean matched, final int mismatches, final int mismatchesToSecondBest) {
+        if (barcodeOrdinal < -1 || barcodeOrdinal >= numBarcodes) {
+            throw new PicardException("Barcode ordinal " + barcodeOrdinal + " out of range for " + file.getAbsolutePath());
+        }
+        if (matched && barcodeOrdinal == -1) {
+            throw new PicardException("A matched record requires a barcode in " + file.getAbsolutePath());
+        }
+        block.putShort((short) (barcodeOrdinal == -1 ? BinaryBarcodeFileReader.NO_BARCODE : barcodeOrdinal));
+        block.put((byte) (matched ? 1 : 0));
+        block.put((byte) Math.min(mismatches, BinaryBarcodeFileReader.MAX_MISMATCHES));
+        block.put((byte) Math.min(mismatchesToSecondBest, BinaryBarcodeFileReader.MAX_MISMATCHES));
+        if (!block.hasRemaining()) flushBlock();
+    }
+
+    public void close() {
+        try {
+            flushBlock();
+        } finally {
+            deflater.end();
+            CloserUtil.close(outputStream);
+        }
+    }
+
+    private void flushBlock() {
+        if (block.position() == 0) return;
+        deflater.reset();
+        deflater.setInput(block.array(), 0, block.position());
+        deflater.finish();
+        final int compressedLength = deflater.deflate(compressedBlock);
+        if (!deflater.finished()) {
+            throw new PicardException("Compressed barcode block unexpectedly large in " + file.getAbsolutePath());
+        }
+
+        blockHeader.clear();
+        blockHeader.putInt(block.position() / BinaryBarcodeFileReader.RECORD_SIZE);
+        blockHeader.putInt(compressedLength);
+        write(blockHeader.array(), blockHeader.position());
+        write(compressedBlock, compressedLength);
+        block.clear();
+    }
+
+    private void write(final byte[] bytes, final int length) {
+        try {
+            outputStream.write(bytes, 0, length);
+        } catch (final IOException e) {
+            throw new PicardException("Error writing binary barcode file " + file.getAbsolutePath(), e);
+        }
+    }
+}
@@ -70,7 +70,10 @@ public class ClocsFileReader extends AbstractIlluminaPositionFileReader {
     private final long numBins;
 
     /** An iterator through clocsFile's bytes */
-    private final BinaryFileIterator<Byte> byteIterator;
+    private final MMapBackedCursor.ByteCursor byteIterator;
+
+    /** Interleaved x and y bytes read in bulk by unsafeNextPositions(); a bin holds at most 255 clusters */
+    private final byte[] xyScratch = new byte[2 * 255];
 
     //mutable vars
     private float xOffset;
@@ -82,7 +85,7 @@ public class ClocsFileReader extends AbstractIlluminaPositionFileReader {
     public ClocsFileReader(final File clocsFile) {
         super(clocsFile);
 
-        byteIterator = MMapBackedIteratorFactory.getByteIterator(HEADER_SIZE, clocsFile);
+        byteIterator = MMapBackedIteratorFactory.getByteCursor(HEADER_SIZE, clocsFile);
 
         final ByteBuffer hbs = byteIterator.getHeaderBytes();
         hbs.get(); //unusedByte
@@ -102,8 +105,8 @@ public class ClocsFileReader extends AbstractIlluminaPositionFileReader {
      */
     @Override
     protected PositionInfo unsafeNextInfo() {
-        final byte xByte = byteIterator.next();
-        final byte yByte = byteIterator.next();
+        final byte xByte = byteIterator.nextByte();
+        final byte yByte = byteIterator.nextByte();
 
         final float xPos = UnsignedTypeUtil.uByteToInt(xByte)/10f + xOffset;
         final float yPos = UnsignedTypeUtil.uByteToInt(yByte)/10f + yOffset;
@@ -113,6 +116,24 @@ public class ClocsFileReader extends AbstractIlluminaPositionFileReader {
         return new PositionInfo(xPos, yPos, getLane(), getTile());
     }
 
+    @Override
+    protected int unsafeNextPositions(final float[] xs, final float[] ys, final int offset, final int length) {
+        int numDecoded = 0;
+        while (numDecoded < length && currentClusterInBin < numClustersInBin) {
+            // Decode the rest of the current bin, or as much of it as fits, before doing any bin bookkeeping.
+            final int numInBin = (int) Math.min(length - numDecoded, numClustersInBin - currentClusterInBin);
+            byteIterator.read(xyScratch, 0, numInBin * 2);
+            for (int i = 0; i < numInBin; ++i) {
+                xs[offset + numDecoded + i] = UnsignedTypeUtil.uByteToInt(xyScratch[2 * i])/10f + xOffset;
+                ys[offset + numDecoded + i] = UnsignedTypeUtil.uByteToInt(xyScratch[2 * i + 1])/10f + yOffset;
+            }
+            numDecoded += numInBin;
+            currentClusterInBin += numInBin;
+            checkAndAdvanceBin();
+        }
+        return numDecoded;
+    }
+
     /** Compute offset for next bin and then increment the bin number and reset block information*/
     private void checkAndAdvanceBin() {
         while(currentClusterInBin >= numClustersInBin && currentBin < numBins) { //While rather than if statement to skip empty blocks
@@ -132,7 +153,7 @@ public class ClocsFileReader extends AbstractIlluminaPositionFileReader {
 
     /** Start the next block by reading it's numBlocks byte and setting the currentBlock index to 0 */
     private void startBlock() {
-        numClustersInBin = UnsignedTypeUtil.uByteToInt(byteIterator.next());
+        numClustersInBin = UnsignedTypeUtil.uByteToInt(byteIterator.nextByte());
         currentClusterInBin = 0;
     }
     
@@ -45,7 +45,7 @@ public class FilterFileReader implements Iterator<Boolean> {
     public final int EXPECTED_VERSION = 3;
 
     /** Iterator over each cluster in the FilterFile */
-    private final BinaryFileIterator<Byte> bbIterator;
+    private final MMapBackedCursor.ByteCursor bbIterator;
 
     /** Version number found in the FilterFile, this should equal 3 */
     public final int version;
@@ -65,7 +65,7 @@ public class FilterFileReader implements Iterator<Boolean> {
     private int currentCluster;
 
     public FilterFileReader(final File file) {
-        bbIterator = MMapBackedIteratorFactory.getByteIterator(HEADER_SIZE, file);
+        bbIterator = MMapBackedIteratorFactory.getByteCursor(HEADER_SIZE, file);
         final ByteBuffer headerBuf = bbIterator.getHeaderBytes();
 
         for(int i = 0; i < 4; i++) {
@@ -90,9 +90,34 @@ public class FilterFileReader implements Iterator<Boolean> {
         return currentCluster < numClusters;
     }
 
+    /** @return The number of clusters in the file, according to its header. */
+    public long getNumClusters() {
+        return numClusters;
+    }
+
     public Boolean next() {
-        final byte value = bbIterator.next();
+        final byte value = bbIterator.nextByte();
         currentCluster += 1;
+        return isPf(value);
+    }
+
+    /**
+     * Reads the PF values of up to maxClusters of the following clusters into pfs, starting at offset.
+     *
+     * @return The number of values read.
+     */
+    public int next(final boolean[] pfs, final int offset, final int maxClusters) {
+        final int numToRead = (int) Math.min(maxClusters, numClusters - currentCluster);
+        for (int i = 0; i < numToRead; ++i) {
+            final byte value = bbIterator.nextByte();
+            currentCluster += 1;
+            pfs[offset + i] = isPf(value);
+        }
+        return numToRead;
+    }
+
+    /** Decodes the PF byte of the cluster most recently read. */
+    private boolean isPf(final byte value) {
         if(value == PassedFilter) {
             return true;
         } else if(value == FailedFilter) {
@@ -106,6 +131,12 @@ public class FilterFileReader implements Iterator<Boolean> {
 
     public void skipRecords(final int numToSkip) {
         bbIterator.skipElements(numToSkip);
+        currentCluster += numToSkip;
+    }
+
+    /** @return The part of file that holds numRecords clusters starting with the zero-based cluster firstRecord. */
+    public static TilePrefetcher.ByteRange getRecordsByteRange(final File file, final long firstRecord, final long numRecords) {
+        return new TilePrefetcher.ByteRange(file, HEADER_SIZE + firstRecord, numRecords);
     }
 
     public void remove() {
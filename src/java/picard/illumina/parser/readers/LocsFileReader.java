@@ -45,6 +45,9 @@ public class LocsFileReader extends AbstractIlluminaPositionFileReader {
     /** Size of the opening file header, this is skipped by the iterator below*/
     private static final int HEADER_SIZE = 12;
 
+    /** Each cluster is an X and a Y coordinate, each a 4-byte float */
+    private static final int BYTES_PER_RECORD = 8;
+
     /** The first four bytes of a locs file should equal a little endian 1 */
     private static final int BYTES_1_TO_4 = 1;
 
@@ -53,7 +56,10 @@ public class LocsFileReader extends AbstractIlluminaPositionFileReader {
 
     /** An iterator over all of the coordinate values in the file, remember next needs to be called
      * twice per coordinate pair */
-    private BinaryFileIterator<Float> bbIterator;
+    private MMapBackedCursor.FloatCursor bbIterator;
+
+    /** Interleaved x and y values read in bulk by unsafeNextPositions() */
+    private float[] xyScratch = new float[0];
 
     /** Total clusters in the file as read in the file header */
     private long numClusters;
@@ -74,7 +80,7 @@ public class LocsFileReader extends AbstractIlluminaPositionFileReader {
     }
 
     private void initialize(final File file) {
-        bbIterator = MMapBackedIteratorFactory.getFloatIterator(HEADER_SIZE, file);
+        bbIterator = MMapBackedIteratorFactory.getFloatCursor(HEADER_SIZE, file);
         final ByteBuffer headerBuf = bbIterator.getHeaderBytes();
 
         final int firstValue = headerBuf.getInt();
@@ -93,12 +99,25 @@ public class LocsFileReader extends AbstractIlluminaPositionFileReader {
 
     @Override
     protected PositionInfo unsafeNextInfo() {
-        final float xVal = bbIterator.next();
-        final float yVal = bbIterator.next();
+        final float xVal = bbIterator.nextFloat();
+        final float yVal = bbIterator.nextFloat();
         ++nextCluster;
         return new PositionInfo(xVal, yVal, getLane(), getTile());
     }
 
+    @Override
+    protected int unsafeNextPositions(final float[] xs, final float[] ys, final int offset, final int length) {
+        final int numDecoded = (int) Math.min(length, numClusters - nextCluster);
+        if (xyScratch.length < numDecoded * 2) xyScratch = new float[numDecoded * 2];
+        bbIterator.read(xyScratch, 0, numDecoded * 2);
+        for (int i = 0; i < numDecoded; ++i) {
+            xs[offset + i] = xyScratch[2 * i];
+            ys[offset + i] = xyScratch[2 * i + 1];
+        }
+        nextCluster += numDecoded;
+        return numDecoded;
+    }
+
     @Override
     protected String makeExceptionMsg() {
         return "LocsFileReader(file=" + getFile().getAbsolutePath() + ", numClusters=" + numClusters + ") ";
@@ -113,7 +132,18 @@ public class LocsFileReader extends AbstractIlluminaPositionFileReader {
         bbIterator = null;
     }
 
+    /** @return The number of clusters in the file, according to its header. */
+    public long getNumClusters() {
+        return numClusters;
+    }
+
     public void skipRecords(final int numToSkip) {
-        bbIterator.skipElements(numToSkip * 2);
+        bbIterator.skipElements(numToSkip * 2L);
+        nextCluster += numToSkip;
+    }
+
+    /** @return The part of file that holds numRecords clusters starting with the zero-based cluster firstRecord. */
+    public static TilePrefetcher.ByteRange getRecordsByteRange(final File file, final long firstRecord, final long numRecords) {
+        return new TilePrefetcher.ByteRange(file, HEADER_SIZE + firstRecord * BYTES_PER_RECORD, numRecords * BYTES_PER_RECORD);
     }
 }
@@ -0,0 +1,285 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser.readers;
+
+import htsjdk.samtools.util.CloserUtil;
+import picard.PicardException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+
+/**
+ * A cursor over the fixed-size elements of a memory-mapped binary file that, unlike the iterators of
+ * MMapBackedIteratorFactory, reads them as primitives, one at a time or in bulk, without boxing.  Values are read as
+ * little endian and signed, as with the iterators.
+ *
+ * Files are mapped in segments of at most segmentSize bytes, so files larger than the 2GB that a single mapping can
+ * hold can be read.  Each segment overlaps the next by the size of the largest element, so that every element lies
+ * wholly within the segment in which it starts.
+ *
+ * Cursors are created by the factory methods in MMapBackedIteratorFactory and, like the iterators, are not thread-safe.
+ */
+public abstract class MMapBackedCursor {
+    /** The largest segment a file is mapped in, which is less than Integer.MAX_VALUE to leave room for the overlap. */
+    static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+    private static final int MAX_ELEMENT_SIZE = 8;
+
+    protected final File file;
+    protected final long fileSize;
+    protected final int elementSize;
+    private final byte[] header;
+    private final long segmentSize;
+    private final ByteBuffer[] segments;
+
+    /** The file offset of the next element. */
+    protected long position;
+
+    MMapBackedCursor(final int headerSize, final File file, final int elementSize, final long segmentSize) {
+        this.file = file;
+        this.elementSize = elementSize;
+        this.segmentSize = segmentSize;
+        try {
+            final FileInputStream is = new FileInputStream(file);
+            try {
+                final FileChannel channel = is.getChannel();
+                this.fileSize = channel.size();
+                final int numSegments = (int) Math.max(1, (fileSize + segmentSize - 1) / segmentSize);
+                this.segments = new ByteBuffer[numSegments];
+                for (int i = 0; i < numSegments; ++i) {
+                    final long start = i * segmentSize;
+                    final long length = Math.min(segmentSize + MAX_ELEMENT_SIZE, fileSize - start);
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                    segments[i].order(ByteOrder.LITTLE_ENDIAN);
+                }
+            } finally {
+                CloserUtil.close(is);
+            }
+        } catch (final IOException e) {
+            throw new PicardException("IOException opening cluster binary file " + file, e);
+        }
+
+        this.header = new byte[headerSize];
+        segments[0].get(header);
+        this.position = headerSize;
+    }
+
+    /** Return the bytes found in the first headerSize bytes of the file, wrapped as a ByteBuffer */
+    public ByteBuffer getHeaderBytes() {
+        final ByteBuffer bb = ByteBuffer.allocate(header.length);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        bb.put(header);
+        bb.position(0);
+        return bb;
+    }
+
+    public void assertTotalElementsEqual(final long numElements) {
+        if (getElementsInFile() != numElements) {
+            throw new PicardException("Expected " + numElements + " elements in file but found " + getElementsInFile() + " elements! File(" + file.getAbsolutePath() + ")");
+        }
+
+        if (getExtraBytes() != 0) {
+            throw new PicardException("Malformed file, expected " + (header.length + numElements * elementSize) + " bytes in file, found " + fileSize + " bytes for file("
+                    + file.getAbsolutePath() + ")");
+        }
+    }
+
+    public int getElementSize() {
+        return elementSize;
+    }
+
+    public long getExtraBytes() {
+        return fileSize - header.length - (getElementsInFile() * elementSize);
+    }
+
+    public long getElementsInFile() {
+        return (fileSize - header.length) / elementSize;
+    }
+
+    /** @return The number of whole elements that have not yet been read or skipped. */
+    public long getElementsRemaining() {
+        return Math.max(0, (fileSize - position) / elementSize);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean hasNext() {
+        return fileSize - position >= elementSize;
+    }
+
+    public void skipElements(final long numElements) {
+        position += numElements * elementSize;
+    }
+
+    /**
+     * @return The segment containing the next element, which the caller must then read at the offset returned by
+     * offsetInSegment().
+     */
+    protected ByteBuffer nextSegment() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return segments[(int) (position / segmentSize)];
+    }
+
+    protected int offsetInSegment() {
+        return (int) (position % segmentSize);
+    }
+
+    /**
+     * Checks that length elements remain, then calls readSegment() for each run of them that starts in a single segment.
+     */
+    protected void readBulk(final int offset, final int length) {
+        if (length > getElementsRemaining()) {
+            throw new NoSuchElementException("Cannot read " + length + " elements; only " + getElementsRemaining() +
+                    " remain in " + file.getAbsolutePath());
+        }
+        int numRead = 0;
+        while (numRead < length) {
+            final int segment = (int) (position / segmentSize);
+            final long segmentEnd = Math.min((segment + 1) * segmentSize, fileSize);
+            final int numInSegment = (int) Math.min(length - numRead, (segmentEnd - position + elementSize - 1) / elementSize);
+            final ByteBuffer buffer = segments[segment].duplicate();
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(offsetInSegment());
+            readSegment(buffer, offset + numRead, numInSegment);
+            position += (long) numInSegment * elementSize;
+            numRead += numInSegment;
+        }
+    }
+
+    /** Reads length elements, starting at buffer's position, into the destination array starting at offset. */
+    protected abstract void readSegment(ByteBuffer buffer, int offset, int length);
+
+    public static class ByteCursor extends MMapBackedCursor {
+        private byte[] dst;
+
+        ByteCursor(final int headerSize, final File file, final long segmentSize) {
+            super(headerSize, file, 1, segmentSize);
+        }
+
+        public byte nextByte() {
+            final byte value = nextSegment().get(offsetInSegment());
+            position += 1;
+            return value;
+        }
+
+        /** Reads the next len bytes into dst, starting at off. */
+        public void read(final byte[] dst, final int off, final int len) {
+            this.dst = dst;
+            readBulk(off, len);
+            this.dst = null;
+        }
+
+        @Override
+        protected void readSegment(final ByteBuffer buffer, final int offset, final int length) {
+            buffer.get(dst, offset, length);
+        }
+    }
+
+    public static class IntCursor extends MMapBackedCursor {
+        private int[] dst;
+
+        IntCursor(final int headerSize, final File file, final long segmentSize) {
+            super(headerSize, file, 4, segmentSize);
+        }
+
+        public int nextInt() {
+            final int value = nextSegment().getInt(offsetInSegment());
+            position += 4;
+            return value;
+        }
+
+        /** Reads the next len ints into dst, starting at off. */
+        public void read(final int[] dst, final int off, final int len) {
+            this.dst = dst;
+            readBulk(off, len);
+            this.dst = null;
+        }
+
+        @Override
+        protected void readSegment(final ByteBuffer buffer, final int offset, final int length) {
+            buffer.asIntBuffer().get(dst, offset, length);
+        }
+    }
+
+    public static class FloatCursor extends MMapBackedCursor {
+        private float[] dst;
+
+        FloatCursor(final int headerSize, final File file, final long segmentSize) {
+            super(headerSize, file, 4, segmentSize);
+        }
+
+        public float nextFloat() {
+            final float value = nextSegment().getFloat(offsetInSegment());
+            position += 4;
+            return value;
+        }
+
+        /** Reads the next len floats into dst, starting at off. */
+        public void read(final float[] dst, final int off, final int len) {
+            this.dst = dst;
+            readBulk(off, len);
+            this.dst = null;
+        }
+
+        @Override
+        protected void readSegment(final ByteBuffer buffer, final int offset, final int length) {
+            buffer.asFloatBuffer().get(dst, offset, length);
+        }
+    }
+
+    public static class LongCursor extends MMapBackedCursor {
+        private long[] dst;
+
+        LongCursor(final int headerSize, final File file, final long segmentSize) {
+            super(headerSize, file, 8, segmentSize);
+        }
+
+        public long nextLong() {
+            final long value = nextSegment().getLong(offsetInSegment());
+            position += 8;
+            return value;
+        }
+
+        /** Reads the next len longs into dst, starting at off. */
+        public void read(final long[] dst, final int off, final int len) {
+            this.dst = dst;
+            readBulk(off, len);
+            this.dst = null;
+        }
+
+        @Override
+        protected void readSegment(final ByteBuffer buffer, final int offset, final int length) {
+            buffer.asLongBuffer().get(dst, offset, length);
+        }
+    }
+}
@@ -43,6 +43,9 @@ import java.util.NoSuchElementException;
  * iterators of different data types over the values of file (starting after the end of the header).
  * Values provided by the MMappedBinaryFileReader are read as if they are little endian.
  *
+ * The getXxxCursor() methods instead return MMapBackedCursors, which read primitives, singly or in bulk, without
+ * boxing, and which can read files too large for a single mapping.
+ *
  * Note (read to end):
  * This class IS thread-safe and immutable though the iterator and ByteBuffers it produces are NOT.
  * The values read are assumed to be signed, NO promoting/sign conversion happens in this class.
@@ -93,6 +96,43 @@ public class MMapBackedIteratorFactory {
         return new ByteBufferMMapIterator(header, binaryFile, elementSize, buf);
     }
 
+    public static MMapBackedCursor.ByteCursor getByteCursor(final int headerSize, final File binaryFile) {
+        return getByteCursor(headerSize, binaryFile, MMapBackedCursor.DEFAULT_SEGMENT_SIZE);
+    }
+
+    public static MMapBackedCursor.IntCursor getIntCursor(final int headerSize, final File binaryFile) {
+        return getIntCursor(headerSize, binaryFile, MMapBackedCursor.DEFAULT_SEGMENT_SIZE);
+    }
+
+    public static MMapBackedCursor.FloatCursor getFloatCursor(final int headerSize, final File binaryFile) {
+        return getFloatCursor(headerSize, binaryFile, MMapBackedCursor.DEFAULT_SEGMENT_SIZE);
+    }
+
+    public static MMapBackedCursor.LongCursor getLongCursor(final int headerSize, final File binaryFile) {
+        return getLongCursor(headerSize, binaryFile, MMapBackedCursor.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** The cursor factory methods that take a segment size are for testing the mapping of large files in segments. */
+    static MMapBackedCursor.ByteCursor getByteCursor(final int headerSize, final File binaryFile, final long segmentSize) {
+        checkFactoryVars(headerSize, binaryFile);
+        return new MMapBackedCursor.ByteCursor(headerSize, binaryFile, segmentSize);
+    }
+
+    static MMapBackedCursor.IntCursor getIntCursor(final int headerSize, final File binaryFile, final long segmentSize) {
+        checkFactoryVars(headerSize, binaryFile);
+        return new MMapBackedCursor.IntCursor(headerSize, binaryFile, segmentSize);
+    }
+
+    static MMapBackedCursor.FloatCursor getFloatCursor(final int headerSize, final File binaryFile, final long segmentSize) {
+        checkFactoryVars(headerSize, binaryFile);
+        return new MMapBackedCursor.FloatCursor(headerSize, binaryFile, segmentSize);
+    }
+
+    static MMapBackedCursor.LongCursor getLongCursor(final int headerSize, final File binaryFile, final long segmentSize) {
+        checkFactoryVars(headerSize, binaryFile);
+        return new MMapBackedCursor.LongCursor(headerSize, binaryFile, segmentSize);
+    }
+
     private static void checkFactoryVars(final int headerSize, final File binaryFile) {
         IOUtil.assertFileIsReadable(binaryFile);
 
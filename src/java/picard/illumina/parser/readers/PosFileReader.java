@@ -54,19 +54,37 @@ public class PosFileReader extends AbstractIlluminaPositionFileReader {
     /** Read a line of text and parse it into two float values, create a PositionInfo and return it */
     @Override
     protected PositionInfo unsafeNextInfo() {
+        final float[] xy = new float[2];
+        parseLine(xy);
+        return new PositionInfo(xy[0], xy[1], getLane(), getTile());
+    }
+
+    @Override
+    protected int unsafeNextPositions(final float[] xs, final float[] ys, final int offset, final int length) {
+        final float[] xy = new float[2];
+        int numDecoded = 0;
+        while (numDecoded < length && hasNext()) {
+            parseLine(xy);
+            xs[offset + numDecoded] = xy[0];
+            ys[offset + numDecoded] = xy[1];
+            ++numDecoded;
+        }
+        return numDecoded;
+    }
+
+    /** Read a line of text and parse it into two float values, x into xy[0] and y into xy[1] */
+    private void parseLine(final float[] xy) {
         final String [] strVals = this.parser.next();
         if(strVals.length != 2) {
             throw new PicardException("Pos file number of values != 2, found (" + strVals.length +")" + makeExceptionMsg());
         }
         try {
-            final float xVal = Float.parseFloat(strVals[0]);
-            final float yVal = Float.parseFloat(strVals[1]);
+            xy[0] = Float.parseFloat(strVals[0]);
+            xy[1] = Float.parseFloat(strVals[1]);
 
-            if(xVal <0 || yVal < 0) {
+            if(xy[0] <0 || xy[1] < 0) {
                 throw new NumberFormatException("X and Y pos values cannot be negative!");
             }
-
-            return new PositionInfo(xVal, yVal, getLane(), getTile());
         } catch(final NumberFormatException nfe) {
             throw new PicardException("Bad x or y value in " + makeExceptionMsg(), nfe);
         }
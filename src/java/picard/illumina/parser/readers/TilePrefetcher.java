@@ -0,0 +1,267 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser.readers;
+
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Log;
+import picard.PicardException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the byte ranges that hold upcoming tiles of multi-tile files (.bcl.bgzf, .filter, .locs) on background threads,
+ * so that a parser moving on to the next tile finds its data already in the operating system's page cache rather than
+ * stalling on each cycle file in turn.  This matters most when the run folder is on a network file system.
+ *
+ * Ranges are read through a small pool of reused buffers and the bytes are then discarded; the parsers still read the
+ * files themselves, so a range that could not be prefetched costs nothing but time.  A single prefetcher may be shared
+ * by the parsers of many threads: a range that is already queued or being read is not requested again.
+ */
+public class TilePrefetcher {
+    private static final Log log = Log.getInstance(TilePrefetcher.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    /** Completed ranges that nobody has waited for are forgotten after this many more recent requests. */
+    private static final int MAX_REMEMBERED_RANGES = 16384;
+
+    /** A contiguous run of bytes in a file. */
+    public static class ByteRange {
+        private final File file;
+        private final long offset;
+        private final long length;
+
+        public ByteRange(final File file, final long offset, final long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ByteRange)) return false;
+            final ByteRange that = (ByteRange) o;
+            return offset == that.offset && length == that.length && file.equals(that.file);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = file.hashCode();
+            result = 31 * result + (int) (offset ^ (offset >>> 32));
+            result = 31 * result + (int) (length ^ (length >>> 32));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return file.getAbsolutePath() + ":" + offset + "+" + length;
+        }
+    }
+
+    private final int depth;
+    private final ExecutorService executor;
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final Map<ByteRange, Future<?>> requestedRanges = new LinkedHashMap<ByteRange, Future<?>>() {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<ByteRange, Future<?>> eldest) {
+            return size() > MAX_REMEMBERED_RANGES && eldest.getValue().isDone();
+        }
+    };
+
+    private final AtomicLong rangesPrefetched = new AtomicLong();
+    private final AtomicLong bytesPrefetched = new AtomicLong();
+    private final AtomicLong rangesAwaited = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * @param numThreads The number of ranges to read concurrently.  One buffer of DEFAULT_BUFFER_SIZE is allocated for
+     *                   each thread.
+     * @param depth      The number of tiles beyond the current one that a parser should ask to have prefetched.
+     */
+    public TilePrefetcher(final int numThreads, final int depth) {
+        if (numThreads < 1) throw new IllegalArgumentException("numThreads must be at least 1: " + numThreads);
+        if (depth < 0) throw new IllegalArgumentException("depth must not be negative: " + depth);
+        this.depth = depth;
+        this.buffers = new ArrayBlockingQueue<ByteBuffer>(numThreads);
+        for (int i = 0; i < numThreads; ++i) {
+            buffers.add(ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE));
+        }
+        this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "TilePrefetcher-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** @return The number of tiles beyond the current one that a parser should ask to have prefetched. */
+    public int getDepth() {
+        return depth;
+    }
+
+    /** Queues any of the given ranges that have not already been requested. */
+    public void prefetch(final List<ByteRange> ranges) {
+        synchronized (requestedRanges) {
+            for (final ByteRange range : ranges) {
+                if (range.getLength() <= 0 || requestedRanges.containsKey(range)) continue;
+                requestedRanges.put(range, executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        read(range);
+                    }
+                }));
+            }
+        }
+    }
+
+    /**
+     * Blocks until those of the given ranges that have been requested have been read, so that a parser does not start
+     * reading a range that is also being prefetched.  Ranges that were never requested are ignored.
+     */
+    public void await(final List<ByteRange> ranges) {
+        for (final ByteRange range : ranges) {
+            final Future<?> future;
+            synchronized (requestedRanges) {
+                future = requestedRanges.remove(range);
+            }
+            if (future == null) continue;
+            rangesAwaited.incrementAndGet();
+            if (future.isDone()) continue;
+
+            waits.incrementAndGet();
+            final long startTime = System.nanoTime();
+            try {
+                future.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PicardException("Interrupted while waiting for " + range + " to be prefetched.", e);
+            } catch (final ExecutionException e) {
+                // read() logs and swallows its own failures, so this is unexpected; the parser will find any real problem.
+                log.warn(e.getCause(), "Prefetching " + range + " failed.");
+            } finally {
+                waitNanos.addAndGet(System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    /** Abandons any prefetching that has not started and stops the background threads. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /** @return The number of ranges that have been read in the background. */
+    public long getRangesPrefetched() {
+        return rangesPrefetched.get();
+    }
+
+    /** @return The number of bytes that have been read in the background. */
+    public long getBytesPrefetched() {
+        return bytesPrefetched.get();
+    }
+
+    /** @return The number of prefetched ranges that a parser has waited for, whether or not it had to block. */
+    public long getRangesAwaited() {
+        return rangesAwaited.get();
+    }
+
+    /** @return The number of times a parser had to block because a range had not been completely prefetched. */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    /** @return The total time that parsers spent blocked waiting for prefetching to complete. */
+    public long getWaitMillis() {
+        return waitNanos.get() / 1000000;
+    }
+
+    /** Logs the counters at INFO level. */
+    public void logStatistics() {
+        log.info(String.format("Prefetched %s ranges (%s bytes); parsers waited for %s of %s ranges awaited, for %s ms in total.",
+                getRangesPrefetched(), getBytesPrefetched(), getWaits(), getRangesAwaited(), getWaitMillis()));
+    }
+
+    private void read(final ByteRange range) {
+        final ByteBuffer buffer;
+        try {
+            buffer = buffers.take();
+        } catch (final InterruptedException e) {
+            return;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(range.getFile(), "r");
+            final FileChannel channel = file.getChannel();
+            long position = range.getOffset();
+            final long end = Math.min(range.getOffset() + range.getLength(), channel.size());
+            while (position < end && !Thread.currentThread().isInterrupted()) {
+                buffer.clear();
+                if (end - position < buffer.capacity()) buffer.limit((int) (end - position));
+                final int n = channel.read(buffer, position);
+                if (n < 0) break;
+                position += n;
+            }
+            rangesPrefetched.incrementAndGet();
+            bytesPrefetched.addAndGet(position - range.getOffset());
+        } catch (final IOException e) {
+            log.debug(e, "Could not prefetch " + range);
+        } finally {
+            CloserUtil.close(file);
+            buffers.add(buffer);
+        }
+    }
+}
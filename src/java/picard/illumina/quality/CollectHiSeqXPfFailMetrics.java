@@ -91,9 +91,6 @@ public class CollectHiSeqXPfFailMetrics extends CommandLineProgram {
     private final Map<Integer, PFFailSummaryMetric> tileToSummaryMetrics = new LinkedHashMap<Integer, PFFailSummaryMetric>();
     private final Map<Integer, List<PFFailDetailedMetric>> tileToDetailedMetrics = new LinkedHashMap<Integer, List<PFFailDetailedMetric>>();
 
-    //Add "T" to the number of cycles to create a "TemplateRead" of the desired length.
-    private final ReadStructure READ_STRUCTURE = new ReadStructure(N_CYCLES + "T");
-
     public final static String detailedMetricsExtension = ".pffail_detailed_metrics";
     public final static String summaryMetricsExtension = ".pffail_summary_metrics";
 
@@ -124,12 +121,22 @@ public class CollectHiSeqXPfFailMetrics extends CommandLineProgram {
     @Override
     protected int doWork() {
 
-        final IlluminaDataProviderFactory factory = new IlluminaDataProviderFactory(BASECALLS_DIR, LANE, READ_STRUCTURE,
-                new BclQualityEvaluationStrategy(BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY),
+        //Add "T" to the number of cycles to create a "TemplateRead" of the desired length.  Only these first cycles
+        //are read; the files of the rest of the run are never opened.
+        final ReadStructure readStructure = new ReadStructure(N_CYCLES + "T");
+
+        //Positions are only reported in the detailed metrics, so don't read them if there won't be any.
+        final List<IlluminaDataType> dataTypes = new ArrayList<IlluminaDataType>(Arrays.asList(
                 IlluminaDataType.BaseCalls,
                 IlluminaDataType.PF,
-                IlluminaDataType.QualityScores,
-                IlluminaDataType.Position);
+                IlluminaDataType.QualityScores));
+        if (PROB_EXPLICIT_READS != 0) {
+            dataTypes.add(IlluminaDataType.Position);
+        }
+
+        final IlluminaDataProviderFactory factory = new IlluminaDataProviderFactory(BASECALLS_DIR, LANE, readStructure,
+                new BclQualityEvaluationStrategy(BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY),
+                dataTypes.toArray(new IlluminaDataType[dataTypes.size()]));
 
         final File summaryMetricsFileName = new File(OUTPUT + summaryMetricsExtension);
         final File detailedMetricsFileName = new File(OUTPUT + detailedMetricsExtension);
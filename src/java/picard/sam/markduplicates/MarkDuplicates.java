@@ -34,15 +34,16 @@ import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.*;
 import htsjdk.samtools.util.CloseableIterator;
-import htsjdk.samtools.util.SortingCollection;
-import htsjdk.samtools.util.SortingLongCollection;
 import picard.sam.markduplicates.util.AbstractMarkDuplicatesCommandLineProgram;
-import picard.sam.markduplicates.util.DiskBasedReadEndsForMarkDuplicatesMap;
+import picard.sam.markduplicates.util.HashedReadEndsForMarkDuplicatesMap;
 import picard.sam.markduplicates.util.LibraryIdGenerator;
+import picard.sam.markduplicates.util.PipelinedBamReader;
+import picard.sam.markduplicates.util.PipelinedBamWriter;
 import picard.sam.markduplicates.util.ReadEnds;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicates;
-import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesCodec;
-import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesMap;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesStore;
+import picard.util.BlockCompressionPool;
+import picard.util.CompressedBitSet;
 import htsjdk.samtools.DuplicateScoringStrategy.ScoringStrategy;
 
 import java.io.*;
@@ -73,18 +74,48 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
     public int MAX_SEQUENCES_FOR_DISK_READ_ENDS_MAP = 50000;
 
     @Option(shortName = "MAX_FILE_HANDLES",
-            doc = "Maximum number of file handles to keep open when spilling read ends to disk. " +
-                    "Set this number a little lower than the per-process maximum number of file that may be open. " +
-                    "This number can be found by executing the 'ulimit -n' command on a Unix system.")
+            doc = "This option is obsolete. Read ends awaiting their mates are spilled to disk without holding files open.")
     public int MAX_FILE_HANDLES_FOR_READ_ENDS_MAP = 8000;
 
     @Option(doc = "This number, plus the maximum RAM available to the JVM, determine the memory footprint used by " +
             "some of the sorting collections.  If you are running out of memory, try reducing this number.")
     public double SORTING_COLLECTION_SIZE_RATIO = 0.25;
 
-    private SortingCollection<ReadEndsForMarkDuplicates> pairSort;
-    private SortingCollection<ReadEndsForMarkDuplicates> fragSort;
-    private SortingLongCollection duplicateIndexes;
+    @Option(doc = "The fraction of the maximum RAM available to the JVM that may be used to hold the first read ends of " +
+            "pairs while waiting for their mates, beyond which those whose mates are furthest ahead are spilled to disk.  " +
+            "This is in addition to the SORTING_COLLECTION_SIZE_RATIO used by each of the two read end sorting " +
+            "collections.  If you are running out of memory, try reducing this number.")
+    public double READ_ENDS_MAP_SIZE_RATIO = 0.1;
+
+    @Option(doc = "The number of threads with which to sort read ends and to read them back from disk.  If " +
+            "NUM_PROCESSORS = 0, the number of cores available on the machine is used.  If NUM_PROCESSORS < 0 then the " +
+            "number of cores used will be the number available on the machine less NUM_PROCESSORS.")
+    public int NUM_PROCESSORS = 1;
+
+    @Option(doc = "If INFLATE_THREADS or DECODE_THREADS is greater than 0, BAM inputs that are local files are read in a " +
+            "pipeline, with BGZF blocks inflated by INFLATE_THREADS threads and records decoded by DECODE_THREADS threads " +
+            "(at least one each), rather than on the main thread.  Other inputs are read as usual.")
+    public int INFLATE_THREADS = 0;
+
+    @Option(doc = "See INFLATE_THREADS.")
+    public int DECODE_THREADS = 0;
+
+    @Option(doc = "If ENCODE_THREADS or COMPRESSION_THREADS is greater than 0 and OUTPUT is a BAM, records are encoded " +
+            "by ENCODE_THREADS threads (at least one) and compressed by COMPRESSION_THREADS threads, or if that is 0 by the " +
+            "thread that writes them, rather than on the main thread.  The BAM is identical either way.  If CREATE_INDEX, " +
+            "the index is built after the BAM is written, by reading it back.")
+    public int ENCODE_THREADS = 0;
+
+    @Option(doc = "See ENCODE_THREADS.")
+    public int COMPRESSION_THREADS = 0;
+
+    @Option(doc = "When COMPRESSION_THREADS > 0, the memory in megabytes that may be held by blocks waiting to be " +
+            "compressed or written.  Writing stalls when it is used up.")
+    public int COMPRESSION_BUFFER_MB = 64;
+
+    private ReadEndsForMarkDuplicatesStore pairSort;
+    private ReadEndsForMarkDuplicatesStore fragSort;
+    private CompressedBitSet duplicateIndexes;
     private int numDuplicateIndices = 0;
 
     private LibraryIdGenerator libraryIdGenerator = null; // this is initialized in buildSortedReadEndLists
@@ -133,77 +164,89 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         // Key: previous PG ID on a SAM Record (or null).  Value: New PG ID to replace it.
         final Map<String, String> chainedPgIds = getChainedPgIds(outputHeader);
 
-        final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,
-                true,
-                OUTPUT);
-
-        // Now copy over the file while marking all the necessary indexes as duplicates
-        long recordInFileIndex = 0;
-        long nextDuplicateIndex = (this.duplicateIndexes.hasNext() ? this.duplicateIndexes.next() : -1);
-
-        final ProgressLogger progress = new ProgressLogger(log, (int) 1e7, "Written");
-        final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
-        while (iterator.hasNext()) {
-            final SAMRecord rec = iterator.next();
-            if (!rec.isSecondaryOrSupplementary()) {
-                final String library = libraryIdGenerator.getLibraryName(header, rec);
-                DuplicationMetrics metrics = libraryIdGenerator.getMetricsByLibrary(library);
-                if (metrics == null) {
-                    metrics = new DuplicationMetrics();
-                    metrics.LIBRARY = library;
-                    libraryIdGenerator.addMetricsByLibrary(library, metrics);
-                }
-
-                // First bring the simple metrics up to date
-                if (rec.getReadUnmappedFlag()) {
-                    ++metrics.UNMAPPED_READS;
-                } else if (!rec.getReadPairedFlag() || rec.getMateUnmappedFlag()) {
-                    ++metrics.UNPAIRED_READS_EXAMINED;
-                } else {
-                    ++metrics.READ_PAIRS_EXAMINED; // will need to be divided by 2 at the end
-                }
-
+        BlockCompressionPool compressionPool = null;
+        PipelinedBamWriter pipelinedWriter = null;
+        final SAMFileWriter out;
+        if ((ENCODE_THREADS > 0 || COMPRESSION_THREADS > 0) && OUTPUT.getName().endsWith(BamFileIoUtils.BAM_FILE_EXTENSION)) {
+            if (COMPRESSION_THREADS > 0) {
+                final int maxBlocksInFlight = Math.max(COMPRESSION_THREADS,
+                        (int) (COMPRESSION_BUFFER_MB * 1024L * 1024L / BlockCompressionPool.BYTES_PER_BLOCK));
+                compressionPool = new BlockCompressionPool(COMPRESSION_THREADS, maxBlocksInFlight, COMPRESSION_LEVEL);
+            }
+            pipelinedWriter = new PipelinedBamWriter(OUTPUT, outputHeader, Math.max(1, ENCODE_THREADS), compressionPool,
+                    CREATE_INDEX, CREATE_MD5_FILE);
+            out = pipelinedWriter;
+        } else {
+            out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,
+                    true,
+                    OUTPUT);
+        }
 
-                if (recordInFileIndex == nextDuplicateIndex) {
-                    rec.setDuplicateReadFlag(true);
+        try {
+            // Now copy over the file while marking all the necessary indexes as duplicates
+            long recordInFileIndex = 0;
+
+            final ProgressLogger progress = new ProgressLogger(log, (int) 1e7, "Written");
+            final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
+            while (iterator.hasNext()) {
+                final SAMRecord rec = iterator.next();
+                if (!rec.isSecondaryOrSupplementary()) {
+                    final String library = libraryIdGenerator.getLibraryName(header, rec);
+                    DuplicationMetrics metrics = libraryIdGenerator.getMetricsByLibrary(library);
+                    if (metrics == null) {
+                        metrics = new DuplicationMetrics();
+                        metrics.LIBRARY = library;
+                        libraryIdGenerator.addMetricsByLibrary(library, metrics);
+                    }
 
-                    // Update the duplication metrics
-                    if (!rec.getReadPairedFlag() || rec.getMateUnmappedFlag()) {
-                        ++metrics.UNPAIRED_READ_DUPLICATES;
+                    // First bring the simple metrics up to date
+                    if (rec.getReadUnmappedFlag()) {
+                        ++metrics.UNMAPPED_READS;
+                    } else if (!rec.getReadPairedFlag() || rec.getMateUnmappedFlag()) {
+                        ++metrics.UNPAIRED_READS_EXAMINED;
                     } else {
-                        ++metrics.READ_PAIR_DUPLICATES;// will need to be divided by 2 at the end
+                        ++metrics.READ_PAIRS_EXAMINED; // will need to be divided by 2 at the end
                     }
 
-                    // Now try and figure out the next duplicate index
-                    if (this.duplicateIndexes.hasNext()) {
-                        nextDuplicateIndex = this.duplicateIndexes.next();
+
+                    if (this.duplicateIndexes.contains(recordInFileIndex)) {
+                        rec.setDuplicateReadFlag(true);
+
+                        // Update the duplication metrics
+                        if (!rec.getReadPairedFlag() || rec.getMateUnmappedFlag()) {
+                            ++metrics.UNPAIRED_READ_DUPLICATES;
+                        } else {
+                            ++metrics.READ_PAIR_DUPLICATES;// will need to be divided by 2 at the end
+                        }
                     } else {
-                        // Only happens once we've marked all the duplicates
-                        nextDuplicateIndex = -1;
+                        rec.setDuplicateReadFlag(false);
                     }
-                } else {
-                    rec.setDuplicateReadFlag(false);
                 }
-            }
-            recordInFileIndex++;
+                recordInFileIndex++;
 
-            if (!this.REMOVE_DUPLICATES || !rec.getDuplicateReadFlag()) {
-                if (PROGRAM_RECORD_ID != null) {
-                    rec.setAttribute(SAMTag.PG.name(), chainedPgIds.get(rec.getStringAttribute(SAMTag.PG.name())));
+                if (!this.REMOVE_DUPLICATES || !rec.getDuplicateReadFlag()) {
+                    if (PROGRAM_RECORD_ID != null) {
+                        rec.setAttribute(SAMTag.PG.name(), chainedPgIds.get(rec.getStringAttribute(SAMTag.PG.name())));
+                    }
+                    // Record progress first, as a pipelined writer may be encoding the record as soon as it is added.
+                    progress.record(rec);
+                    out.addAlignment(rec);
                 }
-                out.addAlignment(rec);
-                progress.record(rec);
             }
-        }
 
-        // remember to close the inputs
-        iterator.close();
+            // remember to close the inputs
+            iterator.close();
 
-        this.duplicateIndexes.cleanup();
+            this.duplicateIndexes = null;
 
-        reportMemoryStats("Before output close");
-        out.close();
-        reportMemoryStats("After output close");
+            reportMemoryStats("Before output close");
+            out.close();
+            reportMemoryStats("After output close");
+        } finally {
+            // Stops the pipeline's threads if the output was not closed.
+            if (pipelinedWriter != null) pipelinedWriter.abort();
+            if (compressionPool != null) compressionPool.shutdown();
+        }
 
         // Write out the metrics
         finalizeAndWriteMetrics(libraryIdGenerator);
@@ -224,30 +267,47 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                 "; maxMemory: " + runtime.maxMemory());
     }
 
+    /** Reads BAM files in a pipeline if INFLATE_THREADS or DECODE_THREADS is set. */
+    @Override
+    protected SamReader openInput(final String input) {
+        final File file = new File(input);
+        if ((INFLATE_THREADS > 0 || DECODE_THREADS > 0) && file.isFile() &&
+                file.getName().endsWith(BamFileIoUtils.BAM_FILE_EXTENSION)) {
+            final PipelinedBamReader reader = new PipelinedBamReader(file, Math.max(1, INFLATE_THREADS),
+                    Math.max(1, DECODE_THREADS), VALIDATION_STRINGENCY);
+            return new SamReader.PrimitiveSamReaderToSamReaderAdapter(reader, SamInputResource.of(file));
+        }
+        return super.openInput(input);
+    }
+
     /**
      * Goes through all the records in a file and generates a set of ReadEndsForMarkDuplicates objects that
      * hold the necessary information (reference sequence, 5' read coordinate) to do
      * duplication, caching to disk as necssary to sort them.
      */
     private void buildSortedReadEndLists() {
-        final int maxInMemory = (int) ((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) / ReadEndsForMarkDuplicates.SIZE_OF);
+        final int maxInMemory = (int) Math.min((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) / ReadEndsForMarkDuplicatesStore.SIZE_OF,
+                (double) Integer.MAX_VALUE);
         log.info("Will retain up to " + maxInMemory + " data points before spilling to disk.");
 
-        this.pairSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                new ReadEndsForMarkDuplicatesCodec(),
-                new ReadEndsMDComparator(),
-                maxInMemory,
-                TMP_DIR);
-
-        this.fragSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                new ReadEndsForMarkDuplicatesCodec(),
-                new ReadEndsMDComparator(),
-                maxInMemory,
-                TMP_DIR);
+        final int numProcessors;
+        if (NUM_PROCESSORS == 0) {
+            numProcessors = Runtime.getRuntime().availableProcessors();
+        } else if (NUM_PROCESSORS < 0) {
+            numProcessors = Runtime.getRuntime().availableProcessors() + NUM_PROCESSORS;
+        } else {
+            numProcessors = NUM_PROCESSORS;
+        }
+        this.pairSort = new ReadEndsForMarkDuplicatesStore(maxInMemory, TMP_DIR, Math.max(1, numProcessors));
+        this.fragSort = new ReadEndsForMarkDuplicatesStore(maxInMemory, TMP_DIR, Math.max(1, numProcessors));
 
         final SamHeaderAndIterator headerAndIterator = openInputs();
         final SAMFileHeader header = headerAndIterator.header;
-        final ReadEndsForMarkDuplicatesMap tmp = new DiskBasedReadEndsForMarkDuplicatesMap(MAX_FILE_HANDLES_FOR_READ_ENDS_MAP);
+        final int maxMatesInMemory = (int) Math.max(1, Math.min((Runtime.getRuntime().maxMemory() * READ_ENDS_MAP_SIZE_RATIO) /
+                HashedReadEndsForMarkDuplicatesMap.SIZE_OF, (double) Integer.MAX_VALUE));
+        log.info("Will retain up to " + maxMatesInMemory + " read ends awaiting their mates before spilling to disk.");
+        final HashedReadEndsForMarkDuplicatesMap tmp = new HashedReadEndsForMarkDuplicatesMap(maxMatesInMemory, TMP_DIR);
+        final long[] key = new long[2];
         long index = 0;
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e6, "Read");
         final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
@@ -281,13 +341,15 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                 this.fragSort.add(fragmentEnd);
 
                 if (rec.getReadPairedFlag() && !rec.getMateUnmappedFlag()) {
-                    final String key = rec.getAttribute(ReservedTagConstants.READ_GROUP_ID) + ":" + rec.getReadName();
-                    ReadEndsForMarkDuplicates pairedEnds = tmp.remove(rec.getReferenceIndex(), key);
+                    HashedReadEndsForMarkDuplicatesMap.hash((String) rec.getAttribute(ReservedTagConstants.READ_GROUP_ID),
+                            rec.getReadName(), key);
+                    ReadEndsForMarkDuplicates pairedEnds = tmp.remove(rec.getReferenceIndex(), rec.getAlignmentStart(), key[0], key[1]);
 
                     // See if we've already seen the first end or not
                     if (pairedEnds == null) {
                         pairedEnds = buildReadEnds(header, index, rec);
-                        tmp.put(pairedEnds.read2ReferenceIndex, key, pairedEnds);
+                        tmp.put(rec.getReferenceIndex(), rec.getAlignmentStart(), pairedEnds.read2ReferenceIndex,
+                                rec.getMateAlignmentStart(), key[0], key[1], pairedEnds);
                     } else {
                         final int sequence = fragmentEnd.read1ReferenceIndex;
                         final int coordinate = fragmentEnd.read1Coordinate;
@@ -334,10 +396,12 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
 
         log.info("Read " + index + " records. " + tmp.size() + " pairs never matched.");
         iterator.close();
+        tmp.cleanup();
 
-        // Tell these collections to free up memory if possible.
         this.pairSort.doneAdding();
         this.fragSort.doneAdding();
+        log.info("Spilled " + this.pairSort.getNumSpillFiles() + " files of pairs and " + this.fragSort.getNumSpillFiles() +
+                " files of fragments to disk.");
     }
 
     /** Builds a read ends object that represents a single read. */
@@ -382,18 +446,16 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      * @return an array with an ordered list of indexes into the source file
      */
     private void generateDuplicateIndexes() {
-        // Keep this number from getting too large even if there is a huge heap.
-        final int maxInMemory = (int) Math.min((Runtime.getRuntime().maxMemory() * 0.25) / SortingLongCollection.SIZEOF,
-                (double) (Integer.MAX_VALUE - 5));
-        log.info("Will retain up to " + maxInMemory + " duplicate indices before spilling to disk.");
-        this.duplicateIndexes = new SortingLongCollection(maxInMemory, TMP_DIR.toArray(new File[TMP_DIR.size()]));
+        this.duplicateIndexes = new CompressedBitSet();
 
         ReadEndsForMarkDuplicates firstOfNextChunk = null;
         final List<ReadEndsForMarkDuplicates> nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(200);
 
         // First just do the pairs
         log.info("Traversing read pair information and detecting duplicates.");
-        for (final ReadEndsForMarkDuplicates next : this.pairSort) {
+        final CloseableIterator<ReadEndsForMarkDuplicates> pairIterator = this.pairSort.iterator();
+        while (pairIterator.hasNext()) {
+            final ReadEndsForMarkDuplicates next = pairIterator.next();
             if (firstOfNextChunk == null) {
                 firstOfNextChunk = next;
                 nextChunk.add(firstOfNextChunk);
@@ -410,6 +472,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
             }
         }
         if (nextChunk.size() > 1) markDuplicatePairs(nextChunk);
+        pairIterator.close();
         this.pairSort.cleanup();
         this.pairSort = null;
 
@@ -418,7 +481,9 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         boolean containsPairs = false;
         boolean containsFrags = false;
 
-        for (final ReadEndsForMarkDuplicates next : this.fragSort) {
+        final CloseableIterator<ReadEndsForMarkDuplicates> fragIterator = this.fragSort.iterator();
+        while (fragIterator.hasNext()) {
+            final ReadEndsForMarkDuplicates next = fragIterator.next();
             if (firstOfNextChunk != null && areComparableForDuplicates(firstOfNextChunk, next, false)) {
                 nextChunk.add(next);
                 containsPairs = containsPairs || next.isPaired();
@@ -436,11 +501,11 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
             }
         }
         markDuplicateFragments(nextChunk, containsPairs);
+        fragIterator.close();
         this.fragSort.cleanup();
         this.fragSort = null;
 
-        log.info("Sorting list of duplicate records.");
-        this.duplicateIndexes.doneAddingStartIteration();
+        log.info("Holding duplicate indices in " + this.duplicateIndexes.sizeInBytes() + " bytes of RAM.");
     }
 
     private boolean areComparableForDuplicates(final ReadEndsForMarkDuplicates lhs, final ReadEndsForMarkDuplicates rhs, final boolean compareRead2) {
@@ -521,19 +586,4 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
             }
         }
     }
-
-    /** Comparator for ReadEndsForMarkDuplicates that orders by read1 position then pair orientation then read2 position. */
-    static class ReadEndsMDComparator implements Comparator<ReadEndsForMarkDuplicates> {
-        public int compare(final ReadEndsForMarkDuplicates lhs, final ReadEndsForMarkDuplicates rhs) {
-            int retval = lhs.libraryId - rhs.libraryId;
-            if (retval == 0) retval = lhs.read1ReferenceIndex - rhs.read1ReferenceIndex;
-            if (retval == 0) retval = lhs.read1Coordinate - rhs.read1Coordinate;
-            if (retval == 0) retval = lhs.orientation - rhs.orientation;
-            if (retval == 0) retval = lhs.read2ReferenceIndex - rhs.read2ReferenceIndex;
-            if (retval == 0) retval = lhs.read2Coordinate - rhs.read2Coordinate;
-            if (retval == 0) retval = (int) (lhs.read1IndexInFile - rhs.read1IndexInFile);
-            if (retval == 0) retval = (int) (lhs.read2IndexInFile - rhs.read2IndexInFile);
-            return retval;
-        }
-    }
 }
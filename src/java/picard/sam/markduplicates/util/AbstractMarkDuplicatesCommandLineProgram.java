@@ -198,9 +198,7 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
         final List<SamReader> readers = new ArrayList<SamReader>(INPUT.size());
 
         for (final String input : INPUT) {
-            SamReader reader = SamReaderFactory.makeDefault()
-                .enable(SamReaderFactory.Option.EAGERLY_DECODE)
-                .open(SamInputResource.of(input));
+            final SamReader reader = openInput(input);
             final SAMFileHeader header = reader.getFileHeader();
 
             if (!ASSUME_SORTED && header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
@@ -220,6 +218,13 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
         }
     }
 
+    /** Opens one of the INPUTs, with records eagerly decoded.  Subclasses may read inputs in other ways. */
+    protected SamReader openInput(final String input) {
+        return SamReaderFactory.makeDefault()
+            .enable(SamReaderFactory.Option.EAGERLY_DECODE)
+            .open(SamInputResource.of(input));
+    }
+
     /**
      * Looks through the set of reads and identifies how many of the duplicates are
      * in fact optical duplicates, and stores the data in the instance level histogram.
@@ -0,0 +1,416 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.TempStreamFactory;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds the first read end of each pair seen in a coordinate sorted file until its mate is reached.  Unlike the
+ * implementations of ReadEndsForMarkDuplicatesMap, read ends are keyed by a 128-bit hash of the read group and read
+ * name, computed by hash() without building a String, and are held in primitive arrays: an open-addressed table of
+ * indexes into long[] pages, in which each read end is packed as by ReadEndsForMarkDuplicatesStore.
+ *
+ * Each read end is filed under the window of the genome, of WINDOW_SIZE bases, in which its mate starts.  When more
+ * than maxRecordsInRam read ends are held, those whose mates are furthest ahead are written to one temporary file per
+ * window, and those files are read back when the window is reached.  So memory is bounded however far apart mates are,
+ * and no file is held open between calls.  Read ends whose mates are in the current window, or in a window already
+ * passed, cannot be spilled; if too many of them are held to get back under the limit, the next spill is put off until
+ * the map has grown by half again, so that each put() does not scan the whole table.  The map relies on the mate positions of the records being correct, as they
+ * are in any valid coordinate sorted file.
+ */
+public class HashedReadEndsForMarkDuplicatesMap {
+    /** The bases in each window of the genome that read ends are spilled by, as a power of two. */
+    public static final int WINDOW_SHIFT = 20;
+
+    /** The longs that each read end takes: the two of the key, the window and the packed read end. */
+    private static final int RECORD_LONGS = 3 + ReadEndsForMarkDuplicatesStore.LONGS_PER_RECORD;
+
+    /** The approximate number of bytes that each read end held in RAM takes, counting the table. */
+    public static final int SIZE_OF = RECORD_LONGS * 8 + 2 * 4 + 4;
+
+    private static final int PAGE_SHIFT = 14;
+    private static final int RECORDS_PER_PAGE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = RECORDS_PER_PAGE - 1;
+
+    private static final long MIN_BYTES_FREE_IN_TMP_DIR = 5L * 1024 * 1024 * 1024;
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private final int maxRecordsInRam;
+    private final File[] tmpDirs;
+    private final TempStreamFactory tempStreamFactory = new TempStreamFactory();
+
+    /** Read ends are packed into these, RECORD_LONGS each.  Indexes of unused slots are on freeRecords. */
+    private final List<long[]> pages = new ArrayList<long[]>();
+    private int numRecordSlots = 0;
+    private int[] freeRecords = new int[16];
+    private int numFreeRecords = 0;
+
+    /** Open-addressed by linear probing; each entry is 1 + the index of a record, or 0 if empty. */
+    private int[] table = new int[16];
+    private int tableMask = table.length - 1;
+    private int numInRam = 0;
+    /** The number of read ends in RAM at which put() next spills. */
+    private int nextSpillAt;
+    private int numSpillScans = 0;
+
+    /** The window of the most recent call, before which no window will be reached again. */
+    private long currentWindow = Long.MIN_VALUE;
+    /** The temporary files, one per spill, holding the read ends for each window that has not been reached yet. */
+    private final TreeMap<Long, List<File>> spilledWindows = new TreeMap<Long, List<File>>();
+    private int numSpilled = 0;
+
+    private final long[] scratch = new long[RECORD_LONGS];
+
+    /**
+     * @param maxRecordsInRam The number of read ends to hold in RAM before spilling some to disk.  Each takes about
+     *                        SIZE_OF bytes.
+     * @param tmpDirs         Directories in which to write temporary files.
+     */
+    public HashedReadEndsForMarkDuplicatesMap(final int maxRecordsInRam, final Collection<File> tmpDirs) {
+        if (maxRecordsInRam < 1) throw new IllegalArgumentException("maxRecordsInRam must be positive: " + maxRecordsInRam);
+        this.maxRecordsInRam = maxRecordsInRam;
+        this.nextSpillAt = maxRecordsInRam;
+        this.tmpDirs = tmpDirs.toArray(new File[tmpDirs.size()]);
+    }
+
+    /**
+     * Computes the key of a read: a 128-bit hash of its read group and name.
+     *
+     * @param readGroup The read group ID, or null if the read has none.
+     * @param key       Receives the hash, in its first two elements.
+     */
+    public static void hash(final String readGroup, final String readName, final long[] key) {
+        long h1 = 0xcbf29ce484222325L;
+        long h2 = 0x9e3779b97f4a7c15L;
+        if (readGroup == null) {
+            h1 = (h1 ^ 0x10000) * 0x100000001b3L;
+            h2 = (h2 + 0x10000) * 0xc6a4a7935bd1e995L;
+        } else {
+            for (int i = 0; i < readGroup.length(); ++i) {
+                final char c = readGroup.charAt(i);
+                h1 = (h1 ^ c) * 0x100000001b3L;
+                h2 = (h2 + c) * 0xc6a4a7935bd1e995L;
+            }
+        }
+        // A value no char can take separates the read group from the name.
+        h1 = (h1 ^ 0x20000) * 0x100000001b3L;
+        h2 = (h2 + 0x20000) * 0xc6a4a7935bd1e995L;
+        for (int i = 0; i < readName.length(); ++i) {
+            final char c = readName.charAt(i);
+            h1 = (h1 ^ c) * 0x100000001b3L;
+            h2 = (h2 + c) * 0xc6a4a7935bd1e995L;
+        }
+        key[0] = mix(h1 ^ Long.rotateLeft(h2, 31));
+        key[1] = mix(h2 ^ Long.rotateLeft(h1, 17));
+    }
+
+    /** The finalizer of MurmurHash3, so that every bit of the result depends on every bit of the argument. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** @return The window holding the given position; windows are ordered as positions in a sorted file. */
+    public static long getWindow(final int referenceIndex, final int start) {
+        return ((long) referenceIndex << 32) | ((start >>> WINDOW_SHIFT) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Removes the read end stored under the key by the first read of a pair, if there is one.  Calls must be made in
+     * the order of the reads in a coordinate sorted file.
+     *
+     * @param referenceIndex The reference index of the read looking for its mate.
+     * @param start          The alignment start of the read looking for its mate.
+     * @param keyHigh        The first element of the key computed by hash().
+     * @param keyLow         The second element of the key computed by hash().
+     * @return null if the key is not found, otherwise a new object holding the read end that was put.
+     */
+    public ReadEndsForMarkDuplicates remove(final int referenceIndex, final int start, final long keyHigh, final long keyLow) {
+        advanceTo(getWindow(referenceIndex, start));
+        final int slot = findSlot(keyHigh, keyLow);
+        if (table[slot] == 0) return null;
+        final int record = table[slot] - 1;
+        final ReadEndsForMarkDuplicates readEnds = ReadEndsForMarkDuplicatesStore.unpack(pages.get(record >>> PAGE_SHIFT),
+                (record & PAGE_MASK) * RECORD_LONGS + 3);
+        deleteSlot(slot);
+        freeRecord(record);
+        --numInRam;
+        return readEnds;
+    }
+
+    /**
+     * Stores a read end until its mate is reached.  The key must not already be present.
+     *
+     * @param referenceIndex     The reference index of the read, which must not precede that of the previous call.
+     * @param start              The alignment start of the read.
+     * @param mateReferenceIndex The reference index of the read's mate, at which it will be removed.
+     * @param mateStart          The alignment start of the read's mate.
+     * @param keyHigh            The first element of the key computed by hash().
+     * @param keyLow             The second element of the key computed by hash().
+     * @param readEnds           The read end to store.  The object is not retained.
+     */
+    public void put(final int referenceIndex, final int start, final int mateReferenceIndex, final int mateStart,
+                    final long keyHigh, final long keyLow, final ReadEndsForMarkDuplicates readEnds) {
+        advanceTo(getWindow(referenceIndex, start));
+        if (numInRam >= nextSpillAt) spill();
+        scratch[0] = keyHigh;
+        scratch[1] = keyLow;
+        scratch[2] = getWindow(mateReferenceIndex, mateStart);
+        ReadEndsForMarkDuplicatesStore.pack(readEnds, scratch, 3);
+        insert(scratch);
+    }
+
+    /** @return The number of read ends stored, in RAM or on disk. */
+    public int size() {
+        return numInRam + numSpilled;
+    }
+
+    /** @return The number of read ends stored in RAM.  Always <= size(). */
+    public int sizeInRam() {
+        return numInRam;
+    }
+
+    /** @return The number of times the table has been scanned for read ends to spill. */
+    int getNumSpillScans() {
+        return numSpillScans;
+    }
+
+    /** Deletes any temporary files left, which hold read ends whose mates were never reached. */
+    public void cleanup() {
+        for (final List<File> files : spilledWindows.values()) {
+            IOUtil.deleteFiles(files);
+        }
+        spilledWindows.clear();
+        numSpilled = 0;
+    }
+
+    /** Reads back the read ends spilled for every window up to and including the given one. */
+    private void advanceTo(final long window) {
+        if (window == currentWindow) return;
+        currentWindow = window;
+        final Iterator<List<File>> iterator = spilledWindows.headMap(window, true).values().iterator();
+        while (iterator.hasNext()) {
+            for (final File file : iterator.next()) {
+                load(file);
+                IOUtil.deleteFiles(file);
+            }
+            iterator.remove();
+        }
+    }
+
+    /** @return The slot holding the key, or the empty slot at which it would be inserted. */
+    private int findSlot(final long keyHigh, final long keyLow) {
+        int slot = (int) keyLow & tableMask;
+        while (table[slot] != 0) {
+            final int record = table[slot] - 1;
+            final long[] page = pages.get(record >>> PAGE_SHIFT);
+            final int offset = (record & PAGE_MASK) * RECORD_LONGS;
+            if (page[offset] == keyHigh && page[offset + 1] == keyLow) break;
+            slot = (slot + 1) & tableMask;
+        }
+        return slot;
+    }
+
+    /** Empties a slot, moving later entries of the probe sequence back so that none is left unreachable. */
+    private void deleteSlot(int slot) {
+        int next = slot;
+        while (true) {
+            next = (next + 1) & tableMask;
+            final int entry = table[next];
+            if (entry == 0) break;
+            final int record = entry - 1;
+            final int home = (int) pages.get(record >>> PAGE_SHIFT)[(record & PAGE_MASK) * RECORD_LONGS + 1] & tableMask;
+            // The entry may move back to slot unless its home lies cyclically after slot.
+            if (((next - home) & tableMask) >= ((next - slot) & tableMask)) {
+                table[slot] = entry;
+                slot = next;
+            }
+        }
+        table[slot] = 0;
+    }
+
+    /** Copies a record into a free slot and adds it to the table. */
+    private void insert(final long[] source) {
+        if ((numInRam + 1) * 2 > table.length) resizeTable(table.length * 2);
+        final int record = allocateRecord();
+        System.arraycopy(source, 0, pages.get(record >>> PAGE_SHIFT), (record & PAGE_MASK) * RECORD_LONGS, RECORD_LONGS);
+        table[findSlot(source[0], source[1])] = record + 1;
+        ++numInRam;
+    }
+
+    private int allocateRecord() {
+        if (numFreeRecords > 0) return freeRecords[--numFreeRecords];
+        if ((numRecordSlots >>> PAGE_SHIFT) == pages.size()) {
+            pages.add(new long[RECORDS_PER_PAGE * RECORD_LONGS]);
+        }
+        return numRecordSlots++;
+    }
+
+    private void freeRecord(final int record) {
+        if (numFreeRecords == freeRecords.length) {
+            final int[] grown = new int[freeRecords.length * 2];
+            System.arraycopy(freeRecords, 0, grown, 0, numFreeRecords);
+            freeRecords = grown;
+        }
+        freeRecords[numFreeRecords++] = record;
+    }
+
+    private void resizeTable(final int capacity) {
+        final int[] oldTable = table;
+        table = new int[capacity];
+        tableMask = capacity - 1;
+        for (final int entry : oldTable) {
+            if (entry == 0) continue;
+            final int record = entry - 1;
+            final long[] page = pages.get(record >>> PAGE_SHIFT);
+            final int offset = (record & PAGE_MASK) * RECORD_LONGS;
+            table[findSlot(page[offset], page[offset + 1])] = entry;
+        }
+    }
+
+    /**
+     * Writes the read ends whose mates are in the furthest windows ahead to disk, until at most half of
+     * maxRecordsInRam remain.  Read ends whose mates are in the current window, or in windows already passed, stay.
+     * If more than that stay, the next spill is put off until half as many again are held.
+     */
+    private void spill() {
+        ++numSpillScans;
+        final Map<Long, List<Integer>> recordsByWindow = new HashMap<Long, List<Integer>>();
+        for (final int entry : table) {
+            if (entry == 0) continue;
+            final int record = entry - 1;
+            final long window = pages.get(record >>> PAGE_SHIFT)[(record & PAGE_MASK) * RECORD_LONGS + 2];
+            if (window <= currentWindow) continue;
+            List<Integer> records = recordsByWindow.get(window);
+            if (records == null) {
+                records = new ArrayList<Integer>();
+                recordsByWindow.put(window, records);
+            }
+            records.add(record);
+        }
+        final List<Long> windows = new ArrayList<Long>(recordsByWindow.keySet());
+        Collections.sort(windows, Collections.reverseOrder());
+        int numToKeep = numInRam;
+        for (final Long window : windows) {
+            if (numToKeep <= maxRecordsInRam / 2) break;
+            final List<Integer> records = recordsByWindow.get(window);
+            writeWindowFile(window, records);
+            for (final int record : records) {
+                freeRecord(record);
+            }
+            numToKeep -= records.size();
+            numSpilled += records.size();
+        }
+        nextSpillAt = numToKeep <= maxRecordsInRam / 2 ? maxRecordsInRam :
+                (int) Math.min(Integer.MAX_VALUE, numToKeep + Math.max(1L, numToKeep / 2L));
+        if (numToKeep == numInRam) return;
+
+        // Rebuild the table from the read ends still in RAM.
+        final boolean[] free = new boolean[numRecordSlots];
+        for (int i = 0; i < numFreeRecords; ++i) free[freeRecords[i]] = true;
+        numInRam = numToKeep;
+        int capacity = 16;
+        while (numInRam * 2 > capacity) capacity *= 2;
+        table = new int[capacity];
+        tableMask = capacity - 1;
+        for (int record = 0; record < numRecordSlots; ++record) {
+            if (free[record]) continue;
+            final long[] page = pages.get(record >>> PAGE_SHIFT);
+            final int offset = (record & PAGE_MASK) * RECORD_LONGS;
+            table[findSlot(page[offset], page[offset + 1])] = record + 1;
+        }
+    }
+
+    private void writeWindowFile(final Long window, final List<Integer> records) {
+        List<File> files = spilledWindows.get(window);
+        if (files == null) {
+            files = new ArrayList<File>();
+            spilledWindows.put(window, files);
+        }
+        DataOutputStream out = null;
+        try {
+            final File file = IOUtil.newTempFile("mates.", ".tmp", tmpDirs, MIN_BYTES_FREE_IN_TMP_DIR);
+            file.deleteOnExit();
+            files.add(file);
+            out = new DataOutputStream(tempStreamFactory.wrapTempOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), FILE_BUFFER_SIZE), FILE_BUFFER_SIZE));
+            out.writeInt(records.size());
+            for (final int record : records) {
+                final long[] page = pages.get(record >>> PAGE_SHIFT);
+                final int offset = (record & PAGE_MASK) * RECORD_LONGS;
+                for (int i = 0; i < RECORD_LONGS; ++i) {
+                    out.writeLong(page[offset + i]);
+                }
+            }
+        } catch (final IOException e) {
+            throw new PicardException("Exception writing read ends to temporary file.", e);
+        } finally {
+            CloserUtil.close(out);
+        }
+    }
+
+    private void load(final File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(tempStreamFactory.wrapTempInputStream(
+                    new BufferedInputStream(new FileInputStream(file), FILE_BUFFER_SIZE), FILE_BUFFER_SIZE));
+            final int numRecords = in.readInt();
+            for (int i = 0; i < numRecords; ++i) {
+                for (int j = 0; j < RECORD_LONGS; ++j) {
+                    scratch[j] = in.readLong();
+                }
+                insert(scratch);
+            }
+            numSpilled -= numRecords;
+        } catch (final IOException e) {
+            throw new PicardException("Exception reading read ends from temporary file " + file, e);
+        } finally {
+            CloserUtil.close(in);
+        }
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSpan;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.SAMUtils;
+import htsjdk.samtools.SAMValidationError;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.StringLineReader;
+import picard.PicardException;
+import picard.util.BamHeaderWriter;
+import picard.util.OrderedStage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BAM file in three stages, each on its own threads, so that decoding does not hold up the caller:
+ *
+ * 1. A reader thread splits the file into BGZF blocks, which are inflated by a pool of inflateThreads.
+ * 2. A splitter thread cuts the inflated data into batches of records, which are decoded by a pool of decodeThreads.
+ *    Records are validated and decoded eagerly there, as BAMFileReader does with EAGERLY_DECODE.
+ * 3. The caller iterates over the decoded records, which come back in file order.
+ *
+ * Only a single iteration over the whole file is supported; wrap in SamReader.PrimitiveSamReaderToSamReaderAdapter
+ * to use it as a SamReader.  The threads are stopped when the iterator or the reader is closed.
+ */
+public class PipelinedBamReader implements SamReader.PrimitiveSamReader {
+
+    /** Records are decoded in batches of about this many bytes. */
+    private static final int BATCH_SIZE = 256 * 1024;
+    /** Inflated blocks and decoded batches that may wait to be taken, per worker thread. */
+    private static final int PENDING_PER_THREAD = 4;
+
+    private final File file;
+    private final ValidationStringency validationStringency;
+    private final InputStream compressedStream;
+    private final ExecutorService inflaters;
+    private final ExecutorService decoders;
+    private final OrderedStage<byte[]> inflatedBlocks;
+    private final OrderedStage<List<SAMRecord>> decodedBatches;
+    private final InflatedStream inflatedStream;
+    private final Thread blockReader;
+    private final Thread recordSplitter;
+    private final SAMFileHeader header;
+    private boolean iterating = false;
+    private boolean closed = false;
+
+    private final ThreadLocal<Inflater> inflaterForThread = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    /**
+     * Opens the file and reads its header; the records are not read until getIterator() is called.
+     *
+     * @param inflateThreads The number of threads with which to inflate BGZF blocks.
+     * @param decodeThreads  The number of threads with which to decode records.
+     */
+    public PipelinedBamReader(final File file, final int inflateThreads, final int decodeThreads,
+                              final ValidationStringency validationStringency) {
+        if (inflateThreads < 1) throw new IllegalArgumentException("inflateThreads must be positive: " + inflateThreads);
+        if (decodeThreads < 1) throw new IllegalArgumentException("decodeThreads must be positive: " + decodeThreads);
+        this.file = file;
+        this.validationStringency = validationStringency;
+        try {
+            this.compressedStream = new BufferedInputStream(new FileInputStream(file),
+                    BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE);
+        } catch (final IOException e) {
+            throw new PicardException("Error opening " + file.getAbsolutePath(), e);
+        }
+        this.inflaters = newWorkers(inflateThreads, "PipelinedBamReader-inflate-");
+        this.decoders = newWorkers(decodeThreads, "PipelinedBamReader-decode-");
+        this.inflatedBlocks = new OrderedStage<byte[]>(inflaters, PENDING_PER_THREAD * inflateThreads);
+        this.decodedBatches = new OrderedStage<List<SAMRecord>>(decoders, PENDING_PER_THREAD * decodeThreads);
+        this.inflatedStream = new InflatedStream();
+
+        this.blockReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readBlocks();
+            }
+        }, "PipelinedBamReader-read");
+        this.blockReader.setDaemon(true);
+        this.recordSplitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                splitRecords();
+            }
+        }, "PipelinedBamReader-split");
+        this.recordSplitter.setDaemon(true);
+
+        this.blockReader.start();
+        try {
+            this.header = readHeader(new BinaryCodec(inflatedStream));
+        } catch (final RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static ExecutorService newWorkers(final int numThreads, final String namePrefix) {
+        return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private int threadNumber = 0;
+
+            @Override
+            public synchronized Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, namePrefix + (++threadNumber));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** Reads the header in the same way as BAMFileReader. */
+    private SAMFileHeader readHeader(final BinaryCodec codec) {
+        final byte[] magic = new byte[BamHeaderWriter.BAM_MAGIC.length];
+        codec.readBytes(magic);
+        if (!Arrays.equals(magic, BamHeaderWriter.BAM_MAGIC)) {
+            throw new SAMFormatException("Invalid BAM file header in file " + file);
+        }
+        final String textHeader = codec.readString(codec.readInt());
+        final SAMTextHeaderCodec headerCodec = new SAMTextHeaderCodec();
+        headerCodec.setValidationStringency(validationStringency);
+        final SAMFileHeader samFileHeader = headerCodec.decode(new StringLineReader(textHeader), file.toString());
+
+        final int sequenceCount = codec.readInt();
+        if (samFileHeader.getSequenceDictionary().size() > 0) {
+            // It is allowed to have binary sequences but no text sequences, so only validate if both are present
+            if (sequenceCount != samFileHeader.getSequenceDictionary().size()) {
+                throw new SAMFormatException("Number of sequences in text header (" +
+                        samFileHeader.getSequenceDictionary().size() +
+                        ") != number of sequences in binary header (" + sequenceCount + ") for file " + file);
+            }
+            for (int i = 0; i < sequenceCount; i++) {
+                final SAMSequenceRecord binarySequenceRecord = readSequenceRecord(codec);
+                final SAMSequenceRecord sequenceRecord = samFileHeader.getSequence(i);
+                if (!sequenceRecord.getSequenceName().equals(binarySequenceRecord.getSequenceName())) {
+                    throw new SAMFormatException("For sequence " + i + ", text and binary have different names in file " + file);
+                }
+                if (sequenceRecord.getSequenceLength() != binarySequenceRecord.getSequenceLength()) {
+                    throw new SAMFormatException("For sequence " + i + ", text and binary have different lengths in file " + file);
+                }
+            }
+        } else {
+            final List<SAMSequenceRecord> sequences = new ArrayList<SAMSequenceRecord>(sequenceCount);
+            for (int i = 0; i < sequenceCount; i++) {
+                sequences.add(readSequenceRecord(codec));
+            }
+            samFileHeader.getSequenceDictionary().setSequences(sequences);
+        }
+        return samFileHeader;
+    }
+
+    private SAMSequenceRecord readSequenceRecord(final BinaryCodec codec) {
+        final int nameLength = codec.readInt();
+        if (nameLength <= 1) {
+            throw new SAMFormatException("Invalid BAM file header: missing sequence name in file " + file);
+        }
+        final String sequenceName = codec.readString(nameLength - 1);
+        codec.readByte(); // Skip the null terminator.
+        final int sequenceLength = codec.readInt();
+        return new SAMSequenceRecord(SAMSequenceRecord.truncateSequenceName(sequenceName), sequenceLength);
+    }
+
+    /** Run by blockReader: hands each BGZF block to the inflaters. */
+    private void readBlocks() {
+        try {
+            try {
+                final byte[] blockHeader = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+                int numRead;
+                while ((numRead = readFully(compressedStream, blockHeader, 0, blockHeader.length)) > 0) {
+                    if (numRead < blockHeader.length || !isValidBlockHeader(blockHeader)) {
+                        throw new SAMFormatException("Invalid BGZF block header in file " + file);
+                    }
+                    final int blockLength = ((blockHeader[BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET] & 0xFF) |
+                            ((blockHeader[BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET + 1] & 0xFF) << 8)) + 1;
+                    if (blockLength < BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH) {
+                        throw new SAMFormatException("Unexpected BGZF block length " + blockLength + " in file " + file);
+                    }
+                    final byte[] block = new byte[blockLength];
+                    System.arraycopy(blockHeader, 0, block, 0, blockHeader.length);
+                    if (readFully(compressedStream, block, blockHeader.length, blockLength - blockHeader.length) <
+                            blockLength - blockHeader.length) {
+                        throw new SAMFormatException("Premature end of file " + file);
+                    }
+                    inflatedBlocks.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws DataFormatException {
+                            return inflate(block);
+                        }
+                    });
+                }
+                inflatedBlocks.finish();
+            } catch (final InterruptedException e) {
+                // Closed.
+            } catch (final Throwable t) {
+                inflatedBlocks.fail(t);
+            }
+        } catch (final InterruptedException e) {
+            // Closed while reporting a failure.
+        }
+    }
+
+    private static boolean isValidBlockHeader(final byte[] buffer) {
+        return (buffer[0] & 0xFF) == BlockCompressedStreamConstants.GZIP_ID1 &&
+                (buffer[1] & 0xFF) == BlockCompressedStreamConstants.GZIP_ID2 &&
+                (buffer[3] & BlockCompressedStreamConstants.GZIP_FLG) != 0 &&
+                buffer[10] == BlockCompressedStreamConstants.GZIP_XLEN &&
+                buffer[12] == BlockCompressedStreamConstants.BGZF_ID1 &&
+                buffer[13] == BlockCompressedStreamConstants.BGZF_ID2;
+    }
+
+    /** Inflates a whole BGZF block, header and footer included. */
+    private byte[] inflate(final byte[] block) throws DataFormatException {
+        final int footer = block.length - 4;
+        final int uncompressedLength = (block[footer] & 0xFF) | ((block[footer + 1] & 0xFF) << 8) |
+                ((block[footer + 2] & 0xFF) << 16) | ((block[footer + 3] & 0xFF) << 24);
+        final byte[] uncompressed = new byte[uncompressedLength];
+        final Inflater inflater = inflaterForThread.get();
+        inflater.reset();
+        inflater.setInput(block, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH,
+                block.length - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH);
+        final int inflatedLength = inflater.inflate(uncompressed);
+        if (inflatedLength != uncompressedLength) {
+            throw new SAMFormatException("Did not inflate expected amount of a BGZF block in file " + file);
+        }
+        return uncompressed;
+    }
+
+    /** Run by recordSplitter: hands batches of whole records to the decoders. */
+    private void splitRecords() {
+        try {
+            try {
+                final byte[] lengthBytes = new byte[4];
+                byte[] batch = new byte[BATCH_SIZE];
+                int batchLength = 0;
+                long firstRecordIndex = 1;
+                int numRecordsInBatch = 0;
+                int numRead;
+                while ((numRead = readFully(inflatedStream, lengthBytes, 0, lengthBytes.length)) > 0) {
+                    if (numRead < lengthBytes.length) throw new SAMFormatException("Premature end of file " + file);
+                    final int recordLength = (lengthBytes[0] & 0xFF) | ((lengthBytes[1] & 0xFF) << 8) |
+                            ((lengthBytes[2] & 0xFF) << 16) | ((lengthBytes[3] & 0xFF) << 24);
+                    if (recordLength < 0) throw new SAMFormatException("Invalid record length in file " + file);
+                    if (batchLength + 4 + recordLength > batch.length) {
+                        if (numRecordsInBatch > 0) {
+                            submitBatch(batch, batchLength, firstRecordIndex);
+                            firstRecordIndex += numRecordsInBatch;
+                        }
+                        batch = new byte[Math.max(BATCH_SIZE, 4 + recordLength)];
+                        batchLength = 0;
+                        numRecordsInBatch = 0;
+                    }
+                    System.arraycopy(lengthBytes, 0, batch, batchLength, 4);
+                    if (readFully(inflatedStream, batch, batchLength + 4, recordLength) < recordLength) {
+                        throw new SAMFormatException("Premature end of file " + file);
+                    }
+                    batchLength += 4 + recordLength;
+                    ++numRecordsInBatch;
+                }
+                if (numRecordsInBatch > 0) submitBatch(batch, batchLength, firstRecordIndex);
+                decodedBatches.finish();
+            } catch (final InterruptedException e) {
+                // Closed.
+            } catch (final Throwable t) {
+                decodedBatches.fail(t);
+            }
+        } catch (final InterruptedException e) {
+            // Closed while reporting a failure.
+        }
+    }
+
+    private void submitBatch(final byte[] batch, final int batchLength, final long firstRecordIndex) throws InterruptedException {
+        decodedBatches.submit(new Callable<List<SAMRecord>>() {
+            @Override
+            public List<SAMRecord> call() {
+                return decode(batch, batchLength, firstRecordIndex);
+            }
+        });
+    }
+
+    /** Decodes and validates records in the same way as BAMFileReader's iterator. */
+    private List<SAMRecord> decode(final byte[] batch, final int batchLength, long recordIndex) {
+        final BAMRecordCodec codec = new BAMRecordCodec(header);
+        codec.setInputStream(new ByteArrayInputStream(batch, 0, batchLength), file.toString());
+        final List<SAMRecord> records = new ArrayList<SAMRecord>();
+        SAMRecord record;
+        while ((record = codec.decode()) != null) {
+            record.setValidationStringency(validationStringency);
+            if (validationStringency != ValidationStringency.SILENT) {
+                final List<SAMValidationError> validationErrors = record.isValid();
+                SAMUtils.processValidationErrors(validationErrors, recordIndex, validationStringency);
+            }
+            // What BAMRecord.eagerDecode() does, which is not accessible.  Getting any tag decodes all of them.
+            record.getReadName();
+            record.getCigarString();
+            record.getReadBases();
+            record.getBaseQualities();
+            record.getReadGroup();
+            records.add(record);
+            ++recordIndex;
+        }
+        return records;
+    }
+
+    /** @return The number of bytes read, which is less than length only at the end of the stream. */
+    private static int readFully(final InputStream in, final byte[] buffer, final int offset, final int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            final int numRead = in.read(buffer, offset + total, length - total);
+            if (numRead < 0) break;
+            total += numRead;
+        }
+        return total;
+    }
+
+    /** The inflated contents of the file, taken block by block from the inflaters. */
+    private class InflatedStream extends InputStream {
+        private byte[] block = new byte[0];
+        private int offset = 0;
+
+        @Override
+        public int read() throws IOException {
+            if (!nextBlockIfNeeded()) return -1;
+            return block[offset++] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int bufferOffset, final int length) throws IOException {
+            if (length == 0) return 0;
+            if (!nextBlockIfNeeded()) return -1;
+            final int numRead = Math.min(length, block.length - offset);
+            System.arraycopy(block, offset, buffer, bufferOffset, numRead);
+            offset += numRead;
+            return numRead;
+        }
+
+        /** @return false at the end of the file. */
+        private boolean nextBlockIfNeeded() throws IOException {
+            while (offset == block.length) {
+                final byte[] next;
+                try {
+                    next = inflatedBlocks.take();
+                } catch (final InterruptedException e) {
+                    throw new PicardException("Interrupted waiting for a BGZF block to be inflated.", e);
+                }
+                if (next == null) return false;
+                block = next;
+                offset = 0;
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public CloseableIterator<SAMRecord> getIterator() {
+        if (closed) throw new IllegalStateException("Reader is closed.");
+        if (iterating) throw new IllegalStateException("Only one iteration over a PipelinedBamReader is supported.");
+        iterating = true;
+        recordSplitter.start();
+        return new CloseableIterator<SAMRecord>() {
+            private List<SAMRecord> batch = new ArrayList<SAMRecord>();
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (index == batch.size()) {
+                    if (closed) return false;
+                    final List<SAMRecord> next;
+                    try {
+                        next = decodedBatches.take();
+                    } catch (final InterruptedException e) {
+                        throw new PicardException("Interrupted waiting for records to be decoded.", e);
+                    }
+                    if (next == null) return false;
+                    batch = next;
+                    index = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public SAMRecord next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return batch.get(index++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+                PipelinedBamReader.this.close();
+            }
+        };
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return header;
+    }
+
+    @Override
+    public SamReader.Type type() {
+        return SamReader.Type.BAM_TYPE;
+    }
+
+    @Override
+    public ValidationStringency getValidationStringency() {
+        return validationStringency;
+    }
+
+    @Override
+    public boolean hasIndex() {
+        return false;
+    }
+
+    @Override
+    public BAMIndex getIndex() {
+        throw new SAMException("No index is available for this BAM file.");
+    }
+
+    @Override
+    public CloseableIterator<SAMRecord> getIterator(final SAMFileSpan fileSpan) {
+        throw new UnsupportedOperationException("Cannot iterate over a span of a PipelinedBamReader.");
+    }
+
+    @Override
+    public SAMFileSpan getFilePointerSpanningReads() {
+        throw new UnsupportedOperationException("Cannot get file pointers from a PipelinedBamReader.");
+    }
+
+    @Override
+    public CloseableIterator<SAMRecord> query(final QueryInterval[] intervals, final boolean contained) {
+        throw new UnsupportedOperationException("Cannot query a PipelinedBamReader.");
+    }
+
+    @Override
+    public CloseableIterator<SAMRecord> queryAlignmentStart(final String sequence, final int start) {
+        throw new UnsupportedOperationException("Cannot query a PipelinedBamReader.");
+    }
+
+    @Override
+    public CloseableIterator<SAMRecord> queryUnmapped() {
+        throw new UnsupportedOperationException("Cannot query a PipelinedBamReader.");
+    }
+
+    /** Stops the threads and closes the file.  May be called more than once. */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        blockReader.interrupt();
+        recordSplitter.interrupt();
+        inflaters.shutdownNow();
+        decoders.shutdownNow();
+        CloserUtil.close(compressedStream);
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Md5CalculatingOutputStream;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+import picard.PicardException;
+import picard.util.BamHeaderWriter;
+import picard.util.BlockCompressionPool;
+import picard.util.OrderedStage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes a coordinate sorted BAM file in stages, so that encoding and compression do not hold up the caller:
+ *
+ * 1. Records passed to addAlignment() are gathered into batches, which are encoded by a pool of encodeThreads.
+ * 2. A writer thread takes the encoded batches in order and writes them to a BGZF stream, which is compressed either
+ *    by a BlockCompressionPool or, if there is none, by the writer thread itself.
+ *
+ * The file is byte-for-byte the same as htsjdk's BAMFileWriter writes at the same compression level, and so is the
+ * MD5 file if requested.  If an index is requested it is built once the file is closed, by reading the file back as
+ * BuildBamIndex does, since the virtual file offsets of records are not known until their blocks are compressed.
+ *
+ * Records must not be changed after they are passed to addAlignment().
+ */
+public class PipelinedBamWriter implements SAMFileWriter {
+
+    /** Records are encoded in batches of this many. */
+    private static final int RECORDS_PER_BATCH = 1000;
+    /** Encoded batches that may wait to be written, per encoding thread. */
+    private static final int PENDING_PER_THREAD = 4;
+
+    private final File output;
+    private final SAMFileHeader header;
+    private final boolean createIndex;
+    private final FileOutputStream fileStream;
+    /** The BGZF stream that fileStream is written through. */
+    private final OutputStream outputStream;
+    private final ExecutorService encoders;
+    private final OrderedStage<byte[]> encodedBatches;
+    private final Thread writer;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>(null);
+    private List<SAMRecord> batch = new ArrayList<SAMRecord>(RECORDS_PER_BATCH);
+    private ProgressLoggerInterface progressLogger = null;
+    private boolean closed = false;
+    /** Set once close() has completed or abort() has been called. */
+    private volatile boolean finished = false;
+
+    /**
+     * @param header          The header to write, whose sort order should be coordinate if an index is to be built.
+     * @param encodeThreads   The number of threads with which to encode records.
+     * @param compressionPool If non-null, compresses the output.  Otherwise the writer thread compresses it, at
+     *                        htsjdk's default compression level.
+     */
+    public PipelinedBamWriter(final File output, final SAMFileHeader header, final int encodeThreads,
+                              final BlockCompressionPool compressionPool, final boolean createIndex,
+                              final boolean createMd5File) {
+        if (encodeThreads < 1) throw new IllegalArgumentException("encodeThreads must be positive: " + encodeThreads);
+        this.output = output;
+        this.header = header;
+        this.createIndex = createIndex;
+
+        try {
+            this.fileStream = new FileOutputStream(output);
+        } catch (final IOException e) {
+            throw new PicardException("Error opening " + output.getAbsolutePath(), e);
+        }
+        OutputStream stream = new BufferedOutputStream(fileStream, Defaults.BUFFER_SIZE);
+        if (createMd5File) {
+            stream = new Md5CalculatingOutputStream(stream, new File(output.getAbsolutePath() + ".md5"));
+        }
+        this.outputStream = compressionPool != null ? compressionPool.newOutputStream(stream) :
+                new BlockCompressedOutputStream(stream, null);
+        BamHeaderWriter.write(outputStream, header);
+
+        this.encoders = Executors.newFixedThreadPool(encodeThreads, new ThreadFactory() {
+            private int threadNumber = 0;
+
+            @Override
+            public synchronized Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "PipelinedBamWriter-encode-" + (++threadNumber));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.encodedBatches = new OrderedStage<byte[]>(encoders, PENDING_PER_THREAD * encodeThreads);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        }, "PipelinedBamWriter-write");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /** Run by the writer thread.  After a failure, keeps taking batches so that addAlignment() cannot block. */
+    private void writeBatches() {
+        try {
+            byte[] encoded;
+            while (!finished && (encoded = takeBatch()) != null) {
+                if (failure.get() != null) continue;
+                try {
+                    outputStream.write(encoded);
+                } catch (final Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        } catch (final InterruptedException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private byte[] takeBatch() throws InterruptedException {
+        while (true) {
+            try {
+                return encodedBatches.take();
+            } catch (final RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } catch (final Error e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    @Override
+    public void addAlignment(final SAMRecord alignment) {
+        checkForFailure();
+        batch.add(alignment);
+        if (batch.size() == RECORDS_PER_BATCH) submitBatch();
+        if (progressLogger != null) progressLogger.record(alignment);
+    }
+
+    private void submitBatch() {
+        final List<SAMRecord> records = batch;
+        batch = new ArrayList<SAMRecord>(RECORDS_PER_BATCH);
+        try {
+            encodedBatches.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.size() * 256);
+                    final BAMRecordCodec codec = new BAMRecordCodec(header);
+                    codec.setOutputStream(bytes, output.getAbsolutePath());
+                    for (final SAMRecord record : records) {
+                        codec.encode(record);
+                    }
+                    return bytes.toByteArray();
+                }
+            });
+        } catch (final InterruptedException e) {
+            throw new PicardException("Interrupted waiting for records to be encoded.", e);
+        }
+    }
+
+    private void checkForFailure() {
+        final Throwable t = failure.get();
+        if (t == null) return;
+        if (t instanceof Error) throw (Error) t;
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        throw new PicardException("Error writing " + output.getAbsolutePath(), t);
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return header;
+    }
+
+    @Override
+    public void setProgressLogger(final ProgressLoggerInterface progressLogger) {
+        this.progressLogger = progressLogger;
+    }
+
+    /** Waits for every record to be written, closes the file and then builds the index if requested. */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            if (!batch.isEmpty()) submitBatch();
+            try {
+                encodedBatches.finish();
+                writer.join();
+            } catch (final InterruptedException e) {
+                throw new PicardException("Interrupted waiting for records to be written.", e);
+            }
+        } finally {
+            encoders.shutdown();
+        }
+        checkForFailure();
+        try {
+            outputStream.close();
+        } catch (final IOException e) {
+            throw new PicardException("Error closing " + output.getAbsolutePath(), e);
+        }
+
+        if (createIndex) {
+            final SamReader reader = SamReaderFactory.makeDefault()
+                    .disable(SamReaderFactory.Option.EAGERLY_DECODE)
+                    .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS)
+                    .open(output);
+            try {
+                BAMIndexer.createIndex(reader, new File(output.getParentFile(), IOUtil.basename(output) + BAMIndex.BAMIndexSuffix));
+            } finally {
+                CloserUtil.close(reader);
+            }
+        }
+        finished = true;
+    }
+
+    /**
+     * Stops the threads and closes the file, leaving it incomplete, unless close() has already completed.  Call after
+     * a failure, so that the threads are not left waiting for records that will never come.
+     */
+    public void abort() {
+        if (finished) return;
+        finished = true;
+        closed = true;
+        writer.interrupt();
+        encoders.shutdownNow();
+        CloserUtil.close(fileStream);
+    }
+}
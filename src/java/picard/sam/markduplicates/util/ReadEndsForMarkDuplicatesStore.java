@@ -0,0 +1,553 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.TempStreamFactory;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Sorts ReadEndsForMarkDuplicates without holding an object per read end.  Each read end added is packed into a
+ * fixed-width slot of LONGS_PER_RECORD longs in large long[] pages.  When maxRecordsInRam have been added, the slots
+ * are sorted in place and written to a temporary file, and the pages are reused.  Iteration merges the temporary files
+ * and whatever remains in RAM, creating a ReadEndsForMarkDuplicates for each read end only as it is returned.
+ *
+ * With more than one thread, the read ends in RAM are split into that many ranges, which are sorted concurrently and
+ * then merged as they are written to a temporary file or iterated over, and each temporary file is read ahead a block
+ * at a time by the threads while the merge consumes the previous block.
+ *
+ * Read ends are ordered by library, read1 position, orientation, read2 position and then read1 and read2 index in
+ * file, so that the read ends that may be duplicates of one another are adjacent.  These fields make up the leading
+ * words of each slot, encoded so that comparing the words as signed longs compares the fields, so the sort and merge
+ * compare a few longs per read end.
+ */
+public class ReadEndsForMarkDuplicatesStore {
+    /** The number of longs each read end is packed into. */
+    public static final int LONGS_PER_RECORD = 7;
+
+    /** The number of bytes each read end occupies in RAM. */
+    public static final int SIZE_OF = LONGS_PER_RECORD * 8;
+
+    /** The number of leading longs of a slot that determine the order of read ends. */
+    private static final int KEY_LONGS = 5;
+
+    private static final int PAGE_SHIFT = 16;
+    private static final int RECORDS_PER_PAGE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = RECORDS_PER_PAGE - 1;
+
+    /** Below this many read ends, a range is sorted by insertion sort. */
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    /** The fewest read ends worth sorting on a thread of their own. */
+    private static final int MIN_RECORDS_PER_THREAD = 1 << 14;
+
+    /** The number of read ends read from a temporary file at a time. */
+    private static final int BLOCK_RECORDS = 512;
+
+    private static final long MIN_BYTES_FREE_IN_TMP_DIR = 5L * 1024 * 1024 * 1024;
+    private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
+    private final int maxRecordsInRam;
+    private final File[] tmpDirs;
+    private final int numThreads;
+    /** Threads for sorting and reading ahead, or null if there is only one thread. */
+    private final ExecutorService workers;
+    private final TempStreamFactory tempStreamFactory = new TempStreamFactory();
+
+    private final List<long[]> pages = new ArrayList<long[]>();
+    private int numRecordsInRam = 0;
+    /** The boundaries of the separately sorted ranges of the read ends in RAM, once they have been sorted. */
+    private int[] ramRunBounds = null;
+    private long size = 0;
+    private final List<File> spillFiles = new ArrayList<File>();
+    private boolean doneAdding = false;
+    private boolean cleanedUp = false;
+
+    /**
+     * @param maxRecordsInRam The number of read ends to hold in RAM before sorting them and writing them to a
+     *                        temporary file.  Each takes SIZE_OF bytes.
+     * @param tmpDirs         Directories in which to write temporary files.
+     */
+    public ReadEndsForMarkDuplicatesStore(final int maxRecordsInRam, final Collection<File> tmpDirs) {
+        this(maxRecordsInRam, tmpDirs, 1);
+    }
+
+    /**
+     * @param maxRecordsInRam The number of read ends to hold in RAM before sorting them and writing them to a
+     *                        temporary file.  Each takes SIZE_OF bytes.
+     * @param tmpDirs         Directories in which to write temporary files.
+     * @param numThreads      The number of threads to sort with and to read temporary files with.
+     */
+    public ReadEndsForMarkDuplicatesStore(final int maxRecordsInRam, final Collection<File> tmpDirs, final int numThreads) {
+        if (maxRecordsInRam < 1) throw new IllegalArgumentException("maxRecordsInRam must be positive: " + maxRecordsInRam);
+        if (numThreads < 1) throw new IllegalArgumentException("numThreads must be positive: " + numThreads);
+        this.maxRecordsInRam = maxRecordsInRam;
+        this.tmpDirs = tmpDirs.toArray(new File[tmpDirs.size()]);
+        this.numThreads = numThreads;
+        if (numThreads == 1) {
+            this.workers = null;
+        } else {
+            this.workers = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                private int threadNumber = 0;
+
+                @Override
+                public synchronized Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "ReadEndsForMarkDuplicatesStore-" + (++threadNumber));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /** Packs the read end into the store.  The object is not retained, so may be reused by the caller. */
+    public void add(final ReadEndsForMarkDuplicates read) {
+        if (doneAdding) throw new IllegalStateException("Cannot add after calling doneAdding()");
+        if (numRecordsInRam == maxRecordsInRam) spill();
+        final int page = numRecordsInRam >>> PAGE_SHIFT;
+        if (page == pages.size()) {
+            pages.add(new long[Math.min(RECORDS_PER_PAGE, maxRecordsInRam - (page << PAGE_SHIFT)) * LONGS_PER_RECORD]);
+        }
+        pack(read, pages.get(page), (numRecordsInRam & PAGE_MASK) * LONGS_PER_RECORD);
+        ++numRecordsInRam;
+        ++size;
+    }
+
+    /** Sorts the read ends still in RAM.  No more may be added after this is called. */
+    public void doneAdding() {
+        if (doneAdding) return;
+        doneAdding = true;
+        sortRecordsInRam();
+    }
+
+    /** @return The number of read ends added. */
+    public long size() {
+        return size;
+    }
+
+    /** @return The number of temporary files written so far. */
+    public int getNumSpillFiles() {
+        return spillFiles.size();
+    }
+
+    /**
+     * @return The read ends in order.  Each one returned is a new object.  Calls doneAdding() if it has not been
+     * called.  May be called more than once, until cleanup() is called.
+     */
+    public CloseableIterator<ReadEndsForMarkDuplicates> iterator() {
+        if (cleanedUp) throw new IllegalStateException("Cannot iterate after calling cleanup()");
+        doneAdding();
+        return new MergingIterator();
+    }
+
+    /** Deletes the temporary files, releases the pages and stops the threads. */
+    public void cleanup() {
+        cleanedUp = true;
+        if (workers != null) workers.shutdown();
+        pages.clear();
+        numRecordsInRam = 0;
+        for (final File file : spillFiles) {
+            IOUtil.deleteFiles(file);
+        }
+        spillFiles.clear();
+    }
+
+    /** Sorts the read ends in RAM and writes them to a new temporary file, leaving the pages empty. */
+    private void spill() {
+        sortRecordsInRam();
+        final PriorityQueue<Run> queue = newRunQueue();
+        addRamRuns(queue);
+        DataOutputStream out = null;
+        try {
+            final File file = IOUtil.newTempFile("readends.", ".tmp", tmpDirs, MIN_BYTES_FREE_IN_TMP_DIR);
+            file.deleteOnExit();
+            spillFiles.add(file);
+            out = new DataOutputStream(tempStreamFactory.wrapTempOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), SPILL_BUFFER_SIZE), SPILL_BUFFER_SIZE));
+            while (!queue.isEmpty()) {
+                final Run run = queue.poll();
+                for (int i = 0; i < LONGS_PER_RECORD; ++i) {
+                    out.writeLong(run.current[i]);
+                }
+                if (run.advance()) queue.add(run);
+            }
+            out.close();
+        } catch (final IOException e) {
+            CloserUtil.close(out);
+            throw new PicardException("Exception writing read ends to temporary file.", e);
+        }
+        numRecordsInRam = 0;
+    }
+
+    /**
+     * Packs a read end into LONGS_PER_RECORD longs.  Signed fields are offset into unsigned ranges so that the key
+     * words can be compared as signed longs; the last key word uses all 64 bits, so its sign bit is flipped.
+     */
+    static void pack(final ReadEndsForMarkDuplicates read, final long[] slots, final int offset) {
+        slots[offset] = ((long) (read.libraryId - Short.MIN_VALUE) << 32) | unsigned(read.read1ReferenceIndex);
+        slots[offset + 1] = (unsigned(read.read1Coordinate) << 8) | (read.orientation - Byte.MIN_VALUE);
+        slots[offset + 2] = ((unsigned(read.read2ReferenceIndex) << 32) | unsigned(read.read2Coordinate)) ^ Long.MIN_VALUE;
+        slots[offset + 3] = read.read1IndexInFile;
+        slots[offset + 4] = read.read2IndexInFile;
+        slots[offset + 5] = ((read.score & 0xFFFFL) << 48) | ((read.readGroup & 0xFFFFL) << 32) |
+                ((read.tile & 0xFFFFL) << 16) | (read.x & 0xFFFFL);
+        slots[offset + 6] = ((read.y & 0xFFFFL) << 8) | (read.orientationForOpticalDuplicates & 0xFFL);
+    }
+
+    /** @return A new read end unpacked from LONGS_PER_RECORD longs. */
+    static ReadEndsForMarkDuplicates unpack(final long[] slots, final int offset) {
+        final ReadEndsForMarkDuplicates read = new ReadEndsForMarkDuplicates();
+        final long word0 = slots[offset];
+        final long word1 = slots[offset + 1];
+        final long word2 = slots[offset + 2] ^ Long.MIN_VALUE;
+        final long word5 = slots[offset + 5];
+        final long word6 = slots[offset + 6];
+        read.libraryId = (short) ((word0 >>> 32) + Short.MIN_VALUE);
+        read.read1ReferenceIndex = signed(word0);
+        read.read1Coordinate = signed(word1 >>> 8);
+        read.orientation = (byte) ((word1 & 0xFF) + Byte.MIN_VALUE);
+        read.read2ReferenceIndex = signed(word2 >>> 32);
+        read.read2Coordinate = signed(word2);
+        read.read1IndexInFile = slots[offset + 3];
+        read.read2IndexInFile = slots[offset + 4];
+        read.score = (short) (word5 >>> 48);
+        read.readGroup = (short) (word5 >>> 32);
+        read.tile = (short) (word5 >>> 16);
+        read.x = (short) word5;
+        read.y = (short) (word6 >>> 8);
+        read.orientationForOpticalDuplicates = (byte) word6;
+        return read;
+    }
+
+    /** @return The int offset into [0, 2^32) so that unsigned order is signed order. */
+    private static long unsigned(final int value) {
+        return (value - (long) Integer.MIN_VALUE) & 0xFFFFFFFFL;
+    }
+
+    /** Inverse of unsigned(), taking the low 32 bits of the argument. */
+    private static int signed(final long value) {
+        return (int) ((value & 0xFFFFFFFFL) + Integer.MIN_VALUE);
+    }
+
+    /** Compares the keys of two packed read ends. */
+    private static int compareKeys(final long[] lhs, final int lhsOffset, final long[] rhs, final int rhsOffset) {
+        for (int i = 0; i < KEY_LONGS; ++i) {
+            final long l = lhs[lhsOffset + i];
+            final long r = rhs[rhsOffset + i];
+            if (l != r) return l < r ? -1 : 1;
+        }
+        return 0;
+    }
+
+    private int compare(final int i, final int j) {
+        return compareKeys(pages.get(i >>> PAGE_SHIFT), (i & PAGE_MASK) * LONGS_PER_RECORD,
+                pages.get(j >>> PAGE_SHIFT), (j & PAGE_MASK) * LONGS_PER_RECORD);
+    }
+
+    private void swap(final int i, final int j, final long[] scratch) {
+        final long[] iPage = pages.get(i >>> PAGE_SHIFT);
+        final int iOffset = (i & PAGE_MASK) * LONGS_PER_RECORD;
+        final long[] jPage = pages.get(j >>> PAGE_SHIFT);
+        final int jOffset = (j & PAGE_MASK) * LONGS_PER_RECORD;
+        System.arraycopy(iPage, iOffset, scratch, 0, LONGS_PER_RECORD);
+        System.arraycopy(jPage, jOffset, iPage, iOffset, LONGS_PER_RECORD);
+        System.arraycopy(scratch, 0, jPage, jOffset, LONGS_PER_RECORD);
+    }
+
+    /**
+     * Sorts the read ends in RAM in place.  With more than one thread, they are sorted as separate ranges, one per
+     * thread, whose bounds are recorded in ramRunBounds for the ranges to be merged.
+     */
+    private void sortRecordsInRam() {
+        final int numRuns = Math.max(1, Math.min(numThreads, numRecordsInRam / MIN_RECORDS_PER_THREAD));
+        ramRunBounds = new int[numRuns + 1];
+        for (int i = 0; i <= numRuns; ++i) {
+            ramRunBounds[i] = (int) ((long) numRecordsInRam * i / numRuns);
+        }
+        if (numRuns == 1) {
+            sort(0, numRecordsInRam, new long[LONGS_PER_RECORD]);
+            return;
+        }
+        final List<Future<?>> futures = new ArrayList<Future<?>>(numRuns);
+        for (int i = 0; i < numRuns; ++i) {
+            final int from = ramRunBounds[i];
+            final int to = ramRunBounds[i + 1];
+            futures.add(workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    sort(from, to, new long[LONGS_PER_RECORD]);
+                }
+            }));
+        }
+        for (final Future<?> future : futures) {
+            await(future);
+        }
+    }
+
+    /** @return The result of the future, rethrowing whatever the task threw as a PicardException. */
+    private static <T> T await(final Future<T> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            throw new PicardException("Interrupted waiting for read ends to be sorted or read.", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof PicardException) throw (PicardException) e.getCause();
+            throw new PicardException("Exception sorting or reading read ends.", e.getCause());
+        }
+    }
+
+    /** Sorts the read ends in slots [from, to) in place, by quicksort on the median of three. */
+    private void sort(int from, int to, final long[] scratch) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            final int mid = (from + to) >>> 1;
+            // Order from, mid and to - 1, then use mid as the pivot, parked at to - 2.
+            if (compare(mid, from) < 0) swap(mid, from, scratch);
+            if (compare(to - 1, from) < 0) swap(to - 1, from, scratch);
+            if (compare(to - 1, mid) < 0) swap(to - 1, mid, scratch);
+            final int pivot = to - 2;
+            swap(mid, pivot, scratch);
+            int i = from;
+            int j = pivot;
+            while (true) {
+                while (compare(++i, pivot) < 0) ;
+                while (compare(--j, pivot) > 0) ;
+                if (i >= j) break;
+                swap(i, j, scratch);
+            }
+            swap(i, pivot, scratch);
+            // Recurse into the smaller side so that the stack stays shallow.
+            if (i - from < to - i - 1) {
+                sort(from, i, scratch);
+                from = i + 1;
+            } else {
+                sort(i + 1, to, scratch);
+                to = i;
+            }
+        }
+        for (int i = from + 1; i < to; ++i) {
+            for (int j = i; j > from && compare(j, j - 1) < 0; --j) {
+                swap(j, j - 1, scratch);
+            }
+        }
+    }
+
+    /** A source of packed read ends in order: a temporary file, or the pages in RAM. */
+    private abstract static class Run {
+        final long[] current = new long[LONGS_PER_RECORD];
+
+        /** Loads the next read end into current, returning false if there are no more. */
+        abstract boolean advance();
+
+        void close() {}
+    }
+
+    /** Reads a temporary file a block at a time, reading the next block ahead on a worker thread if there are any. */
+    private class FileRun extends Run {
+        private final DataInputStream in;
+        private long[] block = new long[BLOCK_RECORDS * LONGS_PER_RECORD];
+        private long[] nextBlock = new long[BLOCK_RECORDS * LONGS_PER_RECORD];
+        private int blockLength = 0;
+        private int position = 0;
+        /** The number of longs being read into nextBlock, if it is being read ahead. */
+        private Future<Integer> nextBlockLength = null;
+
+        FileRun(final DataInputStream in) {
+            this.in = in;
+            readAhead();
+        }
+
+        @Override
+        boolean advance() {
+            if (position == blockLength) {
+                final int length;
+                if (nextBlockLength != null) {
+                    length = await(nextBlockLength);
+                    nextBlockLength = null;
+                } else {
+                    length = readBlock(in, nextBlock);
+                }
+                final long[] consumed = block;
+                block = nextBlock;
+                nextBlock = consumed;
+                blockLength = length;
+                position = 0;
+                if (length == 0) return false;
+                readAhead();
+            }
+            System.arraycopy(block, position, current, 0, LONGS_PER_RECORD);
+            position += LONGS_PER_RECORD;
+            return true;
+        }
+
+        private void readAhead() {
+            if (workers == null) return;
+            final long[] target = nextBlock;
+            nextBlockLength = workers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return readBlock(in, target);
+                }
+            });
+        }
+
+        @Override
+        void close() {
+            try {
+                if (nextBlockLength != null) await(nextBlockLength);
+            } finally {
+                nextBlockLength = null;
+                CloserUtil.close(in);
+            }
+        }
+    }
+
+    /** @return The number of longs read into block, which is less than its length only at the end of the file. */
+    private static int readBlock(final DataInputStream in, final long[] block) {
+        int length = 0;
+        try {
+            while (length < block.length) {
+                try {
+                    block[length] = in.readLong();
+                } catch (final EOFException e) {
+                    if (length % LONGS_PER_RECORD != 0) {
+                        throw new PicardException("Temporary file of read ends ends partway through a read end.");
+                    }
+                    break;
+                }
+                ++length;
+            }
+        } catch (final IOException e) {
+            throw new PicardException("Exception reading read ends from temporary file.", e);
+        }
+        return length;
+    }
+
+    /** One separately sorted range of the read ends in RAM. */
+    private class RamRun extends Run {
+        private int next;
+        private final int end;
+
+        RamRun(final int from, final int to) {
+            this.next = from;
+            this.end = to;
+        }
+
+        @Override
+        boolean advance() {
+            if (next == end) return false;
+            System.arraycopy(pages.get(next >>> PAGE_SHIFT), (next & PAGE_MASK) * LONGS_PER_RECORD, current, 0, LONGS_PER_RECORD);
+            ++next;
+            return true;
+        }
+    }
+
+    private static PriorityQueue<Run> newRunQueue() {
+        return new PriorityQueue<Run>(11, new Comparator<Run>() {
+            @Override
+            public int compare(final Run lhs, final Run rhs) {
+                return compareKeys(lhs.current, 0, rhs.current, 0);
+            }
+        });
+    }
+
+    /** Adds each non-empty sorted range of the read ends in RAM to the queue. */
+    private void addRamRuns(final PriorityQueue<Run> queue) {
+        for (int i = 0; i + 1 < ramRunBounds.length; ++i) {
+            final Run run = new RamRun(ramRunBounds[i], ramRunBounds[i + 1]);
+            if (run.advance()) queue.add(run);
+        }
+    }
+
+    private class MergingIterator implements CloseableIterator<ReadEndsForMarkDuplicates> {
+        private final PriorityQueue<Run> queue = newRunQueue();
+
+        MergingIterator() {
+            final List<Run> runs = new ArrayList<Run>();
+            try {
+                for (final File file : spillFiles) {
+                    runs.add(new FileRun(new DataInputStream(tempStreamFactory.wrapTempInputStream(
+                            new BufferedInputStream(new FileInputStream(file), SPILL_BUFFER_SIZE), SPILL_BUFFER_SIZE))));
+                }
+            } catch (final IOException e) {
+                for (final Run run : runs) run.close();
+                throw new PicardException("Exception opening temporary file of read ends.", e);
+            }
+            for (final Run run : runs) {
+                if (run.advance()) queue.add(run);
+                else run.close();
+            }
+            addRamRuns(queue);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public ReadEndsForMarkDuplicates next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final Run run = queue.poll();
+            final ReadEndsForMarkDuplicates read = unpack(run.current, 0);
+            if (run.advance()) queue.add(run);
+            else run.close();
+            return read;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            for (final Run run : queue) run.close();
+            queue.clear();
+        }
+    }
+}
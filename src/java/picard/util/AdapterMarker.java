@@ -32,6 +32,8 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -61,10 +63,15 @@ public class AdapterMarker {
     // thread and the array is being replaced.
     private final AtomicReference<AdapterPair[]> adapters = new AtomicReference<AdapterPair[]>();
 
-    // All the members below are only accessed within a synchronized block.
-    private boolean thresholdReached = false;
-    private int numAdaptersSeen = 0;
-    private final CollectionUtil.DefaultingMap<AdapterPair, Integer> seenCounts = new CollectionUtil.DefaultingMap<AdapterPair, Integer>(0);
+    // The adapters are tallied without locking, as every clipped read is tallied until the list is pruned.  The count of
+    // each adapter is incremented before the total, so when the total reaches the threshold every adapter counted in it
+    // is in the adapter counts.
+    private final AdapterPair[] candidateAdapters;
+    private final AtomicIntegerArray seenCounts;
+    private final AtomicInteger numAdaptersSeen = new AtomicInteger(0);
+
+    // Only set within a synchronized block, but read without locking.
+    private volatile boolean thresholdReached = false;
 
     /**
      * Truncates adapters to DEFAULT_ADAPTER_LENGTH
@@ -91,7 +98,9 @@ public class AdapterMarker {
                 matchingAdapter.setName(matchingAdapter.getName() + "|" + adapter.getName());
             }
         }
-        adapters.set(truncatedAdapters.toArray(new AdapterPair[truncatedAdapters.size()]));
+        candidateAdapters = truncatedAdapters.toArray(new AdapterPair[truncatedAdapters.size()]);
+        seenCounts = new AtomicIntegerArray(candidateAdapters.length);
+        adapters.set(candidateAdapters);
     }
 
     public int getNumAdaptersToKeep() {
@@ -230,51 +239,67 @@ public class AdapterMarker {
     private void tallyFoundAdapter(final AdapterPair foundAdapter) {
         // If caller does not want adapter pruning, do nothing.
         if (thresholdForSelectingAdaptersToKeep < 1) return;
-        synchronized (this) {
-            // Already pruned adapter list, so nothing more to do.
-            if (thresholdReached) return;
-
-            // Tally this adapter
-            seenCounts.put(foundAdapter, seenCounts.get(foundAdapter) + 1);
-
-            // Keep track of the number of times an adapter has been seen.
-            numAdaptersSeen += 1;
-
-            // Reached the threshold for pruning the list.
-            if (numAdaptersSeen >= thresholdForSelectingAdaptersToKeep) {
-
-                // Sort adapters by number of times each has been seen.
-                final TreeMap<Integer, AdapterPair> sortedAdapters = new TreeMap<Integer, AdapterPair>(new Comparator<Integer>() {
-                    @Override
-                    public int compare(final Integer integer, final Integer integer2) {
-                        // Reverse of natural ordering
-                        return integer2.compareTo(integer);
-                    }
-                });
-                for (final Map.Entry<AdapterPair, Integer> entry : seenCounts.entrySet()) {
-                    sortedAdapters.put(entry.getValue(), entry.getKey());
-                }
 
-                // Keep the #numAdaptersToKeep adapters that have been seen the most, plus any ties.
-                final ArrayList<AdapterPair> bestAdapters = new ArrayList<AdapterPair>(numAdaptersToKeep);
-                int countOfLastAdapter = Integer.MAX_VALUE;
-                for (final Map.Entry<Integer, AdapterPair> entry : sortedAdapters.entrySet()) {
-                    if (bestAdapters.size() >= numAdaptersToKeep) {
-                        if (entry.getKey() == countOfLastAdapter) {
-                            bestAdapters.add(entry.getValue());
-                        } else {
-                            break;
-                        }
-                    } else {
-                        countOfLastAdapter = entry.getKey();
-                        bestAdapters.add(entry.getValue());
-                    }
+        // Already pruned adapter list, so nothing more to do.
+        if (thresholdReached) return;
+
+        // Tally this adapter.  It is one of the candidates, since the list only changes when it is pruned.
+        for (int i = 0; i < candidateAdapters.length; ++i) {
+            if (candidateAdapters[i] == foundAdapter) {
+                seenCounts.incrementAndGet(i);
+                break;
+            }
+        }
+
+        // Keep track of the number of times an adapter has been seen, and prune the list once there have been enough.
+        if (numAdaptersSeen.incrementAndGet() >= thresholdForSelectingAdaptersToKeep) {
+            pruneAdapters();
+        }
+    }
+
+    /**
+     * Replace the list of adapters with those that have been seen the most.
+     */
+    private synchronized void pruneAdapters() {
+        // Another thread crossed the threshold at the same time and has already pruned the list.
+        if (thresholdReached) return;
+
+        final CollectionUtil.DefaultingMap<AdapterPair, Integer> counts = new CollectionUtil.DefaultingMap<AdapterPair, Integer>(0);
+        for (int i = 0; i < candidateAdapters.length; ++i) {
+            final int count = seenCounts.get(i);
+            if (count > 0) counts.put(candidateAdapters[i], count);
+        }
+
+        // Sort adapters by number of times each has been seen.
+        final TreeMap<Integer, AdapterPair> sortedAdapters = new TreeMap<Integer, AdapterPair>(new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer integer, final Integer integer2) {
+                // Reverse of natural ordering
+                return integer2.compareTo(integer);
+            }
+        });
+        for (final Map.Entry<AdapterPair, Integer> entry : counts.entrySet()) {
+            sortedAdapters.put(entry.getValue(), entry.getKey());
+        }
+
+        // Keep the #numAdaptersToKeep adapters that have been seen the most, plus any ties.
+        final ArrayList<AdapterPair> bestAdapters = new ArrayList<AdapterPair>(numAdaptersToKeep);
+        int countOfLastAdapter = Integer.MAX_VALUE;
+        for (final Map.Entry<Integer, AdapterPair> entry : sortedAdapters.entrySet()) {
+            if (bestAdapters.size() >= numAdaptersToKeep) {
+                if (entry.getKey() == countOfLastAdapter) {
+                    bestAdapters.add(entry.getValue());
+                } else {
+                    break;
                 }
-                // Replace the existing list with the pruned list.
-                thresholdReached = true;
-                adapters.set(bestAdapters.toArray(new AdapterPair[bestAdapters.size()]));
+            } else {
+                countOfLastAdapter = entry.getKey();
+                bestAdapters.add(entry.getValue());
             }
         }
+        // Replace the existing list with the pruned list.
+        adapters.set(bestAdapters.toArray(new AdapterPair[bestAdapters.size()]));
+        thresholdReached = true;
     }
 
     private static class TruncatedAdapterPair implements AdapterPair {
@@ -0,0 +1,315 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.CloserUtil;
+import picard.PicardException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A pool of threads that BGZF-compresses blocks on behalf of any number of output streams.  Each stream returned by
+ * newOutputStream() buffers a single uncompressed block; when it fills, the block is handed to the pool and the
+ * compressed block is written to the underlying stream by whichever worker completes it, in the order the blocks
+ * were filled.  Compressed output is identical to that of htsjdk's BlockCompressedOutputStream at the same
+ * compression level.
+ *
+ * The number of blocks that have been handed off but not yet written is bounded across all streams, so a writer that
+ * gets ahead of the workers blocks rather than queueing an unbounded amount of data.  Deflaters are held per worker
+ * thread instead of per stream, so opening many streams costs only one uncompressed buffer each.
+ */
+public class BlockCompressionPool {
+    /** Approximate memory held by each block that has been handed off to the pool. */
+    public static final int BYTES_PER_BLOCK = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE +
+            BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE;
+
+    /** Space for deflated data, as BlockCompressedOutputStream allocates it. */
+    private static final int DEFLATED_BUFFER_SIZE =
+            BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+
+    private final int compressionLevel;
+    private final ExecutorService workers;
+    private final Semaphore blocksInFlight;
+    private final Deque<Block> freeBlocks = new ArrayDeque<Block>();
+    private final ThreadLocal<Compressor> compressors = new ThreadLocal<Compressor>() {
+        @Override
+        protected Compressor initialValue() {
+            return new Compressor(compressionLevel);
+        }
+    };
+
+    /**
+     * @param numThreads        Number of compression threads.
+     * @param maxBlocksInFlight Maximum number of blocks, across all streams, that may be awaiting compression or
+     *                          write-back at once.  Each holds about BYTES_PER_BLOCK bytes.
+     * @param compressionLevel  Deflate compression level.
+     */
+    public BlockCompressionPool(final int numThreads, final int maxBlocksInFlight, final int compressionLevel) {
+        if (numThreads < 1) throw new IllegalArgumentException("numThreads must be positive: " + numThreads);
+        if (maxBlocksInFlight < 1) throw new IllegalArgumentException("maxBlocksInFlight must be positive: " + maxBlocksInFlight);
+        this.compressionLevel = compressionLevel;
+        this.blocksInFlight = new Semaphore(maxBlocksInFlight);
+        this.workers = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private int threadNumber = 0;
+
+            @Override
+            public synchronized Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "BlockCompressionPool-" + (++threadNumber));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return A stream that BGZF-compresses everything written to it into out, using this pool.  Closing it writes
+     * the BGZF terminator block and closes out.  Like any OutputStream, it must be written by one thread at a time.
+     */
+    public PooledOutputStream newOutputStream(final OutputStream out) {
+        return new PooledOutputStream(out);
+    }
+
+    /** Stops the worker threads.  Streams must be closed before calling this. */
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private Block takeFreeBlock() {
+        synchronized (freeBlocks) {
+            final Block block = freeBlocks.pollFirst();
+            if (block != null) return block;
+        }
+        return new Block();
+    }
+
+    private void releaseBlock(final Block block) {
+        block.compressed = false;
+        synchronized (freeBlocks) {
+            freeBlocks.addFirst(block);
+        }
+        blocksInFlight.release();
+    }
+
+    /** A block handed off by a stream, which holds both the uncompressed data and the BGZF block made from it. */
+    private static class Block {
+        byte[] uncompressed = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+        int uncompressedLength;
+        final byte[] bgzfBlock = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + DEFLATED_BUFFER_SIZE +
+                BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH];
+        int bgzfLength;
+        boolean compressed;
+    }
+
+    /** Per-thread compression state. */
+    private static class Compressor {
+        private final Deflater deflater;
+        private final Deflater noCompressionDeflater = new Deflater(Deflater.NO_COMPRESSION, true);
+        private final CRC32 crc32 = new CRC32();
+
+        Compressor(final int compressionLevel) {
+            deflater = new Deflater(compressionLevel, true);
+        }
+
+        /** Fills in block.bgzfBlock in the same way BlockCompressedOutputStream.deflateBlock() would. */
+        void compress(final Block block) {
+            final int headerLength = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+            int deflatedLength = deflate(deflater, block, headerLength);
+            if (deflatedLength < 0) {
+                // Data did not compress; store it instead.
+                deflatedLength = deflate(noCompressionDeflater, block, headerLength);
+                if (deflatedLength < 0) {
+                    throw new PicardException("Uncompressed block did not fit in a BGZF block.");
+                }
+            }
+            crc32.reset();
+            crc32.update(block.uncompressed, 0, block.uncompressedLength);
+
+            final int totalBlockSize = headerLength + deflatedLength + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+            final ByteBuffer buffer = ByteBuffer.wrap(block.bgzfBlock);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(BlockCompressedStreamConstants.GZIP_ID1);
+            buffer.put((byte) BlockCompressedStreamConstants.GZIP_ID2);
+            buffer.put(BlockCompressedStreamConstants.GZIP_CM_DEFLATE);
+            buffer.put((byte) BlockCompressedStreamConstants.GZIP_FLG);
+            buffer.putInt(0); // modification time
+            buffer.put((byte) BlockCompressedStreamConstants.GZIP_XFL);
+            buffer.put((byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN);
+            buffer.putShort(BlockCompressedStreamConstants.GZIP_XLEN);
+            buffer.put(BlockCompressedStreamConstants.BGZF_ID1);
+            buffer.put(BlockCompressedStreamConstants.BGZF_ID2);
+            buffer.putShort(BlockCompressedStreamConstants.BGZF_LEN);
+            buffer.putShort((short) (totalBlockSize - 1));
+            buffer.position(headerLength + deflatedLength);
+            buffer.putInt((int) crc32.getValue());
+            buffer.putInt(block.uncompressedLength);
+            block.bgzfLength = totalBlockSize;
+        }
+
+        /** @return The number of deflated bytes written after the header, or -1 if they did not fit. */
+        private int deflate(final Deflater deflater, final Block block, final int offset) {
+            deflater.reset();
+            deflater.setInput(block.uncompressed, 0, block.uncompressedLength);
+            deflater.finish();
+            final int deflatedLength = deflater.deflate(block.bgzfBlock, offset, DEFLATED_BUFFER_SIZE);
+            return deflater.finished() ? deflatedLength : -1;
+        }
+    }
+
+    /**
+     * A BGZF output stream whose blocks are compressed by the enclosing pool.  Blocks are written to the underlying
+     * stream strictly in the order they were filled, so output is the same whatever order the workers finish in.
+     */
+    public class PooledOutputStream extends OutputStream {
+        private final OutputStream out;
+        private byte[] buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+        private int numBufferedBytes = 0;
+        private boolean closed = false;
+
+        /** Blocks handed off to the pool and not yet written, in file order.  Guarded by this. */
+        private final Deque<Block> pendingBlocks = new ArrayDeque<Block>();
+        /** The first exception thrown by a worker on behalf of this stream.  Guarded by this. */
+        private Throwable failure = null;
+
+        private PooledOutputStream(final OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            buffer[numBufferedBytes++] = (byte) b;
+            if (numBufferedBytes == buffer.length) submitBlock();
+        }
+
+        @Override
+        public void write(final byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                final int n = Math.min(length, buffer.length - numBufferedBytes);
+                System.arraycopy(bytes, offset, buffer, numBufferedBytes, n);
+                numBufferedBytes += n;
+                offset += n;
+                length -= n;
+                if (numBufferedBytes == buffer.length) submitBlock();
+            }
+        }
+
+        /** Compresses any partial block and waits until every block has been written to the underlying stream. */
+        @Override
+        public void flush() throws IOException {
+            if (numBufferedBytes > 0) submitBlock();
+            awaitPendingBlocks();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                flush();
+                out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            } finally {
+                CloserUtil.close(out);
+            }
+        }
+
+        private void submitBlock() throws IOException {
+            checkForFailure();
+            try {
+                blocksInFlight.acquire();
+            } catch (final InterruptedException e) {
+                throw new PicardException("Interrupted waiting for a block to be compressed.", e);
+            }
+            final Block block = takeFreeBlock();
+            // Hand our buffer to the block and keep its spare one, rather than copying the data.
+            final byte[] spare = block.uncompressed;
+            block.uncompressed = buffer;
+            block.uncompressedLength = numBufferedBytes;
+            buffer = spare;
+            numBufferedBytes = 0;
+
+            synchronized (this) {
+                pendingBlocks.addLast(block);
+            }
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Throwable t = null;
+                    try {
+                        compressors.get().compress(block);
+                    } catch (final Throwable e) {
+                        t = e;
+                    }
+                    blockCompressed(block, t);
+                }
+            });
+        }
+
+        /** Marks the block as compressed and writes out every leading block that is ready. */
+        private synchronized void blockCompressed(final Block block, final Throwable t) {
+            block.compressed = true;
+            if (t != null && failure == null) failure = t;
+            while (!pendingBlocks.isEmpty() && pendingBlocks.peekFirst().compressed) {
+                final Block next = pendingBlocks.removeFirst();
+                if (failure == null) {
+                    try {
+                        out.write(next.bgzfBlock, 0, next.bgzfLength);
+                    } catch (final Throwable e) {
+                        failure = e;
+                    }
+                }
+                releaseBlock(next);
+            }
+            if (pendingBlocks.isEmpty()) notifyAll();
+        }
+
+        private synchronized void awaitPendingBlocks() throws IOException {
+            while (!pendingBlocks.isEmpty()) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    throw new PicardException("Interrupted waiting for blocks to be written.", e);
+                }
+            }
+            checkForFailure();
+        }
+
+        private synchronized void checkForFailure() throws IOException {
+            if (failure == null) return;
+            if (failure instanceof IOException) throw (IOException) failure;
+            throw new PicardException("Exception compressing or writing block", failure);
+        }
+    }
+}
@@ -249,30 +249,89 @@ public class ClippingUtility {
      * Finds the first index of the adapterSequence sequence in the read sequence requiring at least minMatch
      * bases of pairwise alignment with a maximum number of errors dictated by maxErrorRate.
      *
+     * Rather than comparing the read with the adapter one base at a time for every possible start, each base that occurs
+     * in the adapter is given a bit mask of where it occurs in the adapter and in the read, so that the mismatches at all
+     * positions of an alignment (up to 64 at a time) are found with a few shifts and ORs and counted with a popcount.
+     * This finds the same mismatches as comparing the bases with SequenceUtil.basesEqual(), with no-calls in the adapter
+     * matching anything, so the result is the same.
+     *
      * @param read
      */
     public static int findIndexOfClipSequence(final byte[] read, final byte[] adapterSequence, final int minMatch, final double maxErrorRate) {
         // If the read's too short we can't possibly match it
         if (read == null || read.length < minMatch) return NO_MATCH;
-        final int minClipPosition = 0;
+        // No bases to compare at the last start (which is past the end of the read if minMatch < 1), so it matches.
+        if (minMatch < 1 || adapterSequence.length == 0) return read.length - minMatch;
+
+        final int adapterWords = (adapterSequence.length + 63) / 64;
+        final int readWords = (read.length + 63) / 64 + 1; // The extra word lets alignments run off the end of the read
+        final long[] noCallMask = new long[adapterWords];
+
+        // One mask of adapter positions and one of read positions for each distinct base in the adapter
+        final byte[] bases = new byte[adapterSequence.length];
+        final long[][] adapterMasks = new long[adapterSequence.length][];
+        final long[][] readMasks = new long[adapterSequence.length][];
+        int numBases = 0;
+        for (int i = 0; i < adapterSequence.length; ++i) {
+            if (SequenceUtil.isNoCall(adapterSequence[i])) {
+                noCallMask[i >>> 6] |= 1L << i;
+                continue;
+            }
+            final byte base = toUpperCase(adapterSequence[i]);
+            int b = 0;
+            while (b < numBases && bases[b] != base) ++b;
+            if (b == numBases) {
+                bases[b] = base;
+                adapterMasks[b] = new long[adapterWords];
+                readMasks[b] = new long[readWords];
+                ++numBases;
+            }
+            adapterMasks[b][i >>> 6] |= 1L << i;
+        }
+        for (int j = 0; j < read.length; ++j) {
+            final byte base = toUpperCase(read[j]);
+            for (int b = 0; b < numBases; ++b) {
+                if (bases[b] == base) {
+                    readMasks[b][j >>> 6] |= 1L << j;
+                    break;
+                }
+            }
+        }
 
         // Walk backwards down the read looking for the sequence
-        READ_LOOP:
-        for (int start = read.length - minMatch; start > minClipPosition -1; --start) {
+        for (int start = read.length - minMatch; start > -1; --start) {
             final int length = Math.min(read.length - start, adapterSequence.length);
             final int mismatchesAllowed = (int) (length * maxErrorRate);
-            int mismatches = 0;
+            int matches = 0;
 
-            for (int i = 0; i < length; ++i) {
-                if (!SequenceUtil.isNoCall(adapterSequence[i]) && !SequenceUtil.basesEqual(adapterSequence[i], read[start + i])) {
-                    if (++mismatches > mismatchesAllowed) continue READ_LOOP;
+            for (int word = 0; word * 64 < length; ++word) {
+                long matched = noCallMask[word];
+                for (int b = 0; b < numBases; ++b) {
+                    matched |= adapterMasks[b][word] & readWindow(readMasks[b], start + word * 64);
                 }
+                final int bitsInWord = Math.min(64, length - word * 64);
+                if (bitsInWord < 64) matched &= (1L << bitsInWord) - 1;
+                matches += Long.bitCount(matched);
             }
 
-            // If we got this far without breaking out, then it matches
-            return start;
+            // As when counting the mismatches one at a time, an alignment with none matches whatever is allowed
+            final int mismatches = length - matches;
+            if (mismatches == 0 || mismatches <= mismatchesAllowed) return start;
         }
 
         return NO_MATCH;
     }
+
+    /** @return The 64 bits of mask starting at bit offset, as the low bits of a long. */
+    private static long readWindow(final long[] mask, final int offset) {
+        final int word = offset >>> 6;
+        final int shift = offset & 63;
+        if (shift == 0) return mask[word];
+        return (mask[word] >>> shift) | (mask[word + 1] << (64 - shift));
+    }
+
+    /** Upper-cases a base the same way as SequenceUtil.basesEqual(), so that bases match exactly when it says so. */
+    private static byte toUpperCase(final byte base) {
+        return base > 'Z' ? (byte) (base - 32) : base;
+    }
 }
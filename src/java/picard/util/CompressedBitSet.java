@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of non-negative longs, such as the ordinals of records in a file, held compactly in RAM in the manner of a
+ * Roaring bitmap.  The range of values is cut into chunks of 2^16.  A chunk holding few values keeps them in a char[]
+ * of their low 16 bits; once it holds more than 4096 it switches to a bitmap of 8K, which is the smaller from there on.
+ * So a sparse set costs about two bytes per value, and a dense one never more than an eighth of a byte per value.
+ *
+ * Values may be added in any order.  Chunks are allocated up to the largest value added, so the values should start
+ * near zero.  Not thread-safe, even for concurrent calls to contains().
+ */
+public class CompressedBitSet {
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+    private static final int MAX_ARRAY_SIZE = 4096;
+
+    /** The values of one chunk: an array of low bits until it grows past MAX_ARRAY_SIZE, then a bitmap. */
+    private static final class Chunk {
+        /** Appended to in the order added, and sorted and rid of repeats only when needed. */
+        char[] values = new char[4];
+        int size = 0;
+        boolean sorted = true;
+        long[] bits = null;
+
+        void add(final int low) {
+            if (bits != null) {
+                bits[low >>> 6] |= 1L << low;
+                return;
+            }
+            if (size == values.length) {
+                if (size == MAX_ARRAY_SIZE) {
+                    toBitmap();
+                    add(low);
+                    return;
+                }
+                values = Arrays.copyOf(values, Math.min(size * 2, MAX_ARRAY_SIZE));
+            }
+            if (size > 0 && values[size - 1] >= low) sorted = false;
+            values[size++] = (char) low;
+        }
+
+        boolean contains(final int low) {
+            if (bits != null) return (bits[low >>> 6] & (1L << low)) != 0;
+            sort();
+            return Arrays.binarySearch(values, 0, size, (char) low) >= 0;
+        }
+
+        int cardinality() {
+            if (bits == null) {
+                sort();
+                return size;
+            }
+            int count = 0;
+            for (final long word : bits) count += Long.bitCount(word);
+            return count;
+        }
+
+        long sizeInBytes() {
+            return bits != null ? bits.length * 8L : values.length * 2L;
+        }
+
+        private void sort() {
+            if (sorted) return;
+            Arrays.sort(values, 0, size);
+            int distinct = 0;
+            for (int i = 0; i < size; ++i) {
+                if (i == 0 || values[i] != values[distinct - 1]) values[distinct++] = values[i];
+            }
+            size = distinct;
+            sorted = true;
+        }
+
+        private void toBitmap() {
+            bits = new long[1 << (CHUNK_SHIFT - 6)];
+            for (int i = 0; i < size; ++i) {
+                bits[values[i] >>> 6] |= 1L << values[i];
+            }
+            values = null;
+            size = 0;
+        }
+    }
+
+    /** Indexed by the high bits of the values they hold; null for chunks holding none. */
+    private final List<Chunk> chunks = new ArrayList<Chunk>();
+
+    /** Adds a value to the set, if it is not already there. */
+    public void add(final long value) {
+        final int key = getKey(value);
+        while (chunks.size() <= key) chunks.add(null);
+        Chunk chunk = chunks.get(key);
+        if (chunk == null) {
+            chunk = new Chunk();
+            chunks.set(key, chunk);
+        }
+        chunk.add((int) value & CHUNK_MASK);
+    }
+
+    /** @return true if the value has been added to the set. */
+    public boolean contains(final long value) {
+        final int key = getKey(value);
+        if (key >= chunks.size()) return false;
+        final Chunk chunk = chunks.get(key);
+        return chunk != null && chunk.contains((int) value & CHUNK_MASK);
+    }
+
+    /** @return The number of distinct values in the set. */
+    public long getCardinality() {
+        long count = 0;
+        for (final Chunk chunk : chunks) {
+            if (chunk != null) count += chunk.cardinality();
+        }
+        return count;
+    }
+
+    /** @return Roughly the number of bytes of RAM taken by the values, not counting per-chunk overhead. */
+    public long sizeInBytes() {
+        long bytes = 0;
+        for (final Chunk chunk : chunks) {
+            if (chunk != null) bytes += chunk.sizeInBytes();
+        }
+        return bytes;
+    }
+
+    private static int getKey(final long value) {
+        if (value < 0 || (value >>> CHUNK_SHIFT) > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Value out of range: " + value);
+        }
+        return (int) (value >>> CHUNK_SHIFT);
+    }
+}
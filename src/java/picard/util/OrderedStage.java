@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * One stage of a pipeline: tasks submitted by a producer thread run on a pool of workers, and a consumer thread takes
+ * their results in the order the tasks were submitted.  At most maxPending results may be waiting to be taken, so a
+ * producer that gets ahead of the consumer blocks in submit() rather than queueing an unbounded amount of work.
+ */
+public class OrderedStage<T> {
+    /** Marks the end of the results; never run. */
+    private static final Future<Object> END = new FutureTask<Object>(new Callable<Object>() {
+        @Override
+        public Object call() {
+            return null;
+        }
+    });
+
+    private final ExecutorService workers;
+    private final BlockingQueue<Future<T>> results;
+    private boolean ended = false;
+
+    /**
+     * @param workers    The threads on which to run tasks.  May be shared with other stages.
+     * @param maxPending The maximum number of tasks, running or done, whose results have not been taken.
+     */
+    public OrderedStage(final ExecutorService workers, final int maxPending) {
+        if (maxPending < 1) throw new IllegalArgumentException("maxPending must be positive: " + maxPending);
+        this.workers = workers;
+        this.results = new ArrayBlockingQueue<Future<T>>(maxPending);
+    }
+
+    /** Starts a task, first waiting while maxPending results have not been taken. */
+    public void submit(final Callable<T> task) throws InterruptedException {
+        results.put(workers.submit(task));
+    }
+
+    /** Called by the producer after its last submit(), so that take() returns null once every result is taken. */
+    @SuppressWarnings("unchecked")
+    public void finish() throws InterruptedException {
+        results.put((Future<T>) END);
+    }
+
+    /** Called by the producer instead of finish() if it fails, so that take() rethrows the failure. */
+    public void fail(final Throwable t) throws InterruptedException {
+        final FutureTask<T> failed = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                if (t instanceof Error) throw (Error) t;
+                if (t instanceof Exception) throw (Exception) t;
+                throw new RuntimeException(t);
+            }
+        });
+        failed.run();
+        results.put(failed);
+    }
+
+    /**
+     * @return The result of the next task in the order submitted, waiting for it if need be, or null once finish()
+     * has been reached.  An exception thrown by the task or passed to fail() is rethrown, as an Error or
+     * RuntimeException if it is one and otherwise wrapped in a RuntimeException.
+     */
+    public T take() throws InterruptedException {
+        if (ended) return null;
+        final Future<T> next = results.take();
+        if (next == END) {
+            ended = true;
+            return null;
+        }
+        try {
+            return next.get();
+        } catch (final ExecutionException e) {
+            final Throwable t = e.getCause();
+            if (t instanceof Error) throw (Error) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            throw new RuntimeException(t);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package picard.illumina;
 
 import htsjdk.samtools.SAMException;
+import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import org.testng.Assert;
@@ -17,13 +18,17 @@ import picard.illumina.parser.IlluminaFileUtilTest;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -370,6 +375,51 @@ public class CheckIlluminaDirectoryTest extends CommandLineProgramTest {
         Assert.assertEquals(runPicardCommandLine(args), 0);
     }
 
+    @Test
+    public void headerCheckTest() throws Exception {
+        final int lane = 1;
+        final List<Integer> tiles = makeList(1101, 1201, 2101);
+        copyRecursively(new File("testdata/picard/illumina/25T8B25T/Data/Intensities/BaseCalls/L001"),
+                new File(basecallDir, "L001"));
+        writeTileMetricsOutFile(makeMap(makeList(lane), makeList(tiles)));
+        final IlluminaDataType[] dataTypes = new IlluminaDataType[]{BaseCalls, IlluminaDataType.PF};
+
+        final File latencyMetrics = new File(illuminaDir, "latency_metrics");
+        final List<String> args = new ArrayList<String>(Arrays.asList(
+                makeCheckerArgs(basecallDir, lane, "25T8B25T", dataTypes, new ArrayList<Integer>(), false, false)));
+        args.add("CHECK_HEADERS=true");
+        args.add("NUM_PROCESSORS=2");
+        args.add("LATENCY_METRICS=" + latencyMetrics);
+        Assert.assertEquals(runPicardCommandLine(args), 0);
+
+        // A bcl per tile per cycle, and a filter file per tile.
+        final MetricsFile<CheckIlluminaDirectory.FileLatencyMetric, Comparable<?>> metrics =
+                new MetricsFile<CheckIlluminaDirectory.FileLatencyMetric, Comparable<?>>();
+        metrics.read(new FileReader(latencyMetrics));
+        Assert.assertEquals(metrics.getMetrics().size(), tiles.size() * 58 + tiles.size());
+
+        // A well-formed filter file with one cluster fewer than the bcls is only found by checking headers.
+        final ByteBuffer filter = ByteBuffer.allocate(12 + 59).order(ByteOrder.LITTLE_ENDIAN);
+        filter.putInt(0).putInt(3).putInt(59);
+        final FileOutputStream outputStream = new FileOutputStream(new File(basecallDir, "L001/s_1_1101.filter"));
+        outputStream.write(filter.array());
+        outputStream.close();
+        Assert.assertEquals(runPicardCommandLine(
+                makeCheckerArgs(basecallDir, lane, "25T8B25T", dataTypes, new ArrayList<Integer>(), false, false)), 0);
+        Assert.assertEquals(runPicardCommandLine(args), 1);
+    }
+
+    private static void copyRecursively(final File source, final File destination) {
+        if (source.isDirectory()) {
+            Assert.assertTrue(destination.mkdirs());
+            for (final File child : source.listFiles()) {
+                copyRecursively(child, new File(destination, child.getName()));
+            }
+        } else {
+            IOUtil.copyFile(source, destination);
+        }
+    }
+
     private void createSingleLocsFile() {
         try {
             final File singleLocsFile = new File(intensityDir, "s.locs");
@@ -37,6 +37,7 @@ import picard.illumina.parser.IlluminaDataProviderFactory;
 import picard.illumina.parser.IlluminaDataType;
 import picard.illumina.parser.ReadStructure;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.illumina.parser.readers.BinaryBarcodeFileReader;
 import picard.util.BasicInputParser;
 
 import java.io.File;
@@ -219,6 +220,86 @@ public class ExtractIlluminaBarcodesTest extends CommandLineProgramTest {
         testParsing(factory, rs, metricOne, barcodePosition);
     }
 
+    /** The binary barcode files must hold the same matches and mismatch counts as the text files. */
+    @Test
+    public void testBinaryOutput() throws Exception {
+        final File textDir = IOUtil.createTempDir("eib_text.", ".tmp");
+        final File binaryDir = IOUtil.createTempDir("eib_binary.", ".tmp");
+        try {
+            for (final File outputDir : new File[]{textDir, binaryDir}) {
+                final File metricsFile = File.createTempFile("eib.", ".metrics");
+                metricsFile.deleteOnExit();
+                final List<String> args = new ArrayList<String>(Arrays.asList(
+                        "BASECALLS_DIR=" + basecallsDir.getPath(),
+                        "OUTPUT_DIR=" + outputDir.getPath(),
+                        "LANE=1",
+                        "READ_STRUCTURE=25T8B25T",
+                        "METRICS_FILE=" + metricsFile.getPath(),
+                        "BINARY_OUTPUT=" + (outputDir == binaryDir)
+                ));
+                for (final String barcode : BARCODES) {
+                    args.add("BARCODE=" + barcode);
+                }
+                runIt(args, metricsFile);
+            }
+
+            final File[] textFiles = IOUtil.getFilesMatchingRegexp(textDir, "s_1_\\d{4}_barcode.txt");
+            final File[] binaryFiles = IOUtil.getFilesMatchingRegexp(binaryDir, "s_1_\\d{4}_barcode.bin");
+            Arrays.sort(textFiles);
+            Arrays.sort(binaryFiles);
+            Assert.assertEquals(binaryFiles.length, textFiles.length);
+            Assert.assertTrue(textFiles.length > 0);
+
+            int matches = 0;
+            for (int i = 0; i < textFiles.length; ++i) {
+                final BasicInputParser textParser = new BasicInputParser(false, textFiles[i]);
+                final BinaryBarcodeFileReader binaryReader = new BinaryBarcodeFileReader(binaryFiles[i]);
+                while (textParser.hasNext()) {
+                    final String[] fields = textParser.next();
+                    Assert.assertTrue(binaryReader.hasNext());
+                    final String barcode = binaryReader.next();
+                    Assert.assertEquals(binaryReader.isMatched(), fields[1].equals("Y"));
+                    if (binaryReader.isMatched()) {
+                        Assert.assertEquals(barcode, fields[2]);
+                        ++matches;
+                    } else {
+                        Assert.assertNull(barcode);
+                    }
+                    if (binaryReader.getBarcodeOrdinal() != BinaryBarcodeFileReader.NO_BARCODE) {
+                        Assert.assertEquals(binaryReader.getBarcodes()[binaryReader.getBarcodeOrdinal()], fields[2].toUpperCase());
+                    }
+                    Assert.assertEquals(binaryReader.getMismatches(), Integer.parseInt(fields[3]));
+                    Assert.assertEquals(binaryReader.getMismatchesToSecondBest(), Integer.parseInt(fields[4]));
+                }
+                Assert.assertFalse(binaryReader.hasNext());
+                textParser.close();
+                binaryReader.close();
+            }
+            Assert.assertTrue(matches > 0);
+
+            // Clusters must be assigned to the same barcodes whichever format the data provider reads.
+            final ReadStructure rs = new ReadStructure("25T8B25T");
+            final List<String> textBarcodes = readMatchedBarcodes(textDir, rs);
+            Assert.assertEquals(readMatchedBarcodes(binaryDir, rs), textBarcodes);
+        } finally {
+            IOUtil.deleteDirectoryTree(textDir);
+            IOUtil.deleteDirectoryTree(binaryDir);
+        }
+    }
+
+    private List<String> readMatchedBarcodes(final File barcodesDir, final ReadStructure readStructure) {
+        final IlluminaDataProviderFactory factory = new IlluminaDataProviderFactory(basecallsDir, barcodesDir, 1, readStructure,
+                new BclQualityEvaluationStrategy(BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY),
+                IlluminaDataType.BaseCalls, IlluminaDataType.Barcodes);
+        final List<String> barcodes = new ArrayList<String>();
+        final IlluminaDataProvider dataProvider = factory.makeDataProvider();
+        while (dataProvider.hasNext()) {
+            barcodes.add(dataProvider.next().getMatchedBarcode());
+        }
+        dataProvider.close();
+        return barcodes;
+    }
+
     @Test
     public void testDualBarcodes() throws Exception {
         final File metricsFile = File.createTempFile("dual.", ".metrics");
@@ -23,17 +23,23 @@
  */
 package picard.illumina;
 
+import htsjdk.samtools.util.BlockCompressedInputStream;
 import htsjdk.samtools.util.BufferedLineReader;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.LineReader;
 import htsjdk.samtools.util.StringUtil;
 import htsjdk.samtools.util.TestUtil;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 import picard.cmdline.CommandLineProgramTest;
 import picard.illumina.parser.ReadStructure;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -72,6 +78,45 @@ public class IlluminaBasecallsToFastqTest extends CommandLineProgramTest {
         IOUtil.assertFilesEqual(outputFastq2, new File(TEST_DATA_DIR, "nonBarcoded.2.fastq"));
     }
 
+    @Test
+    public void testCompressedWithCompressionThreads() throws Exception {
+        final File outputDir = File.createTempFile("testCompressionThreads.", ".dir");
+        try {
+            outputDir.delete();
+            outputDir.mkdir();
+            outputDir.deleteOnExit();
+            final File outputPrefix = new File(outputDir, "nonBarcoded");
+
+            runPicardCommandLine(new String[]{
+                    "BASECALLS_DIR=" + BASECALLS_DIR,
+                    "LANE=" + 1,
+                    "READ_STRUCTURE=25T8B25T",
+                    "OUTPUT_PREFIX=" + outputPrefix.getAbsolutePath(),
+                    "RUN_BARCODE=HiMom",
+                    "MACHINE_NAME=machine1",
+                    "FLOWCELL_BARCODE=abcdeACXX",
+                    "COMPRESS_OUTPUTS=true",
+                    "COMPRESSION_THREADS=2"
+            });
+            for (final String filename : new String[]{"nonBarcoded.1.fastq", "nonBarcoded.2.fastq"}) {
+                final File outputFastq = new File(outputDir, filename + ".gz");
+                final InputStream compressedStream = new BufferedInputStream(new FileInputStream(outputFastq));
+                Assert.assertTrue(BlockCompressedInputStream.isValidFile(compressedStream));
+                compressedStream.close();
+
+                final File decompressed = new File(outputDir, filename);
+                final InputStream inputStream = IOUtil.openFileForReading(outputFastq);
+                final OutputStream outputStream = new FileOutputStream(decompressed);
+                IOUtil.copyStream(inputStream, outputStream);
+                inputStream.close();
+                outputStream.close();
+                IOUtil.assertFilesEqual(decompressed, new File(TEST_DATA_DIR, filename));
+            }
+        } finally {
+            TestUtil.recursiveDelete(outputDir);
+        }
+    }
+
     @Test
     public void testMultiplexWithIlluminaReadNameHeaders() throws Exception {
         final File outputDir = File.createTempFile("testMultiplexRH.", ".dir");
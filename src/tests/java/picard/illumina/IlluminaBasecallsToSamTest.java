@@ -23,20 +23,28 @@
  */
 package picard.illumina;
 
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
 import htsjdk.samtools.util.BufferedLineReader;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.LineReader;
 import htsjdk.samtools.util.StringUtil;
 import org.testng.Assert;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import picard.cmdline.CommandLineProgramTest;
+import picard.sam.ValidateSamFile;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Run IlluminaBasecallsToSam in various barcode & non-barcode modes
@@ -96,6 +104,173 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
         runStandardTest(1, "dualBarcode.", "barcode_double.params", 1, "25T8B8B25T", DUAL_BASECALLS_DIR, DUAL_TEST_DATA_DIR);
     }
 
+    /**
+     * Matching barcodes inline must produce the same SAMs and barcode metrics as running ExtractIlluminaBarcodes first.
+     */
+    @Test
+    public void testMultiplexedInline() throws Exception {
+        final File outputDir = IOUtil.createTempDir("multiplexedInline.", ".dir");
+        try {
+            final File barcodesDir = new File(outputDir, "barcodes");
+            Assert.assertTrue(barcodesDir.mkdir());
+            final File extractMetrics = new File(outputDir, "extract.metrics");
+            final List<String> extractArgs = new ArrayList<String>(Arrays.asList(
+                    "BASECALLS_DIR=" + BASECALLS_DIR,
+                    "OUTPUT_DIR=" + barcodesDir,
+                    "LANE=1",
+                    "READ_STRUCTURE=25T8B25T",
+                    "METRICS_FILE=" + extractMetrics
+            ));
+            final LineReader reader = new BufferedLineReader(new FileInputStream(new File(TEST_DATA_DIR, "barcode.params")));
+            reader.readLine();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                final String barcode = line.split("\t")[0];
+                if (!barcode.equals("N")) extractArgs.add("BARCODE=" + barcode);
+            }
+            reader.close();
+            Assert.assertEquals(new ExtractIlluminaBarcodes().instanceMain(extractArgs.toArray(new String[extractArgs.size()])), 0);
+
+            final File twoPassDir = new File(outputDir, "twoPass");
+            final File inlineDir = new File(outputDir, "inline");
+            final File inlineMetrics = new File(outputDir, "inline.metrics");
+            final List<File> twoPassSams = runStandardTest(1, "barcode.params", 1, "25T8B25T", BASECALLS_DIR, TEST_DATA_DIR,
+                    twoPassDir, ".sam", "BARCODES_DIR=" + barcodesDir);
+            final List<File> inlineSams = runStandardTest(1, "barcode.params", 1, "25T8B25T", BASECALLS_DIR, TEST_DATA_DIR,
+                    inlineDir, ".sam", "MATCH_BARCODES_INLINE=true", "METRICS_FILE=" + inlineMetrics);
+            Assert.assertEquals(inlineSams.size(), twoPassSams.size());
+            for (int i = 0; i < inlineSams.size(); ++i) {
+                IOUtil.assertFilesEqual(inlineSams.get(i), twoPassSams.get(i));
+            }
+
+            final List<ExtractIlluminaBarcodes.BarcodeMetric> expected = readBarcodeMetrics(extractMetrics);
+            final List<ExtractIlluminaBarcodes.BarcodeMetric> actual = readBarcodeMetrics(inlineMetrics);
+            Assert.assertEquals(actual.size(), expected.size());
+            for (int i = 0; i < actual.size(); ++i) {
+                Assert.assertEquals(actual.get(i).BARCODE, expected.get(i).BARCODE);
+                Assert.assertEquals(actual.get(i).READS, expected.get(i).READS);
+                Assert.assertEquals(actual.get(i).PF_READS, expected.get(i).PF_READS);
+                Assert.assertEquals(actual.get(i).PERFECT_MATCHES, expected.get(i).PERFECT_MATCHES);
+                Assert.assertEquals(actual.get(i).ONE_MISMATCH_MATCHES, expected.get(i).ONE_MISMATCH_MATCHES);
+                Assert.assertEquals(actual.get(i).PF_NORMALIZED_MATCHES, expected.get(i).PF_NORMALIZED_MATCHES);
+            }
+        } finally {
+            IOUtil.deleteDirectoryTree(outputDir);
+        }
+    }
+
+    /**
+     * BAMs compressed by a pool of threads must be identical to those compressed by htsjdk.  The smallest
+     * COMPRESSION_BUFFER_MB allows only as many blocks in flight as there are threads, so writers stall waiting for them.
+     */
+    @Test
+    public void testCompressionThreadsOutputIsIdentical() throws Exception {
+        final File outputDir = IOUtil.createTempDir("compressionThreads.", ".dir");
+        try {
+            final List<File> expectedBams = runStandardTest(1, "barcode.params", 1, "25T8B25T", BASECALLS_DIR, TEST_DATA_DIR,
+                    new File(outputDir, "singleThreaded"), ".bam", "COMPRESSION_THREADS=0");
+            final List<File> actualBams = runStandardTest(1, "barcode.params", 1, "25T8B25T", BASECALLS_DIR, TEST_DATA_DIR,
+                    new File(outputDir, "pooled"), ".bam", "COMPRESSION_THREADS=2", "COMPRESSION_BUFFER_MB=0");
+            Assert.assertEquals(actualBams.size(), expectedBams.size());
+            for (int i = 0; i < actualBams.size(); ++i) {
+                IOUtil.assertFilesEqual(actualBams.get(i), expectedBams.get(i));
+            }
+        } finally {
+            IOUtil.deleteDirectoryTree(outputDir);
+        }
+    }
+
+    @DataProvider(name = "resumeFromCheckpointData")
+    public Object[][] resumeFromCheckpointData() {
+        return new Object[][]{
+                {".sam", 0},
+                {".sam", 2},
+                {".bam", 0},
+                {".bam", 2}
+        };
+    }
+
+    /**
+     * A run that resumes from a checkpoint, with output written after the checkpoint to be discarded, must produce the
+     * same outputs and barcode metrics as an uninterrupted run, and the outputs must be valid.
+     */
+    @Test(dataProvider = "resumeFromCheckpointData")
+    public void testResumeFromCheckpoint(final String outputExtension, final int compressionThreads) throws Exception {
+        final File outputDir = IOUtil.createTempDir("resumeFromCheckpoint.", ".dir");
+        try {
+            final String compressionThreadsArg = "COMPRESSION_THREADS=" + compressionThreads;
+            final File uninterruptedDir = new File(outputDir, "uninterrupted");
+            final File uninterruptedMetrics = new File(outputDir, "uninterrupted.metrics");
+            final File uninterruptedCheckpoint = new File(outputDir, "uninterrupted.checkpoint");
+            final List<File> expectedOutputs = runStandardTest(1, "barcode.params", 1, "25T8B25T", BASECALLS_DIR, TEST_DATA_DIR,
+                    uninterruptedDir, outputExtension, compressionThreadsArg, "MATCH_BARCODES_INLINE=true",
+                    "METRICS_FILE=" + uninterruptedMetrics, "CHECKPOINT_FILE=" + uninterruptedCheckpoint);
+            Assert.assertFalse(uninterruptedCheckpoint.exists());
+
+            // Write the first tile, and record a checkpoint for it as an interrupted run would have.  A checkpointed BAM
+            // ends with the tile's last block, so the terminator block written at close must not be counted.
+            final File resumedDir = new File(outputDir, "resumed");
+            final File firstTileMetrics = new File(outputDir, "firstTile.metrics");
+            final File firstTileCheckpoint = new File(outputDir, "firstTile.checkpoint");
+            final List<File> resumedOutputs = runStandardTest(1, "barcode.params", 1, "25T8B25T", BASECALLS_DIR, TEST_DATA_DIR,
+                    resumedDir, outputExtension, compressionThreadsArg, "MATCH_BARCODES_INLINE=true",
+                    "METRICS_FILE=" + firstTileMetrics, "CHECKPOINT_FILE=" + firstTileCheckpoint, "TILE_LIMIT=1");
+            final int terminatorLength = outputExtension.equals(".bam") ? BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length : 0;
+            final Map<String, Long> outputLengths = new HashMap<String, Long>();
+            for (final File output : resumedOutputs) {
+                outputLengths.put(output.getAbsolutePath(), output.length() - terminatorLength);
+            }
+            final Map<String, ExtractIlluminaBarcodes.BarcodeMetric> barcodeMetrics = new HashMap<String, ExtractIlluminaBarcodes.BarcodeMetric>();
+            final List<ExtractIlluminaBarcodes.BarcodeMetric> firstTileBarcodeMetrics = readBarcodeMetrics(firstTileMetrics);
+            for (final ExtractIlluminaBarcodes.BarcodeMetric metric : firstTileBarcodeMetrics) {
+                barcodeMetrics.put(metric.BARCODE, metric);
+            }
+            final ExtractIlluminaBarcodes.BarcodeMetric noMatchMetric = barcodeMetrics.remove(
+                    firstTileBarcodeMetrics.get(firstTileBarcodeMetrics.size() - 1).BARCODE);
+            final File checkpointFile = new File(outputDir, "resumed.checkpoint");
+            new TileCheckpoint(1101, outputLengths, barcodeMetrics, noMatchMetric).write(checkpointFile);
+
+            // Output written after the checkpoint must be discarded.
+            for (final File output : resumedOutputs) {
+                final FileOutputStream outputStream = new FileOutputStream(output, true);
+                outputStream.write("partial record".getBytes());
+                outputStream.close();
+            }
+
+            final File resumedMetrics = new File(outputDir, "resumed.metrics");
+            runStandardTest(1, "barcode.params", 1, "25T8B25T", BASECALLS_DIR, TEST_DATA_DIR, resumedDir,
+                    outputExtension, compressionThreadsArg, "MATCH_BARCODES_INLINE=true", "METRICS_FILE=" + resumedMetrics,
+                    "CHECKPOINT_FILE=" + checkpointFile);
+            Assert.assertFalse(checkpointFile.exists());
+            for (int i = 0; i < expectedOutputs.size(); ++i) {
+                IOUtil.assertFilesEqual(resumedOutputs.get(i), expectedOutputs.get(i));
+                Assert.assertEquals(new ValidateSamFile().instanceMain(new String[]{
+                        "INPUT=" + resumedOutputs.get(i), "MODE=SUMMARY"}), 0);
+            }
+
+            final List<ExtractIlluminaBarcodes.BarcodeMetric> expected = readBarcodeMetrics(uninterruptedMetrics);
+            final List<ExtractIlluminaBarcodes.BarcodeMetric> actual = readBarcodeMetrics(resumedMetrics);
+            Assert.assertEquals(actual.size(), expected.size());
+            for (int i = 0; i < actual.size(); ++i) {
+                Assert.assertEquals(actual.get(i).BARCODE, expected.get(i).BARCODE);
+                Assert.assertEquals(actual.get(i).READS, expected.get(i).READS);
+                Assert.assertEquals(actual.get(i).PF_READS, expected.get(i).PF_READS);
+                Assert.assertEquals(actual.get(i).PERFECT_MATCHES, expected.get(i).PERFECT_MATCHES);
+                Assert.assertEquals(actual.get(i).PF_ONE_MISMATCH_MATCHES, expected.get(i).PF_ONE_MISMATCH_MATCHES);
+                Assert.assertEquals(actual.get(i).PF_NORMALIZED_MATCHES, expected.get(i).PF_NORMALIZED_MATCHES);
+            }
+        } finally {
+            IOUtil.deleteDirectoryTree(outputDir);
+        }
+    }
+
+    private List<ExtractIlluminaBarcodes.BarcodeMetric> readBarcodeMetrics(final File metricsFile) throws Exception {
+        final MetricsFile<ExtractIlluminaBarcodes.BarcodeMetric, Integer> metrics = new MetricsFile<ExtractIlluminaBarcodes.BarcodeMetric, Integer>();
+        final FileReader reader = new FileReader(metricsFile);
+        metrics.read(reader);
+        reader.close();
+        return metrics.getMetrics();
+    }
+
     /**
      * Ensures that a run missing a barcode from the parameters file throws an error.
      * 
@@ -131,6 +306,25 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
         outputDir.delete();
         outputDir.mkdir();
         outputDir.deleteOnExit();
+        final List<File> samFiles = runStandardTest(lane, libraryParamsFile, concatNColumnFields, readStructure,
+                baseCallsDir, testDataDir, outputDir, ".sam");
+
+        for (final File outputSam : samFiles) {
+            IOUtil.assertFilesEqual(outputSam, new File(testDataDir, outputSam.getName()));
+        }
+    }
+
+    /**
+     * Runs IlluminaBasecallsToSam with a copy of libraryParamsFile that writes its output files to outputDir.
+     *
+     * @param outputExtension ".sam" or ".bam"
+     * @return The output files written, in the order of libraryParamsFile.
+     */
+    private List<File> runStandardTest(final int lane, final String libraryParamsFile,
+                                       final int concatNColumnFields, final String readStructure,
+                                       final File baseCallsDir, final File testDataDir, final File outputDir,
+                                       final String outputExtension, final String... extraArgs) throws Exception {
+        if (!outputDir.exists()) Assert.assertTrue(outputDir.mkdir());
         // Create barcode.params with output files in the temp directory
         final File libraryParams = new File(outputDir, libraryParamsFile);
         libraryParams.deleteOnExit();
@@ -145,7 +339,7 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
                 break;
             }
             final String[] fields = line.split("\t");
-            final File outputSam = new File(outputDir, StringUtil.join("", Arrays.copyOfRange(fields, 0, concatNColumnFields)) + ".sam");
+            final File outputSam = new File(outputDir, StringUtil.join("", Arrays.copyOfRange(fields, 0, concatNColumnFields)) + outputExtension);
             outputSam.deleteOnExit();
             samFiles.add(outputSam);
             writer.println(line + "\t" + outputSam);
@@ -153,16 +347,15 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
         writer.close();
         reader.close();
 
-        runPicardCommandLine(new String[]{
+        final List<String> args = new ArrayList<String>(Arrays.asList(
                 "BASECALLS_DIR=" + baseCallsDir,
                 "LANE=" + lane,
                 "RUN_BARCODE=HiMom",
                 "READ_STRUCTURE=" + readStructure,
                 "LIBRARY_PARAMS=" + libraryParams
-        });
-
-        for (final File outputSam : samFiles) {
-            IOUtil.assertFilesEqual(outputSam, new File(testDataDir, outputSam.getName()));
-        }
+        ));
+        args.addAll(Arrays.asList(extraArgs));
+        Assert.assertEquals(runPicardCommandLine(args), 0);
+        return samFiles;
     }
 }
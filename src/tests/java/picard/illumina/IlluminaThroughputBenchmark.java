@@ -0,0 +1,347 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina;
+
+import htsjdk.samtools.metrics.MetricBase;
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import picard.PicardException;
+import picard.cmdline.CommandLineProgram;
+import picard.illumina.parser.IlluminaDataProvider;
+import picard.illumina.parser.IlluminaDataProviderFactory;
+import picard.illumina.parser.IlluminaDataType;
+import picard.illumina.parser.ReadStructure;
+import picard.illumina.parser.fakers.RunFolderGenerator;
+import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.illumina.parser.readers.BclReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the throughput of the Illumina parsers and the tools built on them over a run folder written by
+ * RunFolderGenerator, so that a change that slows basecall conversion down, or makes it allocate more, can be caught
+ * before it is released.  Each benchmark is run a few times after a warm-up run, and the fastest run is reported, as
+ * clusters per second and bytes allocated per cluster.
+ *
+ * Run it from the command line with the test classpath:
+ * <pre>
+ *     java picard.illumina.IlluminaThroughputBenchmark [TILES=n] [CLUSTERS_PER_TILE=n] [ITERATIONS=n] [NUM_PROCESSORS=n]
+ *         [MULTI_TILE=true] [OUTPUT=metrics file]
+ * </pre>
+ * With MULTI_TILE=true the run folder holds NextSeq-style multi-tile files (.bcl.bgzf, .bci, s_n.filter, s_n.locs)
+ * rather than a file per tile.
+ * Allocation is measured with the HotSpot ThreadMXBean extension, summed over every thread that is sampled while the
+ * benchmark runs, so it is approximate for the tools that do their work on short-lived threads, and reported as -1 on
+ * JVMs without the extension.
+ */
+public class IlluminaThroughputBenchmark {
+    private static final Log log = Log.getInstance(IlluminaThroughputBenchmark.class);
+
+    static final String READ_STRUCTURE = "101T8B101T";
+    static final List<String> BARCODES = Arrays.asList("ACAGTGAT", "CAGATCAA", "TGACCAGT", "GTCAGTCA");
+
+    /** The throughput of one benchmark. */
+    public static class ThroughputMetric extends MetricBase {
+        public String BENCHMARK;
+        public long CLUSTERS;
+        public double SECONDS;
+        public double CLUSTERS_PER_SECOND;
+        /** Approximate, and -1 if allocation could not be measured. */
+        public double BYTES_PER_CLUSTER;
+    }
+
+    /** A piece of work to be timed, which returns the number of clusters it processed. */
+    interface Benchmark {
+        String getName();
+
+        long run() throws Exception;
+    }
+
+    private final File basecallsDir;
+    private final File workDir;
+    private final RunFolderGenerator generator;
+    private final ReadStructure readStructure = new ReadStructure(READ_STRUCTURE);
+    private final BclQualityEvaluationStrategy bclQualityEvaluationStrategy =
+            new BclQualityEvaluationStrategy(BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY);
+    private final int numProcessors;
+
+    IlluminaThroughputBenchmark(final File runDir, final int tilesPerLane, final int clustersPerTile,
+                                final int numProcessors, final boolean multiTile) throws IOException {
+        this.workDir = new File(runDir, "benchmark");
+        this.numProcessors = numProcessors;
+        this.generator = new RunFolderGenerator(readStructure)
+                .setTilesPerLane(tilesPerLane)
+                .setClustersPerTile(clustersPerTile)
+                .setBarcodes(BARCODES)
+                .setMultiTile(multiTile);
+        log.info("Generating " + generator.getTotalClusters() + " clusters in " + runDir);
+        this.basecallsDir = generator.generate(runDir);
+    }
+
+    List<Benchmark> getBenchmarks() {
+        final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        benchmarks.add(new Benchmark() {
+            public String getName() { return "BclReader"; }
+
+            public long run() {
+                if (generator.isMultiTile()) {
+                    // Every tile is in the same files, so they are read in one pass.
+                    final List<File> bcls = new ArrayList<File>(readStructure.totalCycles);
+                    for (int cycle = 1; cycle <= readStructure.totalCycles; ++cycle) {
+                        bcls.add(new File(basecallsDir, String.format("L001/%04d.bcl.bgzf", cycle)));
+                    }
+                    return readAll(bcls);
+                }
+                long clusters = 0;
+                for (final int tile : generator.getTiles()) {
+                    final List<File> bcls = new ArrayList<File>(readStructure.totalCycles);
+                    for (int cycle = 1; cycle <= readStructure.totalCycles; ++cycle) {
+                        bcls.add(new File(basecallsDir, "L001/C" + cycle + ".1/s_1_" + tile + ".bcl"));
+                    }
+                    clusters += readAll(bcls);
+                }
+                return clusters;
+            }
+
+            private long readAll(final List<File> bcls) {
+                long clusters = 0;
+                final BclReader reader = new BclReader(bcls, readStructure.readLengths, bclQualityEvaluationStrategy, false);
+                for (int end = reader.nextBlock(); end > 0; end = reader.nextBlock()) {
+                    clusters += end - reader.getBlockOffset();
+                }
+                reader.close();
+                return clusters;
+            }
+        });
+
+        benchmarks.add(new Benchmark() {
+            public String getName() { return "IlluminaDataProvider"; }
+
+            public long run() {
+                final IlluminaDataProviderFactory factory = new IlluminaDataProviderFactory(basecallsDir, 1, readStructure,
+                        bclQualityEvaluationStrategy, IlluminaDataType.BaseCalls, IlluminaDataType.QualityScores,
+                        IlluminaDataType.PF, IlluminaDataType.Position);
+                final IlluminaDataProvider provider = factory.makeDataProvider();
+                long clusters = 0;
+                while (provider.hasNext()) {
+                    provider.next();
+                    ++clusters;
+                }
+                provider.close();
+                return clusters;
+            }
+        });
+
+        benchmarks.add(new Benchmark() {
+            public String getName() { return "ExtractIlluminaBarcodes"; }
+
+            public long run() {
+                final File barcodesDir = new File(workDir, "barcodes");
+                IOUtil.deleteDirectoryTree(barcodesDir);
+                mkdirs(barcodesDir);
+                final List<String> args = new ArrayList<String>(Arrays.asList(
+                        "BASECALLS_DIR=" + basecallsDir,
+                        "OUTPUT_DIR=" + barcodesDir,
+                        "LANE=1",
+                        "READ_STRUCTURE=" + READ_STRUCTURE,
+                        "METRICS_FILE=" + new File(workDir, "barcode_metrics"),
+                        "NUM_PROCESSORS=" + numProcessors));
+                for (final String barcode : BARCODES) {
+                    args.add("BARCODE=" + barcode);
+                }
+                runCommandLineProgram(new ExtractIlluminaBarcodes(), args);
+                return generator.getTotalClusters();
+            }
+        });
+
+        benchmarks.add(new Benchmark() {
+            public String getName() { return "IlluminaBasecallsToFastq"; }
+
+            public long run() {
+                final File outputDir = new File(workDir, "fastq");
+                IOUtil.deleteDirectoryTree(outputDir);
+                mkdirs(outputDir);
+                runCommandLineProgram(new IlluminaBasecallsToFastq(), Arrays.asList(
+                        "BASECALLS_DIR=" + basecallsDir,
+                        "LANE=1",
+                        "READ_STRUCTURE=" + READ_STRUCTURE,
+                        "OUTPUT_PREFIX=" + new File(outputDir, "benchmark"),
+                        "RUN_BARCODE=BENCHMARK",
+                        "MACHINE_NAME=machine1",
+                        "FLOWCELL_BARCODE=abcdeACXX",
+                        "NUM_PROCESSORS=" + numProcessors));
+                return generator.getTotalClusters();
+            }
+        });
+
+        return benchmarks;
+    }
+
+    /** Runs the benchmark once to warm up, then iterations times, and reports the fastest run. */
+    ThroughputMetric measure(final Benchmark benchmark, final int iterations) throws Exception {
+        benchmark.run();
+        ThroughputMetric best = null;
+        for (int i = 0; i < iterations; ++i) {
+            final AllocationCounter allocationCounter = new AllocationCounter();
+            final long start = System.nanoTime();
+            final long clusters = benchmark.run();
+            final long elapsed = System.nanoTime() - start;
+            final long bytesAllocated = allocationCounter.stop();
+
+            final ThroughputMetric metric = new ThroughputMetric();
+            metric.BENCHMARK = benchmark.getName();
+            metric.CLUSTERS = clusters;
+            metric.SECONDS = elapsed / 1e9;
+            metric.CLUSTERS_PER_SECOND = clusters / metric.SECONDS;
+            metric.BYTES_PER_CLUSTER = bytesAllocated < 0 ? -1 : (double) bytesAllocated / clusters;
+            if (best == null || metric.SECONDS < best.SECONDS) best = metric;
+        }
+        log.info(String.format("%s: %,.0f clusters/second, %,.1f bytes/cluster", best.BENCHMARK,
+                best.CLUSTERS_PER_SECOND, best.BYTES_PER_CLUSTER));
+        return best;
+    }
+
+    private static void runCommandLineProgram(final CommandLineProgram program, final List<String> args) {
+        if (program.instanceMain(args.toArray(new String[args.size()])) != 0) {
+            throw new PicardException(program.getClass().getSimpleName() + " failed");
+        }
+    }
+
+    private static void mkdirs(final File dir) {
+        if (!dir.mkdirs()) {
+            throw new PicardException("Could not create directory " + dir);
+        }
+    }
+
+    /**
+     * Sums the bytes allocated by every thread from its construction until stop() is called.  Threads that end while it
+     * is counting are sampled every few milliseconds, so only what they allocated since their last sample is missed.
+     */
+    static class AllocationCounter {
+        private static final long SAMPLE_INTERVAL_MILLIS = 5;
+
+        private final com.sun.management.ThreadMXBean threadMXBean;
+        private final Map<Long, Long> startBytes = new HashMap<Long, Long>();
+        private final Map<Long, Long> latestBytes = new HashMap<Long, Long>();
+        private final Thread sampler;
+        private volatile boolean stopped = false;
+
+        AllocationCounter() {
+            final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!(bean instanceof com.sun.management.ThreadMXBean) ||
+                    !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+                threadMXBean = null;
+                sampler = null;
+                return;
+            }
+            threadMXBean = (com.sun.management.ThreadMXBean) bean;
+            threadMXBean.setThreadAllocatedMemoryEnabled(true);
+            sample(startBytes);
+
+            sampler = new Thread(new Runnable() {
+                public void run() {
+                    while (!stopped) {
+                        sample(latestBytes);
+                        try {
+                            Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                        } catch (final InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "AllocationCounter");
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+
+        private synchronized void sample(final Map<Long, Long> bytes) {
+            final long[] ids = threadMXBean.getAllThreadIds();
+            final long[] allocated = threadMXBean.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; ++i) {
+                if (allocated[i] >= 0) bytes.put(ids[i], allocated[i]);
+            }
+        }
+
+        /** @return The number of bytes allocated since construction, or -1 if that cannot be measured. */
+        long stop() throws InterruptedException {
+            if (threadMXBean == null) return -1;
+            stopped = true;
+            sampler.join();
+            sample(latestBytes);
+            long total = 0;
+            synchronized (this) {
+                for (final Map.Entry<Long, Long> entry : latestBytes.entrySet()) {
+                    if (entry.getKey() == sampler.getId()) continue;
+                    final Long start = startBytes.get(entry.getKey());
+                    total += entry.getValue() - (start == null ? 0 : start);
+                }
+            }
+            return total;
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        int tiles = 8;
+        int clustersPerTile = 100000;
+        int iterations = 3;
+        int numProcessors = 1;
+        boolean multiTile = false;
+        File output = null;
+        for (final String arg : args) {
+            final String[] nameAndValue = arg.split("=", 2);
+            if (nameAndValue.length != 2) throw new PicardException("Arguments are NAME=value, not " + arg);
+            if (nameAndValue[0].equals("TILES")) tiles = Integer.parseInt(nameAndValue[1]);
+            else if (nameAndValue[0].equals("CLUSTERS_PER_TILE")) clustersPerTile = Integer.parseInt(nameAndValue[1]);
+            else if (nameAndValue[0].equals("ITERATIONS")) iterations = Integer.parseInt(nameAndValue[1]);
+            else if (nameAndValue[0].equals("NUM_PROCESSORS")) numProcessors = Integer.parseInt(nameAndValue[1]);
+            else if (nameAndValue[0].equals("MULTI_TILE")) multiTile = Boolean.parseBoolean(nameAndValue[1]);
+            else if (nameAndValue[0].equals("OUTPUT")) output = new File(nameAndValue[1]);
+            else throw new PicardException("Unknown argument " + arg);
+        }
+
+        final File runDir = IOUtil.createTempDir("IlluminaThroughputBenchmark.", ".tmp");
+        try {
+            final IlluminaThroughputBenchmark suite = new IlluminaThroughputBenchmark(runDir, tiles, clustersPerTile, numProcessors,
+                    multiTile);
+            final MetricsFile<ThroughputMetric, Comparable<?>> metricsFile = new MetricsFile<ThroughputMetric, Comparable<?>>();
+            for (final Benchmark benchmark : suite.getBenchmarks()) {
+                metricsFile.addMetric(suite.measure(benchmark, iterations));
+            }
+            if (output != null) {
+                metricsFile.write(output);
+            }
+        } finally {
+            IOUtil.deleteDirectoryTree(runDir);
+        }
+    }
+}
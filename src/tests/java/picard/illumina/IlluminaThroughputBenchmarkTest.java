@@ -0,0 +1,58 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina;
+
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+/**
+ * Runs every benchmark on a tiny run folder, both with a file per tile and with multi-tile files, so that the suite
+ * keeps working as the code it measures changes.
+ */
+public class IlluminaThroughputBenchmarkTest {
+    @DataProvider(name = "multiTile")
+    public Object[][] multiTile() {
+        return new Object[][]{{false}, {true}};
+    }
+
+    @Test(dataProvider = "multiTile")
+    public void testBenchmarksRun(final boolean multiTile) throws Exception {
+        final File runDir = IOUtil.createTempDir("IlluminaThroughputBenchmarkTest.", ".tmp");
+        try {
+            final IlluminaThroughputBenchmark suite = new IlluminaThroughputBenchmark(runDir, 2, 300, 2, multiTile);
+            for (final IlluminaThroughputBenchmark.Benchmark benchmark : suite.getBenchmarks()) {
+                final IlluminaThroughputBenchmark.ThroughputMetric metric = suite.measure(benchmark, 1);
+                Assert.assertEquals(metric.CLUSTERS, 2 * 300, metric.BENCHMARK);
+                Assert.assertTrue(metric.CLUSTERS_PER_SECOND > 0, metric.BENCHMARK);
+                Assert.assertTrue(metric.BYTES_PER_CLUSTER > 0 || metric.BYTES_PER_CLUSTER == -1, metric.BENCHMARK);
+            }
+        } finally {
+            IOUtil.deleteDirectoryTree(runDir);
+        }
+    }
+}
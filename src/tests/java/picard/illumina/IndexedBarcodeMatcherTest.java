@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina;
+
+import htsjdk.samtools.util.SequenceUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class IndexedBarcodeMatcherTest {
+    private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+
+    @DataProvider(name = "barcodeSets")
+    public Object[][] barcodeSets() {
+        return new Object[][]{
+                // number of barcodes, lengths of barcode reads, max mismatches
+                {1, new int[]{8}, 1},
+                {13, new int[]{8}, 0},
+                {13, new int[]{8}, 1},
+                {96, new int[]{8}, 2},
+                {384, new int[]{8, 8}, 1},
+                {50, new int[]{6, 6}, 2},
+                {200, new int[]{4}, 1}
+        };
+    }
+
+    /** The matcher must agree with comparing every read to every barcode, whenever it claims to have matched. */
+    @Test(dataProvider = "barcodeSets")
+    public void testMatchesExhaustiveSearch(final int numBarcodes, final int[] lengths, final int maxMismatches) {
+        final Random random = new Random(numBarcodes * 31 + maxMismatches);
+        final List<byte[][]> barcodes = new ArrayList<byte[][]>();
+        for (int i = 0; i < numBarcodes; ++i) {
+            barcodes.add(randomSequence(random, lengths));
+        }
+        final IndexedBarcodeMatcher matcher = new IndexedBarcodeMatcher(barcodes, maxMismatches);
+        Assert.assertEquals(matcher.getRadius(), maxMismatches);
+
+        final IndexedBarcodeMatcher.Match match = new IndexedBarcodeMatcher.Match();
+        int resolved = 0;
+        for (int i = 0; i < 20000; ++i) {
+            // Mostly reads derived from a barcode with a few substitutions, some entirely random.
+            final byte[][] read = random.nextInt(10) == 0 ? randomSequence(random, lengths) :
+                    mutate(random, barcodes.get(random.nextInt(numBarcodes)), random.nextInt(maxMismatches + 2));
+            final int[] expected = exhaustiveSearch(barcodes, read);
+            if (matcher.match(read, null, 0, match)) {
+                ++resolved;
+                Assert.assertEquals(match.barcodeIndex, expected[0]);
+                Assert.assertEquals(match.mismatches, expected[1]);
+                Assert.assertEquals(match.mismatchesToSecondBest, expected[2]);
+                Assert.assertTrue(match.mismatches <= maxMismatches);
+            } else {
+                // Only reads that are too far from every barcode, or equally close to two, may be left unresolved.
+                Assert.assertTrue(expected[1] > maxMismatches || expected[1] == expected[2]);
+            }
+        }
+        Assert.assertTrue(resolved > 0);
+    }
+
+    @Test
+    public void testNoCallsAndLowQualitiesAreNotResolved() {
+        final List<byte[][]> barcodes = new ArrayList<byte[][]>();
+        barcodes.add(new byte[][]{"ACGTACGT".getBytes()});
+        barcodes.add(new byte[][]{"TTTTCCCC".getBytes()});
+        final IndexedBarcodeMatcher matcher = new IndexedBarcodeMatcher(barcodes, 1);
+        final IndexedBarcodeMatcher.Match match = new IndexedBarcodeMatcher.Match();
+
+        Assert.assertTrue(matcher.match(new byte[][]{"ACGTACGA".getBytes()}, null, 0, match));
+        Assert.assertEquals(match.barcodeIndex, 0);
+        Assert.assertEquals(match.mismatches, 1);
+        Assert.assertEquals(match.mismatchesToSecondBest, 6);
+
+        Assert.assertFalse(matcher.match(new byte[][]{"ACGTACG.".getBytes()}, null, 0, match));
+        Assert.assertFalse(matcher.match(new byte[][]{"ACGTACGN".getBytes()}, null, 0, match));
+
+        final byte[][] qualities = {{30, 30, 30, 30, 30, 30, 30, 30}};
+        Assert.assertTrue(matcher.match(new byte[][]{"ttttcccc".getBytes()}, qualities, 20, match));
+        Assert.assertEquals(match.barcodeIndex, 1);
+        qualities[0][3] = 19;
+        Assert.assertFalse(matcher.match(new byte[][]{"TTTTCCCC".getBytes()}, qualities, 20, match));
+
+        // Wrong length
+        Assert.assertFalse(matcher.match(new byte[][]{"TTTTCCC".getBytes()}, null, 0, match));
+    }
+
+    @Test
+    public void testUnpackableBarcodes() {
+        final List<byte[][]> barcodes = new ArrayList<byte[][]>();
+        barcodes.add(new byte[][]{"ACGTACGN".getBytes()});
+        barcodes.add(new byte[][]{"TTTTCCCC".getBytes()});
+        final IndexedBarcodeMatcher matcher = new IndexedBarcodeMatcher(barcodes, 1);
+        Assert.assertEquals(matcher.getRadius(), -1);
+        Assert.assertFalse(matcher.match(new byte[][]{"TTTTCCCC".getBytes()}, null, 0, new IndexedBarcodeMatcher.Match()));
+    }
+
+    /** @return The index of the best barcode, its mismatches and the second best mismatches, as ExtractIlluminaBarcodes computes them. */
+    private int[] exhaustiveSearch(final List<byte[][]> barcodes, final byte[][] read) {
+        int totalLength = 0;
+        for (final byte[] segment : read) totalLength += segment.length;
+        int best = -1;
+        int bestMismatches = totalLength + 1;
+        int secondBestMismatches = totalLength + 1;
+        for (int i = 0; i < barcodes.size(); ++i) {
+            int mismatches = 0;
+            for (int j = 0; j < read.length; ++j) {
+                for (int k = 0; k < read[j].length; ++k) {
+                    if (!SequenceUtil.basesEqual(barcodes.get(i)[j][k], read[j][k])) ++mismatches;
+                }
+            }
+            if (mismatches < bestMismatches) {
+                if (best != -1) secondBestMismatches = bestMismatches;
+                bestMismatches = mismatches;
+                best = i;
+            } else if (mismatches < secondBestMismatches) {
+                secondBestMismatches = mismatches;
+            }
+        }
+        return new int[]{best, bestMismatches, secondBestMismatches};
+    }
+
+    private byte[][] randomSequence(final Random random, final int[] lengths) {
+        final byte[][] sequence = new byte[lengths.length][];
+        for (int i = 0; i < lengths.length; ++i) {
+            sequence[i] = new byte[lengths[i]];
+            for (int j = 0; j < lengths[i]; ++j) sequence[i][j] = BASES[random.nextInt(4)];
+        }
+        return sequence;
+    }
+
+    private byte[][] mutate(final Random random, final byte[][] barcode, final int substitutions) {
+        final byte[][] read = new byte[barcode.length][];
+        for (int i = 0; i < barcode.length; ++i) read[i] = barcode[i].clone();
+        for (int i = 0; i < substitutions; ++i) {
+            final int segment = random.nextInt(read.length);
+            read[segment][random.nextInt(read[segment].length)] = BASES[random.nextInt(4)];
+        }
+        return read;
+    }
+}
@@ -450,6 +450,23 @@ public class BclParserTest {
         BclParser.runEamssForReadInPlace(bases, quals);
         Assert.assertEquals(bases, bq.bases);
         Assert.assertEquals(quals, bq.maskedQuals);
+
+        // The same read in the middle of a larger array, flanked by G's that must neither be masked nor extend a G run
+        final int offset = 12;
+        final byte[] paddedBases = new byte[bq.bases.length + 2 * offset];
+        final byte[] paddedQuals = new byte[paddedBases.length];
+        Arrays.fill(paddedBases, G);
+        Arrays.fill(paddedQuals, (byte) 3);
+        System.arraycopy(bq.bases, 0, paddedBases, offset, bq.bases.length);
+        System.arraycopy(bq.quals, 0, paddedQuals, offset, bq.quals.length);
+
+        BclParser.runEamssForReadInPlace(paddedBases, paddedQuals, offset, bq.bases.length);
+        Assert.assertEquals(Arrays.copyOfRange(paddedBases, offset, offset + bq.bases.length), bq.bases);
+        Assert.assertEquals(Arrays.copyOfRange(paddedQuals, offset, offset + bq.quals.length), bq.maskedQuals);
+        for (int i = 0; i < offset; i++) {
+            Assert.assertEquals(paddedQuals[i], (byte) 3);
+            Assert.assertEquals(paddedQuals[paddedQuals.length - 1 - i], (byte) 3);
+        }
     }
 
     @Test(dataProvider = "eamssDataNo10GSeries")
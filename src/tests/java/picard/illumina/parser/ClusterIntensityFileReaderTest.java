@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+public class ClusterIntensityFileReaderTest {
+    private static final int NUM_CLUSTERS = 37;
+    private static final int FIRST_CYCLE = 3;
+    private static final int NUM_CYCLES = 5;
+
+    @DataProvider(name = "elementSizes")
+    public Object[][] elementSizes() {
+        return new Object[][]{{1}, {2}};
+    }
+
+    @Test(dataProvider = "elementSizes")
+    public void testBulkReadsMatchGetValue(final int elementSize) throws IOException {
+        final File cif = writeCif(elementSize);
+        try {
+            final ClusterIntensityFileReader reader = new ClusterIntensityFileReader(cif);
+            Assert.assertEquals(reader.getNumClusters(), NUM_CLUSTERS);
+
+            // Load the file into the middle of a longer read segment.
+            final int outputIndex = 2;
+            final FourChannelIntensityData[] intensities = new FourChannelIntensityData[NUM_CLUSTERS];
+            for (int cluster = 0; cluster < NUM_CLUSTERS; ++cluster) {
+                intensities[cluster] = new FourChannelIntensityData(outputIndex + NUM_CYCLES);
+            }
+            reader.readAllClusters(intensities, outputIndex);
+
+            for (int cycle = FIRST_CYCLE; cycle < FIRST_CYCLE + NUM_CYCLES; ++cycle) {
+                for (final IntensityChannel channel : IntensityChannel.values()) {
+                    final ShortBuffer values = reader.getChannelValues(channel, cycle);
+                    Assert.assertEquals(values.remaining(), NUM_CLUSTERS);
+                    for (int cluster = 0; cluster < NUM_CLUSTERS; ++cluster) {
+                        final short expected = reader.getValue(cluster, channel, cycle);
+                        Assert.assertEquals(values.get(cluster), expected);
+                        Assert.assertEquals(intensities[cluster].getChannel(channel)[outputIndex + cycle - FIRST_CYCLE], expected);
+                    }
+                }
+            }
+        } finally {
+            cif.delete();
+        }
+    }
+
+    /** Writes a file of random values, which must include negative values to check that they are not sign-mangled. */
+    private static File writeCif(final int elementSize) throws IOException {
+        final File cif = File.createTempFile("ClusterIntensityFileReaderTest.", ".cif");
+        cif.deleteOnExit();
+        final ByteBuffer buf = ByteBuffer.allocate(13 + NUM_CYCLES * 4 * NUM_CLUSTERS * elementSize);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.put("CIF".getBytes()).put((byte) 1).put((byte) elementSize);
+        buf.putShort((short) FIRST_CYCLE).putShort((short) NUM_CYCLES).putInt(NUM_CLUSTERS);
+        final Random random = new Random(elementSize);
+        while (buf.hasRemaining()) {
+            buf.put((byte) random.nextInt());
+        }
+        final FileOutputStream outputStream = new FileOutputStream(cif);
+        outputStream.write(buf.array());
+        outputStream.close();
+        return cif;
+    }
+}
@@ -202,6 +202,49 @@ public class IlluminaDataProviderTest {
         runTest(testName, size, readNoToClusterData, seekAfterFirstRead, seekTestDataReadOffset, dataProvider);
     }
 
+    @Test(dataProvider = "binaryData")
+    public void testIlluminaDataProviderBatches(
+            final String testName, final int lane, final int size,
+            final List<Integer> tiles,
+            final IlluminaDataType[] extraDataTypes,
+            final String illuminaConfigStr,
+            final int seekAfterFirstRead, final int seekTestDataReadOffset,
+            final File basecallsDirectory)
+            throws Exception {
+
+        final IlluminaDataType[] dts = getDataTypes(extraDataTypes);
+        final IlluminaDataProviderFactory factory = new IlluminaDataProviderFactory(basecallsDirectory, lane, new ReadStructure(illuminaConfigStr), bclQualityEvaluationStrategy, dts);
+        final IlluminaDataProvider clusterProvider = factory.makeDataProvider();
+        final IlluminaDataProvider batchProvider = factory.makeDataProvider();
+
+        // An odd capacity so that batches end both when full and at tile boundaries
+        final ClusterDataBatch batch = batchProvider.newBatch(7);
+        int count = 0;
+        while (batchProvider.nextBatch(batch) > 0) {
+            for (int i = 0; i < batch.size(); i++) {
+                final String clusterName = testName + " cluster num " + count;
+                final ClusterData cluster = clusterProvider.next();
+                Assert.assertEquals(batch.getLane(), cluster.getLane(), clusterName);
+                Assert.assertEquals(batch.getTile(), cluster.getTile(), clusterName);
+                Assert.assertEquals(batch.getX(i), cluster.getX(), clusterName);
+                Assert.assertEquals(batch.getY(i), cluster.getY(), clusterName);
+                Assert.assertEquals(batch.isPf(i), cluster.isPf().booleanValue(), clusterName);
+                Assert.assertEquals(batch.getMatchedBarcode(i), cluster.getMatchedBarcode(), clusterName);
+                Assert.assertEquals(batch.getNumReads(), cluster.getNumReads(), clusterName);
+                for (int read = 0; read < batch.getNumReads(); read++) {
+                    Assert.assertEquals(batch.getReadType(read), cluster.getRead(read).getReadType(), clusterName);
+                    Assert.assertEquals(batch.copyBases(read, i), cluster.getRead(read).getBases(), clusterName);
+                    Assert.assertEquals(batch.copyQualities(read, i), cluster.getRead(read).getQualities(), clusterName);
+                }
+                count++;
+            }
+        }
+        Assert.assertFalse(clusterProvider.hasNext(), testName);
+        Assert.assertEquals(count, 180, testName);
+        clusterProvider.close();
+        batchProvider.close();
+    }
+
     //Unlike above, the data types here do not have DEFAULT_DATA_TYPES added before creating the dataProvider
     @DataProvider(name = "badData")
     public Object[][] badData() {
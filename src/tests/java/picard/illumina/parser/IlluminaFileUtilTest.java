@@ -20,6 +20,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -491,6 +492,25 @@ public class IlluminaFileUtilTest {
         Assert.assertTrue(noFilesPcfu.getFiles(DEFAULT_TILES).isEmpty());
     }
 
+    @Test
+    public void perTilePerCycleFileUtilCycleSubsetTest() {
+        final SupportedIlluminaFormat format = SupportedIlluminaFormat.Bcl;
+        makeFiles(format, intensityDir, DEFAULT_LANE, DEFAULT_TILES, DEFAULT_CYCLES, null);
+        // A tile missing from a cycle outside the subset doesn't matter, since that cycle is never looked at.
+        Assert.assertTrue(makePerTilePerCycleFilePath(new File(basecallDir, laneDir(DEFAULT_LANE)), DEFAULT_LANE, 3, 10, ".bcl").delete());
+
+        final int[] cycles = cycleRange(4);
+        final IlluminaFileUtil fileUtil = new IlluminaFileUtil(basecallDir, null, DEFAULT_LANE, null, cycles);
+        final PerTilePerCycleFileUtil pcfu = (PerTilePerCycleFileUtil) fileUtil.getUtil(format);
+
+        Assert.assertTrue(pcfu.filesAvailable());
+        Assert.assertEquals(pcfu.getDetectedCycles(), new TreeSet<Integer>(makeList(1, 2, 3, 4)));
+        Assert.assertEquals(pcfu.getFiles().size(), cycles.length);
+        Assert.assertEquals(new TreeSet<Integer>(pcfu.getTiles()), new TreeSet<Integer>(DEFAULT_TILES));
+        Assert.assertTrue(pcfu.verify(DEFAULT_TILES, cycles).isEmpty());
+        pcfu.getFiles(DEFAULT_TILES, cycleRange(12)).assertValid(DEFAULT_TILES, cycles);
+    }
+
     @DataProvider(name = "missingCycleDataRanges")
     public Object[][] missingCycleDataRanges() {
         return new Object[][]{
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import picard.illumina.parser.readers.FilterFileReader;
+import picard.illumina.parser.readers.TilePrefetcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class MultiTileFilterParserTest {
+    private static final int[] TILES = {1101, 1102, 1103, 1104};
+    private static final int[] CLUSTERS_PER_TILE = {1000, 0, 3000, 2500};
+
+    @Test
+    public void testPrefetchingDoesNotChangeResults() throws IOException {
+        final Random random = new Random(42);
+        int totalClusters = 0;
+        for (final int numClusters : CLUSTERS_PER_TILE) totalClusters += numClusters;
+        final byte[] pf = new byte[totalClusters];
+        for (int i = 0; i < pf.length; ++i) pf[i] = (byte) random.nextInt(2);
+
+        final File filterFile = File.createTempFile("MultiTileFilterParserTest.", ".filter");
+        filterFile.deleteOnExit();
+        final ByteBuffer filterHeader = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        filterHeader.putInt(0).putInt(3).putInt(totalClusters);
+        writeFile(filterFile, filterHeader.array(), pf);
+
+        final File bciFile = File.createTempFile("MultiTileFilterParserTest.", ".bci");
+        bciFile.deleteOnExit();
+        final ByteBuffer bci = ByteBuffer.allocate(8 * TILES.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < TILES.length; ++i) bci.putInt(TILES[i]).putInt(CLUSTERS_PER_TILE[i]);
+        writeFile(bciFile, bci.array());
+        final TileIndex tileIndex = new TileIndex(bciFile);
+
+        final List<Integer> requestedTiles = Arrays.asList(1101, 1102, 1104);
+        final List<Boolean> expected = readAll(new MultiTileFilterParser(tileIndex, requestedTiles, filterFile));
+        Assert.assertEquals(expected.size(), 3500);
+
+        final TilePrefetcher prefetcher = new TilePrefetcher(2, 1);
+        try {
+            Assert.assertEquals(readAll(new MultiTileFilterParser(tileIndex, requestedTiles, filterFile, prefetcher)), expected);
+            // Every requested tile was waited for, except 1102, which is empty.
+            Assert.assertEquals(prefetcher.getRangesAwaited(), 2);
+            // 1101, 1103 (read ahead of 1102, though never parsed) and 1104.  Nothing waited for 1103, so it may still
+            // be being read.
+            prefetcher.await(Collections.singletonList(FilterFileReader.getRecordsByteRange(filterFile, 1000, 3000)));
+            Assert.assertEquals(prefetcher.getRangesPrefetched(), 3);
+            Assert.assertEquals(prefetcher.getBytesPrefetched(), 1000 + 3000 + 2500);
+
+            // A range that cannot be read is left for the parser to complain about.
+            final List<TilePrefetcher.ByteRange> missing = Collections.singletonList(
+                    new TilePrefetcher.ByteRange(new File(filterFile.getAbsolutePath() + ".missing"), 0, 100));
+            prefetcher.prefetch(missing);
+            prefetcher.await(missing);
+            Assert.assertEquals(prefetcher.getRangesPrefetched(), 3);
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    private List<Boolean> readAll(final MultiTileFilterParser parser) {
+        final List<Boolean> ret = new ArrayList<Boolean>();
+        while (parser.hasNext()) ret.add(parser.next().isPf());
+        parser.close();
+        return ret;
+    }
+
+    private void writeFile(final File file, final byte[]... chunks) throws IOException {
+        final FileOutputStream outputStream = new FileOutputStream(file);
+        for (final byte[] chunk : chunks) outputStream.write(chunk);
+        outputStream.close();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser;
+
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RunFolderManifestTest {
+    private static final File TEST_DATA_DIR = new File("testdata/picard/illumina/25T8B25T/Data");
+    private static final ReadStructure READ_STRUCTURE = new ReadStructure("25T8B25T");
+    private static final IlluminaDataType[] DATA_TYPES = {IlluminaDataType.BaseCalls, IlluminaDataType.QualityScores,
+            IlluminaDataType.PF, IlluminaDataType.Position};
+
+    private File runDir;
+    private File basecallDir;
+
+    @BeforeMethod
+    private void setUp() throws IOException {
+        runDir = IOUtil.createTempDir("RunFolderManifestTest.", ".tmp");
+        copyRecursively(TEST_DATA_DIR, new File(runDir, "Data"));
+        basecallDir = new File(runDir, "Data/Intensities/BaseCalls");
+        backdate(runDir);
+    }
+
+    @AfterMethod
+    private void tearDown() {
+        IOUtil.deleteDirectoryTree(runDir);
+    }
+
+    @Test
+    public void testManifestIsReused() {
+        final File manifestFile = RunFolderManifest.getManifestFile(runDir, basecallDir, 1);
+        final List<String> expected = readAll(makeFactory(null));
+
+        final RunFolderManifest firstManifest = RunFolderManifest.load(manifestFile);
+        Assert.assertEquals(readAll(makeFactory(firstManifest)), expected);
+        Assert.assertTrue(firstManifest.getDirectoriesListed() > 0);
+        Assert.assertEquals(firstManifest.getDirectoriesReused(), 0);
+        Assert.assertTrue(manifestFile.exists());
+
+        final RunFolderManifest secondManifest = RunFolderManifest.load(manifestFile);
+        Assert.assertEquals(readAll(makeFactory(secondManifest)), expected);
+        Assert.assertEquals(secondManifest.getDirectoriesListed(), 0);
+        Assert.assertEquals(secondManifest.getDirectoriesReused(), firstManifest.getDirectoriesListed());
+    }
+
+    @Test
+    public void testChangedDirectoryIsListedAgain() {
+        final File manifestFile = RunFolderManifest.getManifestFile(runDir, basecallDir, 1);
+        makeFactory(RunFolderManifest.load(manifestFile));
+
+        // Removing a tile from one cycle changes that cycle directory, and only that one.
+        final File cycleDir = new File(basecallDir, "L001/C5.1");
+        Assert.assertTrue(new File(cycleDir, "s_1_2101.bcl").delete());
+        Assert.assertTrue(cycleDir.setLastModified(System.currentTimeMillis() - 30 * 1000));
+
+        final RunFolderManifest manifest = RunFolderManifest.load(manifestFile);
+        final IlluminaFileUtil fileUtil = new IlluminaFileUtil(basecallDir, null, 1, manifest);
+        final PerTilePerCycleFileUtil bclUtil = (PerTilePerCycleFileUtil) fileUtil.getUtil(IlluminaFileUtil.SupportedIlluminaFormat.Bcl);
+        Assert.assertEquals(manifest.getDirectoriesListed(), 1);
+        Assert.assertNull(bclUtil.getFiles().get(5).get(2101));
+        Assert.assertEquals(bclUtil.verify(Arrays.asList(1101, 1201, 2101), new int[]{4, 5}).size(), 1);
+    }
+
+    @Test
+    public void testRecentlyModifiedDirectoryIsNotCached() {
+        final File manifestFile = RunFolderManifest.getManifestFile(runDir, basecallDir, 1);
+        final File cycleDir = new File(basecallDir, "L001/C5.1");
+        Assert.assertTrue(cycleDir.setLastModified(System.currentTimeMillis()));
+        makeFactory(RunFolderManifest.load(manifestFile));
+
+        // Not even in memory: it is listed once to look for .bcl files and again to look for .bcl.gz files.
+        final RunFolderManifest manifest = RunFolderManifest.load(manifestFile);
+        makeFactory(manifest);
+        Assert.assertEquals(manifest.getDirectoriesListed(), 2);
+    }
+
+    @Test
+    public void testTileIndexIsCached() throws IOException {
+        final File bci = new File(basecallDir, "L001/s_1.bci");
+        final ByteBuffer records = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        records.putInt(1101).putInt(100).putInt(1102).putInt(250);
+        final FileOutputStream outputStream = new FileOutputStream(bci);
+        outputStream.write(records.array());
+        outputStream.close();
+        backdate(bci);
+
+        final File manifestFile = RunFolderManifest.getManifestFile(runDir, basecallDir, 1);
+        final RunFolderManifest firstManifest = RunFolderManifest.load(manifestFile);
+        firstManifest.getTileIndex(bci);
+        firstManifest.save();
+
+        // Were the manifest not used, reading the truncated file would fail.
+        final long lastModified = bci.lastModified();
+        final FileOutputStream truncated = new FileOutputStream(bci);
+        truncated.write(new byte[16]);
+        truncated.close();
+        Assert.assertTrue(bci.setLastModified(lastModified));
+
+        final TileIndex tileIndex = RunFolderManifest.load(manifestFile).getTileIndex(bci);
+        Assert.assertEquals(tileIndex.getTiles(), Arrays.asList(1101, 1102));
+        Assert.assertEquals(tileIndex.findTile(1102).getNumClustersInTile(), 250);
+        Assert.assertEquals(tileIndex.findTile(1102).indexOfFirstClusterInTile, 100);
+    }
+
+    @Test
+    public void testUnreadableManifestIsIgnored() throws IOException {
+        final File manifestFile = RunFolderManifest.getManifestFile(runDir, basecallDir, 1);
+        final FileOutputStream outputStream = new FileOutputStream(manifestFile);
+        outputStream.write("not a manifest\n".getBytes());
+        outputStream.close();
+
+        final RunFolderManifest manifest = RunFolderManifest.load(manifestFile);
+        Assert.assertEquals(readAll(makeFactory(manifest)), readAll(makeFactory(null)));
+        Assert.assertTrue(manifest.getDirectoriesListed() > 0);
+    }
+
+    private IlluminaDataProviderFactory makeFactory(final RunFolderManifest manifest) {
+        return new IlluminaDataProviderFactory(basecallDir, null, 1, READ_STRUCTURE,
+                new BclQualityEvaluationStrategy(BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY),
+                manifest, DATA_TYPES);
+    }
+
+    private List<String> readAll(final IlluminaDataProviderFactory factory) {
+        final List<String> clusters = new ArrayList<String>();
+        final IlluminaDataProvider dataProvider = factory.makeDataProvider();
+        while (dataProvider.hasNext()) {
+            final ClusterData cluster = dataProvider.next();
+            clusters.add(cluster.getTile() + ":" + cluster.getX() + ":" + cluster.getY() + ":" + cluster.isPf() + ":" +
+                    new String(cluster.getRead(0).getBases()));
+        }
+        dataProvider.close();
+        return clusters;
+    }
+
+    private static void copyRecursively(final File source, final File destination) {
+        if (source.isDirectory()) {
+            Assert.assertTrue(destination.mkdirs());
+            for (final File child : source.listFiles()) {
+                copyRecursively(child, new File(destination, child.getName()));
+            }
+        } else {
+            IOUtil.copyFile(source, destination);
+        }
+    }
+
+    /** Moves modification times out of the window in which the manifest will not trust them. */
+    private static void backdate(final File file) {
+        Assert.assertTrue(file.setLastModified(System.currentTimeMillis() - 60 * 1000));
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) backdate(child);
+        }
+    }
+}
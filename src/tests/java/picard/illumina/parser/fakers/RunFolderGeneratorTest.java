@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser.fakers;
+
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import picard.illumina.parser.ClusterData;
+import picard.illumina.parser.IlluminaDataProvider;
+import picard.illumina.parser.IlluminaDataProviderFactory;
+import picard.illumina.parser.IlluminaDataType;
+import picard.illumina.parser.ReadStructure;
+import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RunFolderGeneratorTest {
+    private static final ReadStructure READ_STRUCTURE = new ReadStructure("10T4B4B10T");
+    private static final List<String> BARCODES = Arrays.asList("ACGTTTGA", "GGCCAATT", "TACGCATG");
+
+    private File runDir;
+
+    @BeforeMethod
+    private void setUp() {
+        runDir = IOUtil.createTempDir("RunFolderGeneratorTest.", ".tmp");
+    }
+
+    @AfterMethod
+    private void tearDown() {
+        IOUtil.deleteDirectoryTree(runDir);
+    }
+
+    @Test
+    public void testGeneratedRunFolderIsReadable() throws Exception {
+        final RunFolderGenerator generator = new RunFolderGenerator(READ_STRUCTURE)
+                .setNumLanes(2)
+                .setTilesPerLane(3)
+                .setClustersPerTile(500)
+                .setBarcodes(BARCODES)
+                .setNoCallRate(0)
+                .setBarcodeErrorRate(0)
+                .setUnmatchedBarcodeRate(0)
+                .setPfFraction(0.5);
+        final File basecallsDir = generator.generate(runDir);
+
+        for (int lane = 1; lane <= generator.getNumLanes(); ++lane) {
+            final List<String> clusters = readAll(basecallsDir, lane);
+            Assert.assertEquals(clusters.size(), 3 * 500);
+
+            int numPf = 0;
+            for (final String cluster : clusters) {
+                final String[] fields = cluster.split(":");
+                if (Boolean.parseBoolean(fields[1])) ++numPf;
+                Assert.assertTrue(BARCODES.contains(fields[4] + fields[5]), cluster);
+            }
+            Assert.assertTrue(numPf > 600 && numPf < 900, "PF clusters: " + numPf);
+        }
+    }
+
+    @Test
+    public void testCompressedRunFolderHoldsTheSameClusters() throws Exception {
+        final File uncompressedDir = new File(runDir, "uncompressed");
+        final File compressedDir = new File(runDir, "compressed");
+        new RunFolderGenerator(READ_STRUCTURE).setClustersPerTile(200).setBarcodes(BARCODES).generate(uncompressedDir);
+        new RunFolderGenerator(READ_STRUCTURE).setClustersPerTile(200).setBarcodes(BARCODES).setCompressBcls(true)
+                .generate(compressedDir);
+
+        final File compressedBcl = new File(RunFolderGenerator.getBasecallsDir(compressedDir), "L001/C1.1/s_1_1101.bcl.gz");
+        Assert.assertTrue(compressedBcl.exists());
+        Assert.assertEquals(readAll(RunFolderGenerator.getBasecallsDir(compressedDir), 1),
+                readAll(RunFolderGenerator.getBasecallsDir(uncompressedDir), 1));
+    }
+
+    @Test
+    public void testMultiTileRunFolderHoldsTheSameClusters() throws Exception {
+        final File perTileDir = new File(runDir, "perTile");
+        final File multiTileDir = new File(runDir, "multiTile");
+        new RunFolderGenerator(READ_STRUCTURE).setNumLanes(2).setClustersPerTile(200).setBarcodes(BARCODES)
+                .generate(perTileDir);
+        new RunFolderGenerator(READ_STRUCTURE).setNumLanes(2).setClustersPerTile(200).setBarcodes(BARCODES)
+                .setMultiTile(true).generate(multiTileDir);
+
+        final File multiTileBasecallsDir = RunFolderGenerator.getBasecallsDir(multiTileDir);
+        Assert.assertTrue(new File(multiTileBasecallsDir, "L001/0001.bcl.bgzf").exists());
+        Assert.assertTrue(new File(multiTileBasecallsDir, "L001/0001.bcl.bgzf.bci").exists());
+        Assert.assertTrue(new File(multiTileBasecallsDir, "L001/s_1.bci").exists());
+        Assert.assertFalse(new File(multiTileBasecallsDir, "L001/C1.1").exists());
+        for (int lane = 1; lane <= 2; ++lane) {
+            Assert.assertEquals(readAll(multiTileBasecallsDir, lane),
+                    readAll(RunFolderGenerator.getBasecallsDir(perTileDir), lane));
+        }
+    }
+
+    private static List<String> readAll(final File basecallsDir, final int lane) {
+        final IlluminaDataProviderFactory factory = new IlluminaDataProviderFactory(basecallsDir, lane, READ_STRUCTURE,
+                new BclQualityEvaluationStrategy(BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY),
+                IlluminaDataType.BaseCalls, IlluminaDataType.QualityScores, IlluminaDataType.PF, IlluminaDataType.Position);
+        final IlluminaDataProvider provider = factory.makeDataProvider();
+        final List<String> clusters = new ArrayList<String>();
+        while (provider.hasNext()) {
+            final ClusterData cluster = provider.next();
+            final StringBuilder sb = new StringBuilder();
+            sb.append(cluster.getTile()).append(':').append(cluster.isPf()).append(':').append(cluster.getX());
+            for (int i = 0; i < cluster.getNumReads(); ++i) {
+                sb.append(':').append(new String(cluster.getRead(i).getBases()));
+            }
+            clusters.add(sb.toString());
+        }
+        provider.close();
+        return clusters;
+    }
+}
@@ -5,9 +5,13 @@ import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import picard.PicardException;
 import picard.illumina.parser.BclData;
+import picard.illumina.parser.ClusterDataBatch;
+import picard.illumina.parser.ReadType;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -73,6 +77,73 @@ public class BclReaderTest {
         reader.close();
     }
 
+    @Test
+    public void readValidFileInBlocks() {
+        final BclQualityEvaluationStrategy bclQualityEvaluationStrategy = new BclQualityEvaluationStrategy(BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY);
+        final BclReader reader = new BclReader(Collections.singletonList(PASSING_BCL_FILE), new int[]{1},
+                bclQualityEvaluationStrategy, false, 7);
+        final byte[] quals = qualsAsBytes();
+
+        // Mix the per-cluster view with whole blocks to make sure they agree on what has been consumed.
+        int readNum = 0;
+        for (int i = 0; i < 3; i++) {
+            final BclData bv = reader.next();
+            Assert.assertEquals(bv.bases[0][0], expectedBases[readNum], " On num cluster: " + readNum);
+            Assert.assertEquals(bv.qualities[0][0], quals[readNum], " On num cluster: " + readNum);
+            ++readNum;
+        }
+
+        int blockEnd;
+        while ((blockEnd = reader.nextBlock()) > 0) {
+            for (int cluster = reader.getBlockOffset(); cluster < blockEnd; cluster++) {
+                Assert.assertEquals(reader.getBlockBases()[0][cluster], expectedBases[readNum], " On num cluster: " + readNum);
+                Assert.assertEquals(reader.getBlockQualities()[0][cluster], quals[readNum], " On num cluster: " + readNum);
+                ++readNum;
+            }
+        }
+        Assert.assertEquals(readNum, expectedBases.length);
+        Assert.assertFalse(reader.hasNext());
+        bclQualityEvaluationStrategy.assertMinimumQualities();
+        reader.close();
+    }
+
+    @Test
+    public void readValidFileIntoBatch() {
+        final BclQualityEvaluationStrategy bclQualityEvaluationStrategy = new BclQualityEvaluationStrategy(BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY);
+        // Two reads of one and two cycles, every cycle being the same file
+        final int[] outputLengths = new int[]{1, 2};
+        final BclReader reader = new BclReader(Arrays.asList(PASSING_BCL_FILE, PASSING_BCL_FILE, PASSING_BCL_FILE), outputLengths,
+                bclQualityEvaluationStrategy, false, 7);
+        final ClusterDataBatch batch = new ClusterDataBatch(new ReadType[]{ReadType.T, ReadType.T}, outputLengths, expectedBases.length);
+        final byte[] quals = qualsAsBytes();
+
+        // Start with the per-cluster view so that the first clusters come from a partly consumed block.
+        for (int i = 0; i < 3; i++) {
+            reader.next();
+        }
+
+        int start = 3;
+        int numClusters;
+        while ((numClusters = reader.nextClusters(batch, start, 5)) > 0) {
+            Assert.assertTrue(numClusters <= 5);
+            start += numClusters;
+        }
+        Assert.assertEquals(start, expectedBases.length);
+        Assert.assertFalse(reader.hasNext());
+
+        for (int cluster = 3; cluster < expectedBases.length; cluster++) {
+            for (int read = 0; read < outputLengths.length; read++) {
+                for (int cycle = 0; cycle < outputLengths[read]; cycle++) {
+                    final int index = batch.getReadOffset(read, cluster) + cycle;
+                    Assert.assertEquals(batch.getBases(read)[index], expectedBases[cluster], " On num cluster: " + cluster);
+                    Assert.assertEquals(batch.getQualities(read)[index], quals[cluster], " On num cluster: " + cluster);
+                }
+            }
+        }
+        bclQualityEvaluationStrategy.assertMinimumQualities();
+        reader.close();
+    }
+
     @DataProvider(name = "failingFiles")
     public Object[][] failingFiles() {
         return new Object[][]{
@@ -96,6 +167,19 @@ public class BclReaderTest {
         bclQualityEvaluationStrategy.assertMinimumQualities();
     }
 
+    @Test
+    public void qualityRevisionTest() {
+        final BclQualityEvaluationStrategy bclQualityEvaluationStrategy = new BclQualityEvaluationStrategy(1);
+        for (int i = Byte.MIN_VALUE; i <= Byte.MAX_VALUE; i++) {
+            Assert.assertEquals(bclQualityEvaluationStrategy.reviseAndConditionallyLogQuality((byte) i), (byte) Math.max(i, 1));
+        }
+        // Only the sub-Q2 qualities are counted, each once.
+        Assert.assertEquals(bclQualityEvaluationStrategy.getPoorQualityFrequencies().size(), 2 - Byte.MIN_VALUE);
+        Assert.assertEquals((int) bclQualityEvaluationStrategy.getPoorQualityFrequencies().get((byte) 1), 1);
+        Assert.assertEquals((int) bclQualityEvaluationStrategy.getPoorQualityFrequencies().get(Byte.MIN_VALUE), 1);
+        bclQualityEvaluationStrategy.assertMinimumQualities();
+    }
+
     /**
      * Asserts appropriate functionality of a quality-minimum-customized BLC reader, such that (1) if sub-Q2 qualities are found, the BCL
      * reader does not throw an exception, (2) sub-minimum calls are set to quality 1 and (3) sub-minimum calls are counted up properly.
@@ -157,4 +157,38 @@ public class ClocsFileReaderTest {
 
         Assert.assertFalse(clocsReader.hasNext());
     }
+
+    @DataProvider(name = "allClocsFiles")
+    public Object [][] allClocsFiles() {
+        return new Object[][] {
+            {PASSING_CLOCS_FILE}, {MULTI_BIN_PASSING_CLOCS_FILE}, {MBCF_W_EMPTY_BINS_AT_START},
+            {MBCF_W_EMPTY_BINS_AT_END}, {MBCF_W_EMPTY_BINS_THROUGHOUT}, {MBCF_MULTI_ROW_FILE}
+        };
+    }
+
+    /** Decoding in bulk, in chunks that straddle bins, must give the same positions as decoding one at a time. */
+    @Test(dataProvider = "allClocsFiles")
+    public void bulkDecodingTest(final File clocsFile) {
+        final ClocsFileReader expectedReader = new ClocsFileReader(clocsFile);
+        final ClocsFileReader floatReader = new ClocsFileReader(clocsFile);
+        final ClocsFileReader qseqReader = new ClocsFileReader(clocsFile);
+        final float[] xs = new float[7];
+        final float[] ys = new float[7];
+        final int[] qseqXs = new int[8];
+        final int[] qseqYs = new int[8];
+
+        int numDecoded;
+        while ((numDecoded = floatReader.nextPositions(xs, ys, 0, xs.length)) > 0) {
+            Assert.assertEquals(qseqReader.nextQseqCoords(qseqXs, qseqYs, 1, xs.length), numDecoded);
+            for (int i = 0; i < numDecoded; ++i) {
+                final AbstractIlluminaPositionFileReader.PositionInfo expected = expectedReader.next();
+                Assert.assertEquals(xs[i], expected.xPos);
+                Assert.assertEquals(ys[i], expected.yPos);
+                Assert.assertEquals(qseqXs[i + 1], expected.xQseqCoord);
+                Assert.assertEquals(qseqYs[i + 1], expected.yQseqCoord);
+            }
+        }
+        Assert.assertFalse(expectedReader.hasNext());
+        Assert.assertFalse(qseqReader.hasNext());
+    }
 }
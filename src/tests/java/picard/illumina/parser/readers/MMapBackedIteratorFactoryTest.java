@@ -11,6 +11,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 public class MMapBackedIteratorFactoryTest {
     public static File TestDataDir = new File("testdata/picard/illumina/readerTests");
@@ -204,6 +205,60 @@ public class MMapBackedIteratorFactoryTest {
         bbIter.assertTotalElementsEqual(expectedElements);
     }
 
+    @DataProvider(name = "segmentSizes")
+    public Object[][] segmentSizes() {
+        return new Object[][]{{MMapBackedCursor.DEFAULT_SEGMENT_SIZE}, {16L}, {13L}, {12L}};
+    }
+
+    /** Elements that straddle segment boundaries must read the same as any others, singly and in bulk. */
+    @Test(dataProvider = "segmentSizes")
+    public void testCursors(final long segmentSize) {
+        // A single element, then the rest in runs of up to three.
+        final MMapBackedCursor.IntCursor intCursor = MMapBackedIteratorFactory.getIntCursor(15, BinFile, segmentSize);
+        final IntBuffer expectedInts = fileAsByteBuffer(15).asIntBuffer();
+        Assert.assertEquals(intCursor.getHeaderBytes(), headerAsByteBuffer(15));
+        Assert.assertEquals(intCursor.nextInt(), expectedInts.get());
+        final int[] ints = new int[4];
+        while (intCursor.hasNext()) {
+            final int n = (int) Math.min(3, intCursor.getElementsRemaining());
+            intCursor.read(ints, 1, n);
+            for (int i = 0; i < n; ++i) Assert.assertEquals(ints[i + 1], expectedInts.get());
+        }
+        Assert.assertFalse(expectedInts.hasRemaining());
+
+        final MMapBackedCursor.ByteCursor byteCursor = MMapBackedIteratorFactory.getByteCursor(2, BinFile, segmentSize);
+        final ByteBuffer expectedBytes = fileAsByteBuffer(2);
+        Assert.assertEquals(byteCursor.nextByte(), expectedBytes.get());
+        final byte[] bytes = new byte[expectedBytes.remaining()];
+        byteCursor.read(bytes, 0, bytes.length);
+        for (final byte b : bytes) Assert.assertEquals(b, expectedBytes.get());
+        Assert.assertFalse(byteCursor.hasNext());
+
+        final MMapBackedCursor.FloatCursor floatCursor = MMapBackedIteratorFactory.getFloatCursor(19, BinFile, segmentSize);
+        final ByteBuffer expectedFloats = fileAsByteBuffer(19);
+        floatCursor.assertTotalElementsEqual(8);
+        final float[] floats = new float[8];
+        floatCursor.read(floats, 0, 7);
+        for (int i = 0; i < 7; ++i) Assert.assertEquals(floats[i], expectedFloats.getFloat());
+        Assert.assertEquals(floatCursor.nextFloat(), expectedFloats.getFloat());
+        Assert.assertFalse(floatCursor.hasNext());
+
+        final MMapBackedCursor.LongCursor longCursor = MMapBackedIteratorFactory.getLongCursor(3, BinFile, segmentSize);
+        final ByteBuffer expectedLongs = fileAsByteBuffer(3);
+        longCursor.skipElements(2);
+        expectedLongs.position(16);
+        final long[] longs = new long[4];
+        longCursor.read(longs, 0, 4);
+        for (final long l : longs) Assert.assertEquals(l, expectedLongs.getLong());
+        Assert.assertFalse(longCursor.hasNext());
+    }
+
+    @Test(expectedExceptions = NoSuchElementException.class)
+    public void testCursorReadPastEnd() {
+        final MMapBackedCursor.IntCursor intCursor = MMapBackedIteratorFactory.getIntCursor(15, BinFile, 16);
+        intCursor.read(new int[10], 0, 10);
+    }
+
     public void testHeaderBytes(final ByteBuffer bb1, final ByteBuffer bb2) {
         Assert.assertTrue(bb1.equals(bb2), "Header bytes are not equal! " + bb1.toString() + "  !=  " + bb2.toString());
     }
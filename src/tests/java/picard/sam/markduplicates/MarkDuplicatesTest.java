@@ -24,9 +24,13 @@
 
 package picard.sam.markduplicates;
 
+import htsjdk.samtools.Defaults;
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMProgramRecord;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
@@ -39,12 +43,16 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 /**
  * This class defines the individual test cases to run. The actual running of the test is done
@@ -205,4 +213,86 @@ public class MarkDuplicatesTest extends AbstractMarkDuplicatesCommandLineProgram
                 {new File(TEST_DATA_DIR, "optical_dupes_casava.sam"), 1L},
         };
     }
+
+    /**
+     * Runs MarkDuplicates on a BAM of a few MB, with and without the reading and writing pipelines, and checks that
+     * the BAM, its index and MD5 and the metrics are the same.
+     */
+    @Test
+    public void testPipelinedOutputIsIdentical() throws IOException {
+        final File outputDir = IOUtil.createTempDir(TEST_BASE_NAME + ".", ".tmp");
+        try {
+            final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+            builder.setRandomSeed(17);
+            final Random random = new Random(17);
+            for (int i = 0; i < 20000; ++i) {
+                final int start = 1 + random.nextInt(5000);
+                builder.addPair("pair" + i, random.nextInt(2), start, start + random.nextInt(300));
+                if (i % 4 == 0) builder.addFrag("frag" + i, random.nextInt(2), 1 + random.nextInt(5000), random.nextBoolean());
+                if (i % 100 == 0) builder.addUnmappedPair("unmapped" + i);
+            }
+            final File input = new File(outputDir, "input.bam");
+            final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(builder.getHeader(), true, input);
+            for (final SAMRecord rec : builder) {
+                writer.addAlignment(rec);
+            }
+            writer.close();
+
+            SAMFileWriterFactory.setDefaultCreateIndexWhileWriting(true);
+            SAMFileWriterFactory.setDefaultCreateMd5File(true);
+            final File[] outputs = new File[2];
+            final File[] metricsFiles = new File[2];
+            for (int run = 0; run < 2; ++run) {
+                outputs[run] = new File(outputDir, "output" + run + ".bam");
+                metricsFiles[run] = new File(outputDir, "output" + run + ".duplicate_metrics");
+                final MarkDuplicates markDuplicates = new MarkDuplicates();
+                markDuplicates.setupOpticalDuplicateFinder();
+                markDuplicates.INPUT = CollectionUtil.makeList(input.getAbsolutePath());
+                markDuplicates.OUTPUT = outputs[run];
+                markDuplicates.METRICS_FILE = metricsFiles[run];
+                markDuplicates.TMP_DIR = CollectionUtil.makeList(outputDir);
+                markDuplicates.CREATE_INDEX = true;
+                markDuplicates.CREATE_MD5_FILE = true;
+                // Needed to suppress calling CommandLineProgram.getVersion(), which doesn't work for code not in a jar
+                markDuplicates.PROGRAM_RECORD_ID = null;
+                if (run == 1) {
+                    markDuplicates.INFLATE_THREADS = 3;
+                    markDuplicates.DECODE_THREADS = 2;
+                    markDuplicates.ENCODE_THREADS = 3;
+                    markDuplicates.COMPRESSION_THREADS = 2;
+                }
+                Assert.assertEquals(markDuplicates.doWork(), 0);
+            }
+
+            Assert.assertTrue(input.length() > 1024 * 1024);
+            Assert.assertEquals(readBytes(outputs[1]), readBytes(outputs[0]));
+            Assert.assertEquals(readBytes(new File(outputDir, "output1.bai")), readBytes(new File(outputDir, "output0.bai")));
+            Assert.assertEquals(readBytes(new File(outputDir, "output1.bam.md5")), readBytes(new File(outputDir, "output0.bam.md5")));
+            Assert.assertEquals(readMetrics(metricsFiles[1]), readMetrics(metricsFiles[0]));
+        } finally {
+            SAMFileWriterFactory.setDefaultCreateIndexWhileWriting(Defaults.CREATE_INDEX);
+            SAMFileWriterFactory.setDefaultCreateMd5File(Defaults.CREATE_MD5);
+            TestUtil.recursiveDelete(outputDir);
+        }
+    }
+
+    private static byte[] readBytes(final File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /** @return The lines of a metrics file other than its header, which includes the start time. */
+    private static List<String> readMetrics(final File file) throws IOException {
+        final List<String> lines = new ArrayList<String>();
+        for (final String line : IOUtil.slurpLines(file)) {
+            if (!line.startsWith("#")) lines.add(line);
+        }
+        return lines;
+    }
 }
@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class HashedReadEndsForMarkDuplicatesMapTest {
+
+    /** A read of a simulated pair, at a position in a coordinate sorted file. */
+    private static class Read {
+        final String name;
+        final int referenceIndex;
+        final int start;
+        final int mateReferenceIndex;
+        final int mateStart;
+
+        Read(final String name, final int referenceIndex, final int start, final int mateReferenceIndex, final int mateStart) {
+            this.name = name;
+            this.referenceIndex = referenceIndex;
+            this.start = start;
+            this.mateReferenceIndex = mateReferenceIndex;
+            this.mateStart = mateStart;
+        }
+    }
+
+    @DataProvider(name = "sizes")
+    public Object[][] sizes() {
+        return new Object[][]{
+                {1000, 100000},     // all in RAM
+                {20000, 500},       // spilled, many windows
+                {50000, 3},
+        };
+    }
+
+    @Test(dataProvider = "sizes")
+    public void testMatesFoundAndUnchanged(final int numPairs, final int maxRecordsInRam) {
+        final Random random = new Random(numPairs);
+        final List<Read> reads = new ArrayList<Read>();
+        for (int i = 0; i < numPairs; ++i) {
+            final int referenceIndex = random.nextInt(3);
+            final int start = 1 + random.nextInt(20 << HashedReadEndsForMarkDuplicatesMap.WINDOW_SHIFT);
+            // Most mates are close by, some are far away and some are on other references.
+            final int mateReferenceIndex = random.nextInt(10) == 0 ? random.nextInt(3) : referenceIndex;
+            final int mateStart = random.nextInt(4) == 0 ? 1 + random.nextInt(20 << HashedReadEndsForMarkDuplicatesMap.WINDOW_SHIFT) :
+                    start + random.nextInt(500);
+            final String name = "read" + i;
+            reads.add(new Read(name, referenceIndex, start, mateReferenceIndex, mateStart));
+            reads.add(new Read(name, mateReferenceIndex, mateStart, referenceIndex, start));
+        }
+        Collections.sort(reads, new Comparator<Read>() {
+            @Override
+            public int compare(final Read lhs, final Read rhs) {
+                if (lhs.referenceIndex != rhs.referenceIndex) return lhs.referenceIndex < rhs.referenceIndex ? -1 : 1;
+                return lhs.start < rhs.start ? -1 : (lhs.start == rhs.start ? 0 : 1);
+            }
+        });
+
+        final HashedReadEndsForMarkDuplicatesMap map = new HashedReadEndsForMarkDuplicatesMap(maxRecordsInRam,
+                Collections.singletonList(new File(System.getProperty("java.io.tmpdir"))));
+        final Map<String, String> expected = new HashMap<String, String>();
+        final long[] key = new long[2];
+        int numMatched = 0;
+        for (int i = 0; i < reads.size(); ++i) {
+            final Read read = reads.get(i);
+            HashedReadEndsForMarkDuplicatesMap.hash("RG" + (read.name.hashCode() & 1), read.name, key);
+            final ReadEndsForMarkDuplicates found = map.remove(read.referenceIndex, read.start, key[0], key[1]);
+            if (found == null) {
+                final ReadEndsForMarkDuplicates readEnds = randomReadEnds(random, i);
+                expected.put(read.name, toString(readEnds));
+                map.put(read.referenceIndex, read.start, read.mateReferenceIndex, read.mateStart, key[0], key[1], readEnds);
+            } else {
+                Assert.assertEquals(toString(found), expected.remove(read.name));
+                ++numMatched;
+            }
+            Assert.assertEquals(map.size(), expected.size());
+            Assert.assertTrue(map.sizeInRam() <= Math.max(maxRecordsInRam, map.size()));
+        }
+        Assert.assertEquals(numMatched, numPairs);
+        Assert.assertEquals(map.size(), 0);
+        map.cleanup();
+    }
+
+    /**
+     * Read ends whose mates are in the current window, or in one already passed, cannot be spilled.  A map full of them
+     * must not scan its table for read ends to spill on every put(), and must spill again once it can.
+     */
+    @Test
+    public void testUnspillableReadEndsDoNotRescanOnEveryPut() {
+        final int maxRecordsInRam = 100;
+        final int numReadEnds = 100000;
+        final HashedReadEndsForMarkDuplicatesMap map = new HashedReadEndsForMarkDuplicatesMap(maxRecordsInRam,
+                Collections.singletonList(new File(System.getProperty("java.io.tmpdir"))));
+        final Random random = new Random(1);
+        final long[] key = new long[2];
+        final int windowSize = 1 << HashedReadEndsForMarkDuplicatesMap.WINDOW_SHIFT;
+        for (int i = 0; i < numReadEnds; ++i) {
+            // Deep coverage in one window, with mates in that window or, for orphans, in the one before it.
+            final int start = windowSize + i % windowSize;
+            final int mateStart = i % 2 == 0 ? start : 1;
+            HashedReadEndsForMarkDuplicatesMap.hash("RG", "read" + i, key);
+            map.put(0, start, 0, mateStart, key[0], key[1], randomReadEnds(random, i));
+        }
+        Assert.assertEquals(map.sizeInRam(), numReadEnds);
+        final int numScans = map.getNumSpillScans();
+        Assert.assertTrue(numScans < 30, "Spill scans: " + numScans);
+
+        // Once the map moves on, read ends whose mates are ahead are spilled again.
+        for (int i = 0; i < numReadEnds; ++i) {
+            HashedReadEndsForMarkDuplicatesMap.hash("RG", "far" + i, key);
+            map.put(0, 2 * windowSize + i, 0, 10 * windowSize, key[0], key[1], randomReadEnds(random, i));
+        }
+        Assert.assertEquals(map.size(), 2 * numReadEnds);
+        Assert.assertTrue(map.sizeInRam() < 2 * numReadEnds, "In RAM: " + map.sizeInRam());
+        Assert.assertTrue(map.getNumSpillScans() - numScans < 30, "Spill scans: " + map.getNumSpillScans());
+        map.cleanup();
+    }
+
+    @Test
+    public void testHashSeparatesReadGroupFromName() {
+        final long[] a = new long[2];
+        final long[] b = new long[2];
+        HashedReadEndsForMarkDuplicatesMap.hash("A", "BC", a);
+        HashedReadEndsForMarkDuplicatesMap.hash("AB", "C", b);
+        Assert.assertFalse(a[0] == b[0] && a[1] == b[1]);
+        HashedReadEndsForMarkDuplicatesMap.hash(null, "read", a);
+        HashedReadEndsForMarkDuplicatesMap.hash("null", "read", b);
+        Assert.assertFalse(a[0] == b[0] && a[1] == b[1]);
+        HashedReadEndsForMarkDuplicatesMap.hash("", "read", b);
+        Assert.assertFalse(a[0] == b[0] && a[1] == b[1]);
+    }
+
+    private static ReadEndsForMarkDuplicates randomReadEnds(final Random random, final int index) {
+        final ReadEndsForMarkDuplicates read = new ReadEndsForMarkDuplicates();
+        read.libraryId = (short) random.nextInt();
+        read.read1ReferenceIndex = random.nextInt();
+        read.read1Coordinate = random.nextInt();
+        read.orientation = (byte) random.nextInt(6);
+        read.read2ReferenceIndex = random.nextInt();
+        read.read2Coordinate = -1;
+        read.read1IndexInFile = index;
+        read.read2IndexInFile = random.nextLong();
+        read.score = (short) random.nextInt();
+        read.readGroup = (short) random.nextInt();
+        read.tile = (short) random.nextInt();
+        read.x = (short) random.nextInt();
+        read.y = (short) random.nextInt();
+        read.orientationForOpticalDuplicates = (byte) random.nextInt();
+        return read;
+    }
+
+    private static String toString(final ReadEndsForMarkDuplicates read) {
+        return read.libraryId + " " + read.read1ReferenceIndex + " " + read.read1Coordinate + " " + read.orientation + " " +
+                read.read2ReferenceIndex + " " + read.read2Coordinate + " " + read.read1IndexInFile + " " +
+                read.read2IndexInFile + " " + read.score + " " + read.readGroup + " " + read.tile + " " + read.x + " " +
+                read.y + " " + read.orientationForOpticalDuplicates;
+    }
+}
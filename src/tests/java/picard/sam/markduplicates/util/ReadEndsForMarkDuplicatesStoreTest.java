@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.CloseableIterator;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class ReadEndsForMarkDuplicatesStoreTest {
+
+    /** The order MarkDuplicates needs, field by field, without overflow at the extremes of each type. */
+    private static final Comparator<ReadEndsForMarkDuplicates> EXPECTED_ORDER = new Comparator<ReadEndsForMarkDuplicates>() {
+        @Override
+        public int compare(final ReadEndsForMarkDuplicates lhs, final ReadEndsForMarkDuplicates rhs) {
+            int retval = compareLongs(lhs.libraryId, rhs.libraryId);
+            if (retval == 0) retval = compareLongs(lhs.read1ReferenceIndex, rhs.read1ReferenceIndex);
+            if (retval == 0) retval = compareLongs(lhs.read1Coordinate, rhs.read1Coordinate);
+            if (retval == 0) retval = compareLongs(lhs.orientation, rhs.orientation);
+            if (retval == 0) retval = compareLongs(lhs.read2ReferenceIndex, rhs.read2ReferenceIndex);
+            if (retval == 0) retval = compareLongs(lhs.read2Coordinate, rhs.read2Coordinate);
+            if (retval == 0) retval = compareLongs(lhs.read1IndexInFile, rhs.read1IndexInFile);
+            if (retval == 0) retval = compareLongs(lhs.read2IndexInFile, rhs.read2IndexInFile);
+            return retval;
+        }
+
+        private int compareLongs(final long lhs, final long rhs) {
+            return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+        }
+    };
+
+    @DataProvider(name = "sizes")
+    public Object[][] sizes() {
+        return new Object[][]{
+                {0, 10, 1},
+                {1000, 5000, 1},       // all in RAM
+                {10000, 997, 1},       // spilled, with a partial run left in RAM
+                {150000, 100000, 1},   // more than one page
+                {0, 10, 4},
+                {1000, 5000, 4},       // too few to split between threads
+                {150000, 100000, 4},   // sorted as four ranges, then as three
+                {250000, 70000, 3},
+        };
+    }
+
+    @Test(dataProvider = "sizes")
+    public void testSortedAndUnchanged(final int numReadEnds, final int maxRecordsInRam, final int numThreads) {
+        final Random random = new Random(numReadEnds);
+        final List<ReadEndsForMarkDuplicates> expected = new ArrayList<ReadEndsForMarkDuplicates>();
+        final ReadEndsForMarkDuplicatesStore store = new ReadEndsForMarkDuplicatesStore(maxRecordsInRam,
+                Collections.singletonList(new File(System.getProperty("java.io.tmpdir"))), numThreads);
+        for (int i = 0; i < numReadEnds; ++i) {
+            final ReadEndsForMarkDuplicates read = randomReadEnds(random, i);
+            expected.add(read);
+            store.add(read);
+        }
+        Collections.sort(expected, EXPECTED_ORDER);
+        Assert.assertEquals(store.size(), numReadEnds);
+        Assert.assertEquals(store.getNumSpillFiles(), numReadEnds == 0 ? 0 : (numReadEnds - 1) / maxRecordsInRam);
+
+        // Iterating twice must give the same answer.
+        for (int pass = 0; pass < 2; ++pass) {
+            final CloseableIterator<ReadEndsForMarkDuplicates> iterator = store.iterator();
+            for (final ReadEndsForMarkDuplicates read : expected) {
+                Assert.assertTrue(iterator.hasNext());
+                Assert.assertEquals(toString(iterator.next()), toString(read));
+            }
+            Assert.assertFalse(iterator.hasNext());
+            iterator.close();
+        }
+        store.cleanup();
+    }
+
+    /** Draws fields from small ranges, so that there are ties, and includes the extremes of each type. */
+    private static ReadEndsForMarkDuplicates randomReadEnds(final Random random, final int index) {
+        final ReadEndsForMarkDuplicates read = new ReadEndsForMarkDuplicates();
+        read.libraryId = pick(random, Short.MIN_VALUE, Short.MAX_VALUE, (short) 1, (short) 2);
+        read.read1ReferenceIndex = pick(random, Integer.MIN_VALUE, Integer.MAX_VALUE, -1, 0);
+        read.read1Coordinate = pick(random, Integer.MIN_VALUE, Integer.MAX_VALUE, -5, 100);
+        read.orientation = (byte) (random.nextInt(2) == 0 ? pick(random, Byte.MIN_VALUE, Byte.MAX_VALUE, ReadEnds.F, ReadEnds.R) :
+                random.nextInt(6));
+        if (random.nextBoolean()) {
+            read.read2ReferenceIndex = pick(random, Integer.MIN_VALUE, Integer.MAX_VALUE, -1, 0);
+            read.read2Coordinate = pick(random, Integer.MIN_VALUE, Integer.MAX_VALUE, -1, 100);
+            read.read2IndexInFile = random.nextBoolean() ? Long.MAX_VALUE - index : random.nextInt(1000);
+        }
+        read.read1IndexInFile = random.nextBoolean() ? Long.MIN_VALUE + index : index;
+        read.score = (short) random.nextInt();
+        read.readGroup = (short) random.nextInt();
+        read.tile = (short) random.nextInt();
+        read.x = (short) random.nextInt();
+        read.y = (short) random.nextInt();
+        read.orientationForOpticalDuplicates = (byte) random.nextInt();
+        return read;
+    }
+
+    private static short pick(final Random random, final short a, final short b, final short c, final short d) {
+        return (short) pick(random, (int) a, (int) b, (int) c, (int) d);
+    }
+
+    private static int pick(final Random random, final int a, final int b, final int c, final int d) {
+        switch (random.nextInt(4)) {
+            case 0: return a;
+            case 1: return b;
+            case 2: return c;
+            default: return d;
+        }
+    }
+
+    private static String toString(final ReadEndsForMarkDuplicates read) {
+        return read.libraryId + " " + read.read1ReferenceIndex + " " + read.read1Coordinate + " " + read.orientation + " " +
+                read.read2ReferenceIndex + " " + read.read2Coordinate + " " + read.read1IndexInFile + " " +
+                read.read2IndexInFile + " " + read.score + " " + read.readGroup + " " + read.tile + " " + read.x + " " +
+                read.y + " " + read.orientationForOpticalDuplicates;
+    }
+}
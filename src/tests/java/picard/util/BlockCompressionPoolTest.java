@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+public class BlockCompressionPoolTest {
+
+    @DataProvider(name = "poolConfigurations")
+    public Object[][] poolConfigurations() {
+        return new Object[][]{
+                // threads, max blocks in flight, compression level
+                {1, 1, 5},
+                {4, 2, 5},
+                {4, 64, 1},
+                {3, 8, 9},
+                {2, 4, 0}
+        };
+    }
+
+    /** Interleaved writes to several streams must each produce exactly what BlockCompressedOutputStream produces. */
+    @Test(dataProvider = "poolConfigurations")
+    public void testMatchesBlockCompressedOutputStream(final int numThreads, final int maxBlocksInFlight,
+                                                       final int compressionLevel) throws IOException {
+        final Random random = new Random(numThreads * 100 + maxBlocksInFlight);
+        final int numStreams = 5;
+        final byte[][] data = new byte[numStreams][];
+        for (int i = 0; i < numStreams; ++i) {
+            data[i] = randomData(random, random.nextInt(400000));
+        }
+        data[0] = new byte[0];
+
+        final BlockCompressionPool pool = new BlockCompressionPool(numThreads, maxBlocksInFlight, compressionLevel);
+        final ByteArrayOutputStream[] pooledBytes = new ByteArrayOutputStream[numStreams];
+        final OutputStream[] pooledStreams = new OutputStream[numStreams];
+        for (int i = 0; i < numStreams; ++i) {
+            pooledBytes[i] = new ByteArrayOutputStream();
+            pooledStreams[i] = pool.newOutputStream(pooledBytes[i]);
+        }
+        final int[] written = new int[numStreams];
+        boolean remaining = true;
+        while (remaining) {
+            remaining = false;
+            for (int i = 0; i < numStreams; ++i) {
+                final int n = Math.min(data[i].length - written[i], random.nextInt(20000));
+                if (n == 1) {
+                    pooledStreams[i].write(data[i][written[i]]);
+                } else {
+                    pooledStreams[i].write(data[i], written[i], n);
+                }
+                written[i] += n;
+                remaining |= written[i] < data[i].length;
+            }
+        }
+        for (final OutputStream stream : pooledStreams) stream.close();
+        pool.shutdown();
+
+        for (int i = 0; i < numStreams; ++i) {
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            final BlockCompressedOutputStream bcos = new BlockCompressedOutputStream(expected, null, compressionLevel);
+            bcos.write(data[i]);
+            bcos.close();
+            Assert.assertEquals(pooledBytes[i].toByteArray(), expected.toByteArray());
+
+            final BlockCompressedInputStream bcis = new BlockCompressedInputStream(new ByteArrayInputStream(pooledBytes[i].toByteArray()));
+            final byte[] decompressed = new byte[data[i].length];
+            int offset = 0;
+            while (offset < decompressed.length) {
+                final int n = bcis.read(decompressed, offset, decompressed.length - offset);
+                Assert.assertTrue(n > 0);
+                offset += n;
+            }
+            Assert.assertEquals(bcis.read(), -1);
+            Assert.assertEquals(decompressed, data[i]);
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testWriteFailureIsReported() throws IOException {
+        final BlockCompressionPool pool = new BlockCompressionPool(2, 2, 5);
+        try {
+            final OutputStream stream = pool.newOutputStream(new OutputStream() {
+                @Override
+                public void write(final int b) throws IOException {
+                    throw new IOException("Disk full");
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    throw new IOException("Disk full");
+                }
+            });
+            stream.write(randomData(new Random(1), 200000));
+            stream.close();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Half random bytes and half a small alphabet, so some blocks compress and some do not. */
+    private byte[] randomData(final Random random, final int length) {
+        final byte[] data = new byte[length];
+        random.nextBytes(data);
+        for (int i = 0; i < length; ++i) {
+            if ((i / 70000) % 2 == 0) data[i] = (byte) "ACGT".charAt(data[i] & 3);
+        }
+        return data;
+    }
+}
@@ -35,6 +35,7 @@ import picard.util.IlluminaUtil.IlluminaAdapterPair;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 /**
  *
@@ -369,6 +370,59 @@ public class ClippingUtilityTest {
                 String.format("Expected '%s' to contain '%s'", marker.getAdapters()[0].getName(), adapterPair.getName()));
     }
 
+    /**
+     * Confirm that the bit-parallel search finds the same clip position as comparing every base of every alignment,
+     * including for adapters longer than 64 bases and for lower case bases and no-calls in the read and the adapter.
+     */
+    @Test
+    public void testClipSequenceMatchesBaseByBaseComparison() {
+        final Random random = new Random(42);
+        final byte[] alphabet = StringUtil.stringToBytes("ACGTACGTACGTacgtN.");
+        for (int trial = 0; trial < 5000; ++trial) {
+            final byte[] adapter = randomBases(random, alphabet, random.nextInt(100));
+            final byte[] read = randomBases(random, alphabet, random.nextInt(160));
+            // Usually plant some adapter at the end of the read, so that there are matches to find.
+            if (read.length > 0 && adapter.length > 0 && random.nextBoolean()) {
+                final int length = Math.min(1 + random.nextInt(read.length), adapter.length);
+                System.arraycopy(adapter, 0, read, read.length - length, length);
+                read[read.length - 1 - random.nextInt(length)] = alphabet[random.nextInt(alphabet.length)];
+            }
+            final int minMatch = random.nextInt(20);
+            final double maxErrorRate = random.nextDouble() * 0.3;
+
+            Assert.assertEquals(ClippingUtility.findIndexOfClipSequence(read, adapter, minMatch, maxErrorRate),
+                    findIndexOfClipSequenceBaseByBase(read, adapter, minMatch, maxErrorRate),
+                    StringUtil.bytesToString(read) + " " + StringUtil.bytesToString(adapter) + " " + minMatch + " " + maxErrorRate);
+        }
+    }
+
+    private static byte[] randomBases(final Random random, final byte[] alphabet, final int length) {
+        final byte[] bases = new byte[length];
+        for (int i = 0; i < length; ++i) bases[i] = alphabet[random.nextInt(alphabet.length)];
+        return bases;
+    }
+
+    /** The straightforward search that ClippingUtility.findIndexOfClipSequence() must agree with. */
+    private static int findIndexOfClipSequenceBaseByBase(final byte[] read, final byte[] adapterSequence, final int minMatch, final double maxErrorRate) {
+        if (read.length < minMatch) return ClippingUtility.NO_MATCH;
+
+        READ_LOOP:
+        for (int start = read.length - minMatch; start >= 0; --start) {
+            final int length = Math.min(read.length - start, adapterSequence.length);
+            final int mismatchesAllowed = (int) (length * maxErrorRate);
+            int mismatches = 0;
+
+            for (int i = 0; i < length; ++i) {
+                if (!SequenceUtil.isNoCall(adapterSequence[i]) && !SequenceUtil.basesEqual(adapterSequence[i], read[start + i])) {
+                    if (++mismatches > mismatchesAllowed) continue READ_LOOP;
+                }
+            }
+            return start;
+        }
+
+        return ClippingUtility.NO_MATCH;
+    }
+
     @DataProvider(name="testAdapterListTruncationDataProvider")
     public Object[][] testAdapterListTruncationDataProvider() {
         Object[][] ret = new Object[IlluminaAdapterPair.values().length][];
@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+public class CompressedBitSetTest {
+
+    @DataProvider(name = "densities")
+    public Object[][] densities() {
+        return new Object[][]{
+                {0.0},
+                {0.001},    // array chunks only
+                {0.3},      // bitmap chunks, converted from arrays
+                {1.0},
+        };
+    }
+
+    @Test(dataProvider = "densities")
+    public void testMatchesBitSet(final double density) {
+        final int numValues = 500000;
+        final Random random = new Random(42);
+        final BitSet expected = new BitSet(numValues);
+        final CompressedBitSet set = new CompressedBitSet();
+        // Add out of order and with repeats, checking that lookups between adds see everything added so far.
+        for (int i = 0; i < numValues * density * 1.5; ++i) {
+            final int value = random.nextInt(numValues);
+            expected.set(value);
+            set.add(value);
+            if (i % 1000 == 0) Assert.assertTrue(set.contains(value));
+        }
+        for (int i = 0; i < numValues; ++i) {
+            Assert.assertEquals(set.contains(i), expected.get(i), "value " + i);
+        }
+        Assert.assertFalse(set.contains(Long.MAX_VALUE >>> 20));
+        Assert.assertEquals(set.getCardinality(), expected.cardinality());
+        Assert.assertTrue(set.sizeInBytes() <= numValues / 8 + 8192);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNegative() {
+        new CompressedBitSet().add(-1);
+    }
+}